@@ -5,6 +5,11 @@
 
 dependencies {
     jmhImplementation(projects.boot)
+    jmhImplementation(projects.common)
+    jmhImplementation(projects.dumper)
+    jmhImplementation(projects.instrumenter)
+    jmhImplementation("net.sf.trove4j:trove4j")
+    jmhImplementation("org.ow2.asm:asm-commons")
 }
 
 tasks.withType<JavaExec>().configureEach {
@@ -0,0 +1,88 @@
+package com.netcracker.profiler
+
+import org.openjdk.jmh.annotations.*
+import org.openjdk.jmh.runner.Runner
+import org.openjdk.jmh.runner.options.OptionsBuilder
+import com.netcracker.profiler.agent.LocalBuffer
+import com.netcracker.profiler.agent.LocalBufferRing
+import com.netcracker.profiler.agent.StripedBufferQueue
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.BlockingQueue
+import java.util.concurrent.TimeUnit
+import kotlin.concurrent.thread
+
+/**
+ * Emulates `Profiler.exchangeBuffer` under contention: application threads take an empty buffer
+ * and publish a dirty one, while a single consumer thread moves the dirty buffers back to the free list.
+ */
+@Fork(value = 3, jvmArgsPrepend = ["-Xmx256m"])
+@Measurement(iterations = 10, time = 1, timeUnit = TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Threads(16)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+open class BufferQueueContentionBenchmark {
+    @Param("ArrayBlockingQueue", "LockFree")
+    var queueType = "LockFree"
+
+    @Param("4096")
+    var capacity = 4096
+
+    lateinit var dirtyBuffers: BlockingQueue<LocalBuffer>
+    lateinit var emptyBuffers: BlockingQueue<LocalBuffer>
+
+    @Volatile
+    var running = true
+    lateinit var consumer: Thread
+
+    @Setup(Level.Trial)
+    fun setup() {
+        when (queueType) {
+            "ArrayBlockingQueue" -> {
+                dirtyBuffers = ArrayBlockingQueue(capacity)
+                emptyBuffers = ArrayBlockingQueue(capacity)
+            }
+            else -> {
+                dirtyBuffers = LocalBufferRing(capacity)
+                emptyBuffers = StripedBufferQueue(capacity)
+            }
+        }
+        repeat(capacity / 2) {
+            emptyBuffers.offer(LocalBuffer(16))
+        }
+        running = true
+        consumer = thread(name = "buffer-consumer") {
+            val buffers = ArrayList<LocalBuffer>(100)
+            while (running) {
+                if (dirtyBuffers.drainTo(buffers, 100) == 0) {
+                    dirtyBuffers.poll(10, TimeUnit.MILLISECONDS)?.let { buffers.add(it) }
+                }
+                for (buffer in buffers) {
+                    emptyBuffers.offer(buffer)
+                }
+                buffers.clear()
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    fun tearDown() {
+        running = false
+        consumer.join()
+    }
+
+    @Benchmark
+    fun exchangeBuffer(): Boolean {
+        val buffer = emptyBuffers.poll() ?: LocalBuffer(16)
+        return dirtyBuffers.offer(buffer)
+    }
+}
+
+fun main() {
+    val opt = OptionsBuilder()
+        .include(BufferQueueContentionBenchmark::class.java.getSimpleName())
+        .detectJvmArgs()
+        .build()
+    Runner(opt).run()
+}
@@ -0,0 +1,65 @@
+package com.netcracker.profiler
+
+import org.openjdk.jmh.annotations.*
+import org.openjdk.jmh.infra.Blackhole
+import org.openjdk.jmh.profile.GCProfiler
+import org.openjdk.jmh.runner.Runner
+import org.openjdk.jmh.runner.options.OptionsBuilder
+import com.netcracker.profiler.agent.Bootstrap
+import com.netcracker.profiler.agent.DumperPlugin
+import com.netcracker.profiler.agent.Profiler
+import com.netcracker.profiler.agent.ProfilerTransformerPlugin
+import java.util.concurrent.TimeUnit
+
+/**
+ * Measures allocation of top-level calls with and without [com.netcracker.profiler.agent.CallInfo] recycling.
+ * Use [GCProfiler] to compare `gc.alloc.rate.norm` (bytes/op).
+ * `minimal_logged_duration=0` makes every call reach the dumper, so the recycled objects come back via
+ * [com.netcracker.profiler.agent.LocalState.recycleCallInfo].
+ */
+@Fork(value = 3, jvmArgsPrepend = ["-Xmx128m", "-Dcom.netcracker.profiler.agent.Profiler.minimal_logged_duration=0"])
+@Measurement(iterations = 10, time = 1, timeUnit = TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Threads(4)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+open class CallInfoRecyclingBenchmark {
+    @Param("10")
+    var cpuTokens: Long = 1
+
+    @Setup(Level.Trial)
+    fun setup() {
+        Bootstrap.registerPlugin(DumperPlugin::class.java, NoopDumperPlugin())
+        Bootstrap.registerPlugin(ProfilerTransformerPlugin::class.java, NoopProfilerTransformerPlugin())
+    }
+
+    @Benchmark
+    fun topLevelCallRecycled(bh: Blackhole) {
+        topLevelCall()
+    }
+
+    @Benchmark
+    @Fork(jvmArgsAppend = ["-Dcom.netcracker.profiler.agent.Profiler.CALL_INFO_POOL_SIZE=0"])
+    fun topLevelCallAllocated(bh: Blackhole) {
+        topLevelCall()
+    }
+
+    private fun topLevelCall() {
+        val localState = Profiler.enterReturning(42)
+        try {
+            Blackhole.consumeCPU(cpuTokens)
+        } finally {
+            localState.exit()
+        }
+    }
+}
+
+fun main() {
+    val opt = OptionsBuilder()
+        .include(CallInfoRecyclingBenchmark::class.java.getSimpleName())
+        .addProfiler(GCProfiler::class.java)
+        .detectJvmArgs()
+        .build()
+    Runner(opt).run()
+}
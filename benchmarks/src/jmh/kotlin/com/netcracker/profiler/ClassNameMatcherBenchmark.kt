@@ -0,0 +1,119 @@
+package com.netcracker.profiler
+
+import com.netcracker.profiler.configuration.ClassNameMatcher
+import com.netcracker.profiler.configuration.Rule
+import org.openjdk.jmh.annotations.*
+import org.openjdk.jmh.infra.Blackhole
+import org.openjdk.jmh.runner.Runner
+import org.openjdk.jmh.runner.options.OptionsBuilder
+import org.w3c.dom.Element
+import java.io.File
+import java.net.URI
+import java.nio.file.FileSystems
+import java.nio.file.Files
+import java.util.concurrent.TimeUnit
+import javax.xml.parsers.DocumentBuilderFactory
+
+/**
+ * Compares the lookup of wildcard rules for a class: checking each rule with [Rule.classNameMatches]
+ * (the way `RuleListGroup` used to work) and a single pass over [ClassNameMatcher].
+ * The rules are taken from the configuration files of the installer and the plugins, the class names are
+ * the classes of the JDK plus synthetic application classes, [CLASS_COUNT] in total.
+ */
+@Fork(value = 2, jvmArgsPrepend = ["-Xmx512m"])
+@Measurement(iterations = 10, time = 1, timeUnit = TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(CLASS_COUNT)
+open class ClassNameMatcherBenchmark {
+    private lateinit var rules: List<Rule>
+    private lateinit var matcher: ClassNameMatcher
+    private lateinit var classNames: Array<String>
+
+    @Setup(Level.Trial)
+    fun setup() {
+        rules = loadWildcardRules(findProjectRoot())
+        matcher = ClassNameMatcher(rules)
+        classNames = loadClassNames()
+        println("${rules.size} wildcard rules, ${classNames.size} classes")
+    }
+
+    @Benchmark
+    fun regexPerRule(bh: Blackhole) {
+        for (className in classNames) {
+            for (rule in rules) {
+                if (rule.classNameMatches(className)) {
+                    bh.consume(rule)
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    fun compiled(bh: Blackhole) {
+        for (className in classNames) {
+            bh.consume(matcher.getRulesForClass(className))
+        }
+    }
+
+    private fun findProjectRoot(): File {
+        var dir: File? = File("").absoluteFile
+        while (dir != null && !File(dir, "settings.gradle.kts").exists()) {
+            dir = dir.parentFile
+        }
+        return dir ?: error("Unable to find project root from ${File("").absolutePath}")
+    }
+
+    private fun loadWildcardRules(root: File): List<Rule> {
+        val configs = listOf(File(root, "installer/src/main/resources/config"), File(root, "plugins"))
+            .flatMap { dir -> dir.walk().filter { it.isFile && it.name.endsWith(".xml") && "/build/" !in it.path } }
+        val factory = DocumentBuilderFactory.newInstance()
+        val result = mutableListOf<Rule>()
+        for (config in configs) {
+            val doc = factory.newDocumentBuilder().parse(config)
+            val ruleElements = doc.getElementsByTagName("rule")
+            for (i in 0 until ruleElements.length) {
+                val classes = (ruleElements.item(i) as Element).getElementsByTagName("class")
+                val rule = Rule()
+                for (j in 0 until classes.length) {
+                    rule.addClass(classes.item(j).textContent.trim())
+                }
+                // Hashable rules are looked up by RuleHashGroup
+                if (classes.length > 0 && rule.classNames.isEmpty()) {
+                    result.add(rule)
+                }
+            }
+        }
+        return result
+    }
+
+    private fun loadClassNames(): Array<String> {
+        val names = mutableListOf<String>()
+        val jrt = FileSystems.getFileSystem(URI.create("jrt:/"))
+        Files.walk(jrt.getPath("/modules")).use { paths ->
+            paths.filter { it.toString().endsWith(".class") && !it.toString().endsWith("module-info.class") }
+                .limit(CLASS_COUNT.toLong())
+                .forEach { names.add(it.subpath(2, it.nameCount).toString().removeSuffix(".class")) }
+        }
+        val packages = arrayOf("com/acme/orders", "org/springframework/web", "com/netcracker/ejb", "io/undertow/server")
+        var i = 0
+        while (names.size < CLASS_COUNT) {
+            names.add("${packages[i % packages.size]}/sub${i % 37}/Generated${i}Service")
+            i++
+        }
+        names.shuffle(java.util.Random(42))
+        return names.toTypedArray()
+    }
+}
+
+const val CLASS_COUNT = 50000
+
+fun main() {
+    val opt = OptionsBuilder()
+        .include(ClassNameMatcherBenchmark::class.java.getSimpleName())
+        .detectJvmArgs()
+        .build()
+    Runner(opt).run()
+}
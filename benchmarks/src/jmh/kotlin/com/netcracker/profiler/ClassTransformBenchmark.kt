@@ -0,0 +1,118 @@
+package com.netcracker.profiler
+
+import com.netcracker.profiler.configuration.Rule
+import com.netcracker.profiler.instrument.ProfileClassAdapter
+import com.netcracker.profiler.instrument.enhancement.EnhancerConstants.OPCODES_VERSION
+import org.objectweb.asm.ClassReader
+import org.objectweb.asm.ClassVisitor
+import org.objectweb.asm.ClassWriter
+import org.objectweb.asm.MethodVisitor
+import org.objectweb.asm.commons.CodeSizeEvaluator
+import org.openjdk.jmh.annotations.*
+import org.openjdk.jmh.infra.Blackhole
+import org.openjdk.jmh.runner.Runner
+import org.openjdk.jmh.runner.options.OptionsBuilder
+import java.io.File
+import java.util.concurrent.TimeUnit
+import java.util.jar.JarFile
+
+/**
+ * Measures the transformation of classes with profiling rules the way `ProfilingTransformer` does it.
+ * `transform` is the single pass over [ProfileClassAdapter], `gatherPass` is the extra pass that computed the size,
+ * lines and backward jumps of every method before the rules were selected in the same pass (the transformation used
+ * to cost `gatherPass + transform`), `copy` is a class without rules.
+ *
+ * The classes are taken from the jars listed in `-Dbenchmark.jars` (path separated), or the jars of the class path,
+ * [ClassTransformBenchmark.CLASSES] in total. The rules mimic the default configuration: methods larger than 50 bytes
+ * and `run*` methods with loops.
+ */
+@Fork(value = 2, jvmArgsPrepend = ["-Xmx512m"])
+@Measurement(iterations = 10, time = 1, timeUnit = TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@OperationsPerInvocation(ClassTransformBenchmark.CLASSES)
+open class ClassTransformBenchmark {
+    companion object {
+        const val CLASSES = 2000
+    }
+
+    private lateinit var classes: Array<ByteArray>
+    private lateinit var rules: List<Rule>
+
+    @Setup(Level.Trial)
+    fun setup() {
+        classes = loadClasses()
+        val generic = Rule()
+        generic.setMinimumMethodSize(50)
+        val loops = Rule()
+        loops.addIncludedMethod("run*")
+        loops.setMinimumMethodBackJumps(1)
+        rules = listOf(loops, generic)
+        println("${classes.size} classes")
+    }
+
+    @Benchmark
+    fun copy(bh: Blackhole) {
+        for (bytes in classes) {
+            val cr = ClassReader(bytes)
+            val cw = ClassWriter(cr, ClassWriter.COMPUTE_MAXS)
+            cr.accept(cw, ClassReader.EXPAND_FRAMES)
+            bh.consume(cw.toByteArray())
+        }
+    }
+
+    @Benchmark
+    fun gatherPass(bh: Blackhole) {
+        for (bytes in classes) {
+            val cr = ClassReader(bytes)
+            cr.accept(object : ClassVisitor(OPCODES_VERSION) {
+                override fun visitMethod(access: Int, name: String, descriptor: String, signature: String?, exceptions: Array<String>?): MethodVisitor {
+                    val codeSize = CodeSizeEvaluator(null)
+                    bh.consume(codeSize)
+                    return codeSize
+                }
+            }, ClassReader.SKIP_FRAMES)
+        }
+    }
+
+    @Benchmark
+    fun transform(bh: Blackhole) {
+        for (bytes in classes) {
+            val cr = ClassReader(bytes)
+            val cw = ClassWriter(cr, ClassWriter.COMPUTE_MAXS)
+            cr.accept(ProfileClassAdapter(cw, cr, rules, "benchmark.jar"), ClassReader.EXPAND_FRAMES)
+            bh.consume(cw.toByteArray())
+        }
+    }
+
+    private fun loadClasses(): Array<ByteArray> {
+        val jars = (System.getProperty("benchmark.jars") ?: System.getProperty("java.class.path"))
+            .split(File.pathSeparator)
+            .filter { it.endsWith(".jar") && File(it).isFile }
+        val result = mutableListOf<ByteArray>()
+        for (jar in jars) {
+            JarFile(jar).use { file ->
+                for (entry in file.entries()) {
+                    if (result.size == CLASSES) {
+                        return result.toTypedArray()
+                    }
+                    if (entry.name.endsWith(".class") && !entry.name.endsWith("module-info.class")) {
+                        result.add(file.getInputStream(entry).use { it.readBytes() })
+                    }
+                }
+            }
+        }
+        check(result.size == CLASSES) { "Found ${result.size} classes in $jars, need $CLASSES" }
+        return result.toTypedArray()
+    }
+}
+
+fun main() {
+    val opt = OptionsBuilder()
+        .include(ClassTransformBenchmark::class.java.getSimpleName())
+        .detectJvmArgs()
+        .build()
+    Runner(opt).run()
+}
@@ -0,0 +1,128 @@
+package com.netcracker.profiler
+
+import org.openjdk.jmh.annotations.*
+import org.openjdk.jmh.runner.Runner
+import org.openjdk.jmh.runner.options.OptionsBuilder
+import com.netcracker.profiler.dump.DataOutputStreamEx
+import com.netcracker.profiler.dump.DumpCodec
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.OutputStream
+import java.util.Random
+import java.util.concurrent.TimeUnit
+
+/**
+ * Compares compression and decompression throughput of [DumpCodec]s.
+ * Pass `-Ddump.file=.../trace/000001.gz` (any codec) to measure on real trace data, otherwise the benchmark
+ * generates trace-like records.
+ * The compression ratio is `uncompressedBytes / compressedBytes` of the `compress` benchmark.
+ */
+@Fork(value = 2, jvmArgsPrepend = ["-Xmx512m"])
+@Measurement(iterations = 10, time = 1, timeUnit = TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+open class DumpCodecBenchmark {
+    @Param("GZIP", "LZ4", "ZSTD")
+    lateinit var codec: DumpCodec
+
+    private lateinit var data: ByteArray
+    private lateinit var compressed: ByteArray
+    private val buffer = ByteArray(64 * 1024)
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    open class Sizes {
+        @JvmField
+        var uncompressedBytes: Long = 0
+
+        @JvmField
+        var compressedBytes: Long = 0
+    }
+
+    @Setup(Level.Trial)
+    fun setup() {
+        val dumpFile = System.getProperty("dump.file")
+        data = if (dumpFile == null) generateTrace() else DumpCodec.openInputStream(File(dumpFile), 65536).use { it.readBytes() }
+        val out = ByteArrayOutputStream()
+        codec.wrapOutputStream(out).use { it.write(data) }
+        compressed = out.toByteArray()
+    }
+
+    @Benchmark
+    fun compress(sizes: Sizes): Long {
+        val out = CountingOutputStream()
+        codec.wrapOutputStream(out).use {
+            // The dumper writes in small portions, so mimic that instead of a single large write
+            var pos = 0
+            while (pos < data.size) {
+                val len = minOf(4096, data.size - pos)
+                it.write(data, pos, len)
+                pos += len
+            }
+        }
+        sizes.uncompressedBytes += data.size
+        sizes.compressedBytes += out.count
+        return out.count
+    }
+
+    @Benchmark
+    fun decompress(): Long {
+        var total = 0L
+        codec.wrapInputStream(ByteArrayInputStream(compressed), 65536).use {
+            while (true) {
+                val n = it.read(buffer)
+                if (n < 0) {
+                    break
+                }
+                total += n
+            }
+        }
+        return total
+    }
+
+    private class CountingOutputStream : OutputStream() {
+        var count = 0L
+
+        override fun write(b: Int) {
+            count++
+        }
+
+        override fun write(b: ByteArray, off: Int, len: Int) {
+            count += len
+        }
+    }
+
+    /**
+     * Produces records similar to the trace stream: buffer headers followed by enter/exit events with
+     * varint time deltas and method ids that follow a skewed distribution.
+     */
+    private fun generateTrace(): ByteArray {
+        val random = Random(42)
+        val bytes = ByteArrayOutputStream()
+        val out = DataOutputStreamEx(bytes)
+        var time = 1_700_000_000_000L
+        while (bytes.size() < 16 * 1024 * 1024) {
+            out.writeLong(100L + random.nextInt(50))
+            out.writeLong(time)
+            for (i in 0 until 1000) {
+                out.write(random.nextInt(4))
+                out.writeVarInt(random.nextInt(1 + random.nextInt(1000)))
+                out.writeVarInt((Math.abs(random.nextGaussian()) * 2000).toInt())
+            }
+            time += random.nextInt(10)
+        }
+        out.flush()
+        return bytes.toByteArray()
+    }
+}
+
+fun main() {
+    val opt = OptionsBuilder()
+        .include(DumpCodecBenchmark::class.java.getSimpleName())
+        .detectJvmArgs()
+        .build()
+    Runner(opt).run()
+}
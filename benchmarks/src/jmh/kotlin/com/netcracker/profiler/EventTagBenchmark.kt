@@ -0,0 +1,63 @@
+package com.netcracker.profiler
+
+import org.openjdk.jmh.annotations.*
+import org.openjdk.jmh.profile.GCProfiler
+import org.openjdk.jmh.runner.Runner
+import org.openjdk.jmh.runner.options.OptionsBuilder
+import com.netcracker.profiler.agent.Bootstrap
+import com.netcracker.profiler.agent.DumperPlugin
+import com.netcracker.profiler.agent.Profiler
+import com.netcracker.profiler.agent.ProfilerTransformerPlugin
+import java.util.concurrent.TimeUnit
+
+/**
+ * Compares logging events by tag name (dictionary lookup on each call) with logging events by
+ * a tag id that is resolved once, as the plugin generator does for the injected code.
+ */
+@Fork(value = 3, jvmArgsPrepend = ["-Xmx128m"])
+@Measurement(iterations = 10, time = 1, timeUnit = TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Threads(4)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+open class EventTagBenchmark {
+    var sql = "select * from dual"
+
+    private val tagId = Profiler.resolveEventTag("sql")
+
+    @Setup(Level.Trial)
+    fun setup() {
+        Bootstrap.registerPlugin(DumperPlugin::class.java, NoopDumperPlugin())
+        Bootstrap.registerPlugin(ProfilerTransformerPlugin::class.java, NoopProfilerTransformerPlugin())
+    }
+
+    @Benchmark
+    fun eventByName() {
+        val localState = Profiler.enterReturning(42)
+        try {
+            Profiler.event(sql, "sql")
+        } finally {
+            localState.exit()
+        }
+    }
+
+    @Benchmark
+    fun eventById() {
+        val localState = Profiler.enterReturning(42)
+        try {
+            Profiler.event(sql, tagId)
+        } finally {
+            localState.exit()
+        }
+    }
+}
+
+fun main() {
+    val opt = OptionsBuilder()
+        .include(EventTagBenchmark::class.java.getSimpleName())
+        .addProfiler(GCProfiler::class.java)
+        .detectJvmArgs()
+        .build()
+    Runner(opt).run()
+}
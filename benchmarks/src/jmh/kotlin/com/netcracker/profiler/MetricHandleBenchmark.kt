@@ -0,0 +1,71 @@
+package com.netcracker.profiler
+
+import com.netcracker.profiler.agent.MetricType
+import com.netcracker.profiler.metrics.AggregationParameter
+import com.netcracker.profiler.metrics.MetricHandleImpl
+import com.netcracker.profiler.metrics.MetricsPluginImpl
+import gnu.trove.set.hash.THashSet
+import org.openjdk.jmh.annotations.*
+import org.openjdk.jmh.profile.GCProfiler
+import org.openjdk.jmh.runner.Runner
+import org.openjdk.jmh.runner.options.OptionsBuilder
+import java.util.concurrent.TimeUnit
+
+/**
+ * Compares recording a custom metric via per-call lookup (the way [MetricsPluginImpl.getMetric] builds
+ * the aggregation key) with recording via a metric handle that is resolved once.
+ */
+@Fork(value = 3, jvmArgsPrepend = ["-Xmx128m"])
+@Measurement(iterations = 10, time = 1, timeUnit = TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Threads(4)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+open class MetricHandleBenchmark {
+    private val callType = "orders"
+    private val statuses = arrayOf("ok", "failed", "timeout", "cancelled")
+    private val regions = arrayOf("eu", "us")
+
+    private lateinit var plugin: MetricsPluginImpl
+    private lateinit var handle: MetricHandleImpl
+
+    @State(Scope.Thread)
+    open class Counter {
+        var i = 0
+    }
+
+    @Setup(Level.Trial)
+    fun setup() {
+        plugin = MetricsPluginImpl()
+        handle = MetricHandleImpl(
+            plugin, MetricType.COUNT, callType, arrayOf("status", "region"),
+            true, emptyMap(), 2
+        )
+    }
+
+    @Benchmark
+    fun lookupPerCall(counter: Counter) {
+        val i = counter.i++
+        val aggregationParameters = HashSet<AggregationParameter>()
+        aggregationParameters.add(AggregationParameter("status", THashSet<String>().apply { add(statuses[i and 3]) }))
+        aggregationParameters.add(AggregationParameter("region", THashSet<String>().apply { add(regions[i and 1]) }))
+        plugin.getOrCreateMetric(MetricType.COUNT, callType, aggregationParameters, true, emptyMap(), 2)
+            .recordValue(1, null)
+    }
+
+    @Benchmark
+    fun handle(counter: Counter) {
+        val i = counter.i++
+        handle.record(1, statuses[i and 3], regions[i and 1])
+    }
+}
+
+fun main() {
+    val opt = OptionsBuilder()
+        .include(MetricHandleBenchmark::class.java.getSimpleName())
+        .addProfiler(GCProfiler::class.java)
+        .detectJvmArgs()
+        .build()
+    Runner(opt).run()
+}
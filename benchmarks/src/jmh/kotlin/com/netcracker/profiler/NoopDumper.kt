@@ -1,5 +1,6 @@
 package com.netcracker.profiler
 
+import com.netcracker.profiler.agent.CallInfo
 import com.netcracker.profiler.agent.DumperPlugin_02
 import com.netcracker.profiler.agent.LocalBuffer
 import com.netcracker.profiler.agent.LocalState
@@ -12,6 +13,7 @@
 /**
  * This is a no-op implementation for benchmark purposes.
  * The dumper will not write data to disk, and it would reset the buffers only.
+ * It returns [CallInfo] objects to the owner threads the same way the real dumper does.
  */
 class NoopDumperPlugin : DumperPlugin_02 {
     override fun newDumper(
@@ -22,6 +24,14 @@ override fun newDumper(
         thread {
             while (true) {
                 val buffer = dirtyBuffers.take()
+                val state = buffer.state
+                for (i in buffer.first until buffer.count) {
+                    val value = buffer.value[i]
+                    if (value is CallInfo) {
+                        value.clean()
+                        state?.recycleCallInfo(value)
+                    }
+                }
                 buffer.reset()
                 emptyBuffers.put(buffer)
             }
@@ -0,0 +1,156 @@
+package com.netcracker.profiler
+
+import org.openjdk.jmh.annotations.*
+import org.openjdk.jmh.runner.Runner
+import org.openjdk.jmh.runner.options.OptionsBuilder
+import com.netcracker.profiler.agent.DumperConstants
+import com.netcracker.profiler.agent.LocalBuffer
+import com.netcracker.profiler.dump.BufferedDataOutputStreamEx
+import com.netcracker.profiler.dump.DataOutputStreamEx
+import com.netcracker.profiler.dump.DumpCodec
+import com.netcracker.profiler.dump.IDataOutputStreamEx
+import com.netcracker.profiler.dump.ParamTypes
+import java.io.OutputStream
+import java.util.Random
+import java.util.concurrent.TimeUnit
+
+/**
+ * Replays filled [LocalBuffer]s through the trace record encoding of `Dumper.writeBufferToFS`, so the score is
+ * comparable with "average rate is rate = {} ns/record" from the dumper log.
+ * `stream` writes the records straight to [DataOutputStreamEx] (the old path), `buffered` encodes a buffer
+ * into [BufferedDataOutputStreamEx] and writes it with a single call.
+ */
+@Fork(value = 2, jvmArgsPrepend = ["-Xmx512m"])
+@Measurement(iterations = 10, time = 1, timeUnit = TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(TraceEncodingBenchmark.RECORDS)
+open class TraceEncodingBenchmark {
+    companion object {
+        const val BUFFERS = 16
+        const val RECORDS = BUFFERS * 4096
+    }
+
+    @Param("stream", "buffered")
+    lateinit var encoder: String
+
+    /**
+     * `none` measures the encoding alone, `gzip` adds the default dump file compression.
+     */
+    @Param("none", "gzip")
+    lateinit var sink: String
+
+    private lateinit var buffers: Array<LocalBuffer>
+    private lateinit var out: DataOutputStreamEx
+    private val traceEncoder = BufferedDataOutputStreamEx(64 * 1024)
+
+    @Setup(Level.Trial)
+    fun setup() {
+        val random = Random(42)
+        val values = Array(64) { "value-$it-" + "x".repeat(random.nextInt(40)) }
+        buffers = Array(BUFFERS) {
+            val buffer = LocalBuffer(4096)
+            var time = 0L
+            var depth = 0
+            for (i in 0 until 4096) {
+                time += random.nextInt(3)
+                val kind = random.nextInt(10)
+                buffer.data[i] = (time shl 32) or when {
+                    kind < 4 || depth == 0 -> {
+                        depth++
+                        (DumperConstants.DATA_ENTER_RECORD or random.nextInt(5000)).toLong()
+                    }
+                    kind < 8 -> {
+                        depth--
+                        DumperConstants.DATA_EXIT_RECORD.toLong()
+                    }
+                    else -> {
+                        buffer.value[i] = values[random.nextInt(values.size)]
+                        (DumperConstants.DATA_TAG_RECORD or random.nextInt(100)).toLong()
+                    }
+                }
+            }
+            buffer.count = 4096
+            buffer
+        }
+        val counter = CountingOutputStream()
+        out = DataOutputStreamEx(if (sink == "gzip") DumpCodec.GZIP.wrapOutputStream(counter) else counter)
+    }
+
+    @Benchmark
+    fun encode(): Int {
+        val buffered = encoder == "buffered"
+        for (buffer in buffers) {
+            if (buffered) {
+                val os = traceEncoder.bind(out)
+                try {
+                    writeRecords(buffer, os)
+                } finally {
+                    traceEncoder.release()
+                }
+            } else {
+                writeRecords(buffer, out)
+            }
+        }
+        return out.size()
+    }
+
+    /**
+     * Same record layout as the dumper writes for enter, exit and inline tag records.
+     */
+    private fun writeRecords(buffer: LocalBuffer, os: IDataOutputStreamEx) {
+        os.writeLong(1)
+        os.writeLong(buffer.startTime)
+        val data = buffer.data
+        val values = buffer.value
+        var prevMillis = 0
+        for (i in buffer.first until buffer.count) {
+            val item = data[i]
+            val typeAndId = item.toInt()
+            val type = typeAndId ushr 24
+            val curMillis = (item ushr 32).toInt()
+            val millis = curMillis - prevMillis
+            prevMillis = curMillis
+            val b = (type xor 1) or ((millis and 0x1f) shl 2)
+            if (millis in 0..0x1f) {
+                os.write(b)
+            } else {
+                os.write(b or 0x80)
+                os.writeVarInt(millis shr 5)
+            }
+            if (typeAndId == DumperConstants.DATA_EXIT_RECORD) {
+                continue
+            }
+            val id = typeAndId and DumperConstants.DATA_ID_MASK
+            os.writeVarInt(id)
+            if (type == DumperConstants.DATA_ENTER_FIELD) {
+                continue
+            }
+            os.write(ParamTypes.PARAM_INLINE)
+            os.write(values[i] as String)
+        }
+        os.write(DumperConstants.EVENT_FINISH_RECORD.toInt())
+    }
+
+    private class CountingOutputStream : OutputStream() {
+        var count = 0L
+
+        override fun write(b: Int) {
+            count++
+        }
+
+        override fun write(b: ByteArray, off: Int, len: Int) {
+            count += len
+        }
+    }
+}
+
+fun main() {
+    val opt = OptionsBuilder()
+        .include(TraceEncodingBenchmark::class.java.getSimpleName())
+        .detectJvmArgs()
+        .build()
+    Runner(opt).run()
+}
@@ -14,6 +14,7 @@
     api(platform("com.google.inject:guice-bom:7.0.0"))
     constraints {
         api("at.yawk.lz4:lz4-java:1.11.1")
+        api("io.airlift:aircompressor:0.27")
         api("backport-util-concurrent:backport-util-concurrent:3.1")
         api("ch.qos.logback:logback-classic:1.5.35")
         api("ch.qos.logback:logback-core:1.5.35")
@@ -0,0 +1,172 @@
+package com.netcracker.profiler.agent;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Implements the blocking part of {@link BlockingQueue} on top of non-blocking {@link #offer(Object)} and
+ * {@link #poll()}, so the lock-free buffer queues can be passed to the Dumper as regular blocking queues.
+ * <p>
+ * The queues are expected to have a single blocking consumer (the Dumper): it parks until a producer signals it.
+ * Other blocking consumers still work, however they re-check the queue periodically instead of being signalled.
+ * Blocking producers are rare (forced dirty buffers when the queue is full), so they just back off and retry.
+ * <p>
+ * The queues iterate over a snapshot, so subclasses implement {@link #remove(Object)} directly, and the iterator
+ * removes buffers through it.
+ */
+public abstract class AbstractBufferQueue extends AbstractQueue<LocalBuffer> implements BlockingQueue<LocalBuffer> {
+    private static final long UNSIGNALLED_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long PUT_BACKOFF_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final AtomicReference<Thread> waiter = new AtomicReference<Thread>();
+
+    /**
+     * Returns the number of buffers the queue can hold.
+     *
+     * @return capacity of the queue
+     */
+    public abstract int capacity();
+
+    /**
+     * Wakes up the consumer that waits in {@link #poll(long, TimeUnit)} or {@link #take()}.
+     * Should be called after a buffer is published.
+     */
+    protected final void signalNotEmpty() {
+        Thread thread = waiter.get();
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Returns the iterator over the snapshot of the queue, {@link Iterator#remove()} removes the last returned buffer
+     * from the queue.
+     *
+     * @param snapshot buffers of the queue
+     * @return iterator over the snapshot
+     */
+    protected final Iterator<LocalBuffer> snapshotIterator(final List<LocalBuffer> snapshot) {
+        return new Iterator<LocalBuffer>() {
+            private int next;
+            private LocalBuffer last;
+
+            public boolean hasNext() {
+                return next < snapshot.size();
+            }
+
+            public LocalBuffer next() {
+                if (next >= snapshot.size()) {
+                    throw new NoSuchElementException();
+                }
+                return last = snapshot.get(next++);
+            }
+
+            public void remove() {
+                if (last == null) {
+                    throw new IllegalStateException();
+                }
+                AbstractBufferQueue.this.remove(last);
+                last = null;
+            }
+        };
+    }
+
+    @Override
+    public abstract boolean remove(Object o);
+
+    public void put(LocalBuffer buffer) throws InterruptedException {
+        while (!offer(buffer)) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            LockSupport.parkNanos(this, PUT_BACKOFF_NANOS);
+        }
+    }
+
+    public boolean offer(LocalBuffer buffer, long timeout, TimeUnit unit) throws InterruptedException {
+        if (offer(buffer)) {
+            return true;
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!offer(buffer)) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            LockSupport.parkNanos(this, Math.min(remaining, PUT_BACKOFF_NANOS));
+        }
+        return true;
+    }
+
+    public LocalBuffer take() throws InterruptedException {
+        LocalBuffer buffer;
+        while ((buffer = poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS)) == null) {
+            // retry
+        }
+        return buffer;
+    }
+
+    public LocalBuffer poll(long timeout, TimeUnit unit) throws InterruptedException {
+        LocalBuffer buffer = poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        // The sum overflows for huge timeouts, however deadline - nanoTime() wraps back to the right value
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        Thread current = Thread.currentThread();
+        boolean signalled = waiter.compareAndSet(null, current);
+        try {
+            while (true) {
+                // The waiter is registered before the re-check, so a concurrent offer either is visible here
+                // or unparks the thread
+                buffer = poll();
+                if (buffer != null) {
+                    return buffer;
+                }
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return null;
+                }
+                LockSupport.parkNanos(this, signalled ? remaining : Math.min(remaining, UNSIGNALLED_PARK_NANOS));
+            }
+        } finally {
+            if (signalled) {
+                waiter.set(null);
+            }
+        }
+    }
+
+    public int remainingCapacity() {
+        return Math.max(0, capacity() - size());
+    }
+
+    public int drainTo(Collection<? super LocalBuffer> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    public int drainTo(Collection<? super LocalBuffer> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException("Can't drain the queue to itself");
+        }
+        int n = 0;
+        LocalBuffer buffer;
+        while (n < maxElements && (buffer = poll()) != null) {
+            c.add(buffer);
+            n++;
+        }
+        return n;
+    }
+}
@@ -20,6 +20,8 @@ public class Bootstrap {
     public static final List<String> BOOT_PACKAGES = Arrays.asList("com.netcracker.profiler.agent", "com.netcracker.profiler.agent.http");
     private static Instrumentation inst;
     private static final Map<Class, Object> plugins = new HashMap<Class, Object>();
+    // Plugin jars in the order they are loaded, see getPluginJars
+    private static volatile List<String> pluginJars = Collections.emptyList();
     private static final ESCLogger logger = ESCLogger.getLogger(Bootstrap.class, (DumpRootResolverAgent.VERBOSE ? Level.FINE : ESCLogger.ESC_LOG_LEVEL));
 
     static class PluginJarInfo {
@@ -237,12 +239,30 @@ private static List<String> deduplicatePlugins(List<String> plugins) {
         return result;
     }
 
+    /**
+     * Returns the plugin jars the agent loads, e.g. the transformed classes cache depends on the enhancers they bring.
+     *
+     * @return paths of the plugin jars
+     */
+    public static List<String> getPluginJars() {
+        return pluginJars;
+    }
+
     private static void loadPlugins(List<String> plugins) {
         List<String> deduplicated = deduplicatePlugins(plugins);
         List<String> ordered = sortPlugins(deduplicated);
         List<Object> impls = new ArrayList<Object>();
         String lib = new File(DumpRootResolverAgent.PROFILER_HOME).getAbsolutePath();
 
+        // The plugins are started one by one, so the list is complete before any of them could ask for it
+        List<String> jars = new ArrayList<String>();
+        for (String jarName : ordered) {
+            if (jarName.endsWith(".jar") && pluginSupported(jarName)) {
+                jars.add(jarName);
+            }
+        }
+        pluginJars = Collections.unmodifiableList(jars);
+
         for (String jarName : ordered) {
             try {
                 if(!pluginSupported(jarName)){
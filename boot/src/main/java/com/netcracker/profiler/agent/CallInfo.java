@@ -277,4 +277,50 @@ public void clean() {
         next = null;
         mediationInfo = null;
     }
+
+    /**
+     * Restores the state of a freshly created object, so the object can be reused for a new call.
+     * The Dumper returns the objects via {@link LocalState#recycleCallInfo(CallInfo)}.
+     *
+     * @param state owner of the call
+     */
+    void reset(LocalState state) {
+        corrupted = false;
+        remoteAddress = null;
+        requestURL = null;
+        ncUser = null;
+        endToEndId = null;
+        traceId = null;
+        traceIdChanged = false;
+        transactions = 0;
+        logWritten = 0;
+        logGenerated = 0;
+        cpuTime = 0;
+        waitTime = 0;
+        queueWaitDuration = 0;
+        memoryUsed = 0;
+        fileRead = 0;
+        fileWritten = 0;
+        netRead = 0;
+        netWritten = 0;
+        finishTime = 0;
+        next = null;
+        mediationInfo = null;
+        isPersist = 0;
+        additionalReportedTime = 0;
+        isCallRed = false;
+        workManager = null;
+        module = "";
+        action = "";
+        cliendId = "";
+        clientInfo = null;
+        anyFieldChanged = false;
+        moduleChanged = false;
+        actionChanged = false;
+        cliendIdChanged = false;
+        clientInfoChanged = false;
+        lastConnection = null;
+        lastXid = null;
+        setClientInfo(state.shortThreadName);
+    }
 }
@@ -0,0 +1,62 @@
+package com.netcracker.profiler.agent;
+
+/**
+ * Bounded single-producer/single-consumer free list of {@link CallInfo} objects.
+ * The owner thread polls the objects when a new call starts, so top-level calls do not allocate a fresh
+ * {@link CallInfo} each time. The objects are offered back once the call is written and reported:
+ * <ul>
+ *     <li>by the call completion worker of the Dumper, when the calls are post-processed asynchronously</li>
+ *     <li>by the Dumper shard that encodes the owner thread, when the calls are post-processed inline</li>
+ * </ul>
+ * The producer might be a different thread from time to time (e.g. the completion worker is restarted, or a shard
+ * runs on another executor thread), however the offers never run concurrently: the completion worker offers
+ * under the stage lock, and a thread is always encoded by the same shard, whose tasks are ordered by the Dumper.
+ */
+public class CallInfoPool {
+    private final CallInfo[] items;
+    private final int mask;
+    // Next index to poll, written by the owner thread only
+    private volatile long head;
+    // Next index to offer, written by the producer only
+    private volatile long tail;
+
+    public CallInfoPool(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        items = new CallInfo[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Returns the object to the pool. Must not be called concurrently, see the class description.
+     *
+     * @param callInfo object that is no longer referenced by the Dumper
+     * @return false if the pool is full
+     */
+    public boolean offer(CallInfo callInfo) {
+        long t = tail;
+        if (t - head >= items.length) {
+            return false;
+        }
+        items[(int) t & mask] = callInfo;
+        // volatile write publishes the item to the owner thread
+        tail = t + 1;
+        return true;
+    }
+
+    /**
+     * Takes an object from the pool. Must be called from the owner thread only.
+     *
+     * @return recycled object or null if the pool is empty
+     */
+    public CallInfo poll() {
+        long h = head;
+        if (h >= tail) {
+            return null;
+        }
+        int index = (int) h & mask;
+        CallInfo callInfo = items[index];
+        items[index] = null;
+        head = h + 1;
+        return callInfo;
+    }
+}
@@ -0,0 +1,15 @@
+package com.netcracker.profiler.agent;
+
+public interface DumperPlugin_11 extends DumperPlugin_10 {
+    /**
+     * Returns time spent by compressor threads on compressing and writing dump files
+     * @return compression time in nanoseconds
+     */
+    public long getCompressTime();
+
+    /**
+     * Returns number of data chunks that wait for compressor threads
+     * @return number of queued chunks
+     */
+    public int getCompressQueueDepth();
+}
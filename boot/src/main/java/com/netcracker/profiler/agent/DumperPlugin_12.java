@@ -0,0 +1,15 @@
+package com.netcracker.profiler.agent;
+
+public interface DumperPlugin_12 extends DumperPlugin_11 {
+    /**
+     * Returns the amount of collector data spilled to disk because the collector is slow or unreachable
+     * @return spilled bytes
+     */
+    public long getRemoteSpillSize();
+
+    /**
+     * Returns the age of the oldest data that waits to be sent to the collector
+     * @return replay lag in milliseconds
+     */
+    public long getRemoteReplayLag();
+}
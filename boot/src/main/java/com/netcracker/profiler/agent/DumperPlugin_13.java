@@ -0,0 +1,10 @@
+package com.netcracker.profiler.agent;
+
+public interface DumperPlugin_13 extends DumperPlugin_12 {
+    /**
+     * Returns the share of deduplicated parameters (e.g. SQL) that were found in the dumper cache,
+     * so they were not written to the sql stream again
+     * @return hit ratio from 0 to 1
+     */
+    public double getSqlCacheHitRatio();
+}
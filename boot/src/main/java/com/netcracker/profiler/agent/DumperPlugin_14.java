@@ -0,0 +1,15 @@
+package com.netcracker.profiler.agent;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+public interface DumperPlugin_14 extends DumperPlugin_13 {
+    /**
+     * Writes the metrics in Prometheus exposition format directly to the stream, so the scrape does not build
+     * the whole text in memory
+     * @param out stream to write to, the stream is flushed but not closed
+     * @param openMetrics true to use OpenMetrics text format (application/openmetrics-text; version=1.0.0),
+     *                    false to use Prometheus text format (text/plain; version=0.0.4)
+     */
+    public void writeMetrics(OutputStream out, boolean openMetrics) throws IOException;
+}
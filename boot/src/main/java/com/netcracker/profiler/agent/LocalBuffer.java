@@ -9,8 +9,8 @@ public class LocalBuffer {
     volatile public LocalState state;
     public LocalBuffer prevBuffer;
 
-    public final long[] data = new long[SIZE];
-    public final Object[] value = new Object[SIZE];
+    public final long[] data;
+    public final Object[] value;
     // volatile since we want atomic values as it can be updated by both Dumper and mutator threads
     public volatile long startTime;
     // volatile as it is updated by mutator (log...) and read by Dumper thread
@@ -20,8 +20,16 @@ public class LocalBuffer {
     public boolean corrupted;
     // Contains the total amount of heap consumed by the large events stored in the buffer
     private long largeEventsVolume;
+    // Number of OffHeapCharSequence values stored in the buffer
+    private int offHeapEvents;
 
     public LocalBuffer() {
+        this(SIZE);
+    }
+
+    public LocalBuffer(int size) {
+        data = new long[size];
+        value = new Object[size];
         init(null);
     }
 
@@ -45,6 +53,9 @@ public void event(Object contents,
             data[r] = tagId | TimerCache.timerSHL32;
             if (contents instanceof CharSequence) {
                 contents = truncateCharSequence(contents);
+                if (contents instanceof String && ProfilerData.isSqlFingerprintTag(tagId)) {
+                    contents = SqlFingerprint.of((String) contents);
+                }
             }
             value[r] = contents;
             count = r + 1;
@@ -61,6 +72,11 @@ private Object truncateCharSequence(Object contents) {
         if (length < ProfilerData.LARGE_EVENT_THRESHOLD) {
             return contents;
         }
+        OffHeapCharSequence offHeap = ProfilerData.copyLargeEventOffHeap(s);
+        if (offHeap != null) {
+            offHeapEvents++;
+            return offHeap;
+        }
         LocalState state = this.state;
         if (state.reserveLargeEventVolume(length)) {
             largeEventsVolume += length;
@@ -119,6 +135,9 @@ public void initTimedExit(long time) {
     }
 
     public void reset() {
+        if (offHeapEvents != 0) {
+            releaseOffHeapEvents();
+        }
         if (this.first < this.count && this.first >= 0)
             Arrays.fill(this.value, this.first, this.count, null);
         this.first = 0;
@@ -128,6 +147,22 @@ public void reset() {
         resetLargeEventsVolume();
     }
 
+    /**
+     * Returns the off-heap values the dumper did not write to {@link ProfilerData#offHeapEvents}.
+     * {@link #reset()} does that as well, so the method is for the buffers that are dropped without reset,
+     * otherwise their blocks would never return to the arena.
+     */
+    public void releaseOffHeapEvents() {
+        final Object[] value = this.value;
+        for (int i = 0; i < value.length; i++) {
+            if (value[i] instanceof OffHeapCharSequence) {
+                ((OffHeapCharSequence) value[i]).release();
+                value[i] = null;
+            }
+        }
+        offHeapEvents = 0;
+    }
+
     private void resetLargeEventsVolume() {
         long volume = largeEventsVolume;
         if (volume <= 0) {
@@ -0,0 +1,175 @@
+package com.netcracker.profiler.agent;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free ring of buffers. Application threads publish dirty buffers concurrently,
+ * and the Dumper takes them without taking a lock.
+ * <p>
+ * Each slot has a sequence number that tells whether the slot is ready for the producer ({@code seq == index})
+ * or for the consumer ({@code seq == index + 1}), so producers and the consumer only compete for the head and tail
+ * counters via CAS. The consumer uses CAS as well: a single Dumper pays uncontended CAS only, and a Dumper that is
+ * being restarted can overlap with its predecessor safely.
+ * <p>
+ * {@link #remove(Object)} does not move the slots: it clears the slot of the removed buffer, and the consumer skips
+ * such cleared slots. The consumer takes the buffer out of the slot via CAS as well, so either the consumer
+ * or the removal gets the buffer, never both.
+ * <p>
+ * The capacity is rounded up to the next power of two.
+ */
+public class LocalBufferRing extends AbstractBufferQueue {
+    // head and tail live in the same array, so they are padded to avoid false sharing
+    private static final int HEAD = 7;
+    private static final int TAIL = 23;
+
+    private final AtomicReferenceArray<LocalBuffer> items;
+    private final AtomicLongArray sequences;
+    private final AtomicLongArray counters = new AtomicLongArray(31);
+    // Number of cleared slots the consumer has not passed yet
+    private final AtomicInteger removed = new AtomicInteger();
+    private final int mask;
+
+    public LocalBufferRing(int capacity) {
+        int size = Math.max(2, Integer.highestOneBit(Math.max(1, capacity - 1)) << 1);
+        items = new AtomicReferenceArray<LocalBuffer>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.lazySet(i, i);
+        }
+        mask = size - 1;
+    }
+
+    @Override
+    public int capacity() {
+        return items.length();
+    }
+
+    public boolean offer(LocalBuffer buffer) {
+        if (buffer == null) {
+            throw new NullPointerException();
+        }
+        long t = counters.get(TAIL);
+        while (true) {
+            int index = (int) t & mask;
+            long diff = sequences.get(index) - t;
+            if (diff == 0) {
+                if (counters.compareAndSet(TAIL, t, t + 1)) {
+                    items.lazySet(index, buffer);
+                    // volatile write publishes the buffer to the consumer
+                    sequences.set(index, t + 1);
+                    signalNotEmpty();
+                    return true;
+                }
+            } else if (diff < 0) {
+                // The slot still holds the buffer from the previous lap, so the ring is full
+                return false;
+            }
+            t = counters.get(TAIL);
+        }
+    }
+
+    public LocalBuffer poll() {
+        long h = counters.get(HEAD);
+        while (true) {
+            int index = (int) h & mask;
+            long diff = sequences.get(index) - (h + 1);
+            if (diff == 0) {
+                if (counters.compareAndSet(HEAD, h, h + 1)) {
+                    LocalBuffer buffer = items.getAndSet(index, null);
+                    // Frees the slot for the producer of the next lap
+                    sequences.set(index, h + items.length());
+                    if (buffer != null) {
+                        return buffer;
+                    }
+                    // The buffer was removed, so try the next slot
+                    removed.decrementAndGet();
+                }
+            } else if (diff < 0) {
+                // Either the ring is empty or the producer has not published the slot yet
+                return null;
+            }
+            h = counters.get(HEAD);
+        }
+    }
+
+    public LocalBuffer peek() {
+        long h = counters.get(HEAD);
+        long t = counters.get(TAIL);
+        for (long i = h; i < t; i++) {
+            int index = (int) i & mask;
+            if (sequences.get(index) != i + 1) {
+                return null;
+            }
+            LocalBuffer buffer = items.get(index);
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes the buffer from the ring. The slot of the buffer stays occupied until the consumer passes it,
+     * so the removal does not make room for producers immediately.
+     *
+     * @param o buffer to remove
+     * @return true if the buffer was in the ring
+     */
+    @Override
+    public boolean remove(Object o) {
+        if (o == null) {
+            return false;
+        }
+        long h = counters.get(HEAD);
+        long t = counters.get(TAIL);
+        for (long i = Math.max(h, t - items.length()); i < t; i++) {
+            int index = (int) i & mask;
+            if (sequences.get(index) == i + 1 && items.compareAndSet(index, (LocalBuffer) o, null)) {
+                removed.incrementAndGet();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int size() {
+        long h = counters.get(HEAD);
+        long t = counters.get(TAIL);
+        return (int) Math.max(0, Math.min(items.length(), t - h - removed.get()));
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Returns a weakly consistent snapshot of the buffers in the ring. {@link Iterator#remove()} removes
+     * the buffer from the ring if it is still there.
+     *
+     * @return iterator over the snapshot
+     */
+    @Override
+    public Iterator<LocalBuffer> iterator() {
+        List<LocalBuffer> snapshot = new ArrayList<LocalBuffer>(size());
+        long h = counters.get(HEAD);
+        long t = counters.get(TAIL);
+        for (long i = Math.max(h, t - items.length()); i < t; i++) {
+            int index = (int) i & mask;
+            if (sequences.get(index) != i + 1) {
+                continue;
+            }
+            LocalBuffer buffer = items.get(index);
+            if (buffer != null) {
+                snapshot.add(buffer);
+            }
+        }
+        return snapshotIterator(snapshot);
+    }
+}
@@ -9,6 +9,42 @@ public class LocalState {
     public final Thread thread = Thread.currentThread();
     public final int dumperIncarnation = ProfilerData.dumperIncarnation;
     public LocalBuffer buffer;
+    /**
+     * Virtual thread states are not registered in {@link ProfilerData#activeThreads}, and they lease
+     * a {@link LocalBuffer} on the first write. The buffer is released when the thread unmounts after
+     * {@link ProfilerData#VIRTUAL_THREAD_BUFFER_HOLD_TIME}, and the leased buffer is tracked
+     * in {@link ProfilerData#virtualThreads}.
+     */
+    public final boolean isVirtual;
+    /**
+     * Zero-capacity buffer that a virtual thread holds between calls. The first write to it triggers
+     * {@link Profiler#exchangeBuffer(LocalBuffer)}, which leases a real buffer.
+     */
+    final LocalBuffer vacantBuffer;
+    /**
+     * Time when the virtual thread leased its buffer, see {@link Profiler#virtualThreadUnmounted()}.
+     */
+    public long bufferLeaseTime;
+    /**
+     * Set while the buffer is handed to the dumper, as the thread might park (and unmount) there.
+     */
+    boolean releasingBuffer;
+    /**
+     * {@link CallInfo} objects returned by the Dumper after the call is written.
+     * Virtual threads do not recycle call infos as they rarely live long enough to reuse them.
+     */
+    private final CallInfoPool callInfoPool;
+    /**
+     * Index in {@link ProfilerData#BUFFER_SIZE_CLASSES} of the buffers the thread should lease.
+     * The Dumper adjusts it, see {@link ProfilerData#adjustBufferSizeClass(LocalState, long)}.
+     */
+    public volatile int bufferSizeClass = ProfilerData.DEFAULT_BUFFER_SIZE_CLASS;
+    // Number of filled buffers. It is updated by the owner thread only, so the Dumper might observe a stale value
+    public int bufferExchanges;
+    // The following fields are used by the Dumper only to track the exchange rate
+    public int lastBufferExchanges;
+    public long lastBufferSizeCheckTime;
+    public int idleBufferPasses;
     // Contains a thread-local amount of heap consumed by the current thread to reduce global contention on
     // ProfilerData.reserveLargeEventVolume
     private long largeEventsVolume;
@@ -20,7 +56,7 @@ public class LocalState {
      * Contains stack trace of current thread (method ids) paired with time when the method started
      * Basically it is methodId | TimerCache.timerSHL32
      */
-    public long[] stackTrace = ProfilerData.MINIMAL_LOGGED_DURATION == 0 ? null : new long[ProfilerData.INITIAL_STACK_LENGTH];
+    public long[] stackTrace;
     /**
      * Points to the next item in stackTrace array that should be flushed.
      * There is nothing to flush when flushedSp==sp
@@ -48,6 +84,26 @@ public class LocalState {
      */
     public Object additional;
 
+    public LocalState() {
+        this(false);
+    }
+
+    public LocalState(boolean isVirtual) {
+        this.isVirtual = isVirtual;
+        if (isVirtual) {
+            LocalBuffer vacantBuffer = new LocalBuffer(0);
+            vacantBuffer.state = this;
+            this.vacantBuffer = vacantBuffer;
+            this.buffer = vacantBuffer;
+        } else {
+            this.vacantBuffer = null;
+        }
+        this.callInfoPool = isVirtual || ProfilerData.CALL_INFO_POOL_SIZE <= 0 ? null : new CallInfoPool(ProfilerData.CALL_INFO_POOL_SIZE);
+        if (ProfilerData.MINIMAL_LOGGED_DURATION != 0) {
+            stackTrace = new long[isVirtual ? ProfilerData.VIRTUAL_THREAD_STACK_LENGTH : ProfilerData.INITIAL_STACK_LENGTH];
+        }
+    }
+
     public void enter(int methodId) {
         long methodAndTime = methodId | TimerCache.timerSHL32;
         enter(methodAndTime);
@@ -306,12 +362,17 @@ private void callFinishedLazy() {
             int timer = TimerCache.timer;
             if (timer < start + ProfilerData.MINIMAL_LOGGED_DURATION) {
                 CallInfo prev = this.callInfo;
-                prev.finishTime = timer;
-                callInfo = new CallInfo(this);
                 // There is no CallInfo chaining here since current callInfo never appeared in LocalBuffer
                 // thus dumper has no reference to it to follow next links
                 // Dumper does not traverse next link
                 // prev.next = callInfo;
+                if (callInfoPool != null && !prev.isFirstInThread) {
+                    // The call is discarded, so the same object can describe the next call
+                    prev.reset(this);
+                } else {
+                    prev.finishTime = timer;
+                    callInfo = new CallInfo(this);
+                }
                 createNewMass();
                 return;
             }
@@ -323,7 +384,10 @@ private void callFinishedLazy() {
     }
 
     private void createNewMass() {
-        if (stackTrace.length > ProfilerData.MAX_STACK_LENGTH)
+        if (isVirtual) {
+            if (stackTrace.length > ProfilerData.VIRTUAL_THREAD_STACK_LENGTH)
+                stackTrace = new long[ProfilerData.VIRTUAL_THREAD_STACK_LENGTH];
+        } else if (stackTrace.length > ProfilerData.MAX_STACK_LENGTH)
             stackTrace = new long[ProfilerData.INITIAL_STACK_LENGTH];
     }
 
@@ -341,8 +405,39 @@ private void callFinished() {
         callInfo.finishTime = TimerCache.timer;
         buffer.event(callInfo, ProfilerData.PARAM_CALL_INFO);
         CallInfo prev = this.callInfo;
-        this.callInfo = new CallInfo(this);
+        this.callInfo = nextCallInfo();
         prev.next = this.callInfo;
+        // Virtual threads keep the buffer between calls, it is released on unmount
+        if (!isVirtual && buffer.data.length != ProfilerData.BUFFER_SIZE_CLASSES[bufferSizeClass]) {
+            // Call boundary is a good moment to switch to the buffer size suggested by the Dumper
+            Profiler.resizeBuffer(this);
+        }
+    }
+
+    private CallInfo nextCallInfo() {
+        CallInfoPool callInfoPool = this.callInfoPool;
+        if (callInfoPool != null) {
+            CallInfo callInfo = callInfoPool.poll();
+            if (callInfo != null) {
+                callInfo.reset(this);
+                return callInfo;
+            }
+        }
+        return new CallInfo(this);
+    }
+
+    /**
+     * Returns {@link CallInfo} to the owner thread once the Dumper has written it, so it can be reused.
+     * Must be called by a single producer at a time, see {@link CallInfoPool}.
+     *
+     * @param callInfo call info that is no longer referenced by the Dumper
+     */
+    public void recycleCallInfo(CallInfo callInfo) {
+        CallInfoPool callInfoPool = this.callInfoPool;
+        if (callInfoPool == null || callInfo.isFirstInThread) {
+            return;
+        }
+        callInfoPool.offer(callInfo);
     }
 
     public void markSystem() {
@@ -374,6 +469,7 @@ public String toString() {
                 ", shortThreadName='" + shortThreadName + '\'' +
                 ", flushedSp=" + flushedSp +
                 ", isSystem=" + isSystem +
+                ", isVirtual=" + isVirtual +
                 ", cpuTime=" + cpuTime +
                 ", waitTime=" + waitTime +
                 ", memoryUsed=" + memoryUsed +
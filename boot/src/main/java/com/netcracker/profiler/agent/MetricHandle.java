@@ -0,0 +1,18 @@
+package com.netcracker.profiler.agent;
+
+/**
+ * Metric of a given call type and metric type with the aggregation keys resolved in advance,
+ * see {@link Profiler#getMetricHandle(MetricType, String, String...)}.
+ * <p>
+ * Key values are passed in the order of the aggregation keys of the handle. Recording to a combination of the values
+ * that was already seen does not allocate, the fixed-arity overloads avoid the varargs array as well.
+ */
+public interface MetricHandle {
+    void record(long value);
+
+    void record(long value, String keyValue);
+
+    void record(long value, String keyValue1, String keyValue2);
+
+    void record(long value, String... keyValues);
+}
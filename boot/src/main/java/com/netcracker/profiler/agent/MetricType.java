@@ -10,7 +10,8 @@ public enum MetricType {
     NETWORK_IO("network_io", "network-io"),
     MEMORY("memory"),
     PROFILER_DIRTY_BUFFERS("profiler_dirty_buffers", "profiler-dirty-buffers"),
-    PROFILER_EMPTY_BUFFERS("profiler_empty_buffers","profiler-empty-buffers");
+    PROFILER_EMPTY_BUFFERS("profiler_empty_buffers","profiler-empty-buffers"),
+    PROFILER_BUFFER_SIZE_CLASSES("profiler_buffer_size_classes", "profiler-buffer-size-classes");
 
     private String outputName;
     private String configName;
@@ -54,6 +55,8 @@ public static MetricType getByConfigName(String name) {
             return PROFILER_DIRTY_BUFFERS;
         } else if (PROFILER_EMPTY_BUFFERS.getConfigName().equals(name)) {
             return PROFILER_EMPTY_BUFFERS;
+        } else if (PROFILER_BUFFER_SIZE_CLASSES.getConfigName().equals(name)) {
+            return PROFILER_BUFFER_SIZE_CLASSES;
         } else {
             return null;
         }
@@ -0,0 +1,12 @@
+package com.netcracker.profiler.agent;
+
+public interface MetricsPlugin_01 extends MetricsPlugin {
+    /**
+     * Resolves the metric configuration once, so the values can be recorded without per-call lookups
+     * @param metricType metric type
+     * @param callType name of the metrics configuration
+     * @param aggregationKeys names of the aggregation parameters
+     * @return metric handle or null if the metric is not configured
+     */
+    MetricHandle getMetricHandle(MetricType metricType, String callType, String... aggregationKeys);
+}
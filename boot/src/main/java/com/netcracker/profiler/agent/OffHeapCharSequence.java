@@ -0,0 +1,118 @@
+package com.netcracker.profiler.agent;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Large event value that is stored in {@link OffHeapEventArena}.
+ * <p>
+ * The dumper writes the value with {@link #writeTo(DataOutput, byte[])} and then {@link #release() releases} it.
+ * Methods of a released value do not access the arena any longer, so a late {@link #toString()} (e.g. from
+ * {@link LocalBuffer#toString()}) can't observe blocks reused by another event.
+ */
+public final class OffHeapCharSequence implements CharSequence {
+    private final OffHeapEventArena arena;
+    private final int length;
+    private int[] blocks;
+
+    OffHeapCharSequence(OffHeapEventArena arena, int[] blocks, int length) {
+        this.arena = arena;
+        this.blocks = blocks;
+        this.length = length;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public synchronized char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+        }
+        int[] blocks = checkNotReleased();
+        int charsPerBlock = arena.getBlockSize() >> 1;
+        ByteBuffer block = arena.block(blocks[index / charsPerBlock]);
+        return block.getChar(block.position() + (index % charsPerBlock) * 2);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + length);
+        }
+        return new String(getChars(start, end));
+    }
+
+    @Override
+    public synchronized String toString() {
+        if (blocks == null) {
+            return "Released off-heap event of " + length + " chars";
+        }
+        return new String(getChars(0, length));
+    }
+
+    private synchronized char[] getChars(int start, int end) {
+        int[] blocks = checkNotReleased();
+        int charsPerBlock = arena.getBlockSize() >> 1;
+        char[] result = new char[end - start];
+        int pos = start;
+        while (pos < end) {
+            int offset = pos % charsPerBlock;
+            int n = Math.min(charsPerBlock - offset, end - pos);
+            ByteBuffer block = arena.block(blocks[pos / charsPerBlock]);
+            block.position(block.position() + offset * 2);
+            block.asCharBuffer().get(result, pos - start, n);
+            pos += n;
+        }
+        return result;
+    }
+
+    /**
+     * Writes the chars as big-endian UTF-16, the same way {@link DataOutput#writeChars(String)} does.
+     *
+     * @param out    output
+     * @param buffer scratch buffer for copying the bytes out of direct memory
+     * @throws IOException if the write fails
+     */
+    public synchronized void writeTo(DataOutput out, byte[] buffer) throws IOException {
+        int[] blocks = checkNotReleased();
+        int blockSize = arena.getBlockSize();
+        int remaining = length * 2;
+        for (int i = 0; remaining > 0; i++) {
+            ByteBuffer block = arena.block(blocks[i]);
+            int blockBytes = Math.min(blockSize, remaining);
+            remaining -= blockBytes;
+            while (blockBytes > 0) {
+                int n = Math.min(buffer.length, blockBytes);
+                block.get(buffer, 0, n);
+                out.write(buffer, 0, n);
+                blockBytes -= n;
+            }
+        }
+    }
+
+    /**
+     * Returns the blocks to the arena. The method is idempotent.
+     */
+    public synchronized void release() {
+        if (blocks != null) {
+            arena.free(blocks);
+            blocks = null;
+        }
+    }
+
+    public synchronized boolean isReleased() {
+        return blocks == null;
+    }
+
+    private int[] checkNotReleased() {
+        int[] blocks = this.blocks;
+        if (blocks == null) {
+            throw new IllegalStateException("Off-heap event of " + length + " chars is already released");
+        }
+        return blocks;
+    }
+}
@@ -0,0 +1,233 @@
+package com.netcracker.profiler.agent;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Direct memory for large events that wait in {@link LocalBuffer} till the dumper writes them.
+ * <p>
+ * The arena consists of direct {@link ByteBuffer} slabs of 64 fixed-size blocks, a slab keeps its free blocks
+ * in a bit mask. The slabs are allocated lazily: a large event that finds no free blocks stays on heap, and
+ * the dumper thread allocates room for it in {@link #reserve()}, so an application thread never calls
+ * {@link ByteBuffer#allocateDirect(int)}, which might throw {@link OutOfMemoryError} into the application code.
+ * The dumper sweep {@link #releaseIdleSlabs() releases} the slabs no event used since the previous sweep, so the
+ * arena does not pin direct memory after a burst of large events.
+ * <p>
+ * An event takes as many blocks as needed to store its chars in UTF-16
+ * (big-endian, the same layout the dump streams use), so the dumper copies the bytes without decoding the string.
+ * Block allocation is synchronized as large events are rare compared to the regular ones.
+ */
+public class OffHeapEventArena {
+    private static final ESCLogger logger = ESCLogger.getLogger(OffHeapEventArena.class.getName());
+
+    static final int BLOCKS_PER_SLAB = 64;
+    private static final long ALL_FREE = -1L;
+
+    private final int blockSize;
+    // A released slab leaves a null slot, the slot is reused by the next slab
+    private final ByteBuffer[] slabs;
+    // Bit i is set when block i of the slab is free
+    private final long[] freeMasks;
+    // Set when an event took a block of the slab since the previous releaseIdleSlabs
+    private final boolean[] usedSinceSweep;
+    private int slabCount;
+    private int freeCount;
+    // Set when direct memory is exhausted, so the dumper does not retry allocateDirect
+    private boolean exhausted;
+    // The largest request that found no room since the last reserve, so the next reserve makes room for it
+    private int missedBlocks;
+    private volatile long usedBytes;
+
+    /**
+     * @param capacity  maximum size of the arena in bytes, 0 disables the arena
+     * @param blockSize allocation unit in bytes
+     */
+    public OffHeapEventArena(long capacity, int blockSize) {
+        this.blockSize = Math.max(1024, blockSize & ~1);
+        long slabSize = (long) this.blockSize * BLOCKS_PER_SLAB;
+        int maxSlabs = (int) Math.max(0, Math.min(Integer.MAX_VALUE / BLOCKS_PER_SLAB, capacity / slabSize));
+        this.slabs = new ByteBuffer[maxSlabs];
+        this.freeMasks = new long[maxSlabs];
+        this.usedSinceSweep = new boolean[maxSlabs];
+    }
+
+    /**
+     * Copies the value to the arena.
+     *
+     * @param s value to copy
+     * @return off-heap copy of the value or null if the arena has no room for it
+     */
+    public OffHeapCharSequence copy(CharSequence s) {
+        if (slabs.length == 0) {
+            return null;
+        }
+        int length = s.length();
+        int charsPerBlock = blockSize >> 1;
+        int[] blocks = allocate((int) (((long) length + charsPerBlock - 1) / charsPerBlock));
+        if (blocks == null) {
+            return null;
+        }
+        char[] chunk = new char[Math.min(length, charsPerBlock)];
+        for (int i = 0, pos = 0; pos < length; i++) {
+            int n = Math.min(charsPerBlock, length - pos);
+            getChars(s, pos, pos + n, chunk);
+            block(blocks[i]).asCharBuffer().put(chunk, 0, n);
+            pos += n;
+        }
+        return new OffHeapCharSequence(this, blocks, length);
+    }
+
+    private static void getChars(CharSequence s, int start, int end, char[] dst) {
+        if (s instanceof String) {
+            ((String) s).getChars(start, end, dst, 0);
+        } else if (s instanceof StringBuilder) {
+            ((StringBuilder) s).getChars(start, end, dst, 0);
+        } else if (s instanceof StringBuffer) {
+            ((StringBuffer) s).getChars(start, end, dst, 0);
+        } else {
+            for (int i = start; i < end; i++) {
+                dst[i - start] = s.charAt(i);
+            }
+        }
+    }
+
+    /**
+     * Returns a view of the block, the view has its own position and limit.
+     *
+     * @param id block id
+     * @return view of the block
+     */
+    ByteBuffer block(int id) {
+        ByteBuffer slab;
+        synchronized (this) {
+            slab = slabs[id / BLOCKS_PER_SLAB];
+        }
+        ByteBuffer block = slab.duplicate();
+        int offset = (id % BLOCKS_PER_SLAB) * blockSize;
+        block.limit(offset + blockSize);
+        block.position(offset);
+        return block;
+    }
+
+    int getBlockSize() {
+        return blockSize;
+    }
+
+    private synchronized int[] allocate(int count) {
+        if (freeCount < count) {
+            missedBlocks = Math.max(missedBlocks, count);
+            return null;
+        }
+        int[] blocks = new int[count];
+        // Take the blocks of the first slabs, so the last ones become idle and can be released
+        for (int slab = 0, i = 0; i < count; slab++) {
+            long mask = freeMasks[slab];
+            if (mask == 0) {
+                continue;
+            }
+            usedSinceSweep[slab] = true;
+            while (mask != 0 && i < count) {
+                int block = Long.numberOfTrailingZeros(mask);
+                mask &= mask - 1;
+                blocks[i++] = slab * BLOCKS_PER_SLAB + block;
+            }
+            freeMasks[slab] = mask;
+        }
+        freeCount -= count;
+        usedBytes += (long) count * blockSize;
+        return blocks;
+    }
+
+    /**
+     * Allocates slabs for the largest request that found no free blocks since the previous call.
+     * Called by the dumper thread, the direct memory is allocated outside of the lock, so the application threads
+     * are not blocked.
+     */
+    public void reserve() {
+        while (true) {
+            synchronized (this) {
+                if (exhausted || slabCount == slabs.length || freeCount >= missedBlocks) {
+                    missedBlocks = 0;
+                    return;
+                }
+            }
+            ByteBuffer slab;
+            try {
+                slab = ByteBuffer.allocateDirect(blockSize * BLOCKS_PER_SLAB);
+            } catch (OutOfMemoryError e) {
+                synchronized (this) {
+                    exhausted = true;
+                    missedBlocks = 0;
+                }
+                logger.warning("Profiler: unable to allocate direct memory for large events, arena is limited to "
+                        + getCapacity() / 1024 / 1024 + " MiB: " + e.getMessage());
+                return;
+            }
+            addSlab(slab);
+        }
+    }
+
+    private synchronized void addSlab(ByteBuffer slab) {
+        for (int i = 0; i < slabs.length; i++) {
+            if (slabs[i] == null) {
+                slabs[i] = slab;
+                freeMasks[i] = ALL_FREE;
+                // A new slab is not idle till the next sweep, otherwise it could be released before the event uses it
+                usedSinceSweep[i] = true;
+                slabCount++;
+                freeCount += BLOCKS_PER_SLAB;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Releases the slabs that have no events and were not used since the previous call.
+     * Called by the dumper thread on the buffer sweep.
+     *
+     * @return number of released slabs
+     */
+    public synchronized int releaseIdleSlabs() {
+        int released = 0;
+        for (int i = 0; i < slabs.length; i++) {
+            if (slabs[i] != null && freeMasks[i] == ALL_FREE && !usedSinceSweep[i]) {
+                slabs[i] = null;
+                freeMasks[i] = 0;
+                slabCount--;
+                freeCount -= BLOCKS_PER_SLAB;
+                released++;
+            }
+            usedSinceSweep[i] = false;
+        }
+        if (released > 0) {
+            // The direct memory is returned once GC collects the slabs
+            exhausted = false;
+        }
+        return released;
+    }
+
+    synchronized void free(int[] blocks) {
+        for (int block : blocks) {
+            freeMasks[block / BLOCKS_PER_SLAB] |= 1L << (block % BLOCKS_PER_SLAB);
+        }
+        freeCount += blocks.length;
+        usedBytes -= (long) blocks.length * blockSize;
+    }
+
+    /**
+     * Returns the number of bytes occupied by the events that are not written yet.
+     *
+     * @return used bytes
+     */
+    public long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * Returns the size of the allocated slabs.
+     *
+     * @return allocated bytes
+     */
+    public synchronized long getCapacity() {
+        return (long) slabCount * BLOCKS_PER_SLAB * blockSize;
+    }
+}
@@ -3,6 +3,8 @@
 import org.xml.sax.SAXException;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.xml.parsers.ParserConfigurationException;
@@ -45,13 +47,40 @@ public static LocalState getState() {
 
     public static void event(Object value, String name) {
         if (value == null) return;
-        event(value, DumperConstants.DATA_TAG_RECORD | ProfilerData.resolveTag(name));
+        event(value, resolveEventTag(name));
     }
 
     public static void event(Object value, int tagId) {
+        if (value == null) return;
         getState().event(value, tagId);
     }
 
+    /**
+     * Logs event with the tag resolved by the static initializer of the enhanced class.
+     * The tag is still 0 while the class initializes (e.g. the original static initializer calls an injected method),
+     * so the name is resolved then.
+     *
+     * @param value event value
+     * @param tagId tag id from {@link #resolveEventTag(String)} or 0 if it is not resolved yet
+     * @param name  tag name
+     */
+    public static void event(Object value, int tagId, String name) {
+        if (value == null) return;
+        getState().event(value, tagId != 0 ? tagId : resolveEventTag(name));
+    }
+
+    /**
+     * Resolves the tag id to be used with {@link #event(Object, int)}.
+     * Plugin generator rewrites {@code event(value, "name")} calls with constant names to
+     * {@code event(value, id, "name")}, so the tag is resolved once in the static initializer of the enhanced class.
+     *
+     * @param name tag name
+     * @return tag id including {@link DumperConstants#DATA_TAG_RECORD} type
+     */
+    public static int resolveEventTag(String name) {
+        return DumperConstants.DATA_TAG_RECORD | ProfilerData.resolveTag(name);
+    }
+
     public static void pluginException(Throwable t) {
         if(ProfilerData.pluginLogger != null) {
             ProfilerData.pluginLogger.pluginError(t);
@@ -123,6 +152,10 @@ public static void markSystem() {
 
     public static void threadExit() {
         final LocalState state = getState();
+        if (state.isVirtual) {
+            releaseVirtualThreadBuffer(state);
+            return;
+        }
         if (ProfilerData.activeThreads.remove(state.thread) == null) return;
         // Do not use addEmptyBuffer since this would make synchronization much harder.
         // The problem with addEmpty happens when this thread adds to EmptyBuffer queue while Dumper steals data.
@@ -136,6 +169,36 @@ public static void threadExit() {
     public static void exchangeBuffer(LocalBuffer buffer) {
         final LocalState state = buffer.state;
 
+        // A virtual thread writes its first record after the previous buffer has been released
+        if (buffer == state.vacantBuffer) {
+            LocalBuffer newBuffer = ProfilerData.getEmptyBuffer(state);
+            // The released buffer might still wait in dirtyBuffers, so the Dumper does not steal from the new one first
+            newBuffer.init(buffer.prevBuffer);
+            buffer.prevBuffer = null;
+            state.buffer = newBuffer;
+            state.bufferLeaseTime = TimerCache.now;
+            ProfilerData.virtualThreads.put(state.thread, state);
+            return;
+        }
+
+        state.bufferExchanges++;
+        swapBuffer(state, buffer);
+    }
+
+    /**
+     * Hands the current buffer over to the dumper and leases a buffer of the size class selected for the thread.
+     * Unlike {@link #exchangeBuffer(LocalBuffer)}, this does not count as a buffer overflow.
+     *
+     * @param state state of a platform thread
+     */
+    public static void resizeBuffer(LocalState state) {
+        if (state.isSystem || ProfilerData.dumperDead) {
+            return;
+        }
+        swapBuffer(state, state.buffer);
+    }
+
+    private static void swapBuffer(LocalState state, LocalBuffer buffer) {
         //if this is itself a dumpber thread or the dumper is dead
         if(state.isSystem || ProfilerData.dumperDead) {
             buffer.reset();
@@ -146,7 +209,7 @@ public static void exchangeBuffer(LocalBuffer buffer) {
         newBuffer.init(buffer);
 
         //if buffer is not corrupted, but state.isSystem=true, buffer is successfully put to dirty buffers. That's why we need to split the ifs in 2
-        buffer.corrupted = !ProfilerData.addDirtyBuffer(buffer, ProfilerData.BLOCK_WHEN_DIRTY_BUFFERS_QUEUE_IS_FULL);
+        buffer.corrupted = !addDirtyBuffer(state, buffer);
         if (buffer.corrupted) {
             for (Object o : buffer.value) {
                 if (o instanceof CallInfo) {
@@ -191,6 +254,68 @@ public static void exchangeBuffer(LocalBuffer buffer,
         newBuffer.count = count + 1;
     }
 
+    private static boolean addDirtyBuffer(LocalState state, LocalBuffer buffer) {
+        // A virtual thread might park in a full queue, and it must not release the same buffer on unmount
+        state.releasingBuffer = true;
+        try {
+            return ProfilerData.addDirtyBuffer(buffer, ProfilerData.BLOCK_WHEN_DIRTY_BUFFERS_QUEUE_IS_FULL);
+        } finally {
+            state.releasingBuffer = false;
+        }
+    }
+
+    /**
+     * Releases the buffer of the current virtual thread once the thread has held it for
+     * {@link ProfilerData#VIRTUAL_THREAD_BUFFER_HOLD_TIME}. The rule in {@code java.xml} calls this before
+     * the virtual thread yields its carrier, so a parked thread does not pin the buffer, while a thread that
+     * parks often does not hand a half-empty buffer to the dumper on every park.
+     */
+    public static void virtualThreadUnmounted() {
+        // Only the virtual threads that hold a buffer are registered, so the lookup is cheap for the rest
+        LocalState state = ProfilerData.virtualThreads.get(Thread.currentThread());
+        if (state == null || state.releasingBuffer) {
+            return;
+        }
+        if (TimerCache.now - state.bufferLeaseTime >= ProfilerData.VIRTUAL_THREAD_BUFFER_HOLD_TIME) {
+            releaseVirtualThreadBuffer(state);
+        }
+    }
+
+    /**
+     * Hands the buffer of a virtual thread over to the dumper, so the thread does not pin the buffer
+     * while it is idle or parked.
+     * The thread continues with its vacant buffer, and it leases a new one on the next write.
+     * The Dumper might be stealing from the buffer at this moment, so even an empty buffer is recycled by the Dumper.
+     *
+     * @param state state of a virtual thread
+     */
+    public static void releaseVirtualThreadBuffer(LocalState state) {
+        final LocalBuffer buffer = state.buffer;
+        if (buffer == state.vacantBuffer) {
+            return;
+        }
+        if (state.isSystem || ProfilerData.dumperDead) {
+            buffer.reset();
+            return;
+        }
+
+        buffer.corrupted = !addDirtyBuffer(state, buffer);
+        if (buffer.corrupted) {
+            for (Object o : buffer.value) {
+                if (o instanceof CallInfo) {
+                    ((CallInfo) o).markCorrupted();
+                }
+            }
+            // Keep the buffer leased, so the next call could reuse it
+            buffer.reset();
+            return;
+        }
+        // The next leased buffer continues this one
+        state.vacantBuffer.prevBuffer = buffer;
+        state.buffer = state.vacantBuffer;
+        ProfilerData.virtualThreads.remove(state.thread);
+    }
+
     public static MetricsConfiguration getMetricConfigByName(String callType) {
         final ProfilerTransformerPlugin transformer = Bootstrap.getPlugin(ProfilerTransformerPlugin.class);
         if (transformer == null) {
@@ -199,15 +324,31 @@ public static MetricsConfiguration getMetricConfigByName(String callType) {
         }
 
         final Configuration_03 conf = (Configuration_03) transformer.getConfiguration();
-        MetricsConfiguration result = null;
-        for (MetricsConfiguration metricsConfiguration : conf.getMetricsConfig()) {
-            if (metricsConfiguration.getName().equals(callType)) {
-                result = metricsConfiguration;
-                break;
-            }
+        final List<MetricsConfiguration> metricsConfig = conf.getMetricsConfig();
+        MetricsConfigIndex index = metricsConfigIndex;
+        if (index == null || index.source != metricsConfig) {
+            // Configuration reload replaces the list, so the index is rebuilt once per configuration
+            index = new MetricsConfigIndex(metricsConfig);
+            metricsConfigIndex = index;
         }
+        return index.byName.get(callType);
+    }
+
+    private static volatile MetricsConfigIndex metricsConfigIndex;
+
+    private static class MetricsConfigIndex {
+        final List<MetricsConfiguration> source;
+        final Map<String, MetricsConfiguration> byName = new HashMap<String, MetricsConfiguration>();
 
-        return result;
+        MetricsConfigIndex(List<MetricsConfiguration> source) {
+            this.source = source;
+            for (MetricsConfiguration metricsConfiguration : source) {
+                // The first configuration wins, as it did with the linear search
+                if (!byName.containsKey(metricsConfiguration.getName())) {
+                    byName.put(metricsConfiguration.getName(), metricsConfiguration);
+                }
+            }
+        }
     }
 
     public static Metric getMetric(MetricType metricType, String callType, Map<String, String> aggregationParameters) {
@@ -219,4 +360,24 @@ public static Metric getMetric(MetricType metricType, String callType, Map<Strin
 
         return metricsPlugin.getMetric(metricType, callType, aggregationParameters);
     }
+
+    /**
+     * Returns a handle for recording a custom metric without per-call lookups and allocations.
+     * The handle should be resolved once (e.g. in a static field) and then used for each value.
+     *
+     * @param metricType      metric type
+     * @param callType        name of the metrics configuration
+     * @param aggregationKeys names of the aggregation parameters, the values are passed to
+     *                        {@link MetricHandle#record(long, String...)} in the same order
+     * @return metric handle or null if the metric is not configured
+     */
+    public static MetricHandle getMetricHandle(MetricType metricType, String callType, String... aggregationKeys) {
+        MetricsPlugin metricsPlugin = Bootstrap.getPlugin(MetricsPlugin.class);
+        if (!(metricsPlugin instanceof MetricsPlugin_01)) {
+            logger.warning("MetricsPlugin not loaded");
+            return null;
+        }
+
+        return ((MetricsPlugin_01) metricsPlugin).getMetricHandle(metricType, callType, aggregationKeys);
+    }
 }
@@ -1,5 +1,7 @@
 package com.netcracker.profiler.agent;
 
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -45,6 +47,22 @@ public class ProfilerData {
      * Defaults to 4000
      */
     public static final int TRUNCATED_EVENTS_THRESHOLD = Integer.getInteger(LocalBuffer.class.getName() + ".TRUNCATED_EVENTS_THRESHOLD", 4000);
+
+    /**
+     * Defines the size (in bytes) of the off-heap arena for large events (see {@link #LARGE_EVENT_THRESHOLD}).
+     * Large events are copied to direct memory till the dumper writes them, so they do not pile up in the old
+     * generation. The dumper thread allocates the arena on demand and releases the idle parts of it, while the arena
+     * has no free blocks the events are kept on heap and account {@link #EVENT_HEAP_THRESHOLD_BYTES}.
+     * The arena counts against {@code -XX:MaxDirectMemorySize} of the application, so it is opt-in.
+     * Defaults to 0, that is large events are kept on heap.
+     */
+    public static final long OFF_HEAP_EVENTS_BYTES = Long.getLong(LocalBuffer.class.getName() + ".OFF_HEAP_EVENTS_BYTES", 0);
+
+    /**
+     * Defines the allocation unit (in bytes) of the off-heap event arena, the arena grows by 64 blocks at a time.
+     * Defaults to 64KiB.
+     */
+    public static final int OFF_HEAP_EVENTS_BLOCK_BYTES = Integer.getInteger(LocalBuffer.class.getName() + ".OFF_HEAP_EVENTS_BLOCK_BYTES", 64 * 1024);
     public static final int MAX_SCALE_ATTEMPTS = Integer.getInteger(Profiler.class.getName() + ".MAX_SCALE_ATTEMPTS", MIN_BUFFERS * 4);
     public static final int DATA_SENDER_QUEUE_SIZE = Integer.getInteger(Profiler.class.getName() + ".DATA_SENDER.queue_size", 1000);
     public static final int METRICS_OUTPUT_VERSION = Integer.getInteger(Profiler.class.getName() + ".METRICS_OUTPUT_VERSION", 2);
@@ -78,29 +96,106 @@ public class ProfilerData {
     public static final boolean WRITE_CALL_RANGES = PropertyFacadeBoot.getProperty(Profiler.class.getName() + ".WRITE_CALL_RANGES", true);
     public static final boolean WRITE_CALLS_DICTIONARY = PropertyFacadeBoot.getProperty(Profiler.class.getName() + ".WRITE_CALLS_DICTIONARY", true);
 
+    /**
+     * Enables lightweight profiling state for virtual threads (Java 21+).
+     * Virtual threads are not registered in {@link #activeThreads}, they lease a small buffer of
+     * {@link #VIRTUAL_THREAD_BUFFER_SIZE} records on the first write. The buffer is handed to the dumper when it is
+     * full, or when the thread leaves its carrier after holding the buffer for {@link #VIRTUAL_THREAD_BUFFER_HOLD_TIME}.
+     * Defaults to false, so virtual threads use the same state as platform ones.
+     */
+    public static final boolean VIRTUAL_THREAD_MODE = PropertyFacadeBoot.getProperty(Profiler.class.getName() + ".VIRTUAL_THREAD_MODE", false);
+    /**
+     * Defines the capacity (in records) of the buffers leased by virtual threads.
+     * Defaults to 256.
+     */
+    public static final int VIRTUAL_THREAD_BUFFER_SIZE = Math.max(16, PropertyFacadeBoot.getProperty(Profiler.class.getName() + ".VIRTUAL_THREAD_BUFFER_SIZE", 256));
+    /**
+     * Defines the initial length of the lazy call stack kept for a virtual thread.
+     * Defaults to 8.
+     */
+    public static final int VIRTUAL_THREAD_STACK_LENGTH = Math.max(1, PropertyFacadeBoot.getProperty(Profiler.class.getName() + ".VIRTUAL_THREAD_STACK_LENGTH", 8));
+    /**
+     * Defines how long (in milliseconds) a virtual thread keeps its leased buffer before it releases the buffer
+     * on unmount, so threads that park often do not hand a buffer to the dumper on every park.
+     * Defaults to 1000.
+     */
+    public static final int VIRTUAL_THREAD_BUFFER_HOLD_TIME = PropertyFacadeBoot.getProperty(Profiler.class.getName() + ".VIRTUAL_THREAD_BUFFER_HOLD_TIME", 1000);
+
+    /**
+     * Defines the number of {@link CallInfo} objects the Dumper can return to each thread for reuse.
+     * Set to 0 to allocate a new {@link CallInfo} for every top-level call.
+     * Defaults to 16.
+     */
+    public static final int CALL_INFO_POOL_SIZE = PropertyFacadeBoot.getProperty(Profiler.class.getName() + ".CALL_INFO_POOL_SIZE", 16);
+
+    /**
+     * Enables per-thread buffer sizing: threads that exchange buffers often switch to larger buffers, and threads
+     * that do not fill their buffers switch to smaller ones.
+     * The Dumper re-evaluates the size class of each thread on every buffer steal pass, and the thread picks
+     * the new size when it leases the next buffer.
+     * Defaults to true.
+     */
+    public static final boolean ADAPTIVE_BUFFER_SIZE = PropertyFacadeBoot.getProperty(Profiler.class.getName() + ".ADAPTIVE_BUFFER_SIZE", true);
+    /**
+     * Defines the number of buffer exchanges per minute that moves a thread to the next larger size class.
+     * Defaults to 60.
+     */
+    public static final int BUFFER_GROW_EXCHANGES_PER_MINUTE = Math.max(1, PropertyFacadeBoot.getProperty(Profiler.class.getName() + ".BUFFER_GROW_EXCHANGES_PER_MINUTE", 60));
+    /**
+     * Defines the number of consecutive buffer steal passes without exchanges that moves a thread to the next smaller
+     * size class.
+     * Defaults to 3.
+     */
+    public static final int BUFFER_SHRINK_IDLE_PASSES = Math.max(1, PropertyFacadeBoot.getProperty(Profiler.class.getName() + ".BUFFER_SHRINK_IDLE_PASSES", 3));
+    /**
+     * Capacities (in records) of buffer size classes in ascending order: {@code SIZE/4}, {@link LocalBuffer#SIZE},
+     * and {@code SIZE*4}. There is a single class when {@link #ADAPTIVE_BUFFER_SIZE} is disabled.
+     */
+    public static final int[] BUFFER_SIZE_CLASSES = createBufferSizeClasses();
+    public static final int DEFAULT_BUFFER_SIZE_CLASS = Arrays.binarySearch(BUFFER_SIZE_CLASSES, LocalBuffer.SIZE);
+
     public static final String SERVER_NAME = ServerNameResolverAgent.SERVER_NAME;
 
     public static final ThreadLocal<LocalState> localState = new ThreadLocal<LocalState>() {
         @Override
         protected LocalState initialValue() {
-            LocalState state = activeThreads.get(Thread.currentThread());
+            Thread thread = Thread.currentThread();
+            if (VIRTUAL_THREAD_MODE && VirtualThreadSupport.isVirtual(thread)) {
+                // The buffer is leased lazily on the first write, see Profiler.exchangeBuffer
+                return new LocalState(true);
+            }
+            LocalState state = activeThreads.get(thread);
             if (state == null) {
                 state = new LocalState();
                 LocalBuffer buffer = getEmptyBuffer(state);
                 buffer.init(null);
                 state.buffer = buffer;
                 activeThreads.put(state.thread, state);
-                }
+            }
             return state;
         }
     };
 
     public final static ConcurrentMap<Thread, LocalState> activeThreads = new ConcurrentHashMap<Thread, LocalState>();
+    /**
+     * Virtual threads that hold a leased buffer, that is the ones in the middle of a call. The Dumper steals data from
+     * their buffers and reports their in-flight calls the same way it does for {@link #activeThreads}.
+     */
+    public final static ConcurrentMap<Thread, LocalState> virtualThreads = new ConcurrentHashMap<Thread, LocalState>();
     // This sums the total length of all the LocalBuffers in the dirtyBuffers queue plus the ones
     // stored in localState thread locals
     public final static AtomicLong largeEventsVolume = new AtomicLong();
-    public final static BlockingQueue<LocalBuffer> dirtyBuffers = new ArrayBlockingQueue<LocalBuffer>(MAX_BUFFERS);
-    public final static BlockingQueue<LocalBuffer> emptyBuffers = new ArrayBlockingQueue<LocalBuffer>(MAX_BUFFERS);
+    public final static OffHeapEventArena offHeapEvents = new OffHeapEventArena(OFF_HEAP_EVENTS_BYTES, OFF_HEAP_EVENTS_BLOCK_BYTES);
+    // Tags whose values are replaced with SqlFingerprint at capture time, indexed by tag id. Published by the dumper
+    private static volatile boolean[] sqlFingerprintTags = new boolean[0];
+    // Every application thread hits the queues in Profiler.exchangeBuffer, so they are lock-free
+    public final static BlockingQueue<LocalBuffer> dirtyBuffers = new LocalBufferRing(MAX_BUFFERS);
+    public final static BlockingQueue<LocalBuffer> emptyBuffers = new StripedBufferQueue(MAX_BUFFERS);
+    // Empty buffers of each size class, the default class uses emptyBuffers
+    public final static BlockingQueue<LocalBuffer>[] emptyBuffersBySizeClass = createSizeClassPools();
+    public final static BlockingQueue<LocalBuffer> emptyVirtualThreadBuffers = getBufferSizeClass(VIRTUAL_THREAD_BUFFER_SIZE) >= 0
+            ? emptyBuffersBySizeClass[getBufferSizeClass(VIRTUAL_THREAD_BUFFER_SIZE)]
+            : new StripedBufferQueue(MAX_BUFFERS);
     public final static AtomicLong corruptedCalls = new AtomicLong();
     final static MethodDictionary dictionary = new MethodDictionary(10000);
     public final static int PARAM_CALL_INFO = resolveTag("call.info") | DumperConstants.DATA_TAG_RECORD;
@@ -130,6 +225,86 @@ protected LocalState initialValue() {
         }
     }
 
+    private static int[] createBufferSizeClasses() {
+        int size = LocalBuffer.SIZE;
+        if (!ADAPTIVE_BUFFER_SIZE) {
+            return new int[]{size};
+        }
+        int small = Math.max(size / 4, Math.min(size, 256));
+        int large = size * 4;
+        if (small == size) {
+            return new int[]{size, large};
+        }
+        return new int[]{small, size, large};
+    }
+
+    // Java has no generic array creation, the raw array holds BlockingQueue<LocalBuffer> only
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static BlockingQueue<LocalBuffer>[] createSizeClassPools() {
+        BlockingQueue<LocalBuffer>[] pools = new BlockingQueue[BUFFER_SIZE_CLASSES.length];
+        for (int i = 0; i < pools.length; i++) {
+            // Each pool gets roughly the same memory budget as the default one
+            pools[i] = i == DEFAULT_BUFFER_SIZE_CLASS
+                    ? emptyBuffers
+                    : new StripedBufferQueue(Math.max(16, (int) ((long) MAX_BUFFERS * LocalBuffer.SIZE / BUFFER_SIZE_CLASSES[i])));
+        }
+        return pools;
+    }
+
+    /**
+     * Returns the size class of the buffers with a given capacity.
+     *
+     * @param capacity buffer capacity in records
+     * @return index in {@link #BUFFER_SIZE_CLASSES} or -1 if the capacity does not match any class
+     */
+    public static int getBufferSizeClass(int capacity) {
+        int[] sizeClasses = BUFFER_SIZE_CLASSES;
+        for (int i = 0; i < sizeClasses.length; i++) {
+            if (sizeClasses[i] == capacity) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Re-evaluates the buffer size class of the thread from the number of buffer exchanges since the previous
+     * evaluation. Must be called from the Dumper thread only.
+     * The thread switches to the new class when it leases the next buffer, see {@link Profiler#resizeBuffer(LocalState)},
+     * and the Dumper replaces the buffers of idle threads that should shrink.
+     *
+     * @param state thread state
+     * @param now   current time in milliseconds
+     * @return true if the size class was changed
+     */
+    public static boolean adjustBufferSizeClass(LocalState state, long now) {
+        int exchanges = state.bufferExchanges;
+        int delta = exchanges - state.lastBufferExchanges;
+        long elapsed = now - state.lastBufferSizeCheckTime;
+        boolean firstCheck = state.lastBufferSizeCheckTime == 0;
+        state.lastBufferExchanges = exchanges;
+        state.lastBufferSizeCheckTime = now;
+        if (firstCheck || BUFFER_SIZE_CLASSES.length == 1 || state.isSystem || state.isVirtual) {
+            return false;
+        }
+        int sizeClass = state.bufferSizeClass;
+        if (delta > 0) {
+            state.idleBufferPasses = 0;
+            if (sizeClass < BUFFER_SIZE_CLASSES.length - 1
+                    && delta * 60000L >= BUFFER_GROW_EXCHANGES_PER_MINUTE * Math.max(1, elapsed)) {
+                state.bufferSizeClass = sizeClass + 1;
+                return true;
+            }
+            return false;
+        }
+        if (++state.idleBufferPasses < BUFFER_SHRINK_IDLE_PASSES || sizeClass == 0) {
+            return false;
+        }
+        state.idleBufferPasses = 0;
+        state.bufferSizeClass = sizeClass - 1;
+        return true;
+    }
+
     public static int resolveTag(String tag) {
         return dictionary.resolve(tag);
     }
@@ -164,6 +339,45 @@ public static boolean reserveLargeEventVolume(long volume) {
         return true;
     }
 
+    /**
+     * Copies a large event to {@link #offHeapEvents}.
+     *
+     * @param value event value
+     * @return off-heap copy of the value or null if the arena is full
+     */
+    public static OffHeapCharSequence copyLargeEventOffHeap(CharSequence value) {
+        return offHeapEvents.copy(value);
+    }
+
+    /**
+     * Defines the tags which values should be fingerprinted with {@link SqlFingerprint} at capture time.
+     *
+     * @param tagIds tag ids
+     */
+    public static void setSqlFingerprintTags(Collection<Integer> tagIds) {
+        int max = -1;
+        for (Integer id : tagIds) {
+            max = Math.max(max, id);
+        }
+        boolean[] tags = new boolean[max + 1];
+        for (Integer id : tagIds) {
+            tags[id] = true;
+        }
+        sqlFingerprintTags = tags;
+    }
+
+    /**
+     * Checks if the value of the tag should be fingerprinted with {@link SqlFingerprint}.
+     *
+     * @param tagId tag id, {@link DumperConstants#DATA_TAG_RECORD} bits are ignored
+     * @return true if the value should be fingerprinted
+     */
+    public static boolean isSqlFingerprintTag(int tagId) {
+        boolean[] tags = sqlFingerprintTags;
+        int id = tagId & DumperConstants.DATA_ID_MASK;
+        return id < tags.length && tags[id];
+    }
+
     public static boolean addDirtyBuffer(LocalBuffer buffer, boolean force) {
         if(buffer.corrupted){
             logger.corruptedBufferWarning("ESCAGENTCORRUPTEDBUFFER: Attempt to add corrupted buffer to dirty buffers from thread " + Thread.currentThread().getName());
@@ -199,17 +413,20 @@ public static boolean addDirtyBuffer(LocalBuffer buffer, boolean force) {
     public static void addDirtyBufferIfPossible(LocalBuffer buffer) {
         if (buffer.corrupted) {
             logger.corruptedBufferWarning("ESCAGENTCORRUPTEDBUFFER: Can't add corrupted buffer if possible "+ buffer);
+            buffer.releaseOffHeapEvents();
             return;
         }
         if(buffer.state == null) {
             logger.fine("Attempt to add dirty buffer with empty state to dirty buffers if possible queue by thread " + Thread.currentThread().getName());
-
+            buffer.releaseOffHeapEvents();
             return ;
         }
         int dirtySize = dirtyBuffers.size();
         boolean added = dirtyBuffers.offer(buffer);
 
         if (!added) {
+            // The buffer is dropped, so its large events would never be written
+            buffer.releaseOffHeapEvents();
             String message = "[Qubership Profiler] ESCAGENTCORRUPTEDBUFFER: Unable to add dirty buffer " + buffer
                     + ". Action: check logs/execution-statistics-collector.log to see why Dumper failed. " +
                     "Number of dirty buffers is " + dirtySize;
@@ -226,15 +443,37 @@ public static void addDirtyBufferIfPossible(LocalBuffer buffer) {
         }
     }
 
-    static void addEmptyBuffer(LocalBuffer buffer) {
-        emptyBuffers.offer(buffer);
+    /**
+     * Returns the buffer to the pool that matches its capacity.
+     * Buffers of unknown capacity are dropped.
+     * Zero-capacity buffers are vacant placeholders of virtual threads, and they are never pooled.
+     *
+     * @param buffer empty buffer
+     */
+    public static void addEmptyBuffer(LocalBuffer buffer) {
+        int capacity = buffer.data.length;
+        int sizeClass = getBufferSizeClass(capacity);
+        if (sizeClass >= 0) {
+            emptyBuffersBySizeClass[sizeClass].offer(buffer);
+        } else if (capacity == VIRTUAL_THREAD_BUFFER_SIZE) {
+            emptyVirtualThreadBuffers.offer(buffer);
+        }
     }
 
 
     public static LocalBuffer getEmptyBuffer(LocalState state) {
-        LocalBuffer buffer = emptyBuffers.poll();
-        if (buffer == null) {
-            buffer = new LocalBuffer();
+        LocalBuffer buffer;
+        if (state.isVirtual) {
+            buffer = emptyVirtualThreadBuffers.poll();
+            if (buffer == null) {
+                buffer = new LocalBuffer(VIRTUAL_THREAD_BUFFER_SIZE);
+            }
+        } else {
+            int sizeClass = state.bufferSizeClass;
+            buffer = emptyBuffersBySizeClass[sizeClass].poll();
+            if (buffer == null) {
+                buffer = new LocalBuffer(BUFFER_SIZE_CLASSES[sizeClass]);
+            }
         }
         buffer.state = state;
         return buffer;
@@ -243,6 +482,8 @@ public static LocalBuffer getEmptyBuffer(LocalState state) {
     public static void clearThreadsInfo() {
         for (LocalState state : activeThreads.values())
             state.additional = null;
+        for (LocalState state : virtualThreads.values())
+            state.additional = null;
     }
 
 }
@@ -0,0 +1,245 @@
+package com.netcracker.profiler.agent;
+
+/**
+ * SQL text along with the fingerprint of its normalized form.
+ * <p>
+ * Normalization replaces string and numeric literals with {@code ?} and collapses whitespace, so the statements
+ * that differ in literal values only share the fingerprint and the dumper stores the normalized text once.
+ * Quoted identifiers and comments are kept as is.
+ * <p>
+ * {@link #of(String)} runs on the thread that captures the event: it computes the hash and the literal positions
+ * in a single pass and it does not build the normalized text. The dumper calls {@link #normalize()} only when the
+ * fingerprint is not in its cache yet.
+ */
+public final class SqlFingerprint {
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final String sql;
+    private long hash;
+    // start and end offsets of the literals in sql
+    private int[] literals;
+    private int literalCount;
+
+    private SqlFingerprint(String sql) {
+        this.sql = sql;
+    }
+
+    /**
+     * Computes the fingerprint of a SQL statement.
+     *
+     * @param sql SQL text
+     * @return fingerprint
+     */
+    public static SqlFingerprint of(String sql) {
+        SqlFingerprint fingerprint = new SqlFingerprint(sql);
+        fingerprint.hash = fingerprint.scan(null, true);
+        return fingerprint;
+    }
+
+    /**
+     * Returns the original SQL text.
+     *
+     * @return SQL text
+     */
+    public String getSql() {
+        return sql;
+    }
+
+    /**
+     * Returns 64-bit hash of the normalized text.
+     *
+     * @return fingerprint hash
+     */
+    public long getHash() {
+        return hash;
+    }
+
+    /**
+     * Builds the normalized text: literals are replaced with {@code ?} and whitespace is collapsed.
+     *
+     * @return normalized text
+     */
+    public String normalize() {
+        StringBuilder sb = new StringBuilder(sql.length());
+        scan(sb, false);
+        return sb.toString();
+    }
+
+    public int getLiteralCount() {
+        return literalCount;
+    }
+
+    /**
+     * Returns the literals in the order of the placeholders, separated with {@code ", "}.
+     * String literals keep their quotes, so the values are not ambiguous.
+     *
+     * @return literal values
+     */
+    public String getLiterals() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < literalCount; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(sql, literals[2 * i], literals[2 * i + 1]);
+        }
+        return sb.toString();
+    }
+
+    private void addLiteral(int start, int end) {
+        int[] literals = this.literals;
+        if (literals == null) {
+            literals = this.literals = new int[8];
+        } else if (literalCount * 2 == literals.length) {
+            int[] tmp = new int[literals.length * 2];
+            System.arraycopy(literals, 0, tmp, 0, literals.length);
+            literals = this.literals = tmp;
+        }
+        literals[2 * literalCount] = start;
+        literals[2 * literalCount + 1] = end;
+        literalCount++;
+    }
+
+    /**
+     * Walks the SQL and computes the hash of the normalized text.
+     *
+     * @param out            receives the normalized text, null if the text is not needed
+     * @param recordLiterals true to record the literal positions
+     * @return FNV-1a hash of the normalized text
+     */
+    private long scan(StringBuilder out, boolean recordLiterals) {
+        final String sql = this.sql;
+        final int length = sql.length();
+        long hash = FNV_OFFSET_BASIS;
+        // Separator to emit before the next token: 0, ' ' or '\n' (the latter terminates a line comment)
+        char separator = 0;
+        boolean emitted = false;
+        char prev = 0;
+        int i = 0;
+        while (i < length) {
+            char c = sql.charAt(i);
+            if (c <= ' ') {
+                if (emitted && separator == 0) {
+                    separator = ' ';
+                }
+                i++;
+                continue;
+            }
+            int end;
+            boolean literal = false;
+            char next = i + 1 < length ? sql.charAt(i + 1) : 0;
+            if (c == '\'') {
+                end = skipQuoted(sql, i, c);
+                literal = true;
+            } else if (c == '"' || c == '`') {
+                end = skipQuoted(sql, i, c);
+            } else if (c == '-' && next == '-') {
+                end = sql.indexOf('\n', i);
+                if (end == -1) {
+                    end = length;
+                }
+            } else if (c == '/' && next == '*') {
+                end = sql.indexOf("*/", i + 2);
+                end = end == -1 ? length : end + 2;
+            } else if (prev != ':' && (isDigit(c) || c == '.' && isDigit(next))) {
+                end = skipNumber(sql, i);
+                literal = true;
+            } else if (isIdentifierPart(c)) {
+                end = i + 1;
+                while (end < length && isIdentifierPart(sql.charAt(end))) {
+                    end++;
+                }
+            } else {
+                end = i + 1;
+            }
+
+            if (separator != 0) {
+                hash = (hash ^ separator) * FNV_PRIME;
+                if (out != null) {
+                    out.append(separator);
+                }
+            }
+            if (literal) {
+                hash = (hash ^ '?') * FNV_PRIME;
+                if (out != null) {
+                    out.append('?');
+                }
+                if (recordLiterals) {
+                    addLiteral(i, end);
+                }
+                prev = '?';
+            } else {
+                for (int j = i; j < end; j++) {
+                    hash = (hash ^ sql.charAt(j)) * FNV_PRIME;
+                }
+                if (out != null) {
+                    out.append(sql, i, end);
+                }
+                prev = sql.charAt(end - 1);
+            }
+            emitted = true;
+            separator = c == '-' && next == '-' ? '\n' : 0;
+            i = end;
+        }
+        return hash;
+    }
+
+    private static int skipQuoted(String sql, int start, char quote) {
+        int length = sql.length();
+        int i = start + 1;
+        while (i < length) {
+            if (sql.charAt(i++) == quote) {
+                // Doubled quote is an escaped one
+                if (i < length && sql.charAt(i) == quote) {
+                    i++;
+                    continue;
+                }
+                return i;
+            }
+        }
+        return length;
+    }
+
+    private static int skipNumber(String sql, int start) {
+        int length = sql.length();
+        int i = start;
+        if (sql.charAt(i) == '0' && i + 1 < length && (sql.charAt(i + 1) == 'x' || sql.charAt(i + 1) == 'X')) {
+            i += 2;
+            while (i < length && Character.digit(sql.charAt(i), 16) >= 0) {
+                i++;
+            }
+            return i;
+        }
+        while (i < length && (isDigit(sql.charAt(i)) || sql.charAt(i) == '.')) {
+            i++;
+        }
+        if (i < length && (sql.charAt(i) == 'e' || sql.charAt(i) == 'E')) {
+            int exp = i + 1;
+            if (exp < length && (sql.charAt(exp) == '+' || sql.charAt(exp) == '-')) {
+                exp++;
+            }
+            if (exp < length && isDigit(sql.charAt(exp))) {
+                i = exp;
+                while (i < length && isDigit(sql.charAt(i))) {
+                    i++;
+                }
+            }
+        }
+        return i;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9'
+                || c == '_' || c == '$' || c == '#' || c > 127 && Character.isLetterOrDigit(c);
+    }
+
+    @Override
+    public String toString() {
+        return sql;
+    }
+}
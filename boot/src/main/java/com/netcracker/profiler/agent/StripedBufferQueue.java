@@ -0,0 +1,132 @@
+package com.netcracker.profiler.agent;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Free list of empty buffers split into several {@link LocalBufferRing} stripes.
+ * Application threads take buffers from the stripe selected by thread id, and they steal from the other stripes
+ * only when their own one is empty, so threads that exchange buffers at the same time rarely touch the same counters.
+ * <p>
+ * Empty buffers are mostly returned by the Dumper thread, so {@link #offer(LocalBuffer)} spreads them over the stripes
+ * in round-robin fashion rather than filling the stripe of the calling thread.
+ */
+public class StripedBufferQueue extends AbstractBufferQueue {
+    private final LocalBufferRing[] stripes;
+    private final int mask;
+    // Plain field: lost updates just put two buffers to the same stripe
+    private int offerCursor;
+
+    public StripedBufferQueue(int capacity) {
+        this(capacity, Runtime.getRuntime().availableProcessors());
+    }
+
+    public StripedBufferQueue(int capacity, int concurrency) {
+        int count = Integer.highestOneBit(Math.max(1, Math.min(concurrency, 64) - 1)) << 1;
+        // Keep at least several buffers per stripe, otherwise the threads would steal all the time
+        while (count > 1 && capacity / count < 8) {
+            count >>= 1;
+        }
+        stripes = new LocalBufferRing[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new LocalBufferRing((capacity + count - 1) / count);
+        }
+        mask = count - 1;
+    }
+
+    private int home() {
+        return (int) Thread.currentThread().getId() & mask;
+    }
+
+    @Override
+    public int capacity() {
+        int capacity = 0;
+        for (LocalBufferRing stripe : stripes) {
+            capacity += stripe.capacity();
+        }
+        return capacity;
+    }
+
+    public boolean offer(LocalBuffer buffer) {
+        if (buffer == null) {
+            throw new NullPointerException();
+        }
+        int start = offerCursor++;
+        for (int i = 0; i <= mask; i++) {
+            if (stripes[(start + i) & mask].offer(buffer)) {
+                signalNotEmpty();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public LocalBuffer poll() {
+        int home = home();
+        for (int i = 0; i <= mask; i++) {
+            LocalBuffer buffer = stripes[(home + i) & mask].poll();
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+        return null;
+    }
+
+    public LocalBuffer peek() {
+        int home = home();
+        for (int i = 0; i <= mask; i++) {
+            LocalBuffer buffer = stripes[(home + i) & mask].peek();
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        for (LocalBufferRing stripe : stripes) {
+            if (stripe.remove(o)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (LocalBufferRing stripe : stripes) {
+            size += stripe.size();
+        }
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (LocalBufferRing stripe : stripes) {
+            if (!stripe.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a weakly consistent snapshot of the buffers in all the stripes. {@link Iterator#remove()} removes
+     * the buffer from its stripe if it is still there.
+     *
+     * @return iterator over the snapshot
+     */
+    @Override
+    public Iterator<LocalBuffer> iterator() {
+        List<LocalBuffer> snapshot = new ArrayList<LocalBuffer>();
+        for (LocalBufferRing stripe : stripes) {
+            for (Iterator<LocalBuffer> it = stripe.iterator(); it.hasNext(); ) {
+                snapshot.add(it.next());
+            }
+        }
+        return snapshotIterator(snapshot);
+    }
+}
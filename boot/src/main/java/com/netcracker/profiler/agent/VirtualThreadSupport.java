@@ -0,0 +1,42 @@
+package com.netcracker.profiler.agent;
+
+import static java.lang.invoke.MethodType.methodType;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+
+/**
+ * Detects virtual threads without requiring Java 21 at compile time.
+ * On JVMs without {@code Thread#isVirtual()} every thread is reported as a platform one.
+ */
+public class VirtualThreadSupport {
+    private static final ESCLogger logger = ESCLogger.getLogger(VirtualThreadSupport.class.getName());
+
+    private static final MethodHandle IS_VIRTUAL_MH;
+
+    static {
+        MethodHandle isVirtual = null;
+        try {
+            isVirtual = MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual", methodType(boolean.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            logger.fine("Thread.isVirtual() is not available, virtual thread mode is disabled");
+        }
+        IS_VIRTUAL_MH = isVirtual;
+    }
+
+    public static boolean isSupported() {
+        return IS_VIRTUAL_MH != null;
+    }
+
+    public static boolean isVirtual(Thread thread) {
+        MethodHandle isVirtual = IS_VIRTUAL_MH;
+        if (isVirtual == null) {
+            return false;
+        }
+        try {
+            return (boolean) isVirtual.invokeExact(thread);
+        } catch (Throwable t) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.netcracker.profiler.agent;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class BufferSizeClassTest {
+    @Test
+    void defaultClassMatchesLocalBufferSize() {
+        assertEquals(LocalBuffer.SIZE, ProfilerData.BUFFER_SIZE_CLASSES[ProfilerData.DEFAULT_BUFFER_SIZE_CLASS]);
+        assertEquals(ProfilerData.DEFAULT_BUFFER_SIZE_CLASS, new LocalState().bufferSizeClass);
+    }
+
+    @Test
+    void busyThreadGrows() {
+        assumeTrue(ProfilerData.DEFAULT_BUFFER_SIZE_CLASS < ProfilerData.BUFFER_SIZE_CLASSES.length - 1);
+        LocalState state = new LocalState();
+        ProfilerData.adjustBufferSizeClass(state, 1000);
+
+        state.bufferExchanges += 10;
+        assertTrue(ProfilerData.adjustBufferSizeClass(state, 6000), "10 exchanges in 5 seconds should grow the buffer");
+        assertEquals(ProfilerData.DEFAULT_BUFFER_SIZE_CLASS + 1, state.bufferSizeClass);
+
+        state.bufferExchanges += 10;
+        assertFalse(ProfilerData.adjustBufferSizeClass(state, 11000), "The largest class should not grow further");
+    }
+
+    @Test
+    void idleThreadShrinks() {
+        assumeTrue(ProfilerData.DEFAULT_BUFFER_SIZE_CLASS > 0);
+        LocalState state = new LocalState();
+        ProfilerData.adjustBufferSizeClass(state, 1000);
+
+        for (int i = 1; i < ProfilerData.BUFFER_SHRINK_IDLE_PASSES; i++) {
+            assertFalse(ProfilerData.adjustBufferSizeClass(state, 1000 + i * 5000L), "Idle pass " + i + " should not shrink yet");
+        }
+        assertTrue(ProfilerData.adjustBufferSizeClass(state, 1000 + ProfilerData.BUFFER_SHRINK_IDLE_PASSES * 5000L));
+        assertEquals(ProfilerData.DEFAULT_BUFFER_SIZE_CLASS - 1, state.bufferSizeClass);
+    }
+
+    @Test
+    void emptyBufferReturnsToItsSizeClassPool() {
+        LocalState state = new LocalState();
+        state.bufferSizeClass = 0;
+        LocalBuffer buffer = ProfilerData.getEmptyBuffer(state);
+        assertEquals(ProfilerData.BUFFER_SIZE_CLASSES[0], buffer.data.length);
+
+        ProfilerData.addEmptyBuffer(buffer);
+        assertTrue(ProfilerData.emptyBuffersBySizeClass[0].contains(buffer));
+    }
+}
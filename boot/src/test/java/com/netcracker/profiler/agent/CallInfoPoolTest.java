@@ -0,0 +1,49 @@
+package com.netcracker.profiler.agent;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+public class CallInfoPoolTest {
+    @Test
+    void pollReturnsOfferedItemsInOrder() {
+        CallInfoPool pool = new CallInfoPool(4);
+        CallInfo first = new CallInfo();
+        CallInfo second = new CallInfo();
+        assertTrue(pool.offer(first));
+        assertTrue(pool.offer(second));
+        assertSame(first, pool.poll());
+        assertSame(second, pool.poll());
+        assertNull(pool.poll(), "Pool should be empty after all the items are polled");
+    }
+
+    @Test
+    void offerFailsWhenFull() {
+        CallInfoPool pool = new CallInfoPool(2);
+        assertTrue(pool.offer(new CallInfo()));
+        assertTrue(pool.offer(new CallInfo()));
+        assertFalse(pool.offer(new CallInfo()), "Pool of capacity 2 should reject the third item");
+        assertNotNull(pool.poll());
+        assertTrue(pool.offer(new CallInfo()), "Pool should accept items after poll");
+    }
+
+    @Test
+    void resetClearsCallFields() {
+        LocalState state = new LocalState();
+        CallInfo callInfo = new CallInfo(state);
+        callInfo.setRequestURL("http://localhost/");
+        callInfo.setModule("module");
+        callInfo.cpuTime = 42;
+        callInfo.isCallRed = true;
+        callInfo.markCorrupted();
+
+        callInfo.reset(state);
+
+        assertNull(callInfo.getRequestURL(), "requestURL");
+        assertEquals("", callInfo.getModule(), "module");
+        assertEquals(0, callInfo.cpuTime, "cpuTime");
+        assertFalse(callInfo.isCallRed, "isCallRed");
+        assertFalse(callInfo.isCorrupted(), "corrupted");
+        assertEquals(state.shortThreadName, callInfo.getClientInfo(), "clientInfo");
+    }
+}
@@ -0,0 +1,139 @@
+package com.netcracker.profiler.agent;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+public class OffHeapEventArenaTest {
+    private static final int BLOCK_SIZE = 4096;
+    // A single slab of 64 blocks
+    private static final long CAPACITY = 64L * BLOCK_SIZE;
+
+    private static String randomString(int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append((char) ('a' + (i * 31 + length) % 26));
+        }
+        // Non-ASCII chars must survive the copy as well
+        sb.setCharAt(length / 2, '€');
+        return sb.toString();
+    }
+
+    /**
+     * Returns an arena with all the slabs allocated, as the dumper allocates them after a large event found no room.
+     */
+    private static OffHeapEventArena allocatedArena(long capacity) {
+        OffHeapEventArena arena = new OffHeapEventArena(capacity, BLOCK_SIZE);
+        assertNull(arena.copy(randomString((int) (capacity / 2))), "Slabs should be allocated by the dumper only");
+        arena.reserve();
+        assertEquals(capacity, arena.getCapacity());
+        return arena;
+    }
+
+    @Test
+    void copyPreservesContents() throws IOException {
+        OffHeapEventArena arena = allocatedArena(CAPACITY);
+        String value = randomString(10_000);
+        OffHeapCharSequence copy = arena.copy(new StringBuilder(value));
+        assertNotNull(copy);
+        assertEquals(value.length(), copy.length());
+        assertEquals(value, copy.toString());
+        assertEquals(value.charAt(5000), copy.charAt(5000));
+        assertEquals(value.substring(2000, 6000), copy.subSequence(2000, 6000).toString());
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        new DataOutputStream(expected).writeChars(value);
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        copy.writeTo(new DataOutputStream(actual), new byte[1000]);
+        assertArrayEquals(expected.toByteArray(), actual.toByteArray(), "writeTo should produce UTF-16BE bytes");
+    }
+
+    @Test
+    void releaseReturnsBlocks() {
+        OffHeapEventArena arena = allocatedArena(CAPACITY);
+        OffHeapCharSequence copy = arena.copy(randomString(10_000));
+        assertNotNull(copy);
+        // 10000 chars take 20000 bytes, so 5 blocks of 4 KiB
+        assertEquals(5 * BLOCK_SIZE, arena.getUsedBytes());
+        copy.release();
+        copy.release();
+        assertEquals(0, arena.getUsedBytes(), "Released blocks should return to the arena");
+        assertTrue(copy.isReleased());
+        assertEquals("Released off-heap event of 10000 chars", copy.toString());
+        assertThrows(IllegalStateException.class, () -> copy.charAt(0));
+    }
+
+    @Test
+    void copyFailsWhenArenaIsFull() {
+        OffHeapEventArena arena = allocatedArena(CAPACITY);
+        OffHeapCharSequence first = arena.copy(randomString((int) (CAPACITY / 2) - 10));
+        assertNotNull(first);
+        assertNull(arena.copy(randomString((int) (CAPACITY / 2))), "Arena has 1 block left, so the copy should fail");
+        first.release();
+        assertNotNull(arena.copy(randomString((int) (CAPACITY / 2))), "Arena should accept the event once blocks are released");
+    }
+
+    @Test
+    void zeroCapacityDisablesArena() {
+        OffHeapEventArena arena = new OffHeapEventArena(0, BLOCK_SIZE);
+        arena.reserve();
+        assertNull(arena.copy(randomString(10_000)));
+        assertEquals(0, arena.getCapacity());
+    }
+
+    @Test
+    void slabsAreAllocatedAfterMiss() {
+        OffHeapEventArena arena = new OffHeapEventArena(2 * CAPACITY, BLOCK_SIZE);
+        arena.reserve();
+        assertEquals(0, arena.getCapacity(), "Arena should not allocate direct memory before a large event arrives");
+        assertNull(arena.copy(randomString(10_000)), "Application threads should not allocate direct memory");
+        assertEquals(0, arena.getCapacity());
+
+        arena.reserve();
+        assertEquals(CAPACITY, arena.getCapacity(), "Reserve should allocate a single slab for the missed event");
+        // 40 blocks each, so the second value does not fit the remaining 24 blocks
+        OffHeapCharSequence first = arena.copy(randomString(40 * BLOCK_SIZE / 2));
+        assertNotNull(first);
+        assertNull(arena.copy(randomString(40 * BLOCK_SIZE / 2)), "Value should stay on heap till the dumper grows the arena");
+
+        arena.reserve();
+        assertEquals(2 * CAPACITY, arena.getCapacity(), "Reserve should make room for the value that did not fit");
+        assertNotNull(arena.copy(randomString(40 * BLOCK_SIZE / 2)));
+    }
+
+    @Test
+    void idleSlabsAreReleased() {
+        OffHeapEventArena arena = allocatedArena(2 * CAPACITY);
+        OffHeapCharSequence value = arena.copy(randomString(40 * BLOCK_SIZE / 2));
+        assertNotNull(value);
+        assertEquals(0, arena.releaseIdleSlabs(), "Slabs allocated since the previous sweep should be kept");
+        assertEquals(1, arena.releaseIdleSlabs(), "Slab without events should be released");
+        assertEquals(CAPACITY, arena.getCapacity(), "Slab that holds the value should be kept");
+        assertEquals(value.toString(), randomString(40 * BLOCK_SIZE / 2));
+
+        value.release();
+        assertEquals(1, arena.releaseIdleSlabs(), "Slab should be released once its value is written");
+        assertEquals(0, arena.getCapacity());
+        assertNull(arena.copy(randomString(10_000)));
+        arena.reserve();
+        assertNotNull(arena.copy(randomString(10_000)), "Arena should grow again after the slabs are released");
+    }
+
+    @Test
+    void releaseOffHeapEventsFreesBlocksOfDroppedBuffer() {
+        OffHeapEventArena arena = allocatedArena(CAPACITY);
+        LocalBuffer buffer = new LocalBuffer(16);
+        buffer.value[3] = arena.copy(randomString(10_000));
+        buffer.value[7] = arena.copy(randomString(10_000));
+        assertEquals(10 * BLOCK_SIZE, arena.getUsedBytes());
+
+        buffer.releaseOffHeapEvents();
+        assertEquals(0, arena.getUsedBytes(), "Blocks of the dropped buffer should return to the arena");
+        assertNull(buffer.value[3]);
+        assertNull(buffer.value[7]);
+    }
+}
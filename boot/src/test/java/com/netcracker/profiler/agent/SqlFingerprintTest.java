@@ -0,0 +1,47 @@
+package com.netcracker.profiler.agent;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+public class SqlFingerprintTest {
+    @Test
+    void literalsAreReplaced() {
+        SqlFingerprint sql = SqlFingerprint.of("select *\n  from t_users\twhere id = 42 and name = 'O''Brien' and k=1.5e3");
+        assertEquals("select * from t_users where id = ? and name = ? and k=?", sql.normalize());
+        assertEquals(3, sql.getLiteralCount());
+        assertEquals("42, 'O''Brien', 1.5e3", sql.getLiterals());
+    }
+
+    @Test
+    void sameFingerprintForDifferentLiterals() {
+        SqlFingerprint a = SqlFingerprint.of("select name from users where id = 1");
+        SqlFingerprint b = SqlFingerprint.of("select  name from users\nwhere id = 12345 ");
+        assertEquals(a.normalize(), b.normalize());
+        assertEquals(a.getHash(), b.getHash());
+        assertNotEquals(a.getHash(), SqlFingerprint.of("select name from users where uid = 1").getHash());
+    }
+
+    @Test
+    void identifiersAndBindsAreKept() {
+        SqlFingerprint sql = SqlFingerprint.of("select col1, \"Col 2\" from t2 where a = :1 and b = $1 and c = ? and d = :name");
+        assertEquals("select col1, \"Col 2\" from t2 where a = :1 and b = $1 and c = ? and d = :name", sql.normalize());
+        assertEquals(0, sql.getLiteralCount());
+        assertEquals("", sql.getLiterals());
+    }
+
+    @Test
+    void commentsAreKept() {
+        SqlFingerprint sql = SqlFingerprint.of("select /*+ index(t 1) */ x -- id 5\nfrom t where y = 0x1F");
+        assertEquals("select /*+ index(t 1) */ x -- id 5\nfrom t where y = ?", sql.normalize());
+        assertEquals("0x1F", sql.getLiterals());
+    }
+
+    @Test
+    void hashMatchesNormalizedText() {
+        SqlFingerprint sql = SqlFingerprint.of("update t set a = 'x', b = 2 where c in (1, 2, 3)");
+        assertEquals(SqlFingerprint.of(sql.normalize()).getHash(), sql.getHash(),
+                "Normalized text should have the same fingerprint as the original one");
+        assertEquals("update t set a = ?, b = ? where c in (?, ?, ?)", sql.normalize());
+    }
+}
@@ -0,0 +1,85 @@
+package com.netcracker.profiler.agent
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Assertions.assertSame
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+
+class BufferQueueRemoveTest {
+
+    @Test
+    fun `removed buffer is skipped by the consumer`() {
+        val ring = LocalBufferRing(4)
+        val buffers = List(3) { LocalBuffer(1) }
+        buffers.forEach { assertTrue(ring.offer(it)) }
+
+        assertTrue(ring.remove(buffers[0]))
+        assertFalse(ring.remove(buffers[0]), "Buffer should be removed once")
+        assertEquals(2, ring.size)
+        assertSame(buffers[1], ring.peek())
+        assertEquals(listOf(buffers[1], buffers[2]), ring.toList())
+
+        assertSame(buffers[1], ring.poll())
+        assertSame(buffers[2], ring.poll())
+        assertNull(ring.poll())
+        assertTrue(ring.isEmpty())
+    }
+
+    @Test
+    fun `removed slots are reused once the consumer passes them`() {
+        val ring = LocalBufferRing(2)
+        repeat(5) {
+            val buffer = LocalBuffer(1)
+            assertTrue(ring.offer(buffer))
+            assertTrue(ring.remove(buffer))
+            assertTrue(ring.isEmpty())
+            assertNull(ring.poll())
+        }
+        val buffer = LocalBuffer(1)
+        assertTrue(ring.offer(buffer))
+        assertSame(buffer, ring.poll())
+    }
+
+    @Test
+    fun `removeIf keeps buffers of other owners in the ring`() {
+        val ring = LocalBufferRing(8)
+        val own = LocalState()
+        val buffers = List(6) { LocalBuffer(1) }
+        buffers.forEachIndexed { i, buffer ->
+            if (i % 3 == 0) {
+                buffer.state = own
+            }
+            assertTrue(ring.offer(buffer))
+        }
+
+        assertTrue(ring.removeIf { it.state === own })
+        assertFalse(ring.removeIf { it.state === own }, "Buffers should be removed once")
+        assertEquals(4, ring.size)
+        assertEquals(buffers.filter { it.state !== own }, ring.toList())
+
+        val iterator = ring.iterator()
+        val first = iterator.next()
+        iterator.remove()
+        assertFalse(first in ring, "Iterator should remove the buffer from the ring")
+        assertEquals(3, ring.size)
+        assertEquals(buffers.filter { it.state !== own }.drop(1), generateSequence { ring.poll() }.toList())
+    }
+
+    @Test
+    fun `removeIf removes matching buffers from all stripes`() {
+        val queue = StripedBufferQueue(64, 4)
+        val buffers = List(16) { LocalBuffer(1) }
+        buffers.forEach { assertTrue(queue.offer(it)) }
+        val removed = buffers.filterIndexed { i, _ -> i % 2 == 0 }.toSet()
+
+        assertTrue(queue.removeIf { it in removed })
+        assertEquals(8, queue.size)
+        val rest = mutableSetOf<LocalBuffer>()
+        while (true) {
+            rest.add(queue.poll() ?: break)
+        }
+        assertEquals(buffers.toSet() - removed, rest)
+    }
+}
@@ -24,6 +24,8 @@ fun setup() {
         mockkStatic(Profiler::class)
         mockkStatic(ProfilerData::class)
         every { Bootstrap.getPlugin(any<Class<*>>()) } returns null
+        // The tests cover the heap budget, so model a full off-heap arena
+        every { ProfilerData.copyLargeEventOffHeap(any()) } returns null
         state = createState()
         largeEventVolumeBefore = ProfilerData.largeEventsVolume.get()
     }
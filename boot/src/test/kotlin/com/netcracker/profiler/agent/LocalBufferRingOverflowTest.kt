@@ -0,0 +1,39 @@
+package com.netcracker.profiler.agent
+
+import org.junit.platform.commons.annotation.Testable
+import org.openjdk.jcstress.annotations.*
+import org.openjdk.jcstress.infra.results.IIII_Result
+
+@JCStressTest
+@Outcome(id = ["1, 1, 0, 2", "1, 0, 1, 2", "0, 1, 1, 2"], expect = Expect.ACCEPTABLE, desc = "Exactly two producers fit into the ring")
+@Outcome(expect = Expect.FORBIDDEN, desc = "Ring must neither lose nor overfill buffers")
+@State
+@Testable
+open class LocalBufferRingOverflowTest {
+
+    private val ring = LocalBufferRing(2)
+
+    @Actor
+    fun producer1(r: IIII_Result) {
+        r.r1 = if (ring.offer(LocalBuffer(1))) 1 else 0
+    }
+
+    @Actor
+    fun producer2(r: IIII_Result) {
+        r.r2 = if (ring.offer(LocalBuffer(1))) 1 else 0
+    }
+
+    @Actor
+    fun producer3(r: IIII_Result) {
+        r.r3 = if (ring.offer(LocalBuffer(1))) 1 else 0
+    }
+
+    @Arbiter
+    fun consumer(r: IIII_Result) {
+        val buffers = mutableSetOf<LocalBuffer>()
+        while (true) {
+            buffers.add(ring.poll() ?: break)
+        }
+        r.r4 = buffers.size
+    }
+}
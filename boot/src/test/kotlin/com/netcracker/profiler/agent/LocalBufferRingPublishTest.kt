@@ -0,0 +1,29 @@
+package com.netcracker.profiler.agent
+
+import org.junit.platform.commons.annotation.Testable
+import org.openjdk.jcstress.annotations.*
+import org.openjdk.jcstress.infra.results.J_Result
+
+@JCStressTest
+@Outcome(id = ["-1"], expect = Expect.ACCEPTABLE, desc = "Consumer polled before the buffer was published")
+@Outcome(id = ["1311768467463790320"], expect = Expect.ACCEPTABLE, desc = "Consumer received the buffer with its contents")
+@Outcome(id = ["0"], expect = Expect.FORBIDDEN, desc = "Buffer contents should be visible once the buffer is polled")
+@State
+@Testable
+open class LocalBufferRingPublishTest {
+
+    private val ring = LocalBufferRing(4)
+    private val buffer = LocalBuffer(1)
+
+    @Actor
+    fun producer() {
+        buffer.data[0] = 0x1234_5678_9abc_def0L
+        ring.offer(buffer)
+    }
+
+    @Actor
+    fun consumer(r: J_Result) {
+        val polled = ring.poll()
+        r.r1 = polled?.data?.get(0) ?: -1
+    }
+}
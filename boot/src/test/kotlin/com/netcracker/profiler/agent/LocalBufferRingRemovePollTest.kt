@@ -0,0 +1,35 @@
+package com.netcracker.profiler.agent
+
+import org.junit.platform.commons.annotation.Testable
+import org.openjdk.jcstress.annotations.*
+import org.openjdk.jcstress.infra.results.III_Result
+
+@JCStressTest
+@Outcome(id = ["1, 0, 0", "0, 1, 0"], expect = Expect.ACCEPTABLE, desc = "Either the consumer or the removal gets the buffer")
+@Outcome(expect = Expect.FORBIDDEN, desc = "Buffer must be taken exactly once")
+@State
+@Testable
+open class LocalBufferRingRemovePollTest {
+
+    private val ring = LocalBufferRing(4)
+    private val buffer = LocalBuffer(1)
+
+    init {
+        ring.offer(buffer)
+    }
+
+    @Actor
+    fun consumer(r: III_Result) {
+        r.r1 = if (ring.poll() != null) 1 else 0
+    }
+
+    @Actor
+    fun remover(r: III_Result) {
+        r.r2 = if (ring.remove(buffer)) 1 else 0
+    }
+
+    @Arbiter
+    fun arbiter(r: III_Result) {
+        r.r3 = ring.size
+    }
+}
@@ -0,0 +1,34 @@
+package com.netcracker.profiler.agent
+
+import org.junit.platform.commons.annotation.Testable
+import org.openjdk.jcstress.annotations.*
+import org.openjdk.jcstress.infra.results.III_Result
+
+@JCStressTest
+@Outcome(id = ["1, 0, 0", "0, 1, 0"], expect = Expect.ACCEPTABLE, desc = "Exactly one consumer takes the buffer")
+@Outcome(expect = Expect.FORBIDDEN, desc = "Buffer must be taken exactly once")
+@State
+@Testable
+open class StripedBufferQueuePollTest {
+
+    private val queue = StripedBufferQueue(32, 4)
+
+    init {
+        queue.offer(LocalBuffer(1))
+    }
+
+    @Actor
+    fun consumer1(r: III_Result) {
+        r.r1 = if (queue.poll() != null) 1 else 0
+    }
+
+    @Actor
+    fun consumer2(r: III_Result) {
+        r.r2 = if (queue.poll() != null) 1 else 0
+    }
+
+    @Arbiter
+    fun arbiter(r: III_Result) {
+        r.r3 = queue.size
+    }
+}
@@ -0,0 +1,97 @@
+package com.netcracker.profiler.agent
+
+import io.mockk.every
+import io.mockk.junit5.MockKExtension
+import io.mockk.mockkStatic
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertSame
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.extension.ExtendWith
+
+@ExtendWith(MockKExtension::class)
+class VirtualThreadStateTest {
+    lateinit var state: LocalState
+
+    @BeforeEach
+    fun setup() {
+        mockkStatic(Bootstrap::class)
+        mockkStatic(Profiler::class)
+        every { Bootstrap.getPlugin(any<Class<*>>()) } returns null
+        state = LocalState(true)
+        every { Profiler.getState() } returns state
+    }
+
+    @AfterEach
+    fun teardown() {
+        ProfilerData.dirtyBuffers.removeIf { it.state === state }
+        ProfilerData.virtualThreads.remove(state.thread)
+    }
+
+    @Test
+    fun `virtual thread state does not hold a buffer until it writes`() {
+        assertSame(state.vacantBuffer, state.buffer, "New virtual thread state should use vacant buffer")
+        assertEquals(0, state.buffer.data.size, "Vacant buffer should have no capacity")
+        assertFalse(ProfilerData.activeThreads.containsValue(state), "Virtual thread state should not be registered")
+    }
+
+    @Test
+    fun `buffer is leased on write and kept between calls`() {
+        state.enter(42)
+        state.event("value", 45)
+
+        val leased = state.buffer
+        assertSame(state, ProfilerData.virtualThreads[state.thread], "Thread with a leased buffer should be tracked")
+        assertEquals(
+            ProfilerData.VIRTUAL_THREAD_BUFFER_SIZE,
+            leased.data.size,
+            "Virtual thread should lease a small buffer on the first write"
+        )
+
+        state.exit()
+
+        assertSame(leased, state.buffer, "Virtual thread should keep the buffer after the call")
+        assertFalse(ProfilerData.dirtyBuffers.contains(leased), "Buffer should not be handed to the dumper per call")
+        assertSame(state, ProfilerData.virtualThreads[state.thread], "Thread with a leased buffer should be tracked")
+    }
+
+    @Test
+    fun `buffer is released on unmount after hold time`() {
+        state.enter(42)
+        state.event("value", 45)
+        state.exit()
+        val leased = state.buffer
+
+        Profiler.virtualThreadUnmounted()
+        assertSame(leased, state.buffer, "Recently leased buffer should be kept on unmount")
+
+        state.bufferLeaseTime -= ProfilerData.VIRTUAL_THREAD_BUFFER_HOLD_TIME
+        Profiler.virtualThreadUnmounted()
+
+        assertSame(state.vacantBuffer, state.buffer, "Virtual thread should release the buffer on unmount")
+        assertTrue(ProfilerData.dirtyBuffers.contains(leased), "Released buffer should be handed to the dumper")
+        assertFalse(ProfilerData.virtualThreads.containsKey(state.thread), "Thread without a buffer should not be tracked")
+    }
+
+    @Test
+    fun `next lease continues the released buffer`() {
+        state.enter(42)
+        state.event("value", 45)
+        state.exit()
+        val released = state.buffer
+        state.bufferLeaseTime -= ProfilerData.VIRTUAL_THREAD_BUFFER_HOLD_TIME
+        Profiler.virtualThreadUnmounted()
+
+        state.enter(42)
+        state.event("value", 45)
+        assertSame(
+            released,
+            state.buffer.prevBuffer,
+            "Dumper should write the released buffer before it steals from the next one"
+        )
+        state.exit()
+    }
+}
@@ -1,6 +1,7 @@
 package com.netcracker.profiler.cli;
 
 import com.netcracker.profiler.chart.UnaryFunction;
+import com.netcracker.profiler.dump.DumpCodec;
 import com.netcracker.profiler.guice.DumpRootLocation;
 import com.netcracker.profiler.io.DurationParser;
 import com.netcracker.profiler.sax.readers.ProfilerTraceReaderFile;
@@ -270,7 +271,7 @@ private void processXmlFiles(String folderInZip, File root, List<File> traceFile
         Arrays.sort(indexes);
 
         for (int i = indexes[0]; i <= indexes[1]; i++) { //between the first and last index
-            File file = new File(folder, fileIndexFormat.format(i) + ".gz");
+            File file = DumpCodec.findFile(new File(folder, fileIndexFormat.format(i)));
             appendFile(folderInZip, file);
         }
     }
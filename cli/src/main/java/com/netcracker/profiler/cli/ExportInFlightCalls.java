@@ -3,6 +3,7 @@
 import static com.netcracker.profiler.cli.ExportDump.NUMBER_DIRECTORY_FILTER;
 import static com.netcracker.profiler.cli.ExportDump.YEAR_DIRECTORY_FILTER;
 
+import com.netcracker.profiler.dump.DumpCodec;
 import com.netcracker.profiler.guice.DumpRootLocation;
 import com.netcracker.profiler.io.DurationParser;
 import com.netcracker.profiler.io.xlsx.CallToXLSX;
@@ -88,7 +89,7 @@ private int runExport() throws IOException {
                 return -2;
             }
             String rootReference = getRelativePath(startTraceFile.getParentFile().getParentFile(), dumpRoot);
-            int startFileIndex = Integer.parseInt(startTraceFile.getName().replace(".gz", ""));
+            int startFileIndex = Integer.parseInt(DumpCodec.stripExtension(startTraceFile.getName()));
             log.info("Will scan trace files starting from {}", startTraceFile);
             InFlightCallsFromTraceScanner scanner = scannerFactory.create(rootReference, startFileIndex);
             List<InFlightCallsFromTraceScanner.CallInfo> calls = scanner.find();
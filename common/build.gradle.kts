@@ -10,6 +10,7 @@
     implementation("com.fasterxml.jackson.core:jackson-core")
     implementation("com.google.inject:guice")
     implementation("com.jcraft:jsch")
+    implementation("io.airlift:aircompressor")
     implementation("net.sf.trove4j:trove4j")
     implementation("org.ow2.asm:asm-commons")
     implementation("org.ow2.asm:asm-util")
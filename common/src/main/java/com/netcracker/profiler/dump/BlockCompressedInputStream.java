@@ -0,0 +1,130 @@
+package com.netcracker.profiler.dump;
+
+import static com.netcracker.profiler.dump.BlockCompressedOutputStream.BLOCK_HEADER_SIZE;
+import static com.netcracker.profiler.dump.BlockCompressedOutputStream.RAW_BLOCK;
+
+import io.airlift.compress.Decompressor;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the stream written by {@link BlockCompressedOutputStream}.
+ * A block that is cut in the middle (the file is still being written) results in {@link EOFException},
+ * the same way the readers observe it for gzip files.
+ */
+public class BlockCompressedInputStream extends InputStream {
+    private static final int MAX_BLOCK_SIZE = 16 * 1024 * 1024;
+
+    private final DataInputStream in;
+    private final Decompressor decompressor;
+    private final byte[] header = new byte[BLOCK_HEADER_SIZE];
+    private byte[] buffer = new byte[0];
+    private byte[] compressed = new byte[0];
+    private int pos;
+    private int limit;
+
+    public BlockCompressedInputStream(InputStream in, int magic, Decompressor decompressor) throws IOException {
+        this.in = new DataInputStream(in);
+        this.decompressor = decompressor;
+        int actualMagic = this.in.readInt();
+        if (actualMagic != magic) {
+            throw new IOException("Unexpected stream header " + Integer.toHexString(actualMagic) + ", expecting " + Integer.toHexString(magic));
+        }
+        int version = this.in.readUnsignedByte();
+        if (version != BlockCompressedOutputStream.VERSION) {
+            throw new IOException("Unsupported block stream version " + version);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (pos == limit && !readBlock()) {
+            return -1;
+        }
+        return buffer[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (pos == limit && !readBlock()) {
+            return -1;
+        }
+        int n = Math.min(len, limit - pos);
+        System.arraycopy(buffer, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n) {
+            if (pos == limit && !readBlock()) {
+                break;
+            }
+            int step = (int) Math.min(n - skipped, limit - pos);
+            pos += step;
+            skipped += step;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return limit - pos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private boolean readBlock() throws IOException {
+        int first = in.read();
+        if (first == -1) {
+            return false;
+        }
+        header[0] = (byte) first;
+        in.readFully(header, 1, BLOCK_HEADER_SIZE - 1);
+        int length = readInt(header, 0);
+        int storedLength = readInt(header, 4);
+        boolean raw = (storedLength & RAW_BLOCK) != 0;
+        storedLength &= ~RAW_BLOCK;
+        if (length <= 0 || length > MAX_BLOCK_SIZE || storedLength > MAX_BLOCK_SIZE || (raw && storedLength != length)) {
+            throw new IOException("Corrupt block header: length " + length + ", stored length " + storedLength);
+        }
+        if (buffer.length < length) {
+            buffer = new byte[length];
+        }
+        if (raw) {
+            in.readFully(buffer, 0, length);
+        } else {
+            if (compressed.length < storedLength) {
+                compressed = new byte[storedLength];
+            }
+            in.readFully(compressed, 0, storedLength);
+            int actual;
+            try {
+                actual = decompressor.decompress(compressed, 0, storedLength, buffer, 0, length);
+            } catch (RuntimeException e) {
+                throw new IOException("Unable to decompress block", e);
+            }
+            if (actual != length) {
+                throw new IOException("Corrupt block: expected " + length + " bytes, got " + actual);
+            }
+        }
+        pos = 0;
+        limit = length;
+        return true;
+    }
+
+    private static int readInt(byte[] b, int off) {
+        return (b[off] & 0xff) << 24 | (b[off + 1] & 0xff) << 16 | (b[off + 2] & 0xff) << 8 | (b[off + 3] & 0xff);
+    }
+}
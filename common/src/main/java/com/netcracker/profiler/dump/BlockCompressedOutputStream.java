@@ -0,0 +1,105 @@
+package com.netcracker.profiler.dump;
+
+import io.airlift.compress.Compressor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes data as a sequence of independently compressed blocks, so the stream can be flushed at any point
+ * and a partially written file is readable up to the last flushed block.
+ * <p>
+ * Format: 4-byte codec magic, 1-byte format version, then blocks. Each block is the uncompressed length (int),
+ * the stored length (int, {@link #RAW_BLOCK} bit is set when the block did not compress), and the stored bytes.
+ *
+ * @see BlockCompressedInputStream
+ */
+public class BlockCompressedOutputStream extends OutputStream {
+    public static final int VERSION = 1;
+    public static final int RAW_BLOCK = 0x80000000;
+    public static final int BLOCK_HEADER_SIZE = 8;
+
+    private final OutputStream out;
+    private final Compressor compressor;
+    private final byte[] buffer;
+    private final byte[] compressed;
+    private int pos;
+    private boolean closed;
+
+    public BlockCompressedOutputStream(OutputStream out, int magic, Compressor compressor, int blockSize) throws IOException {
+        this.out = out;
+        this.compressor = compressor;
+        this.buffer = new byte[blockSize];
+        this.compressed = new byte[BLOCK_HEADER_SIZE + Math.max(blockSize, compressor.maxCompressedLength(blockSize))];
+        out.write(new byte[]{(byte) (magic >>> 24), (byte) (magic >>> 16), (byte) (magic >>> 8), (byte) magic, VERSION});
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (pos == buffer.length) {
+            writeBlock();
+        }
+        buffer[pos++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (pos == buffer.length) {
+                writeBlock();
+            }
+            int n = Math.min(len, buffer.length - pos);
+            System.arraycopy(b, off, buffer, pos, n);
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (closed) {
+            return;
+        }
+        writeBlock();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            writeBlock();
+        } finally {
+            closed = true;
+            out.close();
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        if (pos == 0) {
+            return;
+        }
+        int length = compressor.compress(buffer, 0, pos, compressed, BLOCK_HEADER_SIZE, compressed.length - BLOCK_HEADER_SIZE);
+        int storedLength = length;
+        if (length >= pos) {
+            // Incompressible data is stored as is, so the block never grows
+            System.arraycopy(buffer, 0, compressed, BLOCK_HEADER_SIZE, pos);
+            length = pos;
+            storedLength = pos | RAW_BLOCK;
+        }
+        writeInt(compressed, 0, pos);
+        writeInt(compressed, 4, storedLength);
+        out.write(compressed, 0, BLOCK_HEADER_SIZE + length);
+        pos = 0;
+    }
+
+    private static void writeInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+}
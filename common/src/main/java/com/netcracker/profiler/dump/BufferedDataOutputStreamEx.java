@@ -0,0 +1,336 @@
+package com.netcracker.profiler.dump;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes records into a reusable byte array and passes them to the underlying stream with a single
+ * {@code write(byte[], int, int)} call, so the trace encoding does not pay for a chain of virtual
+ * {@code write(int)} calls per byte.
+ * <p>
+ * The encoder is {@link #bind(IDataOutputStreamEx) bound} to a stream while a buffer is encoded and
+ * {@link #release() released} afterwards. {@link #size()} accounts the bytes that are not passed to the stream
+ * yet, so offsets are the same as if the data was written to the stream directly. The encoder is not thread-safe.
+ */
+public class BufferedDataOutputStreamEx implements IDataOutputStreamEx {
+    private final byte[] buf;
+    private int pos;
+    private IDataOutputStreamEx out;
+    private int prevStringOffset;
+
+    public BufferedDataOutputStreamEx(int bufferSize) {
+        this.buf = new byte[Math.max(64, bufferSize)];
+    }
+
+    /**
+     * Starts encoding into the given stream.
+     *
+     * @param out stream to write to
+     * @return this encoder
+     */
+    public BufferedDataOutputStreamEx bind(IDataOutputStreamEx out) {
+        this.out = out;
+        this.pos = 0;
+        return this;
+    }
+
+    /**
+     * Passes the pending bytes to the stream and unbinds the encoder.
+     *
+     * @throws IOException if the write fails
+     */
+    public void release() throws IOException {
+        if (out == null) {
+            return;
+        }
+        try {
+            drain();
+        } finally {
+            out = null;
+            pos = 0;
+        }
+    }
+
+    /**
+     * Passes the pending bytes to the stream without flushing the stream.
+     *
+     * @throws IOException if the write fails
+     */
+    public void drain() throws IOException {
+        if (pos > 0) {
+            int len = pos;
+            pos = 0;
+            out.write(buf, 0, len);
+        }
+    }
+
+    private void ensure(int n) throws IOException {
+        if (pos + n > buf.length) {
+            drain();
+        }
+    }
+
+    @Override
+    public int getPrevStringOffset() {
+        return prevStringOffset;
+    }
+
+    @Override
+    public int size() {
+        return out.size() + pos;
+    }
+
+    @Override
+    public int write(String s) throws IOException {
+        int offset = size();
+        prevStringOffset = offset;
+        int length = s.length();
+        writeVarInt(length);
+        int i = 0;
+        while (i < length) {
+            ensure(2);
+            final byte[] b = buf;
+            int p = pos;
+            int end = Math.min(length, i + ((b.length - p) >> 1));
+            for (; i < end; i++) {
+                char c = s.charAt(i);
+                b[p] = (byte) (c >>> 8);
+                b[p + 1] = (byte) c;
+                p += 2;
+            }
+            pos = p;
+        }
+        return offset;
+    }
+
+    @Override
+    public int writeCompact(String s) throws IOException {
+        int offset = size();
+        prevStringOffset = offset;
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            if (s.charAt(i) > 0xff) {
+                byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+                writeVarInt(utf8.length << 1 | COMPACT_STRING_UTF8);
+                write(utf8, 0, utf8.length);
+                return offset;
+            }
+        }
+        writeVarInt(length << 1);
+        int i = 0;
+        while (i < length) {
+            ensure(1);
+            final byte[] b = buf;
+            int p = pos;
+            int end = Math.min(length, i + b.length - p);
+            for (; i < end; i++) {
+                b[p++] = (byte) s.charAt(i);
+            }
+            pos = p;
+        }
+        return offset;
+    }
+
+    @Override
+    public int writeVarInt(int i) throws IOException {
+        ensure(5);
+        final byte[] b = buf;
+        int p = pos;
+        if ((i & ~0x7f) == 0) {
+            b[p] = (byte) i;
+            pos = p + 1;
+            return 1;
+        }
+        b[p] = (byte) (i | 0x80);
+        i >>>= 7;
+        if ((i & ~0x7f) == 0) {
+            b[p + 1] = (byte) i;
+            pos = p + 2;
+            return 2;
+        }
+        b[p + 1] = (byte) (i | 0x80);
+        i >>>= 7;
+        if ((i & ~0x7f) == 0) {
+            b[p + 2] = (byte) i;
+            pos = p + 3;
+            return 3;
+        }
+        b[p + 2] = (byte) (i | 0x80);
+        i >>>= 7;
+        if ((i & ~0x7f) == 0) {
+            b[p + 3] = (byte) i;
+            pos = p + 4;
+            return 4;
+        }
+        b[p + 3] = (byte) (i | 0x80);
+        b[p + 4] = (byte) (i >>> 7);
+        pos = p + 5;
+        return 5;
+    }
+
+    @Override
+    public int writeVarInt(long j) throws IOException {
+        // Byte for byte the same as DataOutputStreamEx.writeVarInt(long)
+        int i = ((int) j) & ((1 << 28) - 1);
+        int i2 = ((int) (j >>> 28)) & 0x7f;
+        int i3 = (int) (j >>> 35);
+        ensure(5);
+        final byte[] b = buf;
+        int p = pos;
+        for (int n = 0; n < 3; n++) {
+            int lo = i & 0x7f;
+            i >>>= 7;
+            if (i == 0) {
+                b[p] = (byte) lo;
+                pos = p + 1;
+                return n + 1;
+            }
+            b[p++] = (byte) (lo | 0x80);
+        }
+        if (i2 == 0 && i3 == 0) {
+            b[p] = (byte) i;
+            pos = p + 1;
+            return 4;
+        }
+        b[p++] = (byte) (i | 0x80);
+        if (i3 == 0) {
+            b[p] = (byte) i2;
+            pos = p + 1;
+            return 5;
+        }
+        b[p] = (byte) (i2 | 0x80);
+        pos = p + 1;
+        return 5 + writeVarInt(i3);
+    }
+
+    @Override
+    public int writeVarIntZigZag(int src) throws IOException {
+        return writeVarInt((src << 1) ^ (src >> 31));
+    }
+
+    @Override
+    public int writeVarIntZigZag(long src) throws IOException {
+        return writeVarInt((src << 1) ^ (src >> 63));
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensure(1);
+        buf[pos++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len > buf.length - pos) {
+            drain();
+            if (len > buf.length) {
+                out.write(b, off, len);
+                return;
+            }
+        }
+        System.arraycopy(b, off, buf, pos, len);
+        pos += len;
+    }
+
+    @Override
+    public void writeBoolean(boolean v) throws IOException {
+        write(v ? 1 : 0);
+    }
+
+    @Override
+    public void writeByte(int v) throws IOException {
+        write(v);
+    }
+
+    @Override
+    public void writeShort(int v) throws IOException {
+        ensure(2);
+        final byte[] b = buf;
+        int p = pos;
+        b[p] = (byte) (v >>> 8);
+        b[p + 1] = (byte) v;
+        pos = p + 2;
+    }
+
+    @Override
+    public void writeChar(int v) throws IOException {
+        writeShort(v);
+    }
+
+    @Override
+    public void writeInt(int v) throws IOException {
+        ensure(4);
+        final byte[] b = buf;
+        int p = pos;
+        b[p] = (byte) (v >>> 24);
+        b[p + 1] = (byte) (v >>> 16);
+        b[p + 2] = (byte) (v >>> 8);
+        b[p + 3] = (byte) v;
+        pos = p + 4;
+    }
+
+    @Override
+    public void writeLong(long v) throws IOException {
+        ensure(8);
+        final byte[] b = buf;
+        int p = pos;
+        b[p] = (byte) (v >>> 56);
+        b[p + 1] = (byte) (v >>> 48);
+        b[p + 2] = (byte) (v >>> 40);
+        b[p + 3] = (byte) (v >>> 32);
+        b[p + 4] = (byte) (v >>> 24);
+        b[p + 5] = (byte) (v >>> 16);
+        b[p + 6] = (byte) (v >>> 8);
+        b[p + 7] = (byte) v;
+        pos = p + 8;
+    }
+
+    @Override
+    public void writeFloat(float v) throws IOException {
+        writeInt(Float.floatToIntBits(v));
+    }
+
+    @Override
+    public void writeDouble(double v) throws IOException {
+        writeLong(Double.doubleToLongBits(v));
+    }
+
+    @Override
+    public void writeBytes(String s) throws IOException {
+        for (int i = 0, length = s.length(); i < length; i++) {
+            write(s.charAt(i));
+        }
+    }
+
+    @Override
+    public void writeChars(String s) throws IOException {
+        for (int i = 0, length = s.length(); i < length; i++) {
+            writeShort(s.charAt(i));
+        }
+    }
+
+    @Override
+    public void writeUTF(String s) throws IOException {
+        drain();
+        out.writeUTF(s);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain();
+        out.flush();
+    }
+
+    /**
+     * Passes the pending bytes to the stream, the stream itself is owned by the caller and stays open.
+     */
+    @Override
+    public void close() throws IOException {
+        release();
+    }
+}
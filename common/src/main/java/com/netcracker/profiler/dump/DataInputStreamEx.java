@@ -6,12 +6,12 @@
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
-import java.util.zip.GZIPInputStream;
 
 public class DataInputStreamEx extends FilterInputStream implements IDataInputStreamEx {
     final static NumberFormat fileIndexFormat = NumberFormat.getIntegerInstance();
@@ -51,12 +51,54 @@ public String readString(int maxLength) throws IOException {
             throw new IOException("Expecting string of max length " + maxLength + ", got " + length
                     + " chars; position = " + position);
         }
+        byte[] b = stringBuffer(length * 2);
+        readFully(b, 0, length * 2);
         char[] x = new char[length];
-        for (int i = 0; i < length; i++)
-            x[i] = readChar();
+        for (int i = 0, j = 0; i < length; i++, j += 2)
+            x[i] = (char) ((b[j] << 8) | (b[j + 1] & 0xff));
         return new String(x);
     }
 
+    /**
+     * Reads a string written with {@link IDataOutputStreamEx#writeCompact(String)}.
+     *
+     * @return the string
+     * @throws IOException if the read fails
+     */
+    public String readCompactString() throws IOException {
+        return readCompactString(100 * 1024 * 1024);
+    }
+
+    public String readCompactString(int maxLength) throws IOException {
+        int header = readVarInt();
+        int length = header >>> 1;
+        if (length > maxLength) {
+            throw new IOException("Expecting string of max length " + maxLength + ", got " + length
+                    + " bytes; position = " + position);
+        }
+        byte[] b = stringBuffer(length);
+        readFully(b, 0, length);
+        return new String(b, 0, length,
+                (header & IDataOutputStreamEx.COMPACT_STRING_UTF8) != 0 ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1);
+    }
+
+    public void skipCompactString() throws IOException {
+        skipBytes(readVarInt() >>> 1);
+    }
+
+    private static final int MAX_STRING_BUFFER_SIZE = 64 * 1024;
+    private byte[] stringBuffer = new byte[256];
+
+    private byte[] stringBuffer(int size) {
+        if (size <= stringBuffer.length) {
+            return stringBuffer;
+        }
+        if (size > MAX_STRING_BUFFER_SIZE) {
+            return new byte[size];
+        }
+        return stringBuffer = new byte[Math.max(size, stringBuffer.length * 2)];
+    }
+
     public int readString(Writer out, int maxLength) throws IOException {
         int length = readVarInt();
         if (length < maxLength)
@@ -243,51 +285,26 @@ public void skipString() throws IOException {
     }
 
     public static InputStream openInputStream(File file) throws IOException {
-        boolean isGzip = file.getName().endsWith(".gz");
-        try {
-            return new BufferedInputStream(new GZIPInputStream(new FileInputStream(file.getAbsolutePath() + (isGzip ? "" : ".gz")), 131072), 131072);
-        } catch (FileNotFoundException e) {
-            /* fall through -- will try find .gz file later */
-        }
-        String fileName = file.getAbsolutePath();
-        if (isGzip)
-            fileName = fileName.substring(0, fileName.length() - 3);
-        return new BufferedInputStream(new FileInputStream(fileName), 131072);
+        return DumpCodec.openInputStream(file, 131072);
     }
 
     public Long contentLength(){
         return contentLength;
     }
 
-    private static File attemptGZExt(File file){
-        if(file.exists()) {
-            return file;
-        }
-
-        String name = file.getName();
-        if (name.endsWith(".gz")) {
-            name = name.substring(0, name.length() - 3);
-        } else {
-            name += ".gz";
-        }
-        File otherFile =new File(file.getParent(), name);
-        return otherFile.exists()? otherFile : file ;
-    }
-
     public static FilesEnumeration openDataInputStreams(final List<File> files) throws IOException {
         return openDataInputStreams(files, null);
     }
 
     public static FilesEnumeration openDataInputStreams(final List<File> files, Integer bufferSize) throws IOException {
-        List<File> correctedGzExt = new ArrayList<>(files.size());
+        List<File> existingFiles = new ArrayList<>(files.size());
         for(File file: files) {
-            file = attemptGZExt(file);
-            correctedGzExt.add(file);
+            existingFiles.add(DumpCodec.findFile(file));
         }
         if (bufferSize != null) {
-            return new FilesEnumeration(correctedGzExt.iterator(), bufferSize);
+            return new FilesEnumeration(existingFiles.iterator(), bufferSize);
         } else {
-            return new FilesEnumeration(correctedGzExt.iterator());
+            return new FilesEnumeration(existingFiles.iterator());
         }
     }
 
@@ -296,7 +313,7 @@ public static DataInputStreamEx openDataInputStream(File file) throws IOExceptio
     }
 
     public static DataInputStreamEx openDataInputStream(File file, Integer bufferSize) throws IOException {
-        file = attemptGZExt(file);
+        file = DumpCodec.findFile(file);
         if(!file.exists()) {
             log.warn("File " + file.getAbsolutePath() + " does not exist. Returning null output stream");
             return null;
@@ -341,7 +358,9 @@ public int compare(File file, File t1) {
     }
 
     public static synchronized DataInputStreamEx openDataInputStream(File root, String name, int index) throws IOException {
-        return openDataInputStream(new File(root, name + File.separatorChar + fileIndexFormat.format(index)));
+        // Files of the sharded dumper carry shard number in the upper bits of the index, see DumpShards
+        String folder = DumpShards.getStreamName(name, DumpShards.getShard(index));
+        return openDataInputStream(new File(root, folder + File.separatorChar + fileIndexFormat.format(DumpShards.getFileIndex(index))));
     }
 
     public static DataInputStreamEx reopenDataInputStream(DataInputStreamEx prev, File root, String name, int index) throws IOException {
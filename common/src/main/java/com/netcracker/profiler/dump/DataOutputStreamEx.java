@@ -3,6 +3,7 @@
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 
 public class DataOutputStreamEx extends DataOutputStream implements IDataOutputStreamEx {
     /**
@@ -25,15 +26,59 @@ public int getPrevStringOffset() {
         return prevStringOffset;
     }
 
+    /**
+     * Scratch buffer for string encoding, larger strings use a temporary array.
+     */
+    private static final int MAX_STRING_BUFFER_SIZE = 64 * 1024;
+    private byte[] stringBuffer = new byte[256];
+
     @Override
     public int write(String s) throws IOException {
         int offset = size();
         prevStringOffset = offset;
-        writeVarInt(s.length());
-        writeChars(s);
+        int length = s.length();
+        writeVarInt(length);
+        byte[] b = stringBuffer(length * 2);
+        for (int i = 0, j = 0; i < length; i++, j += 2) {
+            char c = s.charAt(i);
+            b[j] = (byte) (c >>> 8);
+            b[j + 1] = (byte) c;
+        }
+        write(b, 0, length * 2);
         return offset;
     }
 
+    @Override
+    public int writeCompact(String s) throws IOException {
+        int offset = size();
+        prevStringOffset = offset;
+        int length = s.length();
+        byte[] b = stringBuffer(length);
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c > 0xff) {
+                byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+                writeVarInt(utf8.length << 1 | COMPACT_STRING_UTF8);
+                write(utf8, 0, utf8.length);
+                return offset;
+            }
+            b[i] = (byte) c;
+        }
+        writeVarInt(length << 1);
+        write(b, 0, length);
+        return offset;
+    }
+
+    private byte[] stringBuffer(int size) {
+        if (size <= stringBuffer.length) {
+            return stringBuffer;
+        }
+        if (size > MAX_STRING_BUFFER_SIZE) {
+            return new byte[size];
+        }
+        return stringBuffer = new byte[Math.max(size, stringBuffer.length * 2)];
+    }
+
     @Override
     public int writeVarInt(int i) throws IOException {
         int b;
@@ -0,0 +1,202 @@
+package com.netcracker.profiler.dump;
+
+import io.airlift.compress.lz4.Lz4Compressor;
+import io.airlift.compress.lz4.Lz4Decompressor;
+import io.airlift.compress.zstd.ZstdCompressor;
+import io.airlift.compress.zstd.ZstdDecompressor;
+
+import java.io.*;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compression codec of dump files. The codec is identified by the file extension (e.g. {@code 000001.lz4}),
+ * so the readers do not need to know how the dumper was configured. LZ4 and zstd files additionally start
+ * with a codec-specific magic, see {@link BlockCompressedOutputStream}.
+ */
+public enum DumpCodec {
+    GZIP(".gz") {
+        @Override
+        public OutputStream wrapOutputStream(OutputStream out) throws IOException {
+            if (isGZIPOutputStreamSyncFlushSupported) {
+                return new GZIPOutputStream(out, GZIP_BUFFER_SIZE, true);
+            }
+            return new FlushableGZIPOutputStream(out, GZIP_BUFFER_SIZE);
+        }
+
+        @Override
+        public InputStream wrapInputStream(InputStream in, int bufferSize) throws IOException {
+            return new GZIPInputStream(in, bufferSize);
+        }
+    },
+    LZ4(".lz4") {
+        @Override
+        public OutputStream wrapOutputStream(OutputStream out) throws IOException {
+            return new BlockCompressedOutputStream(out, LZ4_MAGIC, new Lz4Compressor(), BLOCK_SIZE);
+        }
+
+        @Override
+        public InputStream wrapInputStream(InputStream in, int bufferSize) throws IOException {
+            return new BlockCompressedInputStream(in, LZ4_MAGIC, new Lz4Decompressor());
+        }
+    },
+    ZSTD(".zst") {
+        @Override
+        public OutputStream wrapOutputStream(OutputStream out) throws IOException {
+            return new BlockCompressedOutputStream(out, ZSTD_MAGIC, new ZstdCompressor(), BLOCK_SIZE);
+        }
+
+        @Override
+        public InputStream wrapInputStream(InputStream in, int bufferSize) throws IOException {
+            return new BlockCompressedInputStream(in, ZSTD_MAGIC, new ZstdDecompressor());
+        }
+    };
+
+    /**
+     * Matches {@code ProtocolConst.DATA_BUFFER_SIZE} the gzip files were always written with.
+     */
+    private static final int GZIP_BUFFER_SIZE = 1024;
+    /**
+     * Uncompressed size of LZ4 and zstd blocks. Smaller blocks compress worse, and a flush emits a partial block anyway.
+     */
+    public static final int BLOCK_SIZE = 64 * 1024;
+    public static final int LZ4_MAGIC = 0x4e43_4c34; // NCL4
+    public static final int ZSTD_MAGIC = 0x4e43_5a53; // NCZS
+
+    private static boolean isGZIPOutputStreamSyncFlushSupported; //it was implemented in java 7b97
+
+    static {
+        try {
+            GZIPOutputStream.class.getDeclaredConstructor(OutputStream.class, int.class, boolean.class);
+            isGZIPOutputStreamSyncFlushSupported = true;
+        } catch (Throwable t) {
+            isGZIPOutputStreamSyncFlushSupported = false;
+        }
+    }
+
+    private final String extension;
+
+    DumpCodec(String extension) {
+        this.extension = extension;
+    }
+
+    /**
+     * Returns the extension of the files written with the codec.
+     *
+     * @return file extension including the dot, e.g. {@code .gz}
+     */
+    public String getExtension() {
+        return extension;
+    }
+
+    /**
+     * Wraps the file stream into a compressing one. {@link OutputStream#flush()} of the returned stream makes
+     * all the written data readable.
+     *
+     * @param out file stream
+     * @return compressing stream
+     * @throws IOException if unable to write stream header
+     */
+    public abstract OutputStream wrapOutputStream(OutputStream out) throws IOException;
+
+    /**
+     * Wraps the file stream into a decompressing one.
+     *
+     * @param in         file stream
+     * @param bufferSize size of the input buffer, if the codec uses one
+     * @return decompressing stream
+     * @throws IOException if the stream header is missing or invalid
+     */
+    public abstract InputStream wrapInputStream(InputStream in, int bufferSize) throws IOException;
+
+    /**
+     * Parses the codec name as used in configuration properties.
+     *
+     * @param name codec name: {@code gzip}, {@code lz4} or {@code zstd} (case-insensitive)
+     * @return codec
+     * @throws IllegalArgumentException if the codec is unknown
+     */
+    public static DumpCodec forName(String name) {
+        String value = name.trim().toUpperCase(Locale.ROOT);
+        if ("GZ".equals(value)) {
+            return GZIP;
+        }
+        if ("ZST".equals(value)) {
+            return ZSTD;
+        }
+        return valueOf(value);
+    }
+
+    /**
+     * Detects the codec by file name.
+     *
+     * @param fileName file name, e.g. {@code 000001.gz}
+     * @return codec or null if the file is not compressed
+     */
+    public static DumpCodec forFileName(String fileName) {
+        for (DumpCodec codec : values()) {
+            if (fileName.endsWith(codec.extension)) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes codec extension from the file name.
+     *
+     * @param fileName file name, e.g. {@code 000001.zst}
+     * @return file name without the extension, e.g. {@code 000001}
+     */
+    public static String stripExtension(String fileName) {
+        DumpCodec codec = forFileName(fileName);
+        return codec == null ? fileName : fileName.substring(0, fileName.length() - codec.extension.length());
+    }
+
+    /**
+     * Locates the existing dump file regardless of its codec.
+     *
+     * @param file file with or without codec extension
+     * @return the given file if it exists, otherwise the existing file with the same name and another codec extension
+     * (or no extension), otherwise the given file
+     */
+    public static File findFile(File file) {
+        if (file.exists()) {
+            return file;
+        }
+        String name = stripExtension(file.getName());
+        for (DumpCodec codec : values()) {
+            File other = new File(file.getParent(), name + codec.extension);
+            if (other.exists()) {
+                return other;
+            }
+        }
+        File plain = new File(file.getParent(), name);
+        return plain.exists() ? plain : file;
+    }
+
+    /**
+     * Opens the dump file for reading, the codec is detected by the file extension.
+     *
+     * @param file       file with or without codec extension, see {@link #findFile(File)}
+     * @param bufferSize size of the read buffer
+     * @return buffered stream of uncompressed data
+     * @throws FileNotFoundException if the file does not exist
+     * @throws IOException           if the file is empty or its header is invalid
+     */
+    public static InputStream openInputStream(File file, int bufferSize) throws IOException {
+        File existing = findFile(file);
+        DumpCodec codec = forFileName(existing.getName());
+        InputStream in = new FileInputStream(existing);
+        if (codec == null) {
+            return new BufferedInputStream(in, bufferSize);
+        }
+        try {
+            return new BufferedInputStream(codec.wrapInputStream(in, bufferSize), bufferSize);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+}
@@ -166,7 +166,7 @@ private List<DumpFile> fillAndSortCreatedFiles(Set<DumpFile> createdFiles) {
         List<DumpFile> sqlFiles = new ArrayList<>(createdFiles.size());
 
         for (DumpFile dumpFile : createdFiles) {
-            boolean isSql = "sql".equals(dumpFile.getParentDirName());
+            boolean isSql = "sql".equals(DumpShards.getBaseStreamName(dumpFile.getParentDirName()));
             File file = new File(dumpFile.getPath());
             DumpFile newDumpFile = new DumpFile(file.getPath(), file.length(), file.lastModified());
             if (isSql) {
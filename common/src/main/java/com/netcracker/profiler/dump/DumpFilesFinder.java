@@ -40,7 +40,7 @@ private void findInFolder(File root, Queue<DumpFile> queueToFill, int level) {
             ArrayList<File> sqlFiles = new ArrayList<File>();
 
             for(File child : root.listFiles()) {
-                if("sql".equals(child.getName())) {
+                if("sql".equals(DumpShards.getBaseStreamName(child.getName()))) {
                     addFiles(sqlFiles, child);
                 } else {
                     addFiles(files, child);
@@ -0,0 +1,95 @@
+package com.netcracker.profiler.dump;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Layout of the dump written by several dumper shards.
+ * <p>
+ * Shard 0 writes to the regular folders ({@code trace}, {@code calls}, {@code xml}, {@code sql}), so a dump of
+ * a non-sharded dumper is just a dump with a single shard. Shard N writes to the folders with {@code @N} suffix,
+ * e.g. {@code trace@2} or {@code calls[500ms-3s]@2}.
+ * <p>
+ * File indices that refer to the files of another stream (trace file index in calls, clob file index in trace)
+ * carry the shard number in the upper bits, so the readers locate the files without extra metadata.
+ */
+public class DumpShards {
+    public static final char SHARD_SEPARATOR = '@';
+    public static final int SHARD_SHIFT = 24;
+    public static final int FILE_INDEX_MASK = (1 << SHARD_SHIFT) - 1;
+    public static final int MAX_SHARDS = 1 << (31 - SHARD_SHIFT);
+
+    public static int encodeFileIndex(int shard, int fileIndex) {
+        return shard << SHARD_SHIFT | fileIndex;
+    }
+
+    public static int getShard(int encodedFileIndex) {
+        return encodedFileIndex >>> SHARD_SHIFT;
+    }
+
+    public static int getFileIndex(int encodedFileIndex) {
+        return encodedFileIndex & FILE_INDEX_MASK;
+    }
+
+    /**
+     * Returns the name of the folder the given shard writes the stream to.
+     *
+     * @param streamName name of the stream, e.g. {@code trace}
+     * @param shard      shard number
+     * @return folder name, e.g. {@code trace} for shard 0 and {@code trace@1} for shard 1
+     */
+    public static String getStreamName(String streamName, int shard) {
+        return shard == 0 ? streamName : streamName + SHARD_SEPARATOR + shard;
+    }
+
+    /**
+     * Strips shard suffix from the folder name.
+     *
+     * @param folderName folder name, e.g. {@code sql@3}
+     * @return stream name, e.g. {@code sql}
+     */
+    public static String getBaseStreamName(String folderName) {
+        int pos = folderName.lastIndexOf(SHARD_SEPARATOR);
+        if (pos == -1 || pos == folderName.length() - 1) {
+            return folderName;
+        }
+        for (int i = pos + 1; i < folderName.length(); i++) {
+            if (!Character.isDigit(folderName.charAt(i))) {
+                return folderName;
+            }
+        }
+        return folderName.substring(0, pos);
+    }
+
+    /**
+     * Lists existing folders of the stream for all the shards. Shard 0 comes first.
+     *
+     * @param root       dump root
+     * @param streamName name of the stream, e.g. {@code calls}
+     * @return existing folders of the stream
+     */
+    public static List<File> findStreamFolders(File root, final String streamName) {
+        File[] files = root.listFiles(new FileFilter() {
+            public boolean accept(File pathname) {
+                return pathname.isDirectory() && streamName.equals(getBaseStreamName(pathname.getName()));
+            }
+        });
+        if (files == null) {
+            return new ArrayList<File>();
+        }
+        Arrays.sort(files);
+        List<File> result = new ArrayList<File>(files.length);
+        for (File file : files) {
+            // Put shard 0 first, so single-shard dumps are read exactly as before
+            if (file.getName().equals(streamName)) {
+                result.add(0, file);
+            } else {
+                result.add(file);
+            }
+        }
+        return result;
+    }
+}
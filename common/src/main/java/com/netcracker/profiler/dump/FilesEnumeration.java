@@ -3,7 +3,6 @@
 import java.io.*;
 import java.util.Enumeration;
 import java.util.Iterator;
-import java.util.zip.GZIPInputStream;
 
 public class FilesEnumeration implements Enumeration<InputStream> {
     static final int DEFAULT_BUFFER_SIZE = 131072;
@@ -42,17 +41,7 @@ public long currentFileLenght(){
     }
 
     private InputStream openInputStream(File file) throws IOException {
-        boolean isGzip = file.getName().endsWith(".gz");
-        try {
-            return new BufferedInputStream(new GZIPInputStream(new FileInputStream(file.getAbsolutePath() + (isGzip ? "" : ".gz")), bufferSize), bufferSize);
-        } catch (FileNotFoundException e) {
-            /* fall through -- will try find .gz file later */
-        }
-        String fileName = file.getAbsolutePath();
-        if (isGzip) {
-            fileName = fileName.substring(0, fileName.length() - 3);
-        }
-        return new BufferedInputStream(new FileInputStream(fileName), bufferSize);
+        return DumpCodec.openInputStream(file, bufferSize);
     }
 
 }
@@ -18,4 +18,8 @@ public interface IDataInputStreamEx {
     String readString() throws IOException;
 
     void skipString() throws IOException;
+
+    String readCompactString() throws IOException;
+
+    void skipCompactString() throws IOException;
 }
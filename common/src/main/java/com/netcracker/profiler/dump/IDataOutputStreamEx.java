@@ -8,8 +8,31 @@
 public interface IDataOutputStreamEx extends Closeable, Flushable, DataOutput {
     int getPrevStringOffset();
 
+    /**
+     * Flag of {@link #writeCompact(String)} header that marks UTF-8 encoded strings, Latin-1 strings have it cleared.
+     */
+    int COMPACT_STRING_UTF8 = 1;
+
+    /**
+     * Writes the string as a varint length followed by two bytes per char.
+     *
+     * @param s string to write
+     * @return offset of the string in the stream
+     * @throws IOException if the write fails
+     */
     int write(String s) throws IOException;
 
+    /**
+     * Writes the string as a single byte per char when all the chars are Latin-1, otherwise as UTF-8.
+     * The header is a varint of {@code byteLength << 1 | flag}, see {@link #COMPACT_STRING_UTF8}.
+     * Unpaired surrogates are replaced with {@code ?} in UTF-8 mode.
+     *
+     * @param s string to write
+     * @return offset of the string in the stream
+     * @throws IOException if the write fails
+     */
+    int writeCompact(String s) throws IOException;
+
     int writeVarInt(int i) throws IOException;
 
     int writeVarInt(long j) throws IOException;
@@ -0,0 +1,54 @@
+package com.netcracker.profiler.dump;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Holds the encoded trace of a call in memory until the dumper decides whether the call is kept.
+ * Offsets ({@link #size()}) are relative to the start of the held trace.
+ */
+public class PendingTrace extends DataOutputStreamEx {
+    private final Buffer buffer;
+
+    public PendingTrace() {
+        this(new Buffer());
+    }
+
+    private PendingTrace(Buffer buffer) {
+        super(buffer);
+        this.buffer = buffer;
+    }
+
+    /**
+     * Appends the held trace to the stream.
+     *
+     * @param out stream to write to
+     * @throws IOException if the write fails
+     */
+    public void writeTo(IDataOutputStreamEx out) throws IOException {
+        out.write(buffer.array(), 0, buffer.size());
+    }
+
+    /**
+     * Drops the held trace, the memory is kept for the next call.
+     */
+    public void reset() {
+        buffer.reset();
+        written = 0;
+    }
+
+    /**
+     * Returns the amount of memory the held trace occupies.
+     *
+     * @return capacity of the buffer in bytes
+     */
+    public int capacity() {
+        return buffer.array().length;
+    }
+
+    private static class Buffer extends ByteArrayOutputStream {
+        byte[] array() {
+            return buf;
+        }
+    }
+}
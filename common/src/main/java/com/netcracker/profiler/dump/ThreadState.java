@@ -21,6 +21,19 @@ public class ThreadState {
 
     public TIntObjectHashMap<THashSet<String>> params = new TIntObjectHashMap<THashSet<String>>();
 
+    /**
+     * Trace of the current call that is held until the call completes (tail sampling), null until the first such call
+     */
+    public PendingTrace pendingTrace;
+    /**
+     * true when the trace of the current call is written to {@link #pendingTrace} rather than to the trace stream
+     */
+    public boolean tracePending;
+    /**
+     * true when the current call is marked red or has logged an exception, so it is always kept
+     */
+    public boolean important;
+
     public void saveThreadCounters(CallInfo callInfo) {
         if (callInfo == null) return;
         this.callInfo = callInfo.next; // this will be not null
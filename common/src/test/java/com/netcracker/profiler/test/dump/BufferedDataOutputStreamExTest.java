@@ -0,0 +1,84 @@
+package com.netcracker.profiler.test.dump;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.netcracker.profiler.dump.BufferedDataOutputStreamEx;
+import com.netcracker.profiler.dump.DataOutputStreamEx;
+import com.netcracker.profiler.dump.IDataOutputStreamEx;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+public class BufferedDataOutputStreamExTest {
+    @Test
+    public void sameBytesAsDataOutputStream() throws IOException {
+        ByteArrayOutputStream expectedBytes = new ByteArrayOutputStream();
+        DataOutputStreamEx expected = new DataOutputStreamEx(expectedBytes);
+        ByteArrayOutputStream actualBytes = new ByteArrayOutputStream();
+        DataOutputStreamEx target = new DataOutputStreamEx(actualBytes);
+        // Small buffer, so the values cross the buffer boundary
+        BufferedDataOutputStreamEx actual = new BufferedDataOutputStreamEx(100);
+
+        Random random = new Random(42);
+        for (int chunk = 0; chunk < 50; chunk++) {
+            actual.bind(target);
+            for (int i = 0; i < 200; i++) {
+                assertEquals(expected.size(), actual.size(), "Offset should account pending bytes");
+                writeRandom(random.nextLong(), expected, actual);
+            }
+            actual.release();
+        }
+        assertArrayEquals(expectedBytes.toByteArray(), actualBytes.toByteArray());
+    }
+
+    private static void writeRandom(long seed, IDataOutputStreamEx expected, IDataOutputStreamEx actual) throws IOException {
+        Random random = new Random(seed);
+        long value = random.nextLong() >> random.nextInt(64);
+        switch (random.nextInt(8)) {
+            case 0:
+                expected.write((int) value);
+                actual.write((int) value);
+                break;
+            case 1:
+                assertEquals(expected.writeVarInt((int) value), actual.writeVarInt((int) value));
+                break;
+            case 2:
+                assertEquals(expected.writeVarInt(value), actual.writeVarInt(value));
+                break;
+            case 3:
+                assertEquals(expected.writeVarIntZigZag(value), actual.writeVarIntZigZag(value));
+                break;
+            case 4:
+                expected.writeLong(value);
+                actual.writeLong(value);
+                break;
+            case 5:
+                String s = randomString(random);
+                assertEquals(expected.write(s), actual.write(s));
+                break;
+            case 6:
+                s = randomString(random);
+                assertEquals(expected.writeCompact(s), actual.writeCompact(s));
+                break;
+            default:
+                byte[] bytes = new byte[random.nextInt(300)];
+                random.nextBytes(bytes);
+                expected.write(bytes, 0, bytes.length);
+                actual.write(bytes, 0, bytes.length);
+        }
+    }
+
+    private static String randomString(Random random) {
+        int length = random.nextInt(random.nextBoolean() ? 10 : 500);
+        char max = random.nextBoolean() ? 'ÿ' : '￿';
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append((char) (' ' + random.nextInt(max - ' ')));
+        }
+        return sb.toString();
+    }
+}
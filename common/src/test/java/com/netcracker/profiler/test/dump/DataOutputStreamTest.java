@@ -111,6 +111,58 @@ public void zigzagTestInt() throws IOException {
         assertEquals(0, dis.available(), "Buffer contains unread bytes");
     }
 
+    @Test
+    public void stringRoundTrip() throws IOException {
+        String[] values = {"", "select * from dual", "caf\u00e9 \u00ff", "\u043f\u0440\u0438\u0432\u0435\u0442 \ud83d\ude00", longString(100000)};
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        @SuppressWarnings("resource")
+        DataOutputStreamEx dos = new DataOutputStreamEx(baos);
+        for (String value : values) {
+            dos.write(value);
+            dos.writeCompact(value);
+        }
+        dos.writeVarInt(42);
+
+        @SuppressWarnings("resource")
+        DataInputStreamEx dis = new DataInputStreamEx(new ByteArrayInputStream(baos.toByteArray()));
+        for (String value : values) {
+            assertEquals(value, dis.readString());
+            assertEquals(value, dis.readCompactString());
+        }
+        assertEquals(42, dis.readVarInt());
+
+        dis = new DataInputStreamEx(new ByteArrayInputStream(baos.toByteArray()));
+        for (int i = 0; i < values.length; i++) {
+            dis.skipString();
+            dis.skipCompactString();
+        }
+        assertEquals(42, dis.readVarInt());
+    }
+
+    @Test
+    public void compactStringSize() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        @SuppressWarnings("resource")
+        DataOutputStreamEx dos = new DataOutputStreamEx(baos);
+        assertEquals(0, dos.writeCompact("caf\u00e9"));
+        // Latin-1: header (4 << 1) and a byte per char
+        assertArrayEquals(new byte[]{8, 'c', 'a', 'f', (byte) 0xe9}, baos.toByteArray());
+
+        baos.reset();
+        dos = new DataOutputStreamEx(baos);
+        dos.writeCompact("\u20ac");
+        // UTF-8: header (3 << 1 | 1) and the encoded bytes
+        assertArrayEquals(new byte[]{7, (byte) 0xe2, (byte) 0x82, (byte) 0xac}, baos.toByteArray());
+    }
+
+    private static String longString(int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append((char) ('a' + i % 26));
+        }
+        return sb.toString();
+    }
+
     @Test
     public void readFully() throws IOException {
         final int N = 30;
@@ -0,0 +1,103 @@
+package com.netcracker.profiler.test.dump;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.netcracker.profiler.dump.DataInputStreamEx;
+import com.netcracker.profiler.dump.DumpCodec;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Random;
+
+public class DumpCodecTest {
+    @ParameterizedTest
+    @EnumSource(DumpCodec.class)
+    public void roundTrip(DumpCodec codec, @TempDir File root) throws IOException {
+        byte[] data = sampleData(3 * DumpCodec.BLOCK_SIZE + 123);
+        File file = new File(root, "trace" + File.separatorChar + "000001" + codec.getExtension());
+        file.getParentFile().mkdirs();
+        try (OutputStream out = codec.wrapOutputStream(new FileOutputStream(file))) {
+            out.write(data, 0, 1000);
+            out.flush();
+            out.write(data, 1000, data.length - 1000);
+        }
+
+        try (DataInputStreamEx in = DataInputStreamEx.openDataInputStream(root, "trace", 1)) {
+            byte[] actual = new byte[data.length];
+            in.readFully(actual);
+            assertArrayEquals(data, actual);
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = DumpCodec.class, names = {"LZ4", "ZSTD"})
+    public void flushedDataIsReadableWhileFileIsWritten(DumpCodec codec) throws IOException {
+        byte[] data = sampleData(10000);
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        OutputStream out = codec.wrapOutputStream(file);
+        out.write(data);
+        out.flush();
+        int flushedSize = file.size();
+        out.write(data);
+
+        DataInputStream in = new DataInputStream(codec.wrapInputStream(new ByteArrayInputStream(file.toByteArray()), 1024));
+        byte[] actual = new byte[data.length];
+        in.readFully(actual);
+        assertArrayEquals(data, actual);
+        assertEquals(-1, in.read());
+
+        // A block that is only partially written looks like the end of the stream that is still being written
+        out.flush();
+        byte[] truncated = Arrays.copyOf(file.toByteArray(), flushedSize + 10);
+        DataInputStream partial = new DataInputStream(codec.wrapInputStream(new ByteArrayInputStream(truncated), 1024));
+        partial.readFully(actual);
+        assertArrayEquals(data, actual);
+        assertThrows(EOFException.class, partial::readLong);
+    }
+
+    @Test
+    public void wrongHeaderIsRejected() {
+        byte[] gzip = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, 0};
+        assertThrows(IOException.class, () -> DumpCodec.ZSTD.wrapInputStream(new ByteArrayInputStream(gzip), 1024));
+    }
+
+    @Test
+    public void codecIsDetectedByFileName() {
+        assertEquals(DumpCodec.GZIP, DumpCodec.forFileName("000001.gz"));
+        assertEquals(DumpCodec.LZ4, DumpCodec.forFileName("000001.lz4"));
+        assertEquals(DumpCodec.ZSTD, DumpCodec.forFileName("000001.zst"));
+        assertNull(DumpCodec.forFileName("000001"));
+        assertEquals("000001", DumpCodec.stripExtension("000001.zst"));
+        assertEquals(DumpCodec.ZSTD, DumpCodec.forName("zstd"));
+        assertEquals(DumpCodec.GZIP, DumpCodec.forName(" GZip "));
+        assertThrows(IllegalArgumentException.class, () -> DumpCodec.forName("brotli"));
+    }
+
+    @Test
+    public void findFileIgnoresExtension(@TempDir File root) throws IOException {
+        File lz4 = new File(root, "000002.lz4");
+        lz4.createNewFile();
+        assertEquals(lz4, DumpCodec.findFile(new File(root, "000002")));
+        assertEquals(lz4, DumpCodec.findFile(new File(root, "000002.gz")));
+        assertEquals(new File(root, "000003"), DumpCodec.findFile(new File(root, "000003")));
+    }
+
+    private static byte[] sampleData(int size) {
+        // Compressible, yet not trivial: repeated records with varying fields, plus some noise
+        Random random = new Random(42);
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i % 64 < 48 ? i % 13 : random.nextInt());
+        }
+        return data;
+    }
+}
@@ -0,0 +1,46 @@
+package com.netcracker.profiler.test.dump;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.netcracker.profiler.dump.DumpShards;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+public class DumpShardsTest {
+    @Test
+    public void shardZeroKeepsRegularLayout() {
+        assertEquals("trace", DumpShards.getStreamName("trace", 0));
+        assertEquals(42, DumpShards.encodeFileIndex(0, 42));
+    }
+
+    @Test
+    public void fileIndexCarriesShard() {
+        int index = DumpShards.encodeFileIndex(3, 1234);
+        assertEquals(3, DumpShards.getShard(index));
+        assertEquals(1234, DumpShards.getFileIndex(index));
+        assertEquals("sql@3", DumpShards.getStreamName("sql", DumpShards.getShard(index)));
+    }
+
+    @Test
+    public void baseStreamName() {
+        assertEquals("sql", DumpShards.getBaseStreamName("sql@12"));
+        assertEquals("calls[500ms-3s]", DumpShards.getBaseStreamName("calls[500ms-3s]@1"));
+        assertEquals("calls", DumpShards.getBaseStreamName("calls"));
+        assertEquals("calls@", DumpShards.getBaseStreamName("calls@"));
+        assertEquals("a@b", DumpShards.getBaseStreamName("a@b"));
+    }
+
+    @Test
+    public void findStreamFolders(@TempDir File root) {
+        for (String name : Arrays.asList("calls@2", "calls", "calls@1", "calls[100ms-500ms]", "trace")) {
+            new File(root, name).mkdir();
+        }
+        List<File> folders = DumpShards.findStreamFolders(root, "calls");
+        assertEquals(Arrays.asList(new File(root, "calls"), new File(root, "calls@1"), new File(root, "calls@2")), folders);
+    }
+}
@@ -13,5 +13,8 @@
     implementation("net.sf.trove4j:trove4j")
     implementation("org.apache.httpcomponents:httpcore")
     implementation("org.hdrhistogram:HdrHistogram")
+    implementation("io.airlift:aircompressor")
+    testImplementation(projects.mockCollector)
+    testImplementation("com.google.inject:guice")
     testImplementation("org.mockito:mockito-core")
 }
@@ -0,0 +1,324 @@
+package com.netcracker.profiler;
+
+import com.netcracker.profiler.agent.CallInfo;
+import com.netcracker.profiler.agent.LocalState;
+import com.netcracker.profiler.agent.Profiler;
+import com.netcracker.profiler.dump.ThreadState;
+
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.set.hash.THashSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Post-processes finished calls (title formatting, metrics, export) on a dedicated thread, so the cost of
+ * title formatters, metrics filters and JSON export does not slow down trace encoding.
+ * <p>
+ * Each shard gets a single-producer ring of preallocated {@link CompletedCall} slots. The shard captures
+ * a call into a slot: the scalar fields of {@link ThreadState} are copied and the parameters map is swapped
+ * with the (empty) map of the slot, so capturing does not allocate. {@link CallInfo} is handed over as is:
+ * the worker thread returns it to the owner's pool once the call is processed. The worker recycles under the stage
+ * lock, so the pool never gets concurrent offers as {@link com.netcracker.profiler.agent.CallInfoPool} requires.
+ * <p>
+ * When the ring is full, the call is processed on the shard thread and the {@link CallInfo} is left to GC.
+ */
+class CallCompletionStage {
+    private static final Logger log = LoggerFactory.getLogger(CallCompletionStage.class);
+
+    interface Handler {
+        /**
+         * Processes the call. Invoked with the stage lock held, so the handler does not need to be thread-safe.
+         *
+         * @param call finished call, the object is reused after the method returns
+         */
+        void onCallCompleted(CompletedCall call);
+    }
+
+    /**
+     * Immutable (while it is queued) snapshot of a finished call.
+     */
+    static class CompletedCall {
+        final ThreadState threadState = new ThreadState();
+        LocalState owner;
+        CallInfo callInfo;
+        String threadName;
+        long duration;
+        long startTimestamp;
+        int suspension;
+        /**
+         * false if the call is too short to be reported, the slot just returns {@link #callInfo} to the pool
+         */
+        boolean report;
+
+        void capture(LocalState owner, ThreadState thread, CallInfo callInfo, long duration,
+                     long startTimestamp, int suspension, boolean report) {
+            this.owner = owner;
+            this.callInfo = callInfo;
+            this.threadName = owner.thread == null ? null : owner.thread.getName();
+            this.duration = duration;
+            this.startTimestamp = startTimestamp;
+            this.suspension = suspension;
+            this.report = report;
+            ThreadState ts = threadState;
+            ts.callInfo = callInfo;
+            ts.time = thread.time;
+            ts.calls = thread.calls;
+            ts.traceFileIndex = thread.traceFileIndex;
+            ts.bufferOffset = thread.bufferOffset;
+            ts.recordIndex = thread.recordIndex;
+            ts.method = thread.method;
+            ts.prevCpuTime = thread.prevCpuTime;
+            ts.prevWaitTime = thread.prevWaitTime;
+            ts.prevMemoryUsed = thread.prevMemoryUsed;
+            ts.prevFileRead = thread.prevFileRead;
+            ts.prevFileWritten = thread.prevFileWritten;
+            ts.prevNetRead = thread.prevNetRead;
+            ts.prevNetWritten = thread.prevNetWritten;
+            ts.prevTransactions = thread.prevTransactions;
+            if (report) {
+                TIntObjectHashMap<THashSet<String>> params = thread.params;
+                thread.params = ts.params;
+                ts.params = params;
+            }
+        }
+
+        void clear() {
+            threadState.params.clear();
+            threadState.callInfo = null;
+            owner = null;
+            callInfo = null;
+            threadName = null;
+        }
+    }
+
+    static class Ring {
+        private final CompletedCall[] slots;
+        private final int mask;
+        // Next slot to process, written by the worker thread only
+        private volatile long head;
+        // Next slot to fill, written by the shard only
+        private volatile long tail;
+
+        Ring(int capacity) {
+            int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+            slots = new CompletedCall[size];
+            mask = size - 1;
+        }
+
+        /**
+         * Returns the slot to fill, or null if the ring is full. The slot is queued with {@link #publish()}.
+         */
+        CompletedCall claim() {
+            long t = tail;
+            if (t - head >= slots.length) {
+                return null;
+            }
+            CompletedCall call = slots[(int) t & mask];
+            if (call == null) {
+                slots[(int) t & mask] = call = new CompletedCall();
+            }
+            return call;
+        }
+
+        void publish() {
+            // volatile write publishes the slot contents to the worker thread
+            tail = tail + 1;
+        }
+
+        CompletedCall peek() {
+            long h = head;
+            return h == tail ? null : slots[(int) h & mask];
+        }
+
+        void release() {
+            head = head + 1;
+        }
+
+        int size() {
+            return (int) (tail - head);
+        }
+    }
+
+    private final Handler handler;
+    private final Ring[] rings;
+    private final AtomicLong processTime = new AtomicLong();
+    private final AtomicLong inlineCalls = new AtomicLong();
+
+    private volatile Thread worker;
+    private volatile boolean idle;
+
+    /**
+     * @param shards    number of dumper shards, each shard gets its own ring
+     * @param queueSize number of calls each shard might have in its ring
+     * @param handler   post-processing of a call
+     */
+    CallCompletionStage(int shards, int queueSize, Handler handler) {
+        this.handler = handler;
+        this.rings = new Ring[shards];
+        for (int i = 0; i < shards; i++) {
+            rings[i] = new Ring(queueSize);
+        }
+    }
+
+    Ring ring(int shard) {
+        return rings[shard];
+    }
+
+    /**
+     * Queues the slot claimed from the ring of the shard.
+     */
+    void publish(Ring ring) {
+        ring.publish();
+        Thread worker = this.worker;
+        if (worker == null) {
+            worker = start();
+        }
+        if (idle) {
+            LockSupport.unpark(worker);
+        }
+    }
+
+    /**
+     * Processes the call on the current thread, it is used when the ring of the shard is full.
+     * The {@link CallInfo} is not recycled, as the worker might be offering to the same pool at this moment.
+     */
+    void processInline(CompletedCall call) {
+        inlineCalls.incrementAndGet();
+        if (call.report) {
+            process(call);
+        }
+        call.callInfo.clean();
+    }
+
+    private synchronized void process(CompletedCall call) {
+        long start = System.nanoTime();
+        try {
+            handler.onCallCompleted(call);
+        } catch (Throwable t) {
+            log.error("Unable to process completed call", t);
+        }
+        processTime.addAndGet(System.nanoTime() - start);
+    }
+
+    /**
+     * Processes the oldest call of the ring. The lock makes it safe for a stopping worker to drain the rings
+     * while the next one is already started.
+     *
+     * @return false if the ring is empty
+     */
+    private synchronized boolean processNext(Ring ring) {
+        CompletedCall call = ring.peek();
+        if (call == null) {
+            return false;
+        }
+        if (call.report) {
+            process(call);
+        }
+        CallInfo callInfo = call.callInfo;
+        callInfo.clean(); // stop nepotism
+        call.owner.recycleCallInfo(callInfo);
+        call.clear();
+        ring.release();
+        return true;
+    }
+
+    private synchronized Thread start() {
+        Thread worker = this.worker;
+        if (worker != null) {
+            return worker;
+        }
+        worker = new Thread(new Runnable() {
+            public void run() {
+                // The thread must not be profiled, otherwise it would feed the Dumper with its own calls
+                Profiler.markSystem();
+                processLoop();
+            }
+        }, "Profiler call completion");
+        worker.setDaemon(true);
+        this.worker = worker;
+        worker.start();
+        return worker;
+    }
+
+    /**
+     * Stops the worker thread once it processes the calls queued so far.
+     * The stage restarts the thread on the next {@link #publish(Ring)}.
+     */
+    void shutdown() {
+        Thread worker;
+        synchronized (this) {
+            worker = this.worker;
+            this.worker = null;
+        }
+        if (worker != null) {
+            LockSupport.unpark(worker);
+        }
+    }
+
+    private void processLoop() {
+        while (true) {
+            boolean processed = false;
+            for (Ring ring : rings) {
+                while (processNext(ring)) {
+                    processed = true;
+                }
+            }
+            if (processed) {
+                continue;
+            }
+            if (worker != Thread.currentThread()) {
+                return;
+            }
+            idle = true;
+            // Re-check after idle is visible, so a concurrent publish either sees idle or its call is found here
+            if (!hasQueuedCalls()) {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100));
+            }
+            idle = false;
+        }
+    }
+
+    private boolean hasQueuedCalls() {
+        for (Ring ring : rings) {
+            if (ring.size() > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of calls waiting for post-processing.
+     *
+     * @return the number of queued calls
+     */
+    int getQueueDepth() {
+        int depth = 0;
+        for (Ring ring : rings) {
+            depth += ring.size();
+        }
+        return depth;
+    }
+
+    /**
+     * Returns the time spent on title formatting, metrics and export of the calls.
+     *
+     * @return processing time in nanoseconds
+     */
+    long getProcessTime() {
+        return processTime.get();
+    }
+
+    /**
+     * Returns the number of calls processed on a shard thread because the ring was full.
+     *
+     * @return number of calls
+     */
+    long getInlineCalls() {
+        return inlineCalls.get();
+    }
+}
@@ -7,5 +7,13 @@ public class CallsState {
     public int threadIdsCounter;
     public TLimitedLongIntHashMap threadIdsCache = new TLimitedLongIntHashMap(Integer.getInteger(Dumper.class.getName() + ".THREAD_IDS_CACHE_SIZE", 500));
     int callsTimer;
+    /**
+     * Strings are written with {@link com.netcracker.profiler.dump.IDataOutputStreamEx#writeCompact(String)},
+     * calls format 5 and newer.
+     */
+    final boolean compactStrings;
 
+    public CallsState(boolean compactStrings) {
+        this.compactStrings = compactStrings;
+    }
 }
@@ -3,14 +3,20 @@
 import static com.netcracker.profiler.agent.PropertyFacadeBoot.getPropertyOrEnvVariable;
 import static com.netcracker.profiler.cloud.transport.ProtocolConst.PROTOCOL_VERSION_V2;
 import static com.netcracker.profiler.cloud.transport.ProtocolConst.PROTOCOL_VERSION_V3;
+import static com.netcracker.profiler.cloud.transport.ProtocolConst.PROTOCOL_VERSION_V4;
 
 import com.netcracker.profiler.agent.*;
+import com.netcracker.profiler.client.AsyncCollectorClient;
 import com.netcracker.profiler.client.CollectorClientFactory;
 import com.netcracker.profiler.cloud.transport.ProfilerProtocolBlacklistedException;
 import com.netcracker.profiler.cloud.transport.ProtocolConst;
+import com.netcracker.profiler.dump.BufferedDataOutputStreamEx;
 import com.netcracker.profiler.dump.DataOutputStreamEx;
+import com.netcracker.profiler.dump.DumpCodec;
 import com.netcracker.profiler.dump.DumpFileManager;
+import com.netcracker.profiler.dump.DumpShards;
 import com.netcracker.profiler.dump.IDataOutputStreamEx;
+import com.netcracker.profiler.dump.PendingTrace;
 import com.netcracker.profiler.dump.ThreadState;
 import com.netcracker.profiler.formatters.title.ProfilerTitle;
 import com.netcracker.profiler.formatters.title.TitleFormatterFacade;
@@ -21,6 +27,7 @@
 import com.netcracker.profiler.sax.builders.InMemorySuspendLogBuilder;
 import com.netcracker.profiler.sax.builders.InMemorySuspendLogBuilderStub;
 import com.netcracker.profiler.stream.CompressedLocalAndRemoteOutputStream;
+import com.netcracker.profiler.stream.CompressorStage;
 import com.netcracker.profiler.stream.ICompressedLocalAndRemoteOutputStream;
 import com.netcracker.profiler.util.DumperCallsExporter;
 import com.netcracker.profiler.util.MetricsCollector;
@@ -28,7 +35,6 @@
 import com.netcracker.profiler.util.StringUtils;
 import com.netcracker.profiler.util.ThrowableHelper;
 import com.netcracker.profiler.util.VariableFinder;
-import com.netcracker.profiler.util.cache.TLimitedLongLongHashMap;
 
 import gnu.trove.iterator.TIntObjectIterator;
 import gnu.trove.map.hash.TIntIntHashMap;
@@ -46,7 +52,13 @@
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 public class Dumper implements IDumper, DumperConstants {
@@ -57,6 +69,41 @@ public class Dumper implements IDumper, DumperConstants {
     private final static int STREAM_FLUSH_INTERVAL = Integer.getInteger(Dumper.class.getName() + ".STREAM_FLUSH_INTERVAL", 5);
     private final static int BUFFER_SCALE_INTERVAL = Integer.getInteger(Dumper.class.getName() + ".BUFFER_SCALE_INTERVAL", 5);
     private final static int DUMP_CORRUPTED_CALLS_INTERVAL = Integer.getInteger(Dumper.class.getName() + ".DUMP_CORRUPTED_CALLS_INTERVAL", 60);
+    /**
+     * Number of threads that encode trace buffers. Each shard writes its own trace, calls, xml and sql streams
+     * (see {@link DumpShards}). Defaults to 1, and sharding is not supported for remote dump.
+     */
+    private final static int SHARDS = Integer.getInteger(Dumper.class.getName() + ".SHARDS", 1);
+    /**
+     * Number of threads that compress local dump files, so the Dumper thread only encodes the data.
+     * 0 means the files are compressed on the Dumper thread. Defaults to 1.
+     */
+    private final static int COMPRESSOR_THREADS = Integer.getInteger(Dumper.class.getName() + ".COMPRESSOR_THREADS", 1);
+    private final static int COMPRESSOR_QUEUE_SIZE = Integer.getInteger(Dumper.class.getName() + ".COMPRESSOR_QUEUE_SIZE", 64);
+    private final static int COMPRESSOR_CHUNK_SIZE = Integer.getInteger(Dumper.class.getName() + ".COMPRESSOR_CHUNK_SIZE", 64 * 1024);
+    /**
+     * Number of finished calls each shard might queue for title formatting, metrics and export
+     * (see {@link CallCompletionStage}). 0 means the calls are post-processed inline during encoding. Defaults to 4096.
+     */
+    private final static int CALL_COMPLETION_QUEUE_SIZE = Integer.getInteger(Dumper.class.getName() + ".CALL_COMPLETION_QUEUE_SIZE", 4096);
+    /**
+     * Codec of local dump files: {@code gzip}, {@code lz4} or {@code zstd}. The codec of a particular stream can be
+     * overridden with {@code CODEC.<stream>}, e.g. {@code -Dcom.netcracker.profiler.Dumper.CODEC.trace=lz4}.
+     * Defaults to gzip.
+     */
+    private final static String CODEC = System.getProperty(Dumper.class.getName() + ".CODEC", "gzip");
+    /**
+     * Writes thread names and parameter values of calls streams with a single byte per char for Latin-1 strings
+     * and UTF-8 for the rest (calls format 5). The collector does not read format 5 yet, so remote dump keeps
+     * format 4. Set {@code CALLS_COMPACT_STRINGS_DISABLED=true} to write format 4 to local dump as well.
+     */
+    private final static boolean CALLS_COMPACT_STRINGS = !Boolean.getBoolean(Dumper.class.getName() + ".CALLS_COMPACT_STRINGS_DISABLED");
+    /**
+     * Fingerprints the values of deduplicated parameters (e.g. SQL) at capture time, see {@link SqlFingerprint}.
+     * The sql stream gets the text with literals replaced by {@code ?}, and the literals are written inline as
+     * {@code sql.literals} tag. Set {@code SQL_FINGERPRINT_DISABLED=true} to deduplicate the original text.
+     */
+    private final static boolean SQL_FINGERPRINT = !Boolean.getBoolean(Dumper.class.getName() + ".SQL_FINGERPRINT_DISABLED");
 
     private final static int MAX_VALUES_PER_INDEXED_PARAM = Integer.getInteger(Dumper.class.getName() + ".MAX_VALUES_PER_INDEXED_PARAM", 100);
 
@@ -81,17 +128,13 @@ public class Dumper implements IDumper, DumperConstants {
          Contain large parameters
       BigParamsDedup
          Contain large parameters that might be reused (e.g. SQL, XPath)
+    The streams above are written by DumperShard, the rest are shared.
      */
     File dumpRoot;
 
-    ICompressedLocalAndRemoteOutputStream traceOs;
-    ICompressedLocalAndRemoteOutputStream callsOs;
-    ICompressedLocalAndRemoteOutputStream calls_100_500_Os;
-    ICompressedLocalAndRemoteOutputStream calls_500_3s_Os;
-    ICompressedLocalAndRemoteOutputStream calls_3s_60m_Os;
-    ICompressedLocalAndRemoteOutputStream calls_60mPlus_Os;
-    ICompressedLocalAndRemoteOutputStream bigParamsOs;
-    ICompressedLocalAndRemoteOutputStream bigParamsDedupOs;
+    DumperShard[] shards;
+    private ExecutorService shardExecutor;
+    private final CompressorStage compressor;
     ICompressedLocalAndRemoteOutputStream dictOs;
     ICompressedLocalAndRemoteOutputStream posDictOs;
     ICompressedLocalAndRemoteOutputStream removeDict;
@@ -101,8 +144,6 @@ Contain large parameters that might be reused (e.g. SQL, XPath)
     List<ICompressedLocalAndRemoteOutputStream> outputStreams;
     List<ICompressedLocalAndRemoteOutputStream> remoteStreams;
 
-    TLimitedLongLongHashMap dedupParamCache = new TLimitedLongLongHashMap(Integer.getInteger(Dumper.class.getName() + ".SQL_CACHE_SIZE", 10000));
-
     long lastSuspendLogEntry = TimerCache.startTime;
     long prevSuspendDate = -1;
     int prevSuspendDuration;
@@ -111,6 +152,9 @@ Contain large parameters that might be reused (e.g. SQL, XPath)
     List<String> dictionary = ProfilerData.getTags();
 
     Set<Integer> callsDictionaryIds = new HashSet<>();
+    // Guards the sinks that are shared by the shards: metrics, calls export and calls dictionary
+    private final Object sharedSinksLock = new Object();
+    private final CallCompletionStage callCompletion;
 
     private final BlockingQueue<LocalBuffer> dirtyBuffers;
     private final BlockingQueue<LocalBuffer> emptyBuffers;
@@ -138,6 +182,9 @@ Contain large parameters that might be reused (e.g. SQL, XPath)
     private static final int PARAM_IO_NET_WRITTEN = ProfilerData.resolveTag("io.net.written");
     private static final int PARAM_J2EE_TRANSACTIONS = ProfilerData.resolveTag("j2ee.transactions");
     private static final int PARAM_QUEUE_WAIT_TIME = ProfilerData.resolveTag("time.queue.wait");
+    private static final int PARAM_SQL_LITERALS = ProfilerData.resolveTag("sql.literals");
+    private static final int PARAM_CALL_RED = ProfilerData.resolveTag("call.red");
+    private static final int PARAM_EXCEPTION = ProfilerData.resolveTag("exception");
 
     public static final String PARAM_REMOTE_DUMP_HOST = "REMOTE_DUMP_HOST";
     public static final String PARAM_REMOTE_DUMP_PORT = "REMOTE_DUMP_PORT";
@@ -152,6 +199,8 @@ Contain large parameters that might be reused (e.g. SQL, XPath)
     public static final String BLACKLISTED_NAMESPACE = "BLACKLISTED";
 
     int lastBufferStealTime;
+    // Large buffers taken from idle threads, see retireIdleBuffer
+    private final ArrayList<LocalBuffer> retiredBuffers = new ArrayList<LocalBuffer>();
     int lastStreamFlushTime;
     int lastBufferScaleTime;
     long lastCorruptedCalls;
@@ -190,6 +239,20 @@ public Dumper(BlockingQueue<LocalBuffer> dirtyBuffers,
                   ConcurrentMap<Thread, LocalState> buffers,
                   String dumpFolder,
                   MetricsPluginImpl metricsPlugin) {
+        this(dirtyBuffers, emptyBuffers, buffers, dumpFolder, metricsPlugin, SHARDS, TailSampler.CALLS_PER_SECOND);
+    }
+
+    /**
+     * Creates a dumper with the given number of shards and tail sampling rate instead of the ones configured
+     * by system properties.
+     */
+    Dumper(BlockingQueue<LocalBuffer> dirtyBuffers,
+           BlockingQueue<LocalBuffer> emptyBuffers,
+           ConcurrentMap<Thread, LocalState> buffers,
+           String dumpFolder,
+           MetricsPluginImpl metricsPlugin,
+           int shards,
+           int tailSamplingCallsPerSecond) {
         this.dirtyBuffers = dirtyBuffers;
         this.emptyBuffers = emptyBuffers;
         this.buffers = buffers;
@@ -213,7 +276,22 @@ public Dumper(BlockingQueue<LocalBuffer> dirtyBuffers,
 
         this.writeCallRanges = ProfilerData.WRITE_CALL_RANGES && localDumpEnabled; //WRITE_CALL_RANGES isn't supported for remote stream
         this.writeCallsDictionary = ProfilerData.WRITE_CALLS_DICTIONARY && localDumpEnabled; //WRITE_CALLS_DICTIONARY isn't supported for remote stream
-        initStreams();
+        int shardCount = Math.max(1, Math.min(shards, DumpShards.MAX_SHARDS));
+        if (shardCount > 1 && remoteConfigured) {
+            log.info("Profiler dumper: {} shards are requested, however remote dump supports a single shard only", shardCount);
+            shardCount = 1;
+        }
+        initStreams(shardCount, tailSamplingCallsPerSecond);
+        this.callCompletion = CALL_COMPLETION_QUEUE_SIZE > 0
+                ? new CallCompletionStage(shardCount, CALL_COMPLETION_QUEUE_SIZE, new CallCompletionStage.Handler() {
+                    public void onCallCompleted(CallCompletionStage.CompletedCall call) {
+                        reportCall(call);
+                    }
+                })
+                : null;
+        this.compressor = COMPRESSOR_THREADS > 0
+                ? new CompressorStage(COMPRESSOR_THREADS, Math.max(1, COMPRESSOR_QUEUE_SIZE), Math.max(1024, COMPRESSOR_CHUNK_SIZE))
+                : null;
 
         log.info("Profiler dumper: Remote client connection parameters:\n{}:\t{}\n{}:\t{}\n{}:\t{}\n{}:\t{}\n{}:\t{}\n{}:\t{}\n{}:\t{}\n{}:\t{}\n{}:\t{}",
                 PARAM_CLOUD_NAMESPACE, cloudNamespace,
@@ -228,45 +306,13 @@ public Dumper(BlockingQueue<LocalBuffer> dirtyBuffers,
         );
     }
 
-    private void initStreams() {
-        this.traceOs = new CompressedLocalAndRemoteOutputStream("trace",
-                Integer.getInteger(Dumper.class.getName() + ".TRACE_LOG_ROTATE_SIZE", 100 * 1024 * 1024), 0) {
-
-            @Override
-            public void fileRotated() throws IOException {
-                getStream().writeLong(TimerCache.startTime);
-            }
-
-        };
-
-        this.callsOs = new CallsCompressedLocalAndRemoteOutputStream("calls",
-                Integer.getInteger(Dumper.class.getName() + ".CALLS_LOG_ROTATE_SIZE", 10 * 1024 * 1024), 4);
-
-        this.calls_100_500_Os = writeCallRanges ? new CallsCompressedLocalAndRemoteOutputStream("calls[100ms-500ms]",
-                Integer.getInteger(Dumper.class.getName() + ".CALLS_RANGE_LOG_ROTATE_SIZE", 1 * 1024 * 1024), 4) : null;
-
-        this.calls_500_3s_Os = writeCallRanges ? new CallsCompressedLocalAndRemoteOutputStream("calls[500ms-3s]",
-                Integer.getInteger(Dumper.class.getName() + ".CALLS_RANGE_LOG_ROTATE_SIZE", 1 * 1024 * 1024), 4) : null;
-
-        this.calls_3s_60m_Os = writeCallRanges ? new CallsCompressedLocalAndRemoteOutputStream("calls[3s-60m]",
-                Integer.getInteger(Dumper.class.getName() + ".CALLS_RANGE_LOG_ROTATE_SIZE", 1 * 1024 * 1024), 4) : null;
-
-        this.calls_60mPlus_Os = writeCallRanges ? new CallsCompressedLocalAndRemoteOutputStream("calls[60m+]",
-                Integer.getInteger(Dumper.class.getName() + ".CALLS_RANGE_LOG_ROTATE_SIZE", 1 * 1024 * 1024), 4) : null;
-        this.bigParamsOs = new CompressedLocalAndRemoteOutputStream("xml",
-                Integer.getInteger(Dumper.class.getName() + ".XML_LOG_ROTATE_SIZE", 100 * 1024 * 1024), 0
-        );
-
-
-        this.bigParamsDedupOs = new CompressedLocalAndRemoteOutputStream("sql",
-                Integer.getInteger(Dumper.class.getName() + ".SQL_LOG_ROTATE_SIZE", 100 * 1024 * 1024), 0
-        ) {
-            @Override
-            public void fileRotated() throws IOException {
-                dedupParamCache.clear();
-            }
-        };
-        bigParamsDedupOs.setDependentStream(traceOs);
+    private void initStreams(int shardCount, int tailSamplingCallsPerSecond) {
+        this.shards = new DumperShard[shardCount];
+        int callsFormat = CALLS_COMPACT_STRINGS && !remoteConfigured ? 5 : 4;
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new DumperShard(i, writeCallRanges, callsFormat, TailSampler.create(tailSamplingCallsPerSecond, shardCount));
+        }
+        final DumperShard shard = shards[0];
 
         this.dictOs = new CompressedLocalAndRemoteOutputStream("dictionary", 0, 0) {
             @Override
@@ -308,19 +354,20 @@ public void fileRotated() throws IOException {
         };
 
         this.outputStreams = new ArrayList<>(Arrays.asList(
-                traceOs, callsOs, bigParamsOs, bigParamsDedupOs,
+                shard.traceOs, shard.callsOs, shard.bigParamsOs, shard.bigParamsDedupOs,
                 dictOs, suspendOs, paramInfoOs
         ));
         if (writeCallRanges) {
-            outputStreams.addAll(Arrays.asList(calls_100_500_Os, calls_500_3s_Os, calls_3s_60m_Os, calls_60mPlus_Os));
+            outputStreams.addAll(Arrays.asList(shard.calls_100_500_Os, shard.calls_500_3s_Os, shard.calls_3s_60m_Os, shard.calls_60mPlus_Os));
         }
         if (writeCallsDictionary) {
             outputStreams.add(callsDictOs);
         }
-        this.remoteStreams = new ArrayList<>(Arrays.asList(
-                traceOs, callsOs, bigParamsOs, bigParamsDedupOs,
-                dictOs, suspendOs, paramInfoOs
-        ));
+        for (int i = 1; i < shardCount; i++) {
+            outputStreams.addAll(shards[i].getOutputStreams());
+        }
+        this.remoteStreams = new ArrayList<>(shard.getRemoteStreams());
+        remoteStreams.addAll(Arrays.asList(dictOs, suspendOs, paramInfoOs));
     }
 
     private void initializeCollectorClient() {
@@ -348,7 +395,7 @@ private void initializeCollectorClient() {
             this.client = CollectorClientFactory.instance().newClient(remoteHost, remotePort, ssl, cloudNamespace, microserviceName, podName);
 
             // Remove dictionary or posDictionary streams from remoteStreams and outputStreams by protocol version
-            if (this.client.getVersion() == PROTOCOL_VERSION_V3) {
+            if (this.client.getVersion() == PROTOCOL_VERSION_V3 || this.client.getVersion() == PROTOCOL_VERSION_V4) {
                 this.removeDict = this.dictOs;
                 if (!outputStreams.contains(this.posDictOs)) this.outputStreams.add(this.posDictOs);
                 if (!remoteStreams.contains(this.posDictOs)) this.remoteStreams.add(this.posDictOs);
@@ -382,14 +429,22 @@ public void configure(Map<String, ParameterInfo> paramInfo, long logMaxAge, long
         if (paramInfo == null) return;
         final TIntIntHashMap paramTypes = new TIntIntHashMap();
         List<ParameterInfo> listParams = new ArrayList<>();
+        List<Integer> fingerprintParams = new ArrayList<>();
 
         for (ParameterInfo info : paramInfo.values()) {
-            paramTypes.put(ProfilerData.resolveTag(info.name), info.combined);
+            int id = ProfilerData.resolveTag(info.name);
+            paramTypes.put(id, info.combined);
             if (info.list) {
                 listParams.add(info);
             }
+            if (info.combined == ParamTypes.PARAM_BIG_DEDUP) {
+                fingerprintParams.add(id);
+            }
         }
         this.paramTypes = paramTypes;
+        if (SQL_FINGERPRINT) {
+            ProfilerData.setSqlFingerprintTags(fingerprintParams);
+        }
         paramTypesStream = prepareParamInfoStream(paramInfo);
         TitleFormatterFacade.setDefaultListParams(listParams);
 
@@ -425,11 +480,21 @@ public boolean isInitialized() {
 
     public synchronized void close() throws IOException {
         this.initialized = false;
+        if (shardExecutor != null) {
+            shardExecutor.shutdown();
+            shardExecutor = null;
+        }
+        if (callCompletion != null) {
+            callCompletion.shutdown();
+        }
 
         for (int i = 0, outputStreamsSize = outputStreams.size(); i < outputStreamsSize; i++) {
             ICompressedLocalAndRemoteOutputStream stream = outputStreams.get(i);
             close(stream);
         }
+        if (compressor != null) {
+            compressor.shutdown();
+        }
         if (dumpFileManager != null) {
             dumpFileManager.close();
             dumpFileManager = null;
@@ -448,7 +513,10 @@ public synchronized void close() throws IOException {
 
     public void initialize() throws IOException {
         Profiler.markSystem();
-        dedupParamCache.clear();
+        for (DumperShard shard : shards) {
+            shard.dedupParamCache.clear();
+            shard.pendingBuffers.clear();
+        }
         ProfilerData.clearThreadsInfo();
 
         lastWrittenDictionaryTag = 0;
@@ -494,6 +562,8 @@ public void initialize() throws IOException {
             // For now DumpFileManager.getFileRotatedListener() is the only listener. Clear all earlier set listeners
             stream.clearListeners();
             stream.addListener(listener);
+            stream.setCompressor(compressor);
+            stream.setCodec(getCodec(stream.getName()));
             stream.rotate();
             compressedBytes += stream.getCompressedSize();
         }
@@ -505,12 +575,29 @@ public void initialize() throws IOException {
         this.initialized = true;
     }
 
+    private static DumpCodec getCodec(String streamName) {
+        // Shards of a stream share the setting, see DumpShards
+        String baseName = DumpShards.getBaseStreamName(streamName);
+        String name = System.getProperty(Dumper.class.getName() + ".CODEC." + baseName, CODEC);
+        try {
+            return DumpCodec.forName(name);
+        } catch (IllegalArgumentException e) {
+            log.warn("Unknown codec {} for stream {}, will use gzip", name, baseName);
+            return DumpCodec.GZIP;
+        }
+    }
+
     private String calculateRelativeDumpRootFolder(String dumpRootPath) { //IN: /u02/qubership/instance/execution-statistics-collector/dump/clust1_1989/2020/11/26/1606401808022
         Path p = Paths.get(dumpRootPath);
         return p.subpath(p.getNameCount() - 5, p.getNameCount()).toString(); //OUT: clust1_1989/2020/11/26/1606401808022
     }
 
     public void addEmptyBuffer(LocalBuffer buffer) {
+        if (buffer.data.length != LocalBuffer.SIZE) {
+            // Buffers of other size classes and the ones leased by virtual threads have their own pools
+            ProfilerData.addEmptyBuffer(buffer);
+            return;
+        }
         emptyBuffers.offer(buffer);
     }
 
@@ -525,6 +612,9 @@ public void dumpLoop() throws InterruptedException, IOException {
             buffers.clear();
 
             escLogger.printDirtyBufferWarningInCaseOfOverflow();
+            // Direct memory is allocated here for the large events that did not fit, so the application threads never
+            // hit OutOfMemoryError in allocateDirect
+            ProfilerData.offHeapEvents.reserve();
             if (dirtyBuffers.drainTo(buffers, 100) == 0) {
                 final LocalBuffer firstBuffer = dirtyBuffers.poll(BUFFER_STEAL_INTERVAL, TimeUnit.SECONDS);
                 if (firstBuffer != null) // e.g. queue is empty
@@ -541,14 +631,18 @@ public void dumpLoop() throws InterruptedException, IOException {
                     LocalBuffer buffer = buffers.get(i);
                     if (buffer.corrupted) {
                         log.error("Corrupted buffer is in dirtyBuffers queue {}", buffer);
+                        buffer.releaseOffHeapEvents();
                         continue;
                     }
                     if (buffer.state == null) {
                         log.error("Buffer {} (prevBuffer=={}) with null state is found in dirtyBuffers queue.", buffer, buffer.prevBuffer);
+                        buffer.releaseOffHeapEvents();
                         continue;
                     }
                     if (buffer.count == -1) {
                         /* Not a real buffer, but command */
+                        // Commands must observe all the data buffers that were queued before them
+                        writePendingBuffers();
                         switch ((int) buffer.data[0]) {
                             case COMMAND_ROTATE_LOG:
                                 rotateDumpFile();
@@ -580,6 +674,8 @@ public void dumpLoop() throws InterruptedException, IOException {
                                 //but if we do not return and try to do the dumping operations on a closed dumper, we're going to get errors
                                 return;
                             case COMMAND_GET_INFLIGHT_CALLS:
+                                // In-flight calls refer to their trace, so it can no longer be dropped
+                                commitPendingTraces();
                                 flushDumpFile();
                                 collectInflightCalls(buffer.value[0]);
                                 buffer.value[0] = null;
@@ -589,12 +685,25 @@ public void dumpLoop() throws InterruptedException, IOException {
                         addEmptyBuffer(buffer);
                         continue;
                     }
+                    LocalBuffer retired = takeRetiredPredecessor(buffer);
+                    if (shards.length > 1) {
+                        ArrayList<LocalBuffer> pending = shardOf(buffer.state).pendingBuffers;
+                        if (retired != null) {
+                            pending.add(retired);
+                        }
+                        pending.add(buffer);
+                        continue;
+                    }
+                    if (retired != null) {
+                        writeRetiredBuffer(retired);
+                    }
                     if (buffer.count > buffer.first) {
-                        recordsWritten += writeBuffer(buffer);
+                        recordsWritten += writeBuffer(shards[0], buffer);
                     }
                     cleanupBuffer(buffer);
                     addEmptyBuffer(buffer);
                 }
+                writePendingBuffers();
 
                 if (TimerCache.lastLoggedEvent != TimerCache.lastSuspendEvent) {
                     dumpSuspendLog();
@@ -603,6 +712,10 @@ public void dumpLoop() throws InterruptedException, IOException {
                 long t2 = System.nanoTime();
                 dumpTime += (t1 - t0) - (t2 - t1);
 
+                if (client instanceof AsyncCollectorClient) {
+                    rotateLostStreams(((AsyncCollectorClient) client).pollLostStreams());
+                }
+
                 boolean fileRotated = false;
 
                 boolean isTraceRotated = false;
@@ -636,6 +749,23 @@ public void dumpLoop() throws InterruptedException, IOException {
                                     , uncompressedSize / 1024 / 1024, uncompressedSize / (compressedSize + 0.001)
                                     , (compressedSize - compressedBytesWrittenBaseline) / 1024 / 1024
                                     , compressedSize - lastLogPurgeSize, logMaxSize * 2, new Date(lastLogPurgeTimestamp + logMaxAge * 2)});
+                    log.debug("Compressor: compression took {} ms, waited for compressor {} ms, {} chunks are queued"
+                            , TimeUnit.NANOSECONDS.toMillis(getCompressTime())
+                            , compressor == null ? 0 : TimeUnit.NANOSECONDS.toMillis(compressor.getBackPressureTime())
+                            , getCompressQueueDepth());
+                    log.debug("Collector: {} KiB spilled to disk, replay lag {} ms"
+                            , getRemoteSpillSize() / 1024, getRemoteReplayLag());
+                    log.debug("Large events: {} KiB off-heap", ProfilerData.offHeapEvents.getUsedBytes() / 1024);
+                    log.debug("Sql cache: hit ratio {}", String.format("%.3f", getSqlCacheHitRatio()));
+                    if (callCompletion != null) {
+                        log.debug("Call completion: took {} ms, {} calls are queued, {} calls reported inline"
+                                , TimeUnit.NANOSECONDS.toMillis(callCompletion.getProcessTime())
+                                , callCompletion.getQueueDepth(), callCompletion.getInlineCalls());
+                    }
+                    log.debug("Calls export: exported {} calls, {} calls missed, {} frames are queued for sending"
+                            , dumperCallsExporter.getExportedCalls(), dumperCallsExporter.getMissedCalls()
+                            , dumperCallsExporter.getQueueDepth());
+                    log.debug("Tail sampling: dropped traces of {} calls", getTailSamplingDroppedCalls());
                     nextTimeWritePerformanceInfo = TimerCache.timer + 30 * 1000;
                 }
 
@@ -669,9 +799,21 @@ public void dumpLoop() throws InterruptedException, IOException {
     private void collectInflightCalls(final Object result) {
         ArrayList<InflightCall> calls = new ArrayList<InflightCall>();
 
+        collectInflightCalls(buffers, calls);
+        collectInflightCalls(ProfilerData.virtualThreads, calls);
+
+        synchronized (result) {
+            Object[] res = (Object[]) result;
+            res[0] = dumpRoot;
+            res[1] = calls;
+            result.notify();
+        }
+    }
+
+    private void collectInflightCalls(ConcurrentMap<Thread, LocalState> threads, ArrayList<InflightCall> calls) {
         long nowLong = TimerCache.now;
         final int now = (int) (nowLong - TimerCache.startTime);
-        for (LocalState state : buffers.values()) {
+        for (LocalState state : threads.values()) {
             if (!(state.additional instanceof ThreadState))
                 continue;
 
@@ -730,21 +872,15 @@ public boolean execute(int i, THashSet<String> strings) {
             }
             calls.add(call);
         }
-
-        synchronized (result) {
-            Object[] res = (Object[]) result;
-            res[0] = dumpRoot;
-            res[1] = calls;
-            result.notify();
-        }
     }
 
     private void scaleBuffers() {
+        int[] threadsBySizeClass = countThreadsBySizeClass();
         int addedCount = 0;
         for (int i = 0; i < ProfilerData.MAX_SCALE_ATTEMPTS; i++) {
             int emptyBuffers = this.emptyBuffers.size();
             int dirtyBuffers = this.dirtyBuffers.size();
-            int activeThreads = buffers.size();
+            int activeThreads = threadsBySizeClass[ProfilerData.DEFAULT_BUFFER_SIZE_CLASS];
             if (emptyBuffers + dirtyBuffers >= Math.max(ProfilerData.MIN_BUFFERS, activeThreads)) {
                 break;
             }
@@ -763,14 +899,80 @@ private void scaleBuffers() {
                     , new Object[]{addedCount, emptyBuffers.size(), dirtyBuffers.size(), buffers.size(), ProfilerData.MIN_BUFFERS}
             );
         }
+        if (ProfilerData.BUFFER_SIZE_CLASSES.length > 1) {
+            scaleSizeClassBuffers(threadsBySizeClass);
+        }
         lastBufferScaleTime = TimerCache.timer;
     }
 
+    private int[] countThreadsBySizeClass() {
+        int[] threads = new int[ProfilerData.BUFFER_SIZE_CLASSES.length];
+        for (LocalState state : buffers.values()) {
+            threads[state.bufferSizeClass]++;
+        }
+        return threads;
+    }
+
+    /**
+     * Keeps a spare buffer per thread in the pools of non-default size classes, and releases the spare buffers
+     * the threads no longer need after they switched to a different size class.
+     */
+    private void scaleSizeClassBuffers(int[] threads) {
+        int[] sizeClasses = ProfilerData.BUFFER_SIZE_CLASSES;
+        for (int i = 0; i < sizeClasses.length; i++) {
+            BlockingQueue<LocalBuffer> pool = ProfilerData.emptyBuffersBySizeClass[i];
+            int size = pool.size();
+            int addedCount = 0;
+            int removedCount = 0;
+            int target;
+            if (i == ProfilerData.DEFAULT_BUFFER_SIZE_CLASS) {
+                // The default pool is grown by scaleBuffers
+                target = Math.max(ProfilerData.MIN_BUFFERS, threads[i]);
+            } else {
+                target = Math.min(ProfilerData.MIN_BUFFERS, threads[i]);
+                while (size + addedCount < target && addedCount < ProfilerData.MAX_SCALE_ATTEMPTS
+                        && pool.offer(new LocalBuffer(sizeClasses[i]))) {
+                    addedCount++;
+                }
+            }
+            // Let GC reclaim the buffers the threads moved away from
+            while (size - removedCount > 2 * target && pool.poll() != null) {
+                removedCount++;
+            }
+            if (addedCount > 0 || removedCount > 0) {
+                log.debug("Scaled buffers of {} records: added {}, removed {}, empty: {}, threads: {}"
+                        , new Object[]{sizeClasses[i], addedCount, removedCount, pool.size(), threads[i]});
+            }
+        }
+    }
+
     private void stealDataFromBuffers() throws IOException, InterruptedException {
         final long latestTimeToSteal = TimerCache.now - TimeUnit.SECONDS.toMillis(BUFFER_STEAL_INTERVAL);
         final long nextWarningTime = TimerCache.now + TimeUnit.SECONDS.toMillis(3600);
+        final long now = TimerCache.now;
+        writeRetiredBuffers();
+        boolean idleThreadsDetected = stealDataFromBuffers(buffers, latestTimeToSteal, now);
+        // Virtual threads are registered while they hold a buffer, so long calls are written before they complete
+        idleThreadsDetected |= stealDataFromBuffers(ProfilerData.virtualThreads, latestTimeToSteal, now);
+        int releasedSlabs = ProfilerData.offHeapEvents.releaseIdleSlabs();
+        if (releasedSlabs > 0) {
+            log.trace("Released {} idle slabs of the off-heap event arena", releasedSlabs);
+        }
+        lastBufferStealTime = TimerCache.timer;
+        if (idleThreadsDetected)
+            nextIdleThreadWarningTime = nextWarningTime;
+    }
+
+    /**
+     * @return true if some thread did not produce events since the last idle thread warning
+     */
+    private boolean stealDataFromBuffers(ConcurrentMap<Thread, LocalState> threads, long latestTimeToSteal, long now) throws IOException {
         boolean idleThreadsDetected = false;
-        for (LocalState state : buffers.values()) {
+        for (LocalState state : threads.values()) {
+            if (ProfilerData.adjustBufferSizeClass(state, now)) {
+                log.trace("Thread {} switches to buffers of {} records", state.thread.getName(),
+                        ProfilerData.BUFFER_SIZE_CLASSES[state.bufferSizeClass]);
+            }
             LocalBuffer buffer = state.buffer;
             if (buffer.corrupted || state.callInfo.isCorrupted()) {
                 continue;
@@ -781,12 +983,14 @@ private void stealDataFromBuffers() throws IOException, InterruptedException {
             if (state.isSystem) continue;
             boolean threadIsAlive = state.thread.isAlive();
             if (!threadIsAlive) {
-                if (buffers.remove(state.thread) == null) {
+                if (threads.remove(state.thread) == null) {
                     log.debug("Thread {} info was already collected", state.thread.getName());
                     continue;
                 }
                 log.info("Detected dead thread {} during buffer steal", state.thread.getName());
-                writeBuffer(buffer);
+                writeBuffer(shardOf(state), buffer);
+                // The buffer is dropped rather than reset, so return the blocks of the values that were not written
+                buffer.releaseOffHeapEvents();
                 //do not attempt to recover buffers from dying threads. concurrency issues may occur
 //                cleanupBuffer(buffer);
 //                addEmptyBuffer(buffer);
@@ -798,26 +1002,183 @@ private void stealDataFromBuffers() throws IOException, InterruptedException {
                     log.trace("Detected thread {} that is still alive, while it did not produce any profiled events since {}", state.thread.getName(), new Date(buffer.startTime));
                     idleThreadsDetected = true;
                 }
+                retireIdleBuffer(state, buffer);
                 continue;
             }
 
-            writeBuffer(buffer);
+            writeBuffer(shardOf(state), buffer);
         }
-        lastBufferStealTime = TimerCache.timer;
-        if (idleThreadsDetected)
-            nextIdleThreadWarningTime = nextWarningTime;
+        return idleThreadsDetected;
+    }
+
+    /**
+     * Replaces the buffer of an idle thread with a buffer of the smaller size class selected for the thread,
+     * otherwise the thread keeps the large buffer until it finishes the next call.
+     * The thread might be writing a record at this very moment, so the old buffer is not recycled right away:
+     * it is written on the next sweep or before the next buffer of the thread, whichever comes first.
+     */
+    private void retireIdleBuffer(LocalState state, LocalBuffer buffer) {
+        if (state.isVirtual || buffer.data.length <= ProfilerData.BUFFER_SIZE_CLASSES[state.bufferSizeClass]) {
+            return;
+        }
+        if (buffer.count >= buffer.data.length) {
+            // The next record would hand the full buffer to the dumper via exchangeBuffer
+            return;
+        }
+        LocalBuffer newBuffer = ProfilerData.getEmptyBuffer(state);
+        newBuffer.init(buffer);
+        state.buffer = newBuffer;
+        retiredBuffers.add(buffer);
+        log.trace("Thread {} is idle, its buffer is replaced with a buffer of {} records", state.thread.getName(),
+                newBuffer.data.length);
     }
 
-    private int writeBuffer(LocalBuffer buffer) throws IOException {
+    /**
+     * Takes the retired buffer the given buffer continues, so the records of the thread are written in order.
+     *
+     * @return the retired buffer or null
+     */
+    private LocalBuffer takeRetiredPredecessor(LocalBuffer buffer) {
+        LocalBuffer prevBuffer = buffer.prevBuffer;
+        if (prevBuffer == null || retiredBuffers.isEmpty() || !retiredBuffers.remove(prevBuffer)) {
+            return null;
+        }
+        return prevBuffer;
+    }
+
+    private void writeRetiredBuffers() throws IOException {
+        for (int i = 0, size = retiredBuffers.size(); i < size; i++) {
+            writeRetiredBuffer(retiredBuffers.get(i));
+        }
+        retiredBuffers.clear();
+    }
+
+    private void writeRetiredBuffer(LocalBuffer buffer) throws IOException {
+        if (buffer.count > buffer.first) {
+            recordsWritten += writeBuffer(shardOf(buffer.state), buffer);
+        }
+        cleanupBuffer(buffer);
+        addEmptyBuffer(buffer);
+    }
+
+    private int writeBuffer(DumperShard shard, LocalBuffer buffer) throws IOException {
 //        if (client != null) {
 //            log.trace("Write trace buffer started at {} to remote client", buffer.startTime);
 //            client.writeTrace(buffer);
 //        }
         log.trace("Write trace buffer started at {}", buffer.startTime);
-        return writeBufferToFS(buffer);
+        return writeBufferToFS(shard, buffer);
     }
 
-    private int writeBufferToFS(LocalBuffer buffer) throws IOException {
+    private DumperShard shardOf(LocalState state) {
+        if (shards.length == 1) {
+            return shards[0];
+        }
+        return shards[(int) (state.thread.getId() % shards.length)];
+    }
+
+    /**
+     * Writes the buffers collected by {@link #shardOf(LocalState)} in parallel, one task per shard, and waits
+     * till all the shards complete. The shards do not run in between, so the rest of the Dumper can write
+     * to any shard without extra synchronization.
+     */
+    private void writePendingBuffers() throws IOException {
+        if (shards.length == 1) {
+            return;
+        }
+        List<Future<Integer>> futures = new ArrayList<Future<Integer>>(shards.length);
+        for (final DumperShard shard : shards) {
+            if (shard.pendingBuffers.isEmpty()) {
+                continue;
+            }
+            futures.add(getShardExecutor().submit(new Callable<Integer>() {
+                public Integer call() throws Exception {
+                    return writeShardBuffers(shard);
+                }
+            }));
+        }
+        Throwable failure = null;
+        for (Future<Integer> future : futures) {
+            try {
+                recordsWritten += future.get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        for (DumperShard shard : shards) {
+            ArrayList<LocalBuffer> pending = shard.pendingBuffers;
+            for (int i = 0, size = pending.size(); i < size; i++) {
+                LocalBuffer buffer = pending.get(i);
+                cleanupBuffer(buffer);
+                addEmptyBuffer(buffer);
+            }
+            pending.clear();
+        }
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        if (failure != null) {
+            throw new IOException("Unable to write trace buffers", failure);
+        }
+    }
+
+    private int writeShardBuffers(DumperShard shard) throws IOException {
+        // Same as in dumpLoop: prevent the shard thread from emitting lots of calls due to FileOutputStream.write
+        LocalState state = Profiler.getState();
+        state.enter(DUMP_ITERATION_METHOD_ID);
+        try {
+            int records = 0;
+            ArrayList<LocalBuffer> pending = shard.pendingBuffers;
+            for (int i = 0, size = pending.size(); i < size; i++) {
+                LocalBuffer buffer = pending.get(i);
+                if (buffer.count > buffer.first) {
+                    records += writeBuffer(shard, buffer);
+                }
+            }
+            return records;
+        } finally {
+            state.exit();
+        }
+    }
+
+    private ExecutorService getShardExecutor() {
+        ExecutorService executor = shardExecutor;
+        if (executor != null) {
+            return executor;
+        }
+        executor = Executors.newFixedThreadPool(shards.length, new ThreadFactory() {
+            private int count;
+
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread(new Runnable() {
+                    public void run() {
+                        // Dumper's own threads must not be profiled, otherwise they would feed themselves with buffers
+                        Profiler.markSystem();
+                        r.run();
+                    }
+                }, "Profiler dumper shard-" + (count++));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        shardExecutor = executor;
+        return executor;
+    }
+
+    private int writeBufferToFS(DumperShard shard, LocalBuffer buffer) throws IOException {
         final LocalState state = buffer.state;
         Object additional = state.additional;
         ThreadState thread = null;
@@ -872,14 +1233,90 @@ private int writeBufferToFS(LocalBuffer buffer) throws IOException {
 
         if (count == 0) return 0;
 
-        int prevMillis = 0;
+        if (state.isVirtual) {
+            shard.resumeCallState(thread);
+        }
+
+        // Records are encoded into the shard's byte array and reach the trace stream in a single write
+        final BufferedDataOutputStreamEx traceOs = shard.traceEncoder.bind(
+                thread.tracePending ? thread.pendingTrace : shard.traceOs.getStream());
+        try {
+            count = writeRecords(shard, buffer, thread, traceOs, offs, last, count);
+        } finally {
+            traceOs.release();
+        }
+        if (thread.tracePending && shard.tailSampler.isPendingTraceTooLarge(thread.pendingTrace.size())) {
+            commitPendingTrace(shard, thread);
+        }
+        if (state.isVirtual && thread.method == 0 && !thread.tracePending && thread.params.isEmpty()) {
+            // The call is complete, and the thread might never start another one
+            shard.suspendCallState(thread);
+        }
+        return count;
+    }
+
+    /**
+     * Starts holding the trace of the call in memory, so the trace can be dropped once the call completes.
+     */
+    private void holdPendingTrace(DumperShard shard, ThreadState thread) {
+        if (thread.pendingTrace == null) {
+            thread.pendingTrace = new PendingTrace();
+        }
+        shard.traceEncoder.bind(thread.pendingTrace);
+        thread.tracePending = true;
+    }
+
+    /**
+     * Appends the held trace of the current call to the trace stream, and makes the call refer to it.
+     * The rest of the call is written to the trace stream directly.
+     *
+     * @return offset of the held trace in the trace stream
+     */
+    private int commitPendingTrace(DumperShard shard, ThreadState thread) throws IOException {
+        final IDataOutputStreamEx trace = shard.traceOs.getStream();
+        int base = trace.size();
+        thread.pendingTrace.writeTo(trace);
+        thread.bufferOffset += base;
+        thread.traceFileIndex = shard.getFileIndex(shard.traceOs);
+        releasePendingTrace(thread);
+        return base;
+    }
+
+    private static void releasePendingTrace(ThreadState thread) {
+        thread.tracePending = false;
+        if (thread.pendingTrace.capacity() > TailSampler.MAX_PENDING_BYTES / 4) {
+            // Do not keep the memory of a large call for the rest of the thread's life
+            thread.pendingTrace = null;
+        } else {
+            thread.pendingTrace.reset();
+        }
+    }
 
-        final IDataOutputStreamEx traceOs = this.traceOs.getStream();
+    private void commitPendingTraces() throws IOException {
+        commitPendingTraces(buffers);
+        commitPendingTraces(ProfilerData.virtualThreads);
+    }
 
-        final int bufferOffset = traceOs.size();
+    private void commitPendingTraces(ConcurrentMap<Thread, LocalState> threads) throws IOException {
+        for (LocalState state : threads.values()) {
+            if (state.additional instanceof ThreadState) {
+                ThreadState thread = (ThreadState) state.additional;
+                if (thread.tracePending) {
+                    commitPendingTrace(shardOf(state), thread);
+                }
+            }
+        }
+    }
 
-        traceOs.writeLong(buffer.state.thread.getId());
-        traceOs.writeLong(buffer.startTime);
+    private int writeRecords(DumperShard shard, LocalBuffer buffer, ThreadState thread, IDataOutputStreamEx traceOs,
+                             int offs, int last, int count) throws IOException {
+        final LocalState state = buffer.state;
+        final TailSampler tailSampler = shard.tailSampler;
+        int prevMillis = 0;
+
+        // Offset of the header of the current chunk, -1 until the chunk is started with the next record.
+        // Tail sampling starts a new chunk for each call, so the trace of the call can be dropped as a whole.
+        int bufferOffset = -1;
         final long[] data = buffer.data;
 
         final Object[] values = buffer.value;
@@ -894,6 +1331,22 @@ private int writeBufferToFS(LocalBuffer buffer) throws IOException {
                 continue;
             }
 
+            if (tailSampler != null && type == DATA_ENTER_FIELD && thread.method == 0 && !thread.tracePending) {
+                if (bufferOffset != -1) {
+                    traceOs.write(EVENT_FINISH_RECORD);
+                    bufferOffset = -1;
+                }
+                shard.traceEncoder.release();
+                holdPendingTrace(shard, thread);
+            }
+            if (bufferOffset == -1) {
+                bufferOffset = traceOs.size();
+                traceOs.writeLong(buffer.state.thread.getId());
+                traceOs.writeLong(buffer.startTime);
+                prevMillis = 0;
+                offs = i;
+            }
+
             final int curMillis = (int) (item >>> 32);
             int millis = curMillis - prevMillis;
             prevMillis = curMillis;
@@ -918,7 +1371,7 @@ private int writeBufferToFS(LocalBuffer buffer) throws IOException {
                     thread.time = curMillis;
                     thread.calls = 0;
                     thread.method = id;
-                    thread.traceFileIndex = this.traceOs.getIndex();
+                    thread.traceFileIndex = shard.getFileIndex(shard.traceOs);
                     thread.bufferOffset = bufferOffset;
                     thread.recordIndex = i - offs;
                 }
@@ -935,51 +1388,84 @@ private int writeBufferToFS(LocalBuffer buffer) throws IOException {
                 value = (String) o;
             } else if (o instanceof StringBuffer || o instanceof StringBuilder || o instanceof Number) {
                 value = o.toString();
+            } else if (o instanceof SqlFingerprint) {
+                offs = writeSqlFingerprint(shard, thread, id, (SqlFingerprint) o, offs);
+                continue;
+            } else if (o instanceof OffHeapCharSequence) {
+                OffHeapCharSequence offHeap = (OffHeapCharSequence) o;
+                try {
+                    if (paramTypes.get(id) == ParamTypes.PARAM_BIG) {
+                        writeBigParam(shard, id, offHeap);
+                        continue;
+                    }
+                    // Inline and deduplicated values need the string anyway, it is garbage right after the write
+                    value = offHeap.toString();
+                } finally {
+                    offHeap.release();
+                }
             } else if (o instanceof Throwable) {
+                thread.important = true;
                 value = ThrowableHelper.throwableToString((Throwable) o);
             } else if (o instanceof CallInfo) {
                 CallInfo callInfo = (CallInfo) o;
                 final long callDuration = curMillis - thread.time + callInfo.additionalReportedTime;
-                writeParam(thread, id, "");
+                writeParam(shard, thread, id, "");
 
-                if (!callInfo.isCorrupted() && (thread.calls > 1 ||
+                final boolean report = !callInfo.isCorrupted() && (thread.calls > 1 ||
                         callDuration > 20 ||
-                        callInfo.isPersist > 0)) {
-                    ProfilerTitle profilerTitle = TitleFormatterFacade.formatTitle(thread.method, thread.params);
-                    MetricsCollector.collectMetrics(metricsPlugin, thread, metricsConfiguration, callDuration, callInfo, thread, buffer.state.thread.getName());
-
-                    long startTimestamp = buffer.startTime + (int) (thread.time - (int) (buffer.startTime - TimerCache.startTime));
+                        callInfo.isPersist > 0);
+                boolean keep = true;
+                if (thread.tracePending) {
+                    // Calls that are too short to be reported are not referenced from the calls stream anyway
+                    keep = report && tailSampler.keep(thread.method, callDuration, thread.important,
+                            callInfo.isPersist > 0, TimerCache.now);
+                    if (keep) {
+                        shard.traceEncoder.release();
+                        bufferOffset += commitPendingTrace(shard, thread);
+                        shard.traceEncoder.bind(shard.traceOs.getStream());
+                    }
+                }
+                long startTimestamp = 0;
+                int suspension = 0;
+                if (report) {
+                    startTimestamp = buffer.startTime + (int) (thread.time - (int) (buffer.startTime - TimerCache.startTime));
                     if (dumperCallsExporter.isEnabled()) {
-                        int suspension = getSuspension(startTimestamp, startTimestamp + callDuration);
-                        dumperCallsExporter.exportCall(startTimestamp, callDuration, suspension, callInfo, profilerTitle, thread, buffer.state.thread.getName(), relativeDumpRootPath);
+                        // Suspend log is updated by the Dumper thread, so it is read here rather than in call completion
+                        suspension = getSuspension(startTimestamp, startTimestamp + callDuration);
                     }
                     traceOs.write(EVENT_TAG_RECORD);
-                    writeParam(thread, PARAM_COMMON_STARTED, Long.toString(startTimestamp));
+                    writeParam(shard, thread, PARAM_COMMON_STARTED, Long.toString(startTimestamp));
                     offs--;
 
                     traceOs.write(EVENT_TAG_RECORD);
-                    writeParam(thread, PARAM_NODE_NAME, ServerNameResolver.SERVER_NAME);
+                    writeParam(shard, thread, PARAM_NODE_NAME, ServerNameResolver.SERVER_NAME);
                     offs--;
                     traceOs.write(EVENT_TAG_RECORD);
-                    writeParam(thread, PARAM_JAVA_THREAD, buffer.state.thread.getName());
+                    writeParam(shard, thread, PARAM_JAVA_THREAD, buffer.state.thread.getName());
                     offs--;
                     if (callInfo.workManager != null) {
                         traceOs.write(EVENT_TAG_RECORD);
-                        writeParam(thread, PARAM_WEBLOGIC_WORK_MANAGER, callInfo.workManager);
+                        writeParam(shard, thread, PARAM_WEBLOGIC_WORK_MANAGER, callInfo.workManager);
                         offs--;
                     }
-                    offs = writeCallParams(traceOs, thread, callInfo, offs);
+                    offs = writeCallParams(shard, traceOs, thread, callInfo, offs);
 
-                    writeCall(callInfo, thread, callDuration, state.thread);
+                    if (keep) {
+                        writeCall(shard, callInfo, thread, callDuration, state.thread);
+                    }
                 }
                 // buffer does not contain this exit record as callInfo is always the last event in call
                 // thus we explicitly write this event_exit_record
                 traceOs.write(EVENT_EXIT_RECORD);
                 offs--; // Ensure correct rowid is used as we just inserted non-existent-in-buffer exit record
-                thread.params.clear();
-                thread.method = 0;
-                thread.saveThreadCounters(callInfo);
-                callInfo.clean(); // stop nepotism
+                if (!keep) {
+                    // The call still feeds metrics and export, only its trace is dropped
+                    shard.traceEncoder.release();
+                    releasePendingTrace(thread);
+                    shard.traceEncoder.bind(shard.traceOs.getStream());
+                    bufferOffset = -1;
+                }
+                completeCall(shard, state, thread, callInfo, callDuration, startTimestamp, suspension, report);
                 continue;
             } else if (o instanceof BigValueHolder) {
                 BigValueHolder h = (BigValueHolder) o;
@@ -998,10 +1484,15 @@ private int writeBufferToFS(LocalBuffer buffer) throws IOException {
             } else {
                 value = "Object " + o.toString();
             }
-            writeParam(thread, id, value, o instanceof BigValueHolder ? (BigValueHolder) o : null);
+            if (id == PARAM_CALL_RED || id == PARAM_EXCEPTION) {
+                thread.important = true;
+            }
+            writeParam(shard, thread, id, value, o instanceof BigValueHolder ? (BigValueHolder) o : null);
             value = null;
         }
-        traceOs.write(EVENT_FINISH_RECORD);
+        if (bufferOffset != -1) {
+            traceOs.write(EVENT_FINISH_RECORD);
+        }
         long startOffset = data[last - 1] >>> 32;
         startOffset -= data[buffer.first] >>> 32;
         buffer.increaseStartTime(startOffset);
@@ -1009,6 +1500,67 @@ private int writeBufferToFS(LocalBuffer buffer) throws IOException {
         return count;
     }
 
+    /**
+     * Hands the call over to {@link CallCompletionStage} for title formatting, metrics and export,
+     * and resets the thread for the next call.
+     */
+    private void completeCall(DumperShard shard, LocalState state, ThreadState thread, CallInfo callInfo,
+                              long callDuration, long startTimestamp, int suspension, boolean report) {
+        CallCompletionStage stage = callCompletion;
+        if (stage == null) {
+            if (report) {
+                synchronized (sharedSinksLock) {
+                    reportCall(thread, callInfo, callDuration, startTimestamp, suspension, state.thread.getName());
+                }
+            }
+            resetThread(thread, callInfo);
+            callInfo.clean(); // stop nepotism
+            // The call is fully written, so the owner thread can reuse the object for the next call
+            state.recycleCallInfo(callInfo);
+            return;
+        }
+
+        CallCompletionStage.Ring ring = stage.ring(shard.index);
+        CallCompletionStage.CompletedCall call = ring.claim();
+        if (call != null) {
+            // Takes the params of the thread, and the stage returns callInfo to the pool once the call is reported
+            call.capture(state, thread, callInfo, callDuration, startTimestamp, suspension, report);
+            resetThread(thread, callInfo);
+            stage.publish(ring);
+        } else if (report) {
+            // The stage is behind, so the call is reported right away
+            call = new CallCompletionStage.CompletedCall();
+            call.capture(state, thread, callInfo, callDuration, startTimestamp, suspension, true);
+            resetThread(thread, callInfo);
+            stage.processInline(call);
+        } else {
+            resetThread(thread, callInfo);
+            // The pool accepts objects from the stage thread only, so the object is left to GC
+            callInfo.clean();
+        }
+    }
+
+    private static void resetThread(ThreadState thread, CallInfo callInfo) {
+        thread.params.clear();
+        thread.method = 0;
+        thread.important = false;
+        // Reads callInfo.next, so it must complete before the call is handed over
+        thread.saveThreadCounters(callInfo);
+    }
+
+    private void reportCall(CallCompletionStage.CompletedCall call) {
+        reportCall(call.threadState, call.callInfo, call.duration, call.startTimestamp, call.suspension, call.threadName);
+    }
+
+    private void reportCall(ThreadState thread, CallInfo callInfo, long callDuration, long startTimestamp, int suspension, String threadName) {
+        ProfilerTitle profilerTitle = TitleFormatterFacade.formatTitle(thread.method, thread.params);
+        MetricsCollector.collectMetrics(metricsPlugin, thread, metricsConfiguration, callDuration, callInfo, thread, threadName);
+
+        if (dumperCallsExporter.isEnabled()) {
+            dumperCallsExporter.exportCall(startTimestamp, callDuration, suspension, callInfo, profilerTitle, thread, threadName, relativeDumpRootPath);
+        }
+    }
+
     private int getSuspension(long begin, long end) {
         SuspendLog suspendLog = inMemorySuspendLogBuilder.get();
         return suspendLog.getSuspendDuration(begin, end);
@@ -1034,25 +1586,25 @@ private void dumpCorruptedCalls() throws IOException {
         state.event(corruptedCalls, PARAM_CALLS_CORRUPTED);
         state.exit();
 
-        writeBufferToFS(buffer);
+        writeBufferToFS(shards[0], buffer);
         lastDumpCorruptedCallsTime = timer;
     }
 
-    private void writeCall(CallInfo callInfo, ThreadState threadState, long callDuration, Thread thread) throws IOException {
-        writeCall(callInfo, threadState, callDuration, thread, this.callsOs);
+    private void writeCall(DumperShard shard, CallInfo callInfo, ThreadState threadState, long callDuration, Thread thread) throws IOException {
+        writeCall(callInfo, threadState, callDuration, thread, shard.callsOs);
         if (!writeCallRanges) {
             return;
         }
         if (callDuration < 100) {
             //DoNothing
         } else if (callDuration < 500) {
-            writeCall(callInfo, threadState, callDuration, thread, this.calls_100_500_Os);
+            writeCall(callInfo, threadState, callDuration, thread, shard.calls_100_500_Os);
         } else if (callDuration < 3000) {
-            writeCall(callInfo, threadState, callDuration, thread, this.calls_500_3s_Os);
+            writeCall(callInfo, threadState, callDuration, thread, shard.calls_500_3s_Os);
         } else if (callDuration < 60 * 60 * 1000) {
-            writeCall(callInfo, threadState, callDuration, thread, this.calls_3s_60m_Os);
+            writeCall(callInfo, threadState, callDuration, thread, shard.calls_3s_60m_Os);
         } else {
-            writeCall(callInfo, threadState, callDuration, thread, this.calls_60mPlus_Os);
+            writeCall(callInfo, threadState, callDuration, thread, shard.calls_60mPlus_Os);
         }
     }
 
@@ -1073,7 +1625,7 @@ private void writeCall(CallInfo callInfo, ThreadState threadState, long callDura
             callsState.threadIdsCounter = threadIndex + 1;
             callsState.threadIdsCache.put(thread.getId(), threadIndex);
             callsOs.writeVarInt(threadIndex);
-            callsOs.write(thread.getName());
+            writeCallString(callsOs, callsState, thread.getName());
         }
         callsOs.writeVarInt(callInfo.logWritten);
         callsOs.writeVarInt(callInfo.logGenerated - callInfo.logWritten);
@@ -1102,92 +1654,102 @@ private void writeCall(CallInfo callInfo, ThreadState threadState, long callDura
             final int size = set.size();
             callsOs.writeVarInt(size);
             for (String value : set) {
-                callsOs.write(value);
+                writeCallString(callsOs, callsState, value);
             }
         }
         // TODO: write call info values
     }
 
+    private static void writeCallString(IDataOutputStreamEx callsOs, CallsState callsState, String value) throws IOException {
+        if (callsState.compactStrings) {
+            callsOs.writeCompact(value);
+        } else {
+            callsOs.write(value);
+        }
+    }
+
     private void writeCallsDictionary(int idx) throws IOException {
         if (!writeCallsDictionary) {
             return;
         }
-        if (!callsDictionaryIds.contains(idx)) {
-            callsDictionaryIds.add(idx);
-            IDataOutputStreamEx stream = callsDictOs.getStream();
-            stream.writeVarInt(idx);
-            stream.write(dictionary.get(idx));
+        synchronized (sharedSinksLock) {
+            if (!callsDictionaryIds.contains(idx)) {
+                callsDictionaryIds.add(idx);
+                IDataOutputStreamEx stream = callsDictOs.getStream();
+                stream.writeVarInt(idx);
+                stream.write(dictionary.get(idx));
+            }
         }
     }
 
-    private int writeCallParams(IDataOutputStreamEx traceOs, ThreadState thread, CallInfo callInfo, int offs) throws IOException {
+    private int writeCallParams(DumperShard shard, IDataOutputStreamEx traceOs, ThreadState thread, CallInfo callInfo, int offs) throws IOException {
         if (callInfo.logGenerated > 0) {
             traceOs.write(EVENT_TAG_RECORD);
-            writeParam(thread, PARAM_LOG_GENERATED, Integer.toString(callInfo.logGenerated));
+            writeParam(shard, thread, PARAM_LOG_GENERATED, Integer.toString(callInfo.logGenerated));
             offs--;
             if (callInfo.logWritten > 0) {
                 traceOs.write(EVENT_TAG_RECORD);
-                writeParam(thread, PARAM_LOG_WRITTEN, Integer.toString(callInfo.logWritten));
+                writeParam(shard, thread, PARAM_LOG_WRITTEN, Integer.toString(callInfo.logWritten));
                 offs--;
             }
         }
         long tmp;
         if ((tmp = callInfo.cpuTime - thread.prevCpuTime) != 0) {
             traceOs.write(EVENT_TAG_RECORD);
-            writeParam(thread, PARAM_CPU_TIME, Long.toString(tmp));
+            writeParam(shard, thread, PARAM_CPU_TIME, Long.toString(tmp));
             offs--;
         }
         if ((tmp = callInfo.waitTime - thread.prevWaitTime) != 0) {
             traceOs.write(EVENT_TAG_RECORD);
-            writeParam(thread, PARAM_WAIT_TIME, Long.toString(tmp));
+            writeParam(shard, thread, PARAM_WAIT_TIME, Long.toString(tmp));
             offs--;
         }
         if ((tmp = callInfo.memoryUsed - thread.prevMemoryUsed) != 0) {
             traceOs.write(EVENT_TAG_RECORD);
-            writeParam(thread, PARAM_MEMORY_ALLOCATED, Long.toString(tmp));
+            writeParam(shard, thread, PARAM_MEMORY_ALLOCATED, Long.toString(tmp));
             offs--;
         }
         if ((tmp = callInfo.fileRead - thread.prevFileRead) != 0) {
             traceOs.write(EVENT_TAG_RECORD);
-            writeParam(thread, PARAM_IO_DISK_READ, Long.toString(tmp));
+            writeParam(shard, thread, PARAM_IO_DISK_READ, Long.toString(tmp));
             offs--;
         }
         if ((tmp = callInfo.fileWritten - thread.prevFileWritten) != 0) {
             traceOs.write(EVENT_TAG_RECORD);
-            writeParam(thread, PARAM_IO_DISK_WRITTEN, Long.toString(tmp));
+            writeParam(shard, thread, PARAM_IO_DISK_WRITTEN, Long.toString(tmp));
             offs--;
         }
         if ((tmp = callInfo.netRead - thread.prevNetRead) != 0) {
             traceOs.write(EVENT_TAG_RECORD);
-            writeParam(thread, PARAM_IO_NET_READ, Long.toString(tmp));
+            writeParam(shard, thread, PARAM_IO_NET_READ, Long.toString(tmp));
             offs--;
         }
         if ((tmp = callInfo.netWritten - thread.prevNetWritten) != 0) {
             traceOs.write(EVENT_TAG_RECORD);
-            writeParam(thread, PARAM_IO_NET_WRITTEN, Long.toString(tmp));
+            writeParam(shard, thread, PARAM_IO_NET_WRITTEN, Long.toString(tmp));
             offs--;
         }
         if ((tmp = callInfo.transactions - thread.prevTransactions) != 0) {
             traceOs.write(EVENT_TAG_RECORD);
-            writeParam(thread, PARAM_J2EE_TRANSACTIONS, Long.toString(tmp));
+            writeParam(shard, thread, PARAM_J2EE_TRANSACTIONS, Long.toString(tmp));
             offs--;
         }
         if (callInfo.queueWaitDuration != 0) {
             traceOs.write(EVENT_TAG_RECORD);
-            writeParam(thread, PARAM_QUEUE_WAIT_TIME, Integer.toString(callInfo.queueWaitDuration));
+            writeParam(shard, thread, PARAM_QUEUE_WAIT_TIME, Integer.toString(callInfo.queueWaitDuration));
             offs--;
         }
         return offs;
     }
 
-    private void writeParam(ThreadState thread, int id, String value) throws IOException {
-        writeParam(thread, id, value, null);
+    private void writeParam(DumperShard shard, ThreadState thread, int id, String value) throws IOException {
+        writeParam(shard, thread, id, value, null);
     }
 
-    private void writeParam(ThreadState thread,
+    private void writeParam(DumperShard shard, ThreadState thread,
                             int id, String value,
                             BigValueHolder valueHolder) throws IOException {
-        final IDataOutputStreamEx traceOs = this.traceOs.getStream();
+        final IDataOutputStreamEx traceOs = shard.traceEncoder;
         traceOs.writeVarInt(id);
         final int paramType = paramTypes.get(id);
         traceOs.write(paramType);
@@ -1207,14 +1769,15 @@ private void writeParam(ThreadState thread,
                 break;
             case ParamTypes.PARAM_BIG_DEDUP:
                 long hash = MurmurHash.hash64(value);
-                long cached = dedupParamCache.get(hash);
+                long cached = shard.dedupParamCache.get(hash);
                 if (cached == -1) {
-                    int offs = bigParamsDedupOs.getStream().write(value);
-                    traceOs.writeVarInt(bigParamsDedupOs.getIndex());
+                    int offs = shard.bigParamsDedupOs.getStream().write(value);
+                    int fileIndex = shard.getFileIndex(shard.bigParamsDedupOs);
+                    traceOs.writeVarInt(fileIndex);
                     traceOs.writeVarInt(offs);
                     if (valueHolder != null)
-                        valueHolder.setAddress(bigParamsDedupOs.getIndex(), offs);
-                    dedupParamCache.put(hash, ((long) bigParamsDedupOs.getIndex() << 32) | offs);
+                        valueHolder.setAddress(fileIndex, offs);
+                    shard.dedupParamCache.put(hash, ((long) fileIndex << 32) | offs, dedupCacheWeight(value));
                 } else {
                     traceOs.writeVarInt((int) (cached >> 32));
                     traceOs.writeVarInt((int) cached);
@@ -1226,15 +1789,76 @@ private void writeParam(ThreadState thread,
                 if (value.length() > 10240) {
                     log.warn("Parameter larger than 10 KB is being recorded. Param id is {}. Param size is {}. First 1kb is {}", id, value.length(), value.substring(0, 1096));
                 }
-                int offset = bigParamsOs.getStream().write(value);
-                traceOs.writeVarInt(bigParamsOs.getIndex());
+                int offset = shard.bigParamsOs.getStream().write(value);
+                int fileIndex = shard.getFileIndex(shard.bigParamsOs);
+                traceOs.writeVarInt(fileIndex);
                 traceOs.writeVarInt(offset);
                 if (valueHolder != null)
-                    valueHolder.setAddress(bigParamsOs.getIndex(), offset);
+                    valueHolder.setAddress(fileIndex, offset);
                 break;
         }
     }
 
+    /**
+     * Writes the normalized text of the fingerprint to the sql stream unless it is cached, and adds the literals
+     * as {@code sql.literals} tag.
+     *
+     * @return updated offs, so the recordIndex would account the additional record
+     */
+    private int writeSqlFingerprint(DumperShard shard, ThreadState thread, int id, SqlFingerprint sql, int offs) throws IOException {
+        if (paramTypes.get(id) != ParamTypes.PARAM_BIG_DEDUP) {
+            // The configuration has changed since the value was captured
+            writeParam(shard, thread, id, sql.getSql());
+            return offs;
+        }
+        final IDataOutputStreamEx traceOs = shard.traceEncoder;
+        traceOs.writeVarInt(id);
+        traceOs.write(ParamTypes.PARAM_BIG_DEDUP);
+        long cached = shard.dedupParamCache.get(sql.getHash());
+        if (cached == -1) {
+            String text = sql.normalize();
+            int offset = shard.bigParamsDedupOs.getStream().write(text);
+            int fileIndex = shard.getFileIndex(shard.bigParamsDedupOs);
+            cached = ((long) fileIndex << 32) | offset;
+            shard.dedupParamCache.put(sql.getHash(), cached, dedupCacheWeight(text));
+        }
+        traceOs.writeVarInt((int) (cached >> 32));
+        traceOs.writeVarInt((int) cached);
+        if (sql.getLiteralCount() > 0) {
+            traceOs.write(EVENT_TAG_RECORD);
+            writeParam(shard, thread, PARAM_SQL_LITERALS, sql.getLiterals());
+            offs--;
+        }
+        return offs;
+    }
+
+    /**
+     * Weight of a deduplicated value in {@link DumperShard#dedupParamCache}: the size of the value in the sql stream
+     * plus the bookkeeping of the cache entry.
+     */
+    private static int dedupCacheWeight(String value) {
+        return value.length() * 2 + 64;
+    }
+
+    /**
+     * Copies a large value from direct memory to the xml stream, so the value is never materialized on heap.
+     */
+    private void writeBigParam(DumperShard shard, int id, OffHeapCharSequence value) throws IOException {
+        final IDataOutputStreamEx traceOs = shard.traceEncoder;
+        traceOs.writeVarInt(id);
+        traceOs.write(ParamTypes.PARAM_BIG);
+        if (value.length() > 10240) {
+            log.warn("Parameter larger than 10 KB is being recorded. Param id is {}. Param size is {}. First 1kb is {}", id, value.length(), value.subSequence(0, 1096));
+        }
+        final IDataOutputStreamEx bigParamsOs = shard.bigParamsOs.getStream();
+        int offset = bigParamsOs.size();
+        bigParamsOs.writeVarInt(value.length());
+        value.writeTo(bigParamsOs, shard.offHeapCopyBuffer);
+        int fileIndex = shard.getFileIndex(shard.bigParamsOs);
+        traceOs.writeVarInt(fileIndex);
+        traceOs.writeVarInt(offset);
+    }
+
     private void cleanupBuffer(LocalBuffer buffer) {
         buffer.state = null;
         //make sure a chain of previous buffers and a set of object params is not retained
@@ -1366,6 +1990,93 @@ public long getDumperStartTime() {
         return dumperStartTime;
     }
 
+    /**
+     * Returns time spent by compressor threads, see {@link #getDumpTime()} for the time spent on encoding.
+     *
+     * @return compression time in nanoseconds
+     */
+    public long getCompressTime() {
+        return compressor == null ? 0 : compressor.getCompressTime();
+    }
+
+    public int getCompressQueueDepth() {
+        return compressor == null ? 0 : compressor.getQueueDepth();
+    }
+
+    /**
+     * Starts new chunks of the streams that the collector might have received partially before the connection was
+     * lost, so the offsets the other streams refer to stay consistent.
+     *
+     * @param names names of the streams reported by {@link AsyncCollectorClient#pollLostStreams()}
+     */
+    private void rotateLostStreams(Set<String> names) {
+        if (names.isEmpty()) {
+            return;
+        }
+        log.info("Rotating streams {} after the collector connection was lost", names);
+        for (int i = 0, outputStreamsSize = outputStreams.size(); i < outputStreamsSize; i++) {
+            ICompressedLocalAndRemoteOutputStream stream = outputStreams.get(i);
+            if (!names.contains(stream.getName())) {
+                continue;
+            }
+            if (stream == dictOs || stream == posDictOs) {
+                // The dictionary is written incrementally, so the new chunk starts from the first tag
+                lastWrittenDictionaryTag = 0;
+            }
+            stream.askRotateForRemote();
+        }
+    }
+
+    /**
+     * Returns the amount of collector data spilled to disk, see {@link AsyncCollectorClient}.
+     *
+     * @return spilled bytes
+     */
+    public long getRemoteSpillSize() {
+        DumperCollectorClient client = this.client;
+        return client instanceof AsyncCollectorClient ? ((AsyncCollectorClient) client).getSpillSize() : 0;
+    }
+
+    /**
+     * Returns the age of the oldest data that waits to be sent to the collector.
+     *
+     * @return replay lag in milliseconds
+     */
+    public long getRemoteReplayLag() {
+        DumperCollectorClient client = this.client;
+        return client instanceof AsyncCollectorClient ? ((AsyncCollectorClient) client).getReplayLag() : 0;
+    }
+
+    /**
+     * Returns the share of deduplicated values (e.g. SQL) that were found in {@link DumperShard#dedupParamCache},
+     * so they were not written to the sql stream again.
+     *
+     * @return hit ratio from 0 to 1
+     */
+    public double getSqlCacheHitRatio() {
+        long hits = 0, misses = 0;
+        for (DumperShard shard : shards) {
+            hits += shard.dedupParamCache.getHits();
+            misses += shard.dedupParamCache.getMisses();
+        }
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    /**
+     * Returns the number of calls whose trace was dropped by {@link TailSampler}.
+     *
+     * @return number of calls
+     */
+    public long getTailSamplingDroppedCalls() {
+        long dropped = 0;
+        for (DumperShard shard : shards) {
+            if (shard.tailSampler != null) {
+                dropped += shard.tailSampler.getDroppedCalls();
+            }
+        }
+        return dropped;
+    }
+
     public long getArchiveSize() {
         if (dumpFileManager == null) {
             return 0L;
@@ -1384,10 +2095,10 @@ public DumperCallsExporter getDumperCallsExporter() {
         return dumperCallsExporter;
     }
 
-    private static class CallsCompressedLocalAndRemoteOutputStream extends CompressedLocalAndRemoteOutputStream {
+    static class CallsCompressedLocalAndRemoteOutputStream extends CompressedLocalAndRemoteOutputStream {
 
-        private CallsCompressedLocalAndRemoteOutputStream(String name, int rotateThreshold, int version) {
-            super(name, rotateThreshold, version, new CallsState());
+        CallsCompressedLocalAndRemoteOutputStream(String name, int rotateThreshold, int version) {
+            super(name, rotateThreshold, version, new CallsState(version >= 5));
         }
 
         @Override
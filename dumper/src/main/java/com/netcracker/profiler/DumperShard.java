@@ -0,0 +1,186 @@
+package com.netcracker.profiler;
+
+import com.netcracker.profiler.agent.LocalBuffer;
+import com.netcracker.profiler.agent.TimerCache;
+import com.netcracker.profiler.dump.BufferedDataOutputStreamEx;
+import com.netcracker.profiler.dump.DumpShards;
+import com.netcracker.profiler.dump.PendingTrace;
+import com.netcracker.profiler.dump.ThreadState;
+import com.netcracker.profiler.stream.CompressedLocalAndRemoteOutputStream;
+import com.netcracker.profiler.stream.ICompressedLocalAndRemoteOutputStream;
+import com.netcracker.profiler.util.cache.SegmentedClockCache;
+
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.set.hash.THashSet;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Set of per-thread streams (trace, calls, xml, sql) that are written by a single dumper worker.
+ * Threads are assigned to shards by thread id, so all the buffers of a thread are encoded by the same shard
+ * in the order they were produced.
+ *
+ * @see DumpShards
+ */
+class DumperShard {
+    final int index;
+
+    final ICompressedLocalAndRemoteOutputStream traceOs;
+    final ICompressedLocalAndRemoteOutputStream callsOs;
+    final ICompressedLocalAndRemoteOutputStream calls_100_500_Os;
+    final ICompressedLocalAndRemoteOutputStream calls_500_3s_Os;
+    final ICompressedLocalAndRemoteOutputStream calls_3s_60m_Os;
+    final ICompressedLocalAndRemoteOutputStream calls_60mPlus_Os;
+    final ICompressedLocalAndRemoteOutputStream bigParamsOs;
+    final ICompressedLocalAndRemoteOutputStream bigParamsDedupOs;
+
+    /**
+     * Maps hashes of deduplicated values (e.g. SQL) to their addresses in the current sql file.
+     * The size is configured in bytes with {@code SQL_CACHE_BYTES}, defaults to 32 MiB.
+     */
+    final SegmentedClockCache dedupParamCache = new SegmentedClockCache(
+            Long.getLong(Dumper.class.getName() + ".SQL_CACHE_BYTES", 32L * 1024 * 1024));
+
+    /**
+     * Encodes trace records of a single buffer before they are written to {@link #traceOs}.
+     * The size is configured with {@code TRACE_ENCODER_BUFFER_SIZE}, defaults to 64 KiB.
+     */
+    final BufferedDataOutputStreamEx traceEncoder = new BufferedDataOutputStreamEx(
+            Integer.getInteger(Dumper.class.getName() + ".TRACE_ENCODER_BUFFER_SIZE", 64 * 1024));
+
+    /**
+     * Scratch buffer for copying large events out of direct memory.
+     */
+    final byte[] offHeapCopyBuffer = new byte[8192];
+
+    /**
+     * Buffers collected for the shard in the current dump iteration.
+     */
+    final ArrayList<LocalBuffer> pendingBuffers = new ArrayList<LocalBuffer>();
+
+    /**
+     * Tail sampling of the calls of the shard, null if all the calls are kept.
+     */
+    final TailSampler tailSampler;
+
+    // Upper bound of the spare per-call state kept for the virtual threads of the shard
+    private static final int MAX_SPARE_CALL_STATES = 256;
+
+    /**
+     * Parameter maps and held traces taken from the virtual threads that are between calls.
+     * There might be far more virtual threads than the ones in a call, so an idle virtual thread keeps the scalar
+     * fields of its {@link ThreadState} only.
+     */
+    private final ArrayDeque<TIntObjectHashMap<THashSet<String>>> spareParams = new ArrayDeque<TIntObjectHashMap<THashSet<String>>>();
+    private final ArrayDeque<PendingTrace> sparePendingTraces = new ArrayDeque<PendingTrace>();
+
+    DumperShard(int index, boolean writeCallRanges, int callsFormat, TailSampler tailSampler) {
+        this.index = index;
+        this.tailSampler = tailSampler;
+        this.traceOs = new CompressedLocalAndRemoteOutputStream(streamName("trace"),
+                Integer.getInteger(Dumper.class.getName() + ".TRACE_LOG_ROTATE_SIZE", 100 * 1024 * 1024), 0) {
+
+            @Override
+            public void fileRotated() throws IOException {
+                getStream().writeLong(TimerCache.startTime);
+            }
+
+        };
+
+        this.callsOs = new Dumper.CallsCompressedLocalAndRemoteOutputStream(streamName("calls"),
+                Integer.getInteger(Dumper.class.getName() + ".CALLS_LOG_ROTATE_SIZE", 10 * 1024 * 1024), callsFormat);
+
+        int rangeRotateSize = Integer.getInteger(Dumper.class.getName() + ".CALLS_RANGE_LOG_ROTATE_SIZE", 1 * 1024 * 1024);
+        this.calls_100_500_Os = writeCallRanges ? new Dumper.CallsCompressedLocalAndRemoteOutputStream(streamName("calls[100ms-500ms]"),
+                rangeRotateSize, callsFormat) : null;
+
+        this.calls_500_3s_Os = writeCallRanges ? new Dumper.CallsCompressedLocalAndRemoteOutputStream(streamName("calls[500ms-3s]"),
+                rangeRotateSize, callsFormat) : null;
+
+        this.calls_3s_60m_Os = writeCallRanges ? new Dumper.CallsCompressedLocalAndRemoteOutputStream(streamName("calls[3s-60m]"),
+                rangeRotateSize, callsFormat) : null;
+
+        this.calls_60mPlus_Os = writeCallRanges ? new Dumper.CallsCompressedLocalAndRemoteOutputStream(streamName("calls[60m+]"),
+                rangeRotateSize, callsFormat) : null;
+        this.bigParamsOs = new CompressedLocalAndRemoteOutputStream(streamName("xml"),
+                Integer.getInteger(Dumper.class.getName() + ".XML_LOG_ROTATE_SIZE", 100 * 1024 * 1024), 0
+        );
+
+        this.bigParamsDedupOs = new CompressedLocalAndRemoteOutputStream(streamName("sql"),
+                Integer.getInteger(Dumper.class.getName() + ".SQL_LOG_ROTATE_SIZE", 100 * 1024 * 1024), 0
+        ) {
+            @Override
+            public void fileRotated() throws IOException {
+                dedupParamCache.clear();
+            }
+        };
+        bigParamsDedupOs.setDependentStream(traceOs);
+    }
+
+    /**
+     * Takes the per-call state from the thread that has completed its call, see {@link #resumeCallState(ThreadState)}.
+     *
+     * @param thread state of an idle virtual thread with no parameters collected
+     */
+    void suspendCallState(ThreadState thread) {
+        if (spareParams.size() < MAX_SPARE_CALL_STATES) {
+            spareParams.add(thread.params);
+        }
+        thread.params = null;
+        PendingTrace pendingTrace = thread.pendingTrace;
+        if (pendingTrace != null) {
+            thread.pendingTrace = null;
+            if (sparePendingTraces.size() < MAX_SPARE_CALL_STATES) {
+                sparePendingTraces.add(pendingTrace);
+            }
+        }
+    }
+
+    /**
+     * Gives the per-call state back to the thread before its next records are written.
+     *
+     * @param thread state of a virtual thread
+     */
+    void resumeCallState(ThreadState thread) {
+        if (thread.params != null) {
+            return;
+        }
+        TIntObjectHashMap<THashSet<String>> params = spareParams.poll();
+        thread.params = params == null ? new TIntObjectHashMap<THashSet<String>>() : params;
+        // Null is fine, the trace is created on demand
+        thread.pendingTrace = sparePendingTraces.poll();
+    }
+
+    private String streamName(String name) {
+        return DumpShards.getStreamName(name, index);
+    }
+
+    /**
+     * Returns the index of the current file of the stream as it should be referenced from the other streams.
+     *
+     * @param stream one of the streams of this shard
+     * @return file index with the shard number in the upper bits
+     */
+    int getFileIndex(ICompressedLocalAndRemoteOutputStream stream) {
+        return DumpShards.encodeFileIndex(index, stream.getIndex());
+    }
+
+    /**
+     * Streams that are sent to the collector. The collector does not know about shards, so it is used for shard 0 only.
+     */
+    List<ICompressedLocalAndRemoteOutputStream> getRemoteStreams() {
+        return Arrays.asList(traceOs, callsOs, bigParamsOs, bigParamsDedupOs);
+    }
+
+    List<ICompressedLocalAndRemoteOutputStream> getOutputStreams() {
+        List<ICompressedLocalAndRemoteOutputStream> streams = new ArrayList<ICompressedLocalAndRemoteOutputStream>(getRemoteStreams());
+        if (calls_100_500_Os != null) {
+            streams.addAll(Arrays.asList(calls_100_500_Os, calls_500_3s_Os, calls_3s_60m_Os, calls_60mPlus_Os));
+        }
+        return streams;
+    }
+}
@@ -0,0 +1,103 @@
+package com.netcracker.profiler;
+
+import gnu.trove.map.hash.TIntIntHashMap;
+
+/**
+ * Decides which calls keep their trace once the call completes (tail-based sampling).
+ * <p>
+ * Slow, red and failed calls, as well as the calls marked for persistence, are always kept. Fast calls are kept up to
+ * {@link #CALLS_PER_SECOND} per second for each root method, the rest are dropped from trace and calls streams
+ * while they still feed metrics and call export. Each {@link DumperShard} has its own sampler, so the sampler
+ * is not thread-safe and the rate is split between the shards.
+ */
+class TailSampler {
+    /**
+     * Number of fast calls per root method and second that keep their trace. Defaults to -1, that is tail sampling
+     * is disabled and all the calls are kept.
+     */
+    static final int CALLS_PER_SECOND = Integer.getInteger(Dumper.class.getName() + ".TAIL_SAMPLING_CALLS_PER_SECOND", -1);
+    /**
+     * Calls that are at least that long are always kept. Defaults to 500 ms.
+     */
+    static final int SLOW_CALL_DURATION = Integer.getInteger(Dumper.class.getName() + ".TAIL_SAMPLING_SLOW_CALL_DURATION", 500);
+    /**
+     * The trace of a call is held in memory until the call completes. Once the held trace exceeds the size, the call
+     * is kept, so long calls do not consume memory. Defaults to 256 KiB.
+     */
+    static final int MAX_PENDING_BYTES = Integer.getInteger(Dumper.class.getName() + ".TAIL_SAMPLING_MAX_PENDING_BYTES", 256 * 1024);
+
+    private final int callsPerSecond;
+    private final int slowCallDuration;
+    private final int maxPendingBytes;
+
+    private final TIntIntHashMap keptCalls = new TIntIntHashMap();
+    private long second;
+
+    private volatile long dropped;
+
+    TailSampler(int callsPerSecond, int slowCallDuration, int maxPendingBytes) {
+        this.callsPerSecond = callsPerSecond;
+        this.slowCallDuration = slowCallDuration;
+        this.maxPendingBytes = maxPendingBytes;
+    }
+
+    /**
+     * Creates the sampler of a shard.
+     *
+     * @param callsPerSecond number of fast calls per root method and second for all the shards, negative to
+     *                       disable tail sampling
+     * @param shards         number of shards
+     * @return sampler or null if tail sampling is disabled
+     */
+    static TailSampler create(int callsPerSecond, int shards) {
+        if (callsPerSecond < 0) {
+            return null;
+        }
+        return new TailSampler((callsPerSecond + shards - 1) / shards, SLOW_CALL_DURATION, MAX_PENDING_BYTES);
+    }
+
+    /**
+     * Decides if the completed call keeps its trace.
+     *
+     * @param method    root method of the call
+     * @param duration  call duration in milliseconds
+     * @param important true if the call is red or failed
+     * @param persist   true if the call is marked for persistence
+     * @param now       current time in milliseconds
+     * @return true if the trace of the call should be kept
+     */
+    boolean keep(int method, long duration, boolean important, boolean persist, long now) {
+        if (important || persist || duration >= slowCallDuration) {
+            return true;
+        }
+        long second = now / 1000;
+        if (second != this.second) {
+            this.second = second;
+            keptCalls.clear();
+        }
+        if (keptCalls.adjustOrPutValue(method, 1, 1) <= callsPerSecond) {
+            return true;
+        }
+        dropped++;
+        return false;
+    }
+
+    /**
+     * Returns true if the held trace is too large to wait for the call to complete.
+     *
+     * @param pendingBytes size of the held trace
+     * @return true if the call should be kept right away
+     */
+    boolean isPendingTraceTooLarge(int pendingBytes) {
+        return pendingBytes > maxPendingBytes;
+    }
+
+    /**
+     * Returns the number of calls whose trace was dropped.
+     *
+     * @return number of calls
+     */
+    long getDroppedCalls() {
+        return dropped;
+    }
+}
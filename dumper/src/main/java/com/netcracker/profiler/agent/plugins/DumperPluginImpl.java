@@ -20,13 +20,15 @@
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Semaphore;
 
-public class DumperPluginImpl implements DumperPlugin_10 {
+public class DumperPluginImpl implements DumperPlugin_14 {
     private final static Logger log = LoggerFactory.getLogger(DumperPluginImpl.class);
     Dumper dumper;
     DumperThread dumperThread;
@@ -77,7 +79,7 @@ private void reconfigureCallsExporter(NetworkExportParams exportParams) {
             } else {
                 dataSender.configure(exportParams);
             }
-            dumper.getDumperCallsExporter().configureExport(dataSender.getJsonsToSend(), dataSender.getEmptyJsonBuffers(), exportParams);
+            dumper.getDumperCallsExporter().configureExport(dataSender, exportParams);
         } else if(dataSender != null) {
             dumper.getDumperCallsExporter().configureExport(null, null, null);
             dataSender.shutdown();
@@ -172,6 +174,41 @@ public long getWriteTime() {
         return dumper.getDumpTime();
     }
 
+    public long getCompressTime() {
+        final Dumper dumper = this.dumper;
+        if (dumper == null)
+            return 0;
+        return dumper.getCompressTime();
+    }
+
+    public int getCompressQueueDepth() {
+        final Dumper dumper = this.dumper;
+        if (dumper == null)
+            return 0;
+        return dumper.getCompressQueueDepth();
+    }
+
+    public long getRemoteSpillSize() {
+        final Dumper dumper = this.dumper;
+        if (dumper == null)
+            return 0;
+        return dumper.getRemoteSpillSize();
+    }
+
+    public long getRemoteReplayLag() {
+        final Dumper dumper = this.dumper;
+        if (dumper == null)
+            return 0;
+        return dumper.getRemoteReplayLag();
+    }
+
+    public double getSqlCacheHitRatio() {
+        final Dumper dumper = this.dumper;
+        if (dumper == null)
+            return 0;
+        return dumper.getSqlCacheHitRatio();
+    }
+
     public long getDumperStartTime() {
         final Dumper dumper = this.dumper;
         if (dumper == null)
@@ -289,6 +326,10 @@ public String getMetrics() {
         return metricsPlugin.getMetrics();
     }
 
+    public void writeMetrics(OutputStream out, boolean openMetrics) throws IOException {
+        metricsPlugin.writeMetrics(out, openMetrics);
+    }
+
     @Override
     public void injectCollectorClientFactory(DumperCollectorClientFactory toInject) {
         CollectorClientFactory.injectFactory(toInject);
@@ -0,0 +1,615 @@
+package com.netcracker.profiler.client;
+
+import com.netcracker.profiler.agent.DumperCollectorClient;
+import com.netcracker.profiler.agent.DumperConstants;
+import com.netcracker.profiler.agent.DumperRemoteControlledStream;
+import com.netcracker.profiler.agent.LocalState;
+import com.netcracker.profiler.agent.Profiler;
+import com.netcracker.profiler.agent.ProfilerData;
+import com.netcracker.profiler.cloud.transport.ProfilerProtocolBlacklistedException;
+import com.netcracker.profiler.cloud.transport.ProfilerProtocolException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the data to the collector on a dedicated thread, so network hiccups never stall the Dumper.
+ * <p>
+ * The Dumper only enqueues operations (open stream, data, flush). The in-memory queue is bounded by
+ * {@link #QUEUE_SIZE}: when the collector is slow or unreachable, the operations are appended to a memory-mapped
+ * {@link SpillJournal} instead, and the sender drains the journal in order once it catches up.
+ * <p>
+ * When the connection breaks, the collector might have stored any part of the data sent since the last acknowledged
+ * flush, so the data cannot be resent without shifting the offsets the other streams refer to. The chunks with
+ * unacknowledged data are abandoned instead: the rest of their data is dropped and the Dumper rotates the streams
+ * (see {@link #pollLostStreams()}), so the collector sees truncated chunks rather than corrupted ones. The other
+ * streams are re-opened on the new connection and continue the same chunks. If the journal reaches
+ * {@link #SPILL_SIZE} as well, the rest of the current chunk of the stream is dropped until the next chunk starts.
+ * <p>
+ * Rolling sequence ids are not negotiated synchronously: the collector echoes the requested id, and the rotation
+ * settings reported for the first stream are used for the rest of them.
+ */
+public class AsyncCollectorClient implements DumperCollectorClient {
+    private static final Logger log = LoggerFactory.getLogger(AsyncCollectorClient.class);
+
+    /**
+     * Size of the in-memory send queue in bytes, the data above that is spilled to disk.
+     * Defaults to 4 MiB.
+     */
+    private static final int QUEUE_SIZE = Integer.getInteger(AsyncCollectorClient.class.getName() + ".QUEUE_SIZE", 4 * 1024 * 1024);
+    /**
+     * Maximal size of the spilled data in MiB. Defaults to 256 MiB.
+     */
+    private static final long SPILL_SIZE = Integer.getInteger(AsyncCollectorClient.class.getName() + ".SPILL_SIZE", 256) * 1024L * 1024;
+    /**
+     * Size of a spill file in bytes. Defaults to 16 MiB.
+     */
+    private static final int SPILL_SEGMENT_SIZE = Integer.getInteger(AsyncCollectorClient.class.getName() + ".SPILL_SEGMENT_SIZE", 16 * 1024 * 1024);
+    /**
+     * Folder for spill files, every client uses its own subfolder. Defaults to {@code profiler-spill} in {@code java.io.tmpdir}.
+     */
+    private static final String SPILL_DIR = System.getProperty(AsyncCollectorClient.class.getName() + ".SPILL_DIR",
+            new File(System.getProperty("java.io.tmpdir"), "profiler-spill").getPath());
+    /**
+     * Delay between reconnect attempts in milliseconds. Defaults to 5 seconds.
+     */
+    private static final long RECONNECT_INTERVAL = Integer.getInteger(AsyncCollectorClient.class.getName() + ".RECONNECT_INTERVAL", 5000);
+    /**
+     * Number of bytes the sender might send without an acknowledgement, the chunks that have unacknowledged data
+     * are abandoned when the connection breaks. Defaults to 1 MiB.
+     */
+    private static final int ACK_WINDOW = Integer.getInteger(AsyncCollectorClient.class.getName() + ".ACK_WINDOW", 1024 * 1024);
+    /**
+     * How long {@link #close()} waits for the sender to deliver the queued data, in milliseconds. Defaults to 5 seconds.
+     */
+    private static final long CLOSE_TIMEOUT = Integer.getInteger(AsyncCollectorClient.class.getName() + ".CLOSE_TIMEOUT", 5000);
+    /**
+     * How long the first {@link #createRollingChunk(String, int, boolean)} waits for the rotation settings of the
+     * collector, in milliseconds. Defaults to 5 seconds.
+     */
+    private static final long INIT_TIMEOUT = Integer.getInteger(AsyncCollectorClient.class.getName() + ".INIT_TIMEOUT", 5000);
+
+    public static final int SEND_METHOD_ID = ProfilerData.resolveTag("void " + AsyncCollectorClient.class.getName() + ".send() (AsyncCollectorClient.java:100) [profiler-runtime.jar]") | DumperConstants.DATA_ENTER_RECORD;
+
+    static final byte INIT = 0;
+    static final byte DATA = 1;
+    static final byte FLUSH = 2;
+
+    /**
+     * Consecutive writes to the same stream are merged into a single data operation up to this size while they wait for the sender.
+     */
+    private static final int CHUNK_SIZE = 16 * 1024;
+    /**
+     * Idle time after which the sender requests an acknowledgement for the data sent so far.
+     */
+    private static final long IDLE_CONFIRM_DELAY = 1000;
+
+    private final DumperCollectorClient delegate;
+    private final Sender sender;
+
+    private final Object lock = new Object();
+    // Guarded by lock
+    private final ArrayDeque<Op> queue = new ArrayDeque<Op>();
+    private long queuedBytes;
+    private final SpillJournal journal;
+    private final Set<String> truncatedStreams = new HashSet<String>();
+    private final Set<String> lostStreams = new HashSet<String>();
+    private long droppedBytes;
+    private boolean dropping;
+    private boolean closed;
+    private long closeDeadline;
+
+    private volatile Throwable failure;
+    private volatile long rotationPeriod;
+    private volatile long requiredRotationSize;
+    private final CountDownLatch rotationSettingsReceived = new CountDownLatch(1);
+    // Accessed by the Dumper thread only
+    private boolean rotationSettingsAwaited;
+
+    // Accessed by the sender thread only
+    private boolean connected = true;
+    // Bytes written to each stream since the last acknowledged flush
+    private final Map<String, long[]> unackedStreams = new HashMap<String, long[]>();
+    private long unackedBytes;
+    private final Map<String, Op> streams = new HashMap<String, Op>();
+
+    /**
+     * @param delegate connected client, it is used by the sender thread only
+     */
+    public AsyncCollectorClient(DumperCollectorClient delegate) {
+        this.delegate = delegate;
+        this.journal = new SpillJournal(new File(SPILL_DIR, delegate.getPodName() + "-" + System.currentTimeMillis()),
+                Math.max(CHUNK_SIZE * 4, SPILL_SEGMENT_SIZE), SPILL_SIZE);
+        this.sender = new Sender();
+        sender.start();
+    }
+
+    public DumperRemoteControlledStream createRollingChunk(String streamName, int requestedRollingSequenceId, boolean resetRequired) throws IOException {
+        synchronized (lock) {
+            checkOpen();
+            // Data of the previous chunk was dropped, the new chunk starts clean
+            truncatedStreams.remove(streamName);
+            enqueue(new Op(INIT, streamName, requestedRollingSequenceId, resetRequired, null, 0, System.currentTimeMillis()));
+        }
+        if (!rotationSettingsAwaited) {
+            rotationSettingsAwaited = true;
+            try {
+                if (!rotationSettingsReceived.await(INIT_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    log.info("Collector did not report rotation settings in {} ms, rotating streams by local settings only", INIT_TIMEOUT);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return CollectorClientFactory.instance().wrapOutputStream(
+                requestedRollingSequenceId,
+                streamName,
+                rotationPeriod,
+                requiredRotationSize,
+                this
+        );
+    }
+
+    public void write(byte[] bytes, int offset, int length, String streamName) throws IOException {
+        synchronized (lock) {
+            checkOpen();
+            if (truncatedStreams.contains(streamName)) {
+                droppedBytes += length;
+                return;
+            }
+            while (length > 0) {
+                Op tail = journal.isEmpty() ? queue.peekLast() : null;
+                if (tail != null && tail.kind == DATA && tail.length < CHUNK_SIZE && tail.streamName.equals(streamName)) {
+                    int n = Math.min(length, CHUNK_SIZE - tail.length);
+                    if (tail.length + n > tail.data.length) {
+                        tail.data = Arrays.copyOf(tail.data, Math.min(CHUNK_SIZE, Math.max(tail.length + n, tail.data.length * 2)));
+                    }
+                    System.arraycopy(bytes, offset, tail.data, tail.length, n);
+                    tail.length += n;
+                    queuedBytes += n;
+                    offset += n;
+                    length -= n;
+                    continue;
+                }
+                int n = Math.min(length, CHUNK_SIZE);
+                byte[] data = new byte[n];
+                System.arraycopy(bytes, offset, data, 0, n);
+                enqueue(new Op(DATA, streamName, 0, false, data, n, System.currentTimeMillis()));
+                offset += n;
+                length -= n;
+            }
+        }
+    }
+
+    public void flush() throws IOException {
+        synchronized (lock) {
+            checkOpen();
+            Op tail = queue.peekLast();
+            if (tail != null && tail.kind == FLUSH && journal.isEmpty()) {
+                return;
+            }
+            enqueue(new Op(FLUSH, "", 0, false, null, 0, System.currentTimeMillis()));
+        }
+    }
+
+    public void requestAckFlush(boolean doFlush) throws IOException {
+        flush();
+    }
+
+    /**
+     * The acknowledgements are handled by the sender thread, so this only checks whether the sender has taken all the data.
+     *
+     * @param sync ignored, the method never blocks
+     * @return true if there is no data waiting for the sender
+     */
+    public boolean validateWriteDataAcks(boolean sync) throws IOException {
+        synchronized (lock) {
+            return queue.isEmpty() && journal.isEmpty();
+        }
+    }
+
+    /**
+     * Delivers the queued data within {@link #CLOSE_TIMEOUT} and closes the connection. The data that was not
+     * delivered by then is dropped.
+     */
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            closeDeadline = System.currentTimeMillis() + CLOSE_TIMEOUT;
+            lock.notifyAll();
+        }
+        try {
+            sender.join(CLOSE_TIMEOUT + 1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (sender.isAlive()) {
+            log.warn("Collector sender thread did not stop in {} ms", CLOSE_TIMEOUT);
+        }
+    }
+
+    /**
+     * The client accepts data while it is open, no matter if the collector is reachable.
+     *
+     * @return true unless the client is closed or the collector rejected the connection
+     */
+    public boolean isOnline() {
+        synchronized (lock) {
+            return !closed && failure == null;
+        }
+    }
+
+    public String getPodName() {
+        return delegate.getPodName();
+    }
+
+    public long getVersion() {
+        return delegate.getVersion();
+    }
+
+    /**
+     * Returns the amount of data spilled to disk and not sent yet.
+     *
+     * @return spilled bytes
+     */
+    public long getSpillSize() {
+        synchronized (lock) {
+            return journal.size();
+        }
+    }
+
+    /**
+     * Returns the age of the oldest data that waits for the sender.
+     *
+     * @return replay lag in milliseconds, 0 if the sender keeps up
+     */
+    public long getReplayLag() {
+        long oldest;
+        synchronized (lock) {
+            Op head = queue.peekFirst();
+            oldest = head != null ? head.enqueuedAt : journal.peekEnqueuedAt();
+        }
+        return oldest == 0 ? 0 : Math.max(0, System.currentTimeMillis() - oldest);
+    }
+
+    /**
+     * Returns the streams whose chunks were abandoned after a connection loss. The data written to the current chunk
+     * of such a stream is dropped, so the stream should be rotated.
+     *
+     * @return names of the streams to rotate, the set is cleared on each call
+     */
+    public Set<String> pollLostStreams() {
+        synchronized (lock) {
+            if (lostStreams.isEmpty()) {
+                return Collections.emptySet();
+            }
+            Set<String> result = new HashSet<String>(lostStreams);
+            lostStreams.clear();
+            return result;
+        }
+    }
+
+    /**
+     * Returns the amount of data dropped because the spill limit was reached or the connection was lost.
+     *
+     * @return dropped bytes
+     */
+    public long getDroppedBytes() {
+        synchronized (lock) {
+            return droppedBytes;
+        }
+    }
+
+    private void checkOpen() {
+        Throwable t = failure;
+        if (t instanceof ProfilerProtocolException) {
+            throw (ProfilerProtocolException) t;
+        }
+        if (t != null) {
+            throw new ProfilerProtocolException(t);
+        }
+        if (closed) {
+            throw new ProfilerProtocolException("Collector client is closed");
+        }
+    }
+
+    private void enqueue(Op op) {
+        if (journal.isEmpty() && queuedBytes + op.length <= QUEUE_SIZE) {
+            if (queue.isEmpty()) {
+                lock.notifyAll();
+            }
+            queue.addLast(op);
+            queuedBytes += op.length;
+            return;
+        }
+        try {
+            // Control operations are tiny, and the data that follows them depends on them
+            if (journal.append(op, op.kind != DATA)) {
+                return;
+            }
+        } catch (IOException e) {
+            log.warn("Unable to spill collector data", e);
+        }
+        droppedBytes += op.length;
+        if (op.kind != FLUSH) {
+            truncatedStreams.add(op.streamName);
+        }
+        if (!dropping) {
+            dropping = true;
+            log.warn("Collector data spill is full ({} bytes), dropping the rest of the current chunk of {}", journal.size(), op.streamName);
+        }
+    }
+
+    private Op poll() {
+        Op op = queue.pollFirst();
+        if (op != null) {
+            queuedBytes -= op.length;
+        } else {
+            op = journal.poll();
+        }
+        if (journal.isEmpty()) {
+            dropping = false;
+        }
+        return op;
+    }
+
+    private boolean isClosed() {
+        synchronized (lock) {
+            return closed;
+        }
+    }
+
+    private static boolean isBlacklisted(Throwable t) {
+        for (; t != null; t = t.getCause()) {
+            if (t instanceof ProfilerProtocolBlacklistedException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static class Op {
+        final byte kind;
+        final String streamName;
+        final int rollingSequenceId;
+        final boolean resetRequired;
+        byte[] data;
+        int length;
+        final long enqueuedAt;
+
+        Op(byte kind, String streamName, int rollingSequenceId, boolean resetRequired, byte[] data, int length, long enqueuedAt) {
+            this.kind = kind;
+            this.streamName = streamName;
+            this.rollingSequenceId = rollingSequenceId;
+            this.resetRequired = resetRequired;
+            this.data = data;
+            this.length = length;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+
+    private class Sender extends Thread {
+        Sender() {
+            super("Profiler collector sender");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            // Sender thread must not be profiled, otherwise it would feed itself with buffers
+            Profiler.markSystem();
+            LocalState state = Profiler.getState();
+            try {
+                while (failure == null) {
+                    if (!connected) {
+                        if (isClosed()) {
+                            break;
+                        }
+                        if (!reconnect(state)) {
+                            pause();
+                            continue;
+                        }
+                    }
+                    Op op = take();
+                    if (op != null) {
+                        send(op, state);
+                        continue;
+                    }
+                    confirm(state);
+                    if (isClosed()) {
+                        break;
+                    }
+                }
+            } catch (InterruptedException e) {
+                log.debug("Collector sender thread is interrupted");
+            } finally {
+                shutdown();
+            }
+        }
+
+        private Op take() throws InterruptedException {
+            synchronized (lock) {
+                while (true) {
+                    if (closed && System.currentTimeMillis() > closeDeadline) {
+                        return null;
+                    }
+                    Op op = poll();
+                    if (op != null || closed) {
+                        return op;
+                    }
+                    if (!unackedStreams.isEmpty()) {
+                        lock.wait(IDLE_CONFIRM_DELAY);
+                        return poll();
+                    }
+                    lock.wait();
+                }
+            }
+        }
+
+        private void pause() throws InterruptedException {
+            synchronized (lock) {
+                if (!closed) {
+                    lock.wait(RECONNECT_INTERVAL);
+                }
+            }
+        }
+
+        private void send(Op op, LocalState state) {
+            // Explicit enter and exit prevent the thread from emitting calls due to socket writes
+            state.enter(SEND_METHOD_ID);
+            try {
+                if (op.kind == FLUSH) {
+                    confirmUnacked();
+                    return;
+                }
+                if (op.kind == DATA && !streams.containsKey(op.streamName)) {
+                    log.debug("Dropping {} bytes of stream {} as the stream was not opened", op.length, op.streamName);
+                    synchronized (lock) {
+                        droppedBytes += op.length;
+                    }
+                    return;
+                }
+                long[] unacked = unackedStreams.get(op.streamName);
+                if (unacked == null) {
+                    unackedStreams.put(op.streamName, unacked = new long[1]);
+                }
+                unacked[0] += op.length;
+                unackedBytes += op.length;
+                apply(op);
+                if (unackedBytes >= ACK_WINDOW) {
+                    confirmUnacked();
+                }
+            } catch (Throwable t) {
+                connectionLost(t);
+            } finally {
+                state.exit();
+            }
+        }
+
+        private void confirm(LocalState state) {
+            state.enter(SEND_METHOD_ID);
+            try {
+                confirmUnacked();
+            } catch (Throwable t) {
+                connectionLost(t);
+            } finally {
+                state.exit();
+            }
+        }
+
+        private void confirmUnacked() throws IOException {
+            if (unackedStreams.isEmpty()) {
+                return;
+            }
+            // Waits for the collector to acknowledge everything sent so far
+            delegate.flush();
+            unackedStreams.clear();
+            unackedBytes = 0;
+        }
+
+        private void apply(Op op) throws IOException {
+            if (op.kind == DATA) {
+                delegate.write(op.data, 0, op.length, op.streamName);
+                return;
+            }
+            DumperRemoteControlledStream stream = delegate.createRollingChunk(op.streamName, op.rollingSequenceId, op.resetRequired);
+            streams.put(op.streamName, op);
+            rotationPeriod = stream.getRotationPeriod();
+            requiredRotationSize = stream.getRequiredRotationSize();
+            rotationSettingsReceived.countDown();
+            if (stream.getRollingSequenceId() != op.rollingSequenceId) {
+                log.warn("Collector assigned rolling sequence {} to stream {} instead of requested {}",
+                        stream.getRollingSequenceId(), op.streamName, op.rollingSequenceId);
+            }
+        }
+
+        private boolean reconnect(LocalState state) {
+            state.enter(SEND_METHOD_ID);
+            try {
+                // The collector has all the data of the remaining chunks, so the chunks are continued rather than reset
+                for (Op init : new ArrayList<Op>(streams.values())) {
+                    apply(new Op(INIT, init.streamName, init.rollingSequenceId, false, null, 0, init.enqueuedAt));
+                }
+                connected = true;
+                log.info("Connection to the collector is restored, re-opened {} streams", streams.size());
+                return true;
+            } catch (Throwable t) {
+                if (isBlacklisted(t)) {
+                    connectionLost(t);
+                } else {
+                    log.debug("Unable to reconnect to the collector", t);
+                }
+                return false;
+            } finally {
+                state.exit();
+            }
+        }
+
+        private void connectionLost(Throwable t) {
+            if (isBlacklisted(t)) {
+                log.warn("Collector rejected the connection, stopping sending data: {}", t.getMessage());
+                failure = t;
+            } else if (connected) {
+                log.warn("Lost connection to the collector, the data is kept until the connection is restored", t);
+            }
+            abandonUnackedChunks();
+            connected = false;
+        }
+
+        /**
+         * Stops sending the chunks that have unacknowledged data and asks the Dumper to rotate the streams.
+         * The data of such a chunk that was queued or is written until the rotation is dropped.
+         */
+        private void abandonUnackedChunks() {
+            if (unackedStreams.isEmpty()) {
+                return;
+            }
+            for (Map.Entry<String, long[]> entry : unackedStreams.entrySet()) {
+                String streamName = entry.getKey();
+                Op init = streams.remove(streamName);
+                log.warn("Abandoning chunk {} of stream {}: collector might have received a part of its last {} bytes," +
+                                " the rest of the chunk is dropped and the stream will be rotated",
+                        init == null ? "(not opened)" : init.rollingSequenceId, streamName, entry.getValue()[0]);
+            }
+            synchronized (lock) {
+                truncatedStreams.addAll(unackedStreams.keySet());
+                lostStreams.addAll(unackedStreams.keySet());
+                droppedBytes += unackedBytes;
+            }
+            unackedStreams.clear();
+            unackedBytes = 0;
+        }
+
+        private void shutdown() {
+            long pending;
+            synchronized (lock) {
+                closed = true;
+                pending = queuedBytes + journal.size();
+                queue.clear();
+                queuedBytes = 0;
+                journal.close();
+                lock.notifyAll();
+            }
+            if (pending > 0) {
+                log.warn("Dropped {} bytes of collector data that were not delivered before close", pending);
+            }
+            if (!connected) {
+                return;
+            }
+            try {
+                delegate.close();
+            } catch (Throwable t) {
+                log.debug("Failed to close collector connection", t);
+            }
+        }
+    }
+}
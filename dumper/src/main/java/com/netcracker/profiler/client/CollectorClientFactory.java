@@ -8,6 +8,12 @@
 public class CollectorClientFactory implements DumperCollectorClientFactory {
     private static final ESCLogger log = ESCLogger.getLogger(CollectorClientFactory.class);
 
+    /**
+     * Sends data to the collector synchronously from the dumper thread, as it was before {@link AsyncCollectorClient}.
+     * Defaults to false.
+     */
+    private static final boolean ASYNC_SEND_DISABLED = Boolean.getBoolean(CollectorClientFactory.class.getName() + ".ASYNC_SEND_DISABLED");
+
     private static volatile DumperCollectorClientFactory INSTANCE;
 
     public static DumperCollectorClientFactory instance() {
@@ -33,7 +39,11 @@ public DumperCollectorClient newClient(String host,
                                            String microserviceName,
                                            String podName){
         log.fine("Initializing default client");
-        return new DefaultCollectorClient(host, port, ssl, cloudNamespace, microserviceName, podName);
+        DefaultCollectorClient client = new DefaultCollectorClient(host, port, ssl, cloudNamespace, microserviceName, podName);
+        if (ASYNC_SEND_DISABLED) {
+            return client;
+        }
+        return new AsyncCollectorClient(client);
     }
 
     @Override
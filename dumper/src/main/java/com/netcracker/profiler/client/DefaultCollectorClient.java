@@ -11,6 +11,9 @@
 import com.netcracker.profiler.cloud.transport.ProfilerProtocolException;
 import com.netcracker.profiler.util.StringUtils;
 
+import io.airlift.compress.Compressor;
+import io.airlift.compress.lz4.Lz4Compressor;
+import io.airlift.compress.zstd.ZstdCompressor;
 import org.apache.http.ssl.SSLContextBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -43,6 +46,17 @@ public class DefaultCollectorClient implements DumperCollectorClient {
     public static final String  TLS_KEYSTORE_PATH = "TLS_KEYSTORE_PATH";
     public static final String  TLS_KEYSTORE_PASSWORD = "TLS_KEYSTORE_PWD";
 
+    /**
+     * Disables {@link com.netcracker.profiler.cloud.transport.ProtocolConst#PROTOCOL_VERSION_V4} batched frames,
+     * so the client sends 1 KiB data commands as before.
+     */
+    private static final boolean BATCHING_DISABLED = Boolean.getBoolean(DefaultCollectorClient.class.getName() + ".BATCHING_DISABLED");
+    /**
+     * Compression of batched frames: {@code none}, {@code lz4} or {@code zstd}. The frames are sent uncompressed
+     * if the collector does not support the codec. Defaults to lz4.
+     */
+    private static final String FRAME_CODEC = System.getProperty(DefaultCollectorClient.class.getName() + ".FRAME_CODEC", "lz4");
+
     public static final int NUM_RETRY_ATTEMPTS = 2;
     public static final int PAUSE_BETWEEN_RETRIES_MILLIS = 1000;
 
@@ -66,6 +80,15 @@ public class DefaultCollectorClient implements DumperCollectorClient {
     private final Map<UUID, Process> runningCommands = new HashMap<>();
     private final Map<String, UUID> streamHandles = new HashMap<>();
 
+    // Protocol V4 state
+    private final Map<String, Short> streamIds = new HashMap<>();
+    private final byte[] batch = new byte[BATCH_FRAME_SIZE];
+    private int batchLength;
+    private int lastSequence;
+    private byte frameCodec;
+    private Compressor frameCompressor;
+    private byte[] compressedBatch;
+
     public DefaultCollectorClient(String host,
                                   int port,
                                   boolean ssl,
@@ -132,20 +155,26 @@ private FieldIO getFieldIO() throws IOException {
             in = new BufferedInputStream(new EndlessSocketInputStream(sin), DATA_BUFFER_SIZE);
             fieldIO = new FieldIO(socket, in, out);
             out.write(COMMAND_GET_PROTOCOL_VERSION_V2);
-            fieldIO.writeLong(PROTOCOL_VERSION_V3);
+            fieldIO.writeLong(BATCHING_DISABLED ? PROTOCOL_VERSION_V3 : PROTOCOL_VERSION_V4);
             fieldIO.writeString(podName);
             fieldIO.writeString(microserviceName);
             fieldIO.writeString(cloudNamespace);
             out.flush();
             long version = fieldIO.readLong();
 
-            if (version == PROTOCOL_VERSION_V2 || version == PROTOCOL_VERSION_V3) {
+            if (version == PROTOCOL_VERSION_V2 || version == PROTOCOL_VERSION_V3 || version == PROTOCOL_VERSION_V4) {
                 log.debug("Plain socket client connected. Using protocol version {}. ssl: {}", version, ssl);
                 needsReconnect = false;
                 pendingAcks = 0;
                 runningCommands.clear();
                 streamHandles.clear();
+                streamIds.clear();
+                batchLength = 0;
+                lastSequence = 0;
                 this.version = version;
+                if (version == PROTOCOL_VERSION_V4) {
+                    selectFrameCodec(fieldIO.readInt());
+                }
             } else if (version == BLACK_LISTED_RESP) {
                 log.debug("Blacklisted Namespace: {}.", cloudNamespace);
                 needsReconnect = false;
@@ -166,6 +195,30 @@ private FieldIO getFieldIO() throws IOException {
         return fieldIO;
     }
 
+    private void selectFrameCodec(int supportedCodecs) {
+        frameCodec = FRAME_CODEC_NONE;
+        frameCompressor = null;
+        compressedBatch = null;
+        byte requested;
+        if ("lz4".equalsIgnoreCase(FRAME_CODEC)) {
+            requested = FRAME_CODEC_LZ4;
+        } else if ("zstd".equalsIgnoreCase(FRAME_CODEC)) {
+            requested = FRAME_CODEC_ZSTD;
+        } else {
+            if (!"none".equalsIgnoreCase(FRAME_CODEC)) {
+                log.warn("Unknown frame codec {}, frames will be sent uncompressed", FRAME_CODEC);
+            }
+            return;
+        }
+        if ((supportedCodecs & (1 << requested)) == 0) {
+            log.info("Collector does not support frame codec {}, frames will be sent uncompressed", FRAME_CODEC);
+            return;
+        }
+        frameCodec = requested;
+        frameCompressor = requested == FRAME_CODEC_LZ4 ? new Lz4Compressor() : new ZstdCompressor();
+        compressedBatch = new byte[frameCompressor.maxCompressedLength(BATCH_FRAME_SIZE)];
+    }
+
     private SSLContext getSSLContext() throws IOException, KeyStoreException, NoSuchAlgorithmException, CertificateException, UnrecoverableKeyException, KeyManagementException {
         SSLContext sslContext = null;
         String keystoreFilePath = System.getenv(ENV_KEYSTORE_FILE_PATH);
@@ -246,6 +299,9 @@ public void close() throws IOException {
         }
         try {
             if (out != null) {
+                if (version == PROTOCOL_VERSION_V4) {
+                    sendBatch();
+                }
                 out.write(COMMAND_CLOSE);
                 out.flush();
             }
@@ -280,11 +336,19 @@ private DumperRemoteControlledStream attemptCreateRollingChunk(final String stre
         io.writeInt(resetRequired ? 1 : 0);
         out.flush();
 
-        UUID streamHandle = io.readUUID();
-        if (streamHandle == null) {
-            throw new ProfilerProtocolException("failed to open stream " + streamName);
+        if (version == PROTOCOL_VERSION_V4) {
+            short streamId = io.readShort();
+            if (streamId < 0) {
+                throw new ProfilerProtocolException("failed to open stream " + streamName);
+            }
+            streamIds.put(streamName, streamId);
+        } else {
+            UUID streamHandle = io.readUUID();
+            if (streamHandle == null) {
+                throw new ProfilerProtocolException("failed to open stream " + streamName);
+            }
+            streamHandles.put(streamName, streamHandle);
         }
-        streamHandles.put(streamName, streamHandle);
         long rotationPeriod = io.readLong();
         long requiredRotationSize = io.readLong();
         int serverRollingSequenceId = io.readInt();
@@ -305,6 +369,20 @@ public void write(byte[] bytes,
         if (needsReconnect) {
             throw new ProfilerProtocolException("Client needs reconnect. can not write");
         }
+        if (version == PROTOCOL_VERSION_V4) {
+            Short streamId = streamIds.get(streamName);
+            if (streamId == null) {
+                throw new RuntimeException("Stream " + streamName + " has not been initialized");
+            }
+            try {
+                writeBatched(bytes, offset, length, streamId);
+            } catch (Exception e) {
+                needsReconnect = true;
+                log.error("Failed sending packet to collector", e);
+                throw new ProfilerProtocolException(e);
+            }
+            return;
+        }
         UUID handleId = streamHandles.get(streamName);
         if (handleId == null) {
             throw new RuntimeException("Stream " + streamName + " has not been initialized");
@@ -336,6 +414,63 @@ private void attemptWrite(byte[] bytes,
         //never flush synchronously  and never wait for acknowlegement. flush will be initiated by dumper every 5 sec
     }
 
+    /**
+     * Appends the data to the current frame, the frame is sent once it is full or on flush.
+     */
+    private void writeBatched(byte[] bytes, int offset, int length, short streamId) throws IOException {
+        do {
+            if (batch.length - batchLength <= BATCH_RECORD_HEADER_SIZE) {
+                sendBatch();
+            }
+            int curLength = Math.min(length, batch.length - batchLength - BATCH_RECORD_HEADER_SIZE);
+            putShort(batch, batchLength, streamId);
+            putInt(batch, batchLength + 2, curLength);
+            System.arraycopy(bytes, offset, batch, batchLength + BATCH_RECORD_HEADER_SIZE, curLength);
+            batchLength += BATCH_RECORD_HEADER_SIZE + curLength;
+            offset += curLength;
+            length -= curLength;
+        } while (length > 0);
+    }
+
+    private void sendBatch() throws IOException {
+        if (batchLength == 0) {
+            return;
+        }
+        //check that previous frames were successful
+        validateWriteDataAcks(false);
+        byte codec = FRAME_CODEC_NONE;
+        byte[] payload = batch;
+        int payloadLength = batchLength;
+        if (frameCompressor != null) {
+            int compressedLength = frameCompressor.compress(batch, 0, batchLength, compressedBatch, 0, compressedBatch.length);
+            if (compressedLength < batchLength) {
+                codec = frameCodec;
+                payload = compressedBatch;
+                payloadLength = compressedLength;
+            }
+        }
+        fieldIO.writeCommand(COMMAND_RCV_DATA_BATCH);
+        fieldIO.writeInt(payloadLength);
+        fieldIO.writeInt(batchLength);
+        out.write(codec);
+        out.write(payload, 0, payloadLength);
+        batchLength = 0;
+        lastSequence++;
+        pendingAcks++;
+    }
+
+    private static void putShort(byte[] b, int off, short v) {
+        b[off] = (byte) (v >>> 8);
+        b[off + 1] = (byte) v;
+    }
+
+    private static void putInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+
     /**
      * @param sync - whether to wait for all the acks
      * @return true if no acks are pending
@@ -343,6 +478,7 @@ private void attemptWrite(byte[] bytes,
      */
     public boolean validateWriteDataAcks(boolean sync) throws IOException {
         if (sync) {
+            sendBatch();
             out.flush();
         }
         while (pendingAcks > 0 && (sync || in.available() > 0)) {
@@ -428,6 +564,13 @@ private void validateAckSync() throws IOException {
                     throw new ProfilerProtocolException("Received invalid ack response " + ack);
                 }
             }
+            if (version == PROTOCOL_VERSION_V4) {
+                // Acks are cumulative: the collector confirms all the requests up to the given one
+                int ackedSequence = fieldIO.readInt();
+                dispatchCommands(byteAck);
+                pendingAcks = lastSequence - ackedSequence;
+                return;
+            }
             dispatchCommands(byteAck);
             pendingAcks--;
         } catch (SocketTimeoutException e) {
@@ -436,6 +579,10 @@ private void validateAckSync() throws IOException {
     }
 
     public void requestAckFlush(boolean doFlush) throws IOException {
+        if (version == PROTOCOL_VERSION_V4) {
+            sendBatch();
+            lastSequence++;
+        }
         getFieldIO().writeCommand(COMMAND_REQUEST_ACK_FLUSH);
         pendingAcks++;
         if (doFlush) {
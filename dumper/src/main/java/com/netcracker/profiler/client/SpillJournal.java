@@ -0,0 +1,217 @@
+package com.netcracker.profiler.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+/**
+ * FIFO of {@link AsyncCollectorClient.Op}s that did not fit into the in-memory queue of the collector client.
+ * <p>
+ * The records are appended to memory-mapped segment files, so spilling costs a memory copy while the OS
+ * writes the pages out in the background. Segments are deleted once they are fully read, the last segment is
+ * reused when the journal becomes empty. The journal is not thread-safe, {@link AsyncCollectorClient} guards it
+ * with its lock.
+ * <p>
+ * Record format: length (int, including the header), enqueue time (long), kind (byte), reset flag (byte),
+ * rolling sequence id (int), stream name length (short), stream name (UTF-8), data.
+ */
+class SpillJournal {
+    private static final Logger log = LoggerFactory.getLogger(SpillJournal.class);
+
+    private static final int HEADER_SIZE = 4 + 8 + 1 + 1 + 4 + 2;
+
+    private final File dir;
+    private final int segmentSize;
+    private final long maxSize;
+    private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+    private int nextSegment;
+    private long size;
+
+    /**
+     * @param dir         folder for segment files, it is created on the first spill and removed on {@link #close()}
+     * @param segmentSize size of a segment file in bytes, a record must fit into a single segment
+     * @param maxSize     limit of the journal size in bytes
+     */
+    SpillJournal(File dir, int segmentSize, long maxSize) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the number of bytes appended to the journal and not read yet.
+     *
+     * @return journal size in bytes
+     */
+    long size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Appends the record to the journal.
+     *
+     * @param op    record to append
+     * @param force true to ignore the size limit, used for small control records the data depends on
+     * @return false if the journal is full
+     * @throws IOException if unable to create a segment file
+     */
+    boolean append(AsyncCollectorClient.Op op, boolean force) throws IOException {
+        byte[] name = op.streamName.getBytes(StandardCharsets.UTF_8);
+        int recordSize = HEADER_SIZE + name.length + op.length;
+        if (recordSize > segmentSize) {
+            throw new IOException("Record of " + recordSize + " bytes does not fit into journal segment of " + segmentSize + " bytes");
+        }
+        if (!force && size + recordSize > maxSize) {
+            return false;
+        }
+        Segment tail = segments.peekLast();
+        if (tail == null || tail.writePos + recordSize > segmentSize) {
+            tail = createSegment();
+            segments.addLast(tail);
+        }
+        ByteBuffer buf = tail.buffer;
+        buf.position(tail.writePos);
+        buf.putInt(recordSize);
+        buf.putLong(op.enqueuedAt);
+        buf.put(op.kind);
+        buf.put((byte) (op.resetRequired ? 1 : 0));
+        buf.putInt(op.rollingSequenceId);
+        buf.putShort((short) name.length);
+        buf.put(name);
+        if (op.length > 0) {
+            buf.put(op.data, 0, op.length);
+        }
+        tail.writePos += recordSize;
+        size += recordSize;
+        return true;
+    }
+
+    /**
+     * Returns the enqueue time of the oldest record.
+     *
+     * @return enqueue time in milliseconds or 0 if the journal is empty
+     */
+    long peekEnqueuedAt() {
+        Segment head = advance();
+        if (head == null) {
+            return 0;
+        }
+        return head.buffer.getLong(head.readPos + 4);
+    }
+
+    /**
+     * Removes the oldest record from the journal.
+     *
+     * @return the oldest record or null if the journal is empty
+     */
+    AsyncCollectorClient.Op poll() {
+        Segment head = advance();
+        if (head == null) {
+            return null;
+        }
+        ByteBuffer buf = head.buffer;
+        buf.position(head.readPos);
+        int recordSize = buf.getInt();
+        long enqueuedAt = buf.getLong();
+        byte kind = buf.get();
+        boolean resetRequired = buf.get() != 0;
+        int rollingSequenceId = buf.getInt();
+        byte[] name = new byte[buf.getShort()];
+        buf.get(name);
+        int length = recordSize - HEADER_SIZE - name.length;
+        byte[] data = null;
+        if (length > 0) {
+            data = new byte[length];
+            buf.get(data);
+        }
+        head.readPos += recordSize;
+        size -= recordSize;
+        return new AsyncCollectorClient.Op(kind, new String(name, StandardCharsets.UTF_8), rollingSequenceId, resetRequired, data, length, enqueuedAt);
+    }
+
+    /**
+     * Removes the segment files.
+     */
+    void close() {
+        for (Segment segment : segments) {
+            segment.delete();
+        }
+        segments.clear();
+        size = 0;
+        if (dir.exists() && !dir.delete()) {
+            log.debug("Unable to delete spill folder {}", dir);
+        }
+    }
+
+    private Segment advance() {
+        while (true) {
+            Segment head = segments.peekFirst();
+            if (head == null || head.readPos < head.writePos) {
+                return head;
+            }
+            if (segments.size() == 1) {
+                // The journal is empty, start over to avoid creating a new file
+                head.readPos = 0;
+                head.writePos = 0;
+                return null;
+            }
+            segments.removeFirst().delete();
+        }
+    }
+
+    private Segment createSegment() throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Unable to create spill folder " + dir.getAbsolutePath());
+        }
+        File file = new File(dir, String.format("%06d.spill", nextSegment++));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            log.debug("Created spill segment {}", file);
+            return new Segment(file, raf, buffer);
+        } catch (IOException e) {
+            raf.close();
+            file.delete();
+            throw e;
+        }
+    }
+
+    private static class Segment {
+        final File file;
+        final RandomAccessFile raf;
+        final MappedByteBuffer buffer;
+        int readPos;
+        int writePos;
+
+        Segment(File file, RandomAccessFile raf, MappedByteBuffer buffer) {
+            this.file = file;
+            this.raf = raf;
+            this.buffer = buffer;
+        }
+
+        void delete() {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                log.debug("Unable to close spill segment {}", file, e);
+            }
+            // The mapping is released by GC, so some platforms refuse to delete the file till then
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+}
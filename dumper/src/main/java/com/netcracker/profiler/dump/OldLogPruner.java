@@ -82,9 +82,10 @@ public int compare(File a, File b) {
     };
 
     private void addFiles(ArrayList<File> files, File root, String subfolder) {
-        File callsFolder = new File(root, subfolder);
-        if (!callsFolder.exists()) return;
-        files.addAll(Arrays.asList(callsFolder.listFiles()));
+        // Sharded dumper writes the same stream to several folders, e.g. trace, trace@1
+        for (File folder : DumpShards.findStreamFolders(root, subfolder)) {
+            files.addAll(Arrays.asList(folder.listFiles()));
+        }
     }
 
     static public boolean deleteFile(File path) {
@@ -4,19 +4,46 @@
 import com.netcracker.profiler.agent.MetricType;
 import com.netcracker.profiler.util.StringUtils;
 
+import org.HdrHistogram.AtomicHistogram;
+import org.HdrHistogram.Histogram;
 import org.HdrHistogram.HistogramIterationValue;
-import org.HdrHistogram.SynchronizedHistogram;
+import org.HdrHistogram.WriterReaderPhaser;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.HashSet;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Histogram metric that is recorded by many request threads and printed by the scraper.
+ * <p>
+ * Recording does not take locks: the value goes to the active interval (lock-free histogram and striped sum)
+ * inside a {@link WriterReaderPhaser} critical section. On {@link #write(MetricsWriter)} the scraper swaps
+ * the intervals, waits for the in-flight recordings of the previous one and adds it to the cumulative histogram,
+ * so the buckets, the sum and the count of the output always describe the same set of values.
+ * <p>
+ * A series keeps a single interval. The interval to swap in is taken from a pool shared by the histograms
+ * of the same shape, and the collected interval returns to the pool, so the pool holds an interval per concurrent
+ * scrape rather than per series.
+ */
 public abstract class AbstractHistogramMetric extends AbstractMetric {
     public static final String BUCKET_SUFFIX = "bucket";
     public static final String SUM_SUFFIX = "sum";
     public static final String COUNT_SUFFIX = "count";
-    protected SynchronizedHistogram histogram;
-    protected AtomicLong sum = new AtomicLong();
+    private static final String FAMILY_BUCKET_SUFFIX = "_" + BUCKET_SUFFIX;
+    // Spare intervals by histogram shape, see Interval#shape
+    private static final ConcurrentMap<String, Queue<Interval>> SPARE_INTERVALS = new ConcurrentHashMap<String, Queue<Interval>>();
+    private final WriterReaderPhaser recordingPhaser = new WriterReaderPhaser();
+    private volatile Interval activeInterval;
+    private Queue<Interval> spareIntervals;
+    // Accessed by the scraper only, under recordingPhaser reader lock
+    protected Histogram histogram;
+    protected long sum;
     protected long lowestDiscernibleValue=1;
     protected long highestTrackableValue=10000000;
     protected int numberOfSignificantValueDigits=2;
@@ -26,23 +53,63 @@ public abstract class AbstractHistogramMetric extends AbstractMetric {
     protected double logBase=2;
     protected long valueUnitsPerBucket=100;
 
-    private String sumKey;
-    private String countKey;
+    private static final byte[] BUCKET_END = "\"} ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] INF_BUCKET_END = "+Inf\"} ".getBytes(StandardCharsets.US_ASCII);
+
+    private final SeriesPrefix sumPrefix;
+    private final SeriesPrefix countPrefix;
 
     public AbstractHistogramMetric(String callType, MetricType type, HashSet<AggregationParameter> aggregationParameters, MetricUnit metricUnit,
                                    int outputVersion, String suffix) {
         super(callType, type, aggregationParameters, metricUnit, outputVersion, suffix);
-        sumKey = buildKey(callType, type, aggregationParameters, metricUnit, SUM_SUFFIX);
-        countKey = buildKey(callType, type, aggregationParameters, MetricUnit.TOTAL, COUNT_SUFFIX);
+        sumPrefix = familySeriesPrefix(buildKey(callType, type, aggregationParameters, metricUnit, SUM_SUFFIX), SUM_SUFFIX);
+        countPrefix = familySeriesPrefix(buildKey(callType, type, aggregationParameters, MetricUnit.TOTAL, COUNT_SUFFIX), COUNT_SUFFIX);
+    }
+
+    /**
+     * The count series of the default output uses {@code total} unit rather than the unit of the buckets,
+     * so in OpenMetrics the series is renamed after the family of the buckets.
+     */
+    private SeriesPrefix familySeriesPrefix(String seriesKey, String suffix) {
+        String labels = seriesKey.substring(seriesKey.indexOf('{'));
+        return new SeriesPrefix(seriesKey + "} ", getFamilyName() + "_" + suffix + labels + "} ");
+    }
+
+    @Override
+    public String getFamilyName() {
+        String name = SeriesPrefix.seriesName(key);
+        return name.endsWith(FAMILY_BUCKET_SUFFIX) ? name.substring(0, name.length() - FAMILY_BUCKET_SUFFIX.length()) : name;
+    }
+
+    @Override
+    public String getFamilyType() {
+        return SeriesPrefix.seriesName(key).endsWith(FAMILY_BUCKET_SUFFIX) ? HISTOGRAM : UNKNOWN;
     }
 
     public void resetValue() {
-        histogram.reset();
-        sum.set(0);
+        recordingPhaser.readerLock();
+        try {
+            releaseInterval(swapIntervals());
+            histogram.reset();
+            sum = 0;
+        } finally {
+            recordingPhaser.readerUnlock();
+        }
     }
 
     protected void initHistogram() {
-        histogram = new SynchronizedHistogram(lowestDiscernibleValue, highestTrackableValue, numberOfSignificantValueDigits);
+        activeInterval = new Interval(lowestDiscernibleValue, highestTrackableValue, numberOfSignificantValueDigits);
+        String shape = Interval.shape(lowestDiscernibleValue, highestTrackableValue, numberOfSignificantValueDigits);
+        Queue<Interval> spares = SPARE_INTERVALS.get(shape);
+        if (spares == null) {
+            Queue<Interval> newSpares = new ConcurrentLinkedQueue<Interval>();
+            spares = SPARE_INTERVALS.putIfAbsent(shape, newSpares);
+            if (spares == null) {
+                spares = newSpares;
+            }
+        }
+        spareIntervals = spares;
+        histogram = new Histogram(lowestDiscernibleValue, highestTrackableValue, numberOfSignificantValueDigits);
     }
 
     protected void parseHistogramParameters(Map<String, String> metricParameters) {
@@ -86,8 +153,48 @@ protected void recordValue(long value) {
         if(value>highestTrackableValue) {
             value = highestTrackableValue;
         }
-        histogram.recordValue(value);
-        sum.addAndGet(value);
+        long criticalValue = recordingPhaser.writerCriticalSectionEnter();
+        try {
+            Interval interval = activeInterval;
+            interval.histogram.recordValue(value);
+            interval.sum.add(value);
+        } finally {
+            recordingPhaser.writerCriticalSectionExit(criticalValue);
+        }
+    }
+
+    /**
+     * Makes a spare interval active and waits till the recordings to the previously active one complete.
+     * The caller must hold the reader lock of {@link #recordingPhaser}.
+     *
+     * @return the interval that is no longer recorded to, it should be {@link #releaseInterval released} when
+     * its values are collected
+     */
+    private Interval swapIntervals() {
+        Interval interval = activeInterval;
+        Interval spare = spareIntervals.poll();
+        if (spare == null) {
+            spare = new Interval(lowestDiscernibleValue, highestTrackableValue, numberOfSignificantValueDigits);
+        }
+        activeInterval = spare;
+        recordingPhaser.flipPhase();
+        return interval;
+    }
+
+    private void releaseInterval(Interval interval) {
+        interval.reset();
+        spareIntervals.offer(interval);
+    }
+
+    /**
+     * Adds the values recorded since the previous call to the cumulative histogram.
+     * The caller must hold the reader lock of {@link #recordingPhaser}.
+     */
+    private void collectInterval() {
+        Interval interval = swapIntervals();
+        histogram.add(interval.histogram);
+        sum += interval.sum.sum();
+        releaseInterval(interval);
     }
 
     private Iterable<HistogramIterationValue> getHistogramIterator() {
@@ -106,37 +213,56 @@ private Iterable<HistogramIterationValue> getHistogramIterator() {
         return null;
     }
 
-    public void print(StringBuilder out) {
+    public void write(MetricsWriter out) throws IOException {
+        recordingPhaser.readerLock();
+        try {
+            collectInterval();
+            writeHistogram(out);
+        } finally {
+            recordingPhaser.readerUnlock();
+        }
+    }
+
+    @Override
+    protected String buildSeriesPrefix(String key) {
+        return key.charAt(key.length() - 1) == '{' ? key + "le=\"" : key + ", le=\"";
+    }
+
+    private void writeHistogram(MetricsWriter out) throws IOException {
+        SeriesPrefix bucketPrefix = getSeriesPrefix();
         for (HistogramIterationValue histogramIterationValue : getHistogramIterator()) {
             if (histogramIterationValue.getTotalCountToThisValue() != 0) {
-                out.append(key);
-                if(out.charAt(out.length()-1) != '{') {
-                    out.append(", ");
-                }
-                out.append("le=\"").
-                        append(histogramIterationValue.getValueIteratedTo()).
-                        append("\"} ").
-                        append(histogramIterationValue.getTotalCountToThisValue()).
-                        append("\n");
+                out.write(bucketPrefix)
+                        .write(histogramIterationValue.getValueIteratedTo())
+                        .write(BUCKET_END)
+                        .write(histogramIterationValue.getTotalCountToThisValue())
+                        .write('\n');
             }
         }
 
-        out.append(key);
-        if(out.charAt(out.length()-1) != '{') {
-            out.append(", ");
+        out.write(bucketPrefix).write(INF_BUCKET_END).write(histogram.getTotalCount()).write('\n');
+        out.write(sumPrefix).write(sum).write('\n');
+        out.write(countPrefix).write(histogram.getTotalCount()).write('\n');
+    }
+
+    private static class Interval {
+        final AtomicHistogram histogram;
+        final LongAdder sum = new LongAdder();
+
+        Interval(long lowestDiscernibleValue, long highestTrackableValue, int numberOfSignificantValueDigits) {
+            histogram = new AtomicHistogram(lowestDiscernibleValue, highestTrackableValue, numberOfSignificantValueDigits);
         }
-        out.append("le=\"+Inf\"} ").
-                append(histogram.getTotalCount()).
-                append("\n");
 
-        out.append(sumKey)
-                .append("} ")
-                .append(sum.get())
-                .append("\n");
+        /**
+         * Intervals of the same shape are interchangeable, so the histograms can share the spare ones.
+         */
+        static String shape(long lowestDiscernibleValue, long highestTrackableValue, int numberOfSignificantValueDigits) {
+            return lowestDiscernibleValue + ":" + highestTrackableValue + ":" + numberOfSignificantValueDigits;
+        }
 
-        out.append(countKey)
-                .append("} ")
-                .append(histogram.getTotalCount())
-                .append("\n");
+        void reset() {
+            histogram.reset();
+            sum.reset();
+        }
     }
 }
@@ -6,14 +6,18 @@
 
 import java.util.HashSet;
 
-public abstract class AbstractMetric implements Metric {
+public abstract class AbstractMetric implements Metric, StreamedMetric {
     protected String key;
+    private SeriesPrefix seriesPrefix;
     protected int outputVersion;
+    private final String help;
     private volatile long updatedTime;
 
     public AbstractMetric(String callType, MetricType type, HashSet<AggregationParameter> aggregationParameters, MetricUnit metricUnit, int outputVersion, String suffix) {
         this.outputVersion = outputVersion;
         key = buildKey(callType, type, aggregationParameters, metricUnit, suffix);
+        help = callType + " calls " + type.getOutputName().replace('_', ' ')
+                + (metricUnit == MetricUnit.TOTAL ? "" : ", " + metricUnit.getOutputValue());
     }
 
     public AbstractMetric(String callType, MetricType type, HashSet<AggregationParameter> aggregationParameters, MetricUnit metricUnit, int outputVersion) {
@@ -22,12 +26,45 @@ public AbstractMetric(String callType, MetricType type, HashSet<AggregationParam
 
     public void setKey(String key) {
         this.key = key;
+        this.seriesPrefix = null;
     }
 
     public String getKey() {
         return key;
     }
 
+    /**
+     * Returns the encoded start of the sample line, it is built once from {@link #key}.
+     */
+    protected SeriesPrefix getSeriesPrefix() {
+        SeriesPrefix prefix = seriesPrefix;
+        if (prefix == null) {
+            prefix = new SeriesPrefix(buildSeriesPrefix(key));
+            seriesPrefix = prefix;
+        }
+        return prefix;
+    }
+
+    protected String buildSeriesPrefix(String key) {
+        return key + "} ";
+    }
+
+    public String getFamilyName() {
+        return SeriesPrefix.seriesName(key);
+    }
+
+    public String getFamilyType() {
+        return UNKNOWN;
+    }
+
+    public String getFamilyHelp() {
+        return help;
+    }
+
+    public void print(StringBuilder out) {
+        MetricsWriter.print(this, out);
+    }
+
     public int getOutputVersion() {
         return outputVersion;
     }
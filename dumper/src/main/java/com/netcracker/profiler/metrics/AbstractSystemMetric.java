@@ -2,8 +2,11 @@
 
 import com.netcracker.profiler.agent.SystemMetric;
 
-public abstract class AbstractSystemMetric implements SystemMetric {
+import java.io.IOException;
+
+public abstract class AbstractSystemMetric implements SystemMetric, StreamedMetric {
     protected String key;
+    private SeriesPrefix seriesPrefix;
 
     public AbstractSystemMetric(String name, MetricUnit metricUnit) {
         this.key = buildKey(name, metricUnit);
@@ -17,6 +20,7 @@ public String getKey() {
     @Override
     public void setKey(String key) {
         this.key = key;
+        this.seriesPrefix = null;
     }
 
     protected String buildKey(String name, MetricUnit metricUnit) {
@@ -27,8 +31,25 @@ protected String buildKey(String name, MetricUnit metricUnit) {
 
     protected abstract String getValue();
 
+    public String getFamilyName() {
+        return SeriesPrefix.seriesName(key);
+    }
+
+    public String getFamilyType() {
+        return GAUGE;
+    }
+
     @Override
     public void print(StringBuilder out) {
-        out.append(key).append(getValue()).append("\n");
+        MetricsWriter.print(this, out);
+    }
+
+    public void write(MetricsWriter out) throws IOException {
+        SeriesPrefix prefix = seriesPrefix;
+        if (prefix == null) {
+            prefix = new SeriesPrefix(key);
+            seriesPrefix = prefix;
+        }
+        out.write(prefix).writeAscii(getValue()).write('\n');
     }
 }
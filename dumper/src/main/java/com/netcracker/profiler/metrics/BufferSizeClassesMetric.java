@@ -0,0 +1,60 @@
+package com.netcracker.profiler.metrics;
+
+import com.netcracker.profiler.agent.LocalState;
+import com.netcracker.profiler.agent.ProfilerData;
+
+import java.io.IOException;
+
+/**
+ * Reports the number of threads and empty buffers for each buffer size class, one series per class and kind:
+ * {@code name_total{size="4096",kind="threads"} 42}.
+ */
+public class BufferSizeClassesMetric extends AbstractSystemMetric {
+
+    private static final MetricUnit METRIC_UNIT = MetricUnit.TOTAL;
+
+    private final String name;
+    private final SeriesPrefix[] threadsPrefixes;
+    private final SeriesPrefix[] emptyPrefixes;
+
+    public BufferSizeClassesMetric(String name) {
+        super(name, METRIC_UNIT);
+        this.name = name + "_" + METRIC_UNIT.getOutputValue();
+        int[] sizeClasses = ProfilerData.BUFFER_SIZE_CLASSES;
+        threadsPrefixes = new SeriesPrefix[sizeClasses.length];
+        emptyPrefixes = new SeriesPrefix[sizeClasses.length];
+        for (int i = 0; i < sizeClasses.length; i++) {
+            threadsPrefixes[i] = seriesPrefix(sizeClasses[i], "threads");
+            emptyPrefixes[i] = seriesPrefix(sizeClasses[i], "empty");
+        }
+    }
+
+    public String getFamilyHelp() {
+        return "Number of threads and empty buffers by buffer size class";
+    }
+
+    /**
+     * The metric has a series per size class and kind, see {@link #write(MetricsWriter)}, so there is no single value.
+     */
+    @Override
+    protected String getValue() {
+        throw new UnsupportedOperationException("Buffer size classes are reported per class");
+    }
+
+    @Override
+    public void write(MetricsWriter out) throws IOException {
+        int[] sizeClasses = ProfilerData.BUFFER_SIZE_CLASSES;
+        int[] threads = new int[sizeClasses.length];
+        for (LocalState state : ProfilerData.activeThreads.values()) {
+            threads[state.bufferSizeClass]++;
+        }
+        for (int i = 0; i < sizeClasses.length; i++) {
+            out.write(threadsPrefixes[i]).write(threads[i]).write('\n');
+            out.write(emptyPrefixes[i]).write(ProfilerData.emptyBuffersBySizeClass[i].size()).write('\n');
+        }
+    }
+
+    private SeriesPrefix seriesPrefix(int size, String kind) {
+        return new SeriesPrefix(name + "{size=\"" + size + "\",kind=\"" + kind + "\"} ");
+    }
+}
@@ -2,6 +2,7 @@
 
 import com.netcracker.profiler.agent.MetricType;
 
+import java.io.IOException;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
@@ -10,6 +11,7 @@ public class CountMetric extends AbstractMetric {
 
     private static final MetricType METRIC_TYPE = MetricType.COUNT;
     private static final MetricUnit METRIC_UNIT = MetricUnit.TOTAL;
+    private static final String TOTAL_SUFFIX = "_" + METRIC_UNIT.getOutputValue();
 
     private AtomicLong count = new AtomicLong();
 
@@ -25,7 +27,22 @@ public void resetValue() {
         count.set(0);
     }
 
-    public void print(StringBuilder out) {
-        out.append(key).append("} ").append(count).append("\n");
+    /**
+     * OpenMetrics counter family does not include {@code _total} suffix of the sample. Legacy names have no suffix,
+     * so they are exposed as unknown type.
+     */
+    @Override
+    public String getFamilyName() {
+        String name = SeriesPrefix.seriesName(key);
+        return name.endsWith(TOTAL_SUFFIX) ? name.substring(0, name.length() - TOTAL_SUFFIX.length()) : name;
+    }
+
+    @Override
+    public String getFamilyType() {
+        return SeriesPrefix.seriesName(key).endsWith(TOTAL_SUFFIX) ? COUNTER : UNKNOWN;
+    }
+
+    public void write(MetricsWriter out) throws IOException {
+        out.write(getSeriesPrefix()).write(count.get()).write('\n');
     }
 }
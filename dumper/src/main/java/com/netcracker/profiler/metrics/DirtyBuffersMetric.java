@@ -10,6 +10,10 @@ public DirtyBuffersMetric(String name) {
         super(name, METRIC_UNIT);
     }
 
+    public String getFamilyHelp() {
+        return "Number of buffers that wait for the dumper";
+    }
+
     @Override
     protected String getValue() {
         return String.valueOf(ProfilerData.dirtyBuffers.size());
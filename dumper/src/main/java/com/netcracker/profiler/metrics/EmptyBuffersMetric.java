@@ -10,6 +10,10 @@ public EmptyBuffersMetric(String name) {
         super(name, METRIC_UNIT);
     }
 
+    public String getFamilyHelp() {
+        return "Number of empty buffers";
+    }
+
     @Override
     protected String getValue() {
         return String.valueOf(ProfilerData.emptyBuffers.size());
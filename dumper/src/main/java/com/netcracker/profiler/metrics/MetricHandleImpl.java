@@ -0,0 +1,195 @@
+package com.netcracker.profiler.metrics;
+
+import com.netcracker.profiler.agent.Metric;
+import com.netcracker.profiler.agent.MetricHandle;
+import com.netcracker.profiler.agent.MetricType;
+
+import gnu.trove.set.hash.THashSet;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * Caches the metrics of a handle by the values of the aggregation keys.
+ * <p>
+ * The lookup hashes the values (strings cache their hash codes) and probes an open-addressing table, so recording to
+ * a known combination of values does not allocate. New combinations are added under a lock to a copy of the table.
+ * {@link MetricsPluginImpl} drops stale metrics from time to time, so the table is discarded once the plugin
+ * reports a new generation of metrics.
+ */
+public class MetricHandleImpl implements MetricHandle {
+    private static final String[] NO_VALUES = new String[0];
+
+    private final MetricsPluginImpl plugin;
+    private final MetricType metricType;
+    private final String callType;
+    private final String[] aggregationKeys;
+    private final boolean isCustom;
+    private final Map<String, String> metricParameters;
+    private final int outputVersion;
+
+    private volatile Table table;
+
+    public MetricHandleImpl(MetricsPluginImpl plugin, MetricType metricType, String callType, String[] aggregationKeys,
+                            boolean isCustom, Map<String, String> metricParameters, int outputVersion) {
+        this.plugin = plugin;
+        this.metricType = metricType;
+        this.callType = callType;
+        this.aggregationKeys = aggregationKeys.clone();
+        this.isCustom = isCustom;
+        this.metricParameters = metricParameters;
+        this.outputVersion = outputVersion;
+        this.table = new Table(plugin.getGeneration(), 8);
+    }
+
+    public void record(long value) {
+        checkArity(0);
+        metric(1, null, null, NO_VALUES).recordValue(value, null);
+    }
+
+    public void record(long value, String keyValue) {
+        checkArity(1);
+        metric(31 + hash(keyValue), keyValue, null, null).recordValue(value, null);
+    }
+
+    public void record(long value, String keyValue1, String keyValue2) {
+        checkArity(2);
+        metric(31 * (31 + hash(keyValue1)) + hash(keyValue2), keyValue1, keyValue2, null).recordValue(value, null);
+    }
+
+    public void record(long value, String... keyValues) {
+        checkArity(keyValues.length);
+        int hash = 1;
+        for (String keyValue : keyValues) {
+            hash = 31 * hash + hash(keyValue);
+        }
+        metric(hash, null, null, keyValues).recordValue(value, null);
+    }
+
+    private void checkArity(int count) {
+        if (count != aggregationKeys.length) {
+            throw new IllegalArgumentException("Metric " + callType + " " + metricType + " expects " + aggregationKeys.length
+                    + " key values " + Arrays.toString(aggregationKeys) + ", got " + count);
+        }
+    }
+
+    private static int hash(String value) {
+        return value == null ? 0 : value.hashCode();
+    }
+
+    /**
+     * Finds the metric for the key values. The values are passed either as {@code v0} and {@code v1} (up to two keys)
+     * or as {@code values} array.
+     */
+    private Metric metric(int hash, String v0, String v1, String[] values) {
+        Table table = this.table;
+        if (table.generation == plugin.getGeneration()) {
+            Metric metric = table.get(hash, v0, v1, values);
+            if (metric != null) {
+                return metric;
+            }
+        }
+        return createMetric(hash, v0, v1, values);
+    }
+
+    private synchronized Metric createMetric(int hash, String v0, String v1, String[] values) {
+        int generation = plugin.getGeneration();
+        Table table = this.table;
+        if (table.generation != generation) {
+            table = new Table(generation, 8);
+        } else {
+            Metric metric = table.get(hash, v0, v1, values);
+            if (metric != null) {
+                return metric;
+            }
+        }
+
+        String[] keyValues = new String[aggregationKeys.length];
+        for (int i = 0; i < keyValues.length; i++) {
+            keyValues[i] = values != null ? values[i] : i == 0 ? v0 : v1;
+        }
+        HashSet<AggregationParameter> aggregationParameters = new HashSet<AggregationParameter>();
+        for (int i = 0; i < aggregationKeys.length; i++) {
+            THashSet<String> aggregationParamValues = new THashSet<String>();
+            aggregationParamValues.add(keyValues[i]);
+            aggregationParameters.add(new AggregationParameter(aggregationKeys[i], aggregationParamValues));
+        }
+        Metric metric = plugin.getOrCreateMetric(metricType, callType, aggregationParameters, isCustom, metricParameters, outputVersion);
+        this.table = table.with(hash, keyValues, metric);
+        return metric;
+    }
+
+    private static class Table {
+        final int generation;
+        final int[] hashes;
+        final String[][] keyValues;
+        final Metric[] metrics;
+        final int size;
+
+        Table(int generation, int capacity) {
+            this(generation, new int[capacity], new String[capacity][], new Metric[capacity], 0);
+        }
+
+        private Table(int generation, int[] hashes, String[][] keyValues, Metric[] metrics, int size) {
+            this.generation = generation;
+            this.hashes = hashes;
+            this.keyValues = keyValues;
+            this.metrics = metrics;
+            this.size = size;
+        }
+
+        Metric get(int hash, String v0, String v1, String[] values) {
+            final int mask = metrics.length - 1;
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                Metric metric = metrics[i];
+                if (metric == null) {
+                    return null;
+                }
+                if (hashes[i] == hash && matches(keyValues[i], v0, v1, values)) {
+                    return metric;
+                }
+            }
+        }
+
+        private static boolean matches(String[] stored, String v0, String v1, String[] values) {
+            if (values != null) {
+                return Arrays.equals(stored, values);
+            }
+            return (stored.length < 1 || equals(stored[0], v0)) && (stored.length < 2 || equals(stored[1], v1));
+        }
+
+        private static boolean equals(String a, String b) {
+            return a == b || a != null && a.equals(b);
+        }
+
+        /**
+         * Returns a copy of the table with the new entry, the table is kept at most half full.
+         */
+        Table with(int hash, String[] values, Metric metric) {
+            int capacity = metrics.length;
+            if ((size + 1) * 2 > capacity) {
+                capacity *= 2;
+            }
+            Table result = new Table(generation, new int[capacity], new String[capacity][], new Metric[capacity], size + 1);
+            for (int i = 0; i < metrics.length; i++) {
+                if (metrics[i] != null) {
+                    result.put(hashes[i], keyValues[i], metrics[i]);
+                }
+            }
+            result.put(hash, values, metric);
+            return result;
+        }
+
+        private void put(int hash, String[] values, Metric metric) {
+            final int mask = metrics.length - 1;
+            int i = hash & mask;
+            while (metrics[i] != null) {
+                i = (i + 1) & mask;
+            }
+            hashes[i] = hash;
+            keyValues[i] = values;
+            metrics[i] = metric;
+        }
+    }
+}
@@ -7,18 +7,33 @@
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
-public class MetricsPluginImpl implements MetricsPlugin {
+public class MetricsPluginImpl implements MetricsPlugin_01 {
 
     private static final int INTERVAL_TO_SHOW_METRIC = 1000 * 60 * 60;
+    private static final Comparator<BaseMetric> BY_FAMILY = new Comparator<BaseMetric>() {
+        public int compare(BaseMetric a, BaseMetric b) {
+            int family = familyName(a).compareTo(familyName(b));
+            return family != 0 ? family : a.getKey().compareTo(b.getKey());
+        }
+    };
     private final static Logger LOG = LoggerFactory.getLogger(MetricsPluginImpl.class);
 
     private ConcurrentHashMap<MetricsKey, Metric> callMetrics = new ConcurrentHashMap<MetricsKey, Metric>();
     private HashSet<SystemMetric> systemMetrics = new HashSet<>();
+    // Incremented when metrics are removed from callMetrics, so metric handles drop the cached instances
+    private volatile int generation;
 
     public MetricsPluginImpl() {
         Bootstrap.registerPlugin(MetricsPlugin.class, this);
@@ -58,6 +73,41 @@ public Metric getMetric(
         return null;
     }
 
+    public MetricHandle getMetricHandle(MetricType metricType, String callType, String... aggregationKeys) {
+        if (metricType != MetricType.COUNT && metricType != MetricType.DURATION) {
+            // The rest of the metrics take the values from CallInfo that is available to the dumper only
+            LOG.error("Metric handles support count and duration metrics only, got metricType: {}", metricType);
+            return null;
+        }
+
+        MetricsConfiguration metricsConfiguration = Profiler.getMetricConfigByName(callType);
+        if (metricsConfiguration == null) {
+            LOG.error("MetricsConfiguration not found for callType: {}", callType);
+            return null;
+        }
+
+        for (MetricsDescription metricsDescription : metricsConfiguration.getMetrics()) {
+            if (metricType.getConfigName().equals(metricsDescription.getName())) {
+                return new MetricHandleImpl(
+                        this,
+                        metricType,
+                        callType,
+                        aggregationKeys,
+                        metricsConfiguration.isCustom(),
+                        metricsDescription.getParameters(),
+                        metricsConfiguration.getOutputVersion()
+                );
+            }
+        }
+
+        LOG.error("MetricsDescription not found for metricType: {}", metricType);
+        return null;
+    }
+
+    int getGeneration() {
+        return generation;
+    }
+
     public Metric getOrCreateMetric(
             MetricType metricType,
             String callType,
@@ -77,38 +127,104 @@ public Metric getOrCreateMetric(
                     outputVersion
             );
             metric.resetUpdatedTime();
-            callMetrics.put(key, metric);
+            Metric existing = callMetrics.putIfAbsent(key, metric);
+            if (existing != null) {
+                metric = existing;
+            }
         }
 
         return metric;
     }
 
     public String getMetrics() {
-        StringBuilder result = new StringBuilder();
-        ConcurrentHashMap<MetricsKey, Metric> metricsToDelete = new ConcurrentHashMap<MetricsKey, Metric>();
-        for (Map.Entry<MetricsKey, Metric> metric : callMetrics.entrySet()) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            writeMetrics(out, false);
+        } catch (IOException e) {
+            throw new IllegalStateException("ByteArrayOutputStream should not throw IOException", e);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes the metrics to the stream. OpenMetrics does not allow interleaving of metric families and requires
+     * the family metadata, so in that format the metrics are sorted by family and each family starts with
+     * {@code # TYPE} and {@code # HELP} lines.
+     */
+    public void writeMetrics(OutputStream out, boolean openMetrics) throws IOException {
+        MetricsWriter writer = new MetricsWriter(out, openMetrics);
+        List<BaseMetric> sortedMetrics = openMetrics ? new ArrayList<BaseMetric>(callMetrics.size() + systemMetrics.size()) : null;
+        boolean deleted = false;
+        long now = System.currentTimeMillis();
+        for (Iterator<Map.Entry<MetricsKey, Metric>> it = callMetrics.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<MetricsKey, Metric> metric = it.next();
             if (!metric.getKey().isCustom()) {
-                if ((System.currentTimeMillis() - metric.getValue().getUpdatedTime()) <= INTERVAL_TO_SHOW_METRIC) {
-                    metric.getValue().print(result);
+                if ((now - metric.getValue().getUpdatedTime()) <= INTERVAL_TO_SHOW_METRIC) {
+                    if (sortedMetrics != null) {
+                        sortedMetrics.add(metric.getValue());
+                    } else {
+                        writeMetric(writer, metric.getValue());
+                    }
                 } else {
-                    metricsToDelete.put(metric.getKey(), metric.getValue());
+                    it.remove();
+                    deleted = true;
                 }
             }
         }
+        if (deleted) {
+            generation++;
+        }
 
-        for (MetricsKey metricToDelete : metricsToDelete.keySet()) {
-            callMetrics.remove(metricToDelete);
+        if (sortedMetrics != null) {
+            sortedMetrics.addAll(systemMetrics);
+            sortedMetrics.sort(BY_FAMILY);
+            String family = null;
+            for (BaseMetric metric : sortedMetrics) {
+                String metricFamily = familyName(metric);
+                if (!metricFamily.equals(family)) {
+                    family = metricFamily;
+                    writeFamily(writer, metric);
+                }
+                writeMetric(writer, metric);
+            }
+        } else {
+            for (SystemMetric metric : systemMetrics) {
+                writeMetric(writer, metric);
+            }
+        }
+
+        writer.finish();
+    }
+
+    private static String familyName(BaseMetric metric) {
+        if (metric instanceof StreamedMetric) {
+            return ((StreamedMetric) metric).getFamilyName();
         }
+        return SeriesPrefix.seriesName(metric.getKey());
+    }
 
-        for(SystemMetric metric : systemMetrics) {
-            metric.print(result);
+    private static void writeFamily(MetricsWriter writer, BaseMetric metric) throws IOException {
+        if (metric instanceof StreamedMetric) {
+            StreamedMetric streamed = (StreamedMetric) metric;
+            writer.writeFamily(streamed.getFamilyName(), streamed.getFamilyType(), streamed.getFamilyHelp());
+        } else {
+            writer.writeFamily(familyName(metric), StreamedMetric.UNKNOWN, null);
         }
+    }
 
-        return result.toString();
+    private static void writeMetric(MetricsWriter writer, BaseMetric metric) throws IOException {
+        if (metric instanceof StreamedMetric) {
+            ((StreamedMetric) metric).write(writer);
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        metric.print(sb);
+        writer.write(sb.toString().getBytes(StandardCharsets.UTF_8));
     }
 
     public void resetMetrics() {
         callMetrics.clear();
+        generation++;
         systemMetrics.clear();
     }
 
@@ -153,6 +269,8 @@ public void createSystemMetrics(List<MetricsDescription> metricsDescriptions) {
                     systemMetrics.add(new DirtyBuffersMetric(metricName)); break;
                 case PROFILER_EMPTY_BUFFERS:
                     systemMetrics.add(new EmptyBuffersMetric(metricName)); break;
+                case PROFILER_BUFFER_SIZE_CLASSES:
+                    systemMetrics.add(new BufferSizeClassesMetric(metricName)); break;
                 default:
                     throw new RuntimeException("Incorrect metric name");
             }
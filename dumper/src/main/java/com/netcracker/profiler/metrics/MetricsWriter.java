@@ -0,0 +1,152 @@
+package com.netcracker.profiler.metrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Buffered writer of metric samples. Series names are copied from pre-encoded {@link SeriesPrefix} and the values
+ * are formatted right into the buffer, so writing a sample does not allocate.
+ */
+public class MetricsWriter {
+    private static final byte[] EOF = "# EOF\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE).getBytes(StandardCharsets.US_ASCII);
+
+    private final OutputStream out;
+    private final boolean openMetrics;
+    private final byte[] buffer;
+    private int pos;
+
+    public MetricsWriter(OutputStream out, boolean openMetrics) {
+        this(out, openMetrics, 65536);
+    }
+
+    public MetricsWriter(OutputStream out, boolean openMetrics, int bufferSize) {
+        this.out = out;
+        this.openMetrics = openMetrics;
+        this.buffer = new byte[Math.max(bufferSize, 32)];
+    }
+
+    /**
+     * Prints the samples of the metric to the string builder, for the callers of {@link com.netcracker.profiler.agent.BaseMetric#print(StringBuilder)}.
+     */
+    public static void print(StreamedMetric metric, StringBuilder sb) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        MetricsWriter writer = new MetricsWriter(bytes, false, 1024);
+        try {
+            metric.write(writer);
+            writer.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException("ByteArrayOutputStream should not throw IOException", e);
+        }
+        sb.append(new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    public boolean isOpenMetrics() {
+        return openMetrics;
+    }
+
+    public MetricsWriter write(SeriesPrefix prefix) throws IOException {
+        return write(prefix.getBytes(openMetrics));
+    }
+
+    public MetricsWriter write(byte[] bytes) throws IOException {
+        if (bytes.length > buffer.length - pos) {
+            flushBuffer();
+            if (bytes.length > buffer.length) {
+                out.write(bytes);
+                return this;
+            }
+        }
+        System.arraycopy(bytes, 0, buffer, pos, bytes.length);
+        pos += bytes.length;
+        return this;
+    }
+
+    /**
+     * Writes the string that is known to be ASCII, e.g. a number or a fixed label value.
+     */
+    public MetricsWriter writeAscii(String value) throws IOException {
+        for (int i = 0; i < value.length(); i++) {
+            if (pos == buffer.length) {
+                flushBuffer();
+            }
+            buffer[pos++] = (byte) value.charAt(i);
+        }
+        return this;
+    }
+
+    public MetricsWriter write(char c) throws IOException {
+        if (pos == buffer.length) {
+            flushBuffer();
+        }
+        buffer[pos++] = (byte) c;
+        return this;
+    }
+
+    public MetricsWriter write(long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            return write(MIN_LONG);
+        }
+        if (buffer.length - pos < 20) {
+            flushBuffer();
+        }
+        if (value < 0) {
+            buffer[pos++] = '-';
+            value = -value;
+        }
+        int end = pos + stringSize(value);
+        int i = end;
+        do {
+            buffer[--i] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        pos = end;
+        return this;
+    }
+
+    private static int stringSize(long value) {
+        long p = 10;
+        for (int i = 1; i < 19; i++) {
+            if (value < p) {
+                return i;
+            }
+            p *= 10;
+        }
+        return 19;
+    }
+
+    /**
+     * Writes {@code # TYPE} and {@code # HELP} lines of the family, the samples of the family should follow.
+     */
+    public void writeFamily(String name, String type, String help) throws IOException {
+        write(("# TYPE " + name + ' ' + type + '\n').getBytes(StandardCharsets.UTF_8));
+        if (help != null) {
+            String escaped = help.replace("\\", "\\\\").replace("\n", "\\n").replace("\"", "\\\"");
+            write(("# HELP " + name + ' ' + escaped + '\n').getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Terminates the exposition, OpenMetrics requires {@code # EOF} line at the end.
+     */
+    public void finish() throws IOException {
+        if (openMetrics) {
+            write(EOF);
+        }
+        flush();
+    }
+
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    private void flushBuffer() throws IOException {
+        if (pos > 0) {
+            out.write(buffer, 0, pos);
+            pos = 0;
+        }
+    }
+}
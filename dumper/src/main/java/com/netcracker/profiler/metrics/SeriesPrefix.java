@@ -0,0 +1,61 @@
+package com.netcracker.profiler.metrics;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Start of a sample line (metric name and labels) that is encoded once and then copied to each scrape.
+ * OpenMetrics does not allow spaces between labels, so the prefix is kept in both formats.
+ */
+public final class SeriesPrefix {
+    private final byte[] text;
+    private final byte[] openMetrics;
+
+    public SeriesPrefix(String prefix) {
+        this(prefix, prefix);
+    }
+
+    /**
+     * Creates the prefix with a different series name in OpenMetrics, where the samples of a family must share
+     * the family name.
+     */
+    public SeriesPrefix(String prefix, String openMetricsPrefix) {
+        this.text = prefix.getBytes(StandardCharsets.UTF_8);
+        this.openMetrics = toOpenMetrics(openMetricsPrefix).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the series name of the key, that is the part before the labels.
+     */
+    public static String seriesName(String key) {
+        int brace = key.indexOf('{');
+        return (brace < 0 ? key : key.substring(0, brace)).trim();
+    }
+
+    public byte[] getBytes(boolean openMetrics) {
+        return openMetrics ? this.openMetrics : text;
+    }
+
+    /**
+     * Removes the spaces after the commas that separate labels, the commas inside label values are kept.
+     * Label values escape quotes as {@code \"}, so an escaped quote does not end the value.
+     */
+    private static String toOpenMetrics(String prefix) {
+        StringBuilder sb = new StringBuilder(prefix.length());
+        boolean inValue = false;
+        boolean escaped = false;
+        for (int i = 0; i < prefix.length(); i++) {
+            char c = prefix.charAt(i);
+            if (escaped) {
+                escaped = false;
+            } else if (c == '\\' && inValue) {
+                escaped = true;
+            } else if (c == '"') {
+                inValue = !inValue;
+            } else if (c == ' ' && !inValue && i > 0 && prefix.charAt(i - 1) == ',') {
+                continue;
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+}
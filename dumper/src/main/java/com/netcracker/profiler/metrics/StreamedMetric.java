@@ -0,0 +1,31 @@
+package com.netcracker.profiler.metrics;
+
+import java.io.IOException;
+
+/**
+ * Metric that writes its samples directly to the scrape response.
+ */
+public interface StreamedMetric {
+    String UNKNOWN = "unknown";
+    String COUNTER = "counter";
+    String GAUGE = "gauge";
+    String HISTOGRAM = "histogram";
+
+    void write(MetricsWriter out) throws IOException;
+
+    /**
+     * Returns the name of the metric family. OpenMetrics requires the samples of a family to follow its metadata
+     * without samples of other families in between.
+     */
+    String getFamilyName();
+
+    /**
+     * Returns OpenMetrics type of the family: {@link #COUNTER}, {@link #GAUGE}, {@link #HISTOGRAM} or {@link #UNKNOWN}.
+     */
+    String getFamilyType();
+
+    /**
+     * Returns the description of the family for {@code # HELP} line.
+     */
+    String getFamilyHelp();
+}
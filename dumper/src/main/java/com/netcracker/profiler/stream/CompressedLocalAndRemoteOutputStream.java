@@ -6,8 +6,8 @@
 import com.netcracker.profiler.cloud.transport.ProfilerProtocolException;
 import com.netcracker.profiler.cloud.transport.ProtocolConst;
 import com.netcracker.profiler.dump.DataOutputStreamEx;
+import com.netcracker.profiler.dump.DumpCodec;
 import com.netcracker.profiler.dump.DumpFile;
-import com.netcracker.profiler.dump.FlushableGZIPOutputStream;
 import com.netcracker.profiler.dump.IDataOutputStreamEx;
 import com.netcracker.profiler.exception.ProfilerAgentIOException;
 import com.netcracker.profiler.io.RemoteAndLocalOutputStream;
@@ -25,7 +25,6 @@
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
-import java.util.zip.GZIPOutputStream;
 
 /**
  * this one orchestrates rotation of remote streams and local files
@@ -33,17 +32,6 @@
 public class CompressedLocalAndRemoteOutputStream implements ICompressedLocalAndRemoteOutputStream {
     public static final Logger log = LoggerFactory.getLogger(CompressedLocalAndRemoteOutputStream.class);
 
-    private static boolean isGZIPOutputStreamSyncFlushSupported; //it was implemented in java 7b97
-
-    static {
-        try {
-            GZIPOutputStream.class.getDeclaredConstructor(OutputStream.class, int.class, boolean.class);
-            isGZIPOutputStreamSyncFlushSupported = true;
-        } catch (Throwable t) {
-            isGZIPOutputStreamSyncFlushSupported = false;
-        }
-    }
-
     // Non static since NumberFormat is not thread safe
     final NumberFormat fileIndexFormat = NumberFormat.getIntegerInstance();
 
@@ -63,6 +51,8 @@ public class CompressedLocalAndRemoteOutputStream implements ICompressedLocalAnd
     private long uncompressedSize;
     private long compressedSize;
     private DumperCollectorClient client;
+    private CompressorStage compressor;
+    private DumpCodec codec = DumpCodec.GZIP;
     private boolean rotateForRemote = false;
     private long lastRotatedMillis;
 
@@ -148,6 +138,16 @@ public void setClient(DumperCollectorClient client) {
         this.client = client;
     }
 
+    @Override
+    public void setCompressor(CompressorStage compressor) {
+        this.compressor = compressor;
+    }
+
+    @Override
+    public void setCodec(DumpCodec codec) {
+        this.codec = codec;
+    }
+
     @Override
     public CompressedLocalAndRemoteOutputStream rotate() throws IOException {
         index = sequenceSource == null? index + 1 : sequenceSource.getIndex();
@@ -183,7 +183,7 @@ private DataOutputStreamEx rotateStream() throws IOException {
         }
         if (localDumpEnabled) {
             String rollingSequenceId = fileIndexFormat.format(index);
-            String fileName = name + File.separatorChar + rollingSequenceId + ".gz";
+            String fileName = name + File.separatorChar + rollingSequenceId + codec.getExtension();
             log.debug("Opening new {} file", fileName);
             File newFile = new File(root, fileName);
             final File parentFile = newFile.getParentFile();
@@ -195,14 +195,13 @@ private DataOutputStreamEx rotateStream() throws IOException {
             currentFile = newFile;
             notifyFileRotated(oldFile, newFile, (dependentStream == null ? null : dependentStream.getCurrentFile()));
 
-            OutputStream local;
-            if(isGZIPOutputStreamSyncFlushSupported) {
-                local = new GZIPOutputStream(new FileOutputStream(newFile), ProtocolConst.DATA_BUFFER_SIZE, true);
-            } else {
-                local = new FlushableGZIPOutputStream(new FileOutputStream(newFile), ProtocolConst.DATA_BUFFER_SIZE);
-            }
+            OutputStream local = codec.wrapOutputStream(new FileOutputStream(newFile));
             if(remote == null) {
-                result = local;   //flushableGZIPOutputStream is itself buffered
+                result = local;   //compressing streams are buffered by themselves
+                if (compressor != null) {
+                    // Remote phrases are sent in sync with the writes, so only local-only streams are pipelined
+                    result = compressor.pipe(local);
+                }
                 log.debug("Skipped remote collector stream creation, local buffer size {}", ProtocolConst.DATA_BUFFER_SIZE);
             } else {
                 remote.setLocal(local);
@@ -0,0 +1,354 @@
+package com.netcracker.profiler.stream;
+
+import com.netcracker.profiler.agent.DumperConstants;
+import com.netcracker.profiler.agent.LocalState;
+import com.netcracker.profiler.agent.Profiler;
+import com.netcracker.profiler.agent.ProfilerData;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compresses and writes dump streams on dedicated threads, so the Dumper only encodes data into memory.
+ * <p>
+ * {@link #pipe(OutputStream)} wraps the compressing stream (e.g. {@code GZIPOutputStream}) into a stream that
+ * collects the bytes into pooled chunks. Full chunks are queued to the worker thread the stream is pinned to,
+ * so the chunks of a stream are written in order. The queues are bounded: when the disk is slower than the
+ * Dumper, {@link OutputStream#write(int)} blocks until the worker catches up.
+ * <p>
+ * {@link OutputStream#flush()} and {@link OutputStream#close()} wait till the worker processes all the data queued
+ * before them, so the files are complete when they return (e.g. for the inflight calls request).
+ */
+public class CompressorStage {
+    private static final Logger log = LoggerFactory.getLogger(CompressorStage.class);
+
+    public static final int COMPRESS_METHOD_ID = ProfilerData.resolveTag("void " + CompressorStage.class.getName() + ".compress() (CompressorStage.java:100) [profiler-runtime.jar]") | DumperConstants.DATA_ENTER_RECORD;
+
+    private static final int DATA = 0;
+    private static final int FLUSH = 1;
+    private static final int CLOSE = 2;
+    private static final int STOP = 3;
+
+    private final int threads;
+    private final int chunkSize;
+    private final int queueSize;
+    private final BlockingQueue<byte[]> freeChunks;
+
+    private Worker[] workers;
+    private int nextWorker;
+
+    private final AtomicLong compressTime = new AtomicLong();
+    private final AtomicLong backPressureTime = new AtomicLong();
+
+    /**
+     * @param threads   number of compressor threads
+     * @param queueSize number of chunks each thread might have in its queue
+     * @param chunkSize size of a chunk in bytes
+     */
+    public CompressorStage(int threads, int queueSize, int chunkSize) {
+        this.threads = threads;
+        this.queueSize = queueSize;
+        this.chunkSize = chunkSize;
+        // Streams keep a chunk each while filling it, so the pool does not need to cover them
+        this.freeChunks = new ArrayBlockingQueue<byte[]>(threads * queueSize);
+    }
+
+    /**
+     * Wraps the stream, so the data is written to it on a compressor thread.
+     *
+     * @param out compressing stream
+     * @return stream that queues the data to a compressor thread
+     */
+    public synchronized OutputStream pipe(OutputStream out) {
+        if (workers == null) {
+            workers = new Worker[threads];
+            for (int i = 0; i < threads; i++) {
+                workers[i] = new Worker("Profiler compressor-" + i, new ArrayBlockingQueue<Task>(queueSize));
+                workers[i].start();
+            }
+        }
+        Worker worker = workers[nextWorker++ % threads];
+        return new PipedStream(worker, out);
+    }
+
+    /**
+     * Stops compressor threads once they process the data queued so far. The streams should be closed before that.
+     * The stage restarts the threads on the next {@link #pipe(OutputStream)}.
+     */
+    public synchronized void shutdown() {
+        if (workers == null) {
+            return;
+        }
+        for (Worker worker : workers) {
+            try {
+                worker.queue.put(new Task(STOP, null, null, 0, null));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                worker.interrupt();
+            }
+        }
+        workers = null;
+    }
+
+    /**
+     * Returns the number of chunks waiting for compression.
+     *
+     * @return the number of queued chunks
+     */
+    public synchronized int getQueueDepth() {
+        if (workers == null) {
+            return 0;
+        }
+        int depth = 0;
+        for (Worker worker : workers) {
+            depth += worker.queue.size();
+        }
+        return depth;
+    }
+
+    /**
+     * Returns the time spent by compressor threads on compressing and writing the data.
+     *
+     * @return compression time in nanoseconds
+     */
+    public long getCompressTime() {
+        return compressTime.get();
+    }
+
+    /**
+     * Returns the time the Dumper waited for compressor threads because their queues were full.
+     *
+     * @return back pressure time in nanoseconds
+     */
+    public long getBackPressureTime() {
+        return backPressureTime.get();
+    }
+
+    private byte[] allocateChunk() {
+        byte[] chunk = freeChunks.poll();
+        return chunk != null ? chunk : new byte[chunkSize];
+    }
+
+    private static class Task {
+        final int kind;
+        final PipedStream stream;
+        final byte[] data;
+        final int length;
+        final CountDownLatch done;
+
+        Task(int kind, PipedStream stream, byte[] data, int length, CountDownLatch done) {
+            this.kind = kind;
+            this.stream = stream;
+            this.data = data;
+            this.length = length;
+            this.done = done;
+        }
+    }
+
+    private class Worker extends Thread {
+        final BlockingQueue<Task> queue;
+
+        Worker(String name, BlockingQueue<Task> queue) {
+            super(name);
+            this.queue = queue;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            // Compressor threads must not be profiled, otherwise they would feed themselves with buffers
+            Profiler.markSystem();
+            LocalState state = Profiler.getState();
+            while (true) {
+                Task task;
+                try {
+                    task = queue.take();
+                } catch (InterruptedException e) {
+                    log.debug("Compressor thread {} is interrupted", getName());
+                    return;
+                }
+                if (task.kind == STOP) {
+                    return;
+                }
+                // Explicit enter and exit prevent the thread from emitting calls due to FileOutputStream.write
+                state.enter(COMPRESS_METHOD_ID);
+                long t0 = System.nanoTime();
+                try {
+                    process(task);
+                } finally {
+                    compressTime.addAndGet(System.nanoTime() - t0);
+                    state.exit();
+                }
+            }
+        }
+
+        private void process(Task task) {
+            PipedStream stream = task.stream;
+            try {
+                switch (task.kind) {
+                    case DATA:
+                        if (stream.failure == null) {
+                            stream.out.write(task.data, 0, task.length);
+                        }
+                        break;
+                    case FLUSH:
+                        if (stream.failure == null) {
+                            stream.out.flush();
+                        }
+                        break;
+                    case CLOSE:
+                        // Release the file even if the stream failed earlier
+                        stream.out.close();
+                        break;
+                }
+            } catch (Throwable t) {
+                if (stream.failure == null) {
+                    stream.failure = t;
+                }
+            } finally {
+                if (task.data != null) {
+                    freeChunks.offer(task.data);
+                }
+                if (task.done != null) {
+                    task.done.countDown();
+                }
+            }
+        }
+    }
+
+    private class PipedStream extends OutputStream {
+        private final Worker worker;
+        private final OutputStream out;
+        private byte[] chunk;
+        private int pos;
+        private boolean closed;
+        // Written by the worker, checked by the Dumper on every queued task
+        private volatile Throwable failure;
+
+        PipedStream(Worker worker, OutputStream out) {
+            this.worker = worker;
+            this.out = out;
+            this.chunk = allocateChunk();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (pos == chunk.length) {
+                submitChunk();
+            }
+            chunk[pos++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (pos == chunk.length) {
+                    submitChunk();
+                }
+                int n = Math.min(len, chunk.length - pos);
+                System.arraycopy(b, off, chunk, pos, n);
+                pos += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (closed) {
+                return;
+            }
+            if (pos > 0) {
+                submitChunk();
+            }
+            await(FLUSH);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (pos > 0 && failure == null) {
+                enqueue(new Task(DATA, this, chunk, pos, null));
+            } else {
+                freeChunks.offer(chunk);
+            }
+            chunk = null;
+            await(CLOSE);
+        }
+
+        private void submitChunk() throws IOException {
+            if (closed) {
+                throw new IOException("Stream is closed");
+            }
+            submit(new Task(DATA, this, chunk, pos, null));
+            chunk = allocateChunk();
+            pos = 0;
+        }
+
+        private void await(int kind) throws IOException {
+            CountDownLatch done = new CountDownLatch(1);
+            if (kind != CLOSE) {
+                checkFailure();
+            }
+            enqueue(new Task(kind, this, null, 0, done));
+            try {
+                while (!done.await(100, TimeUnit.MILLISECONDS)) {
+                    // The stage might be shut down concurrently, e.g. by the shutdown hook
+                    if (!worker.isAlive()) {
+                        throw new IOException("Compressor thread " + worker.getName() + " is not running");
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for compressor thread " + worker.getName());
+            }
+            checkFailure();
+        }
+
+        private void submit(Task task) throws IOException {
+            checkFailure();
+            enqueue(task);
+        }
+
+        private void enqueue(Task task) throws IOException {
+            if (!worker.isAlive()) {
+                throw new IOException("Compressor thread " + worker.getName() + " is not running");
+            }
+            if (worker.queue.offer(task)) {
+                return;
+            }
+            long t0 = System.nanoTime();
+            try {
+                worker.queue.put(task);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for compressor thread " + worker.getName());
+            } finally {
+                backPressureTime.addAndGet(System.nanoTime() - t0);
+            }
+        }
+
+        private void checkFailure() throws IOException {
+            Throwable t = failure;
+            if (t == null) {
+                return;
+            }
+            if (t instanceof IOException) {
+                throw (IOException) t;
+            }
+            throw new IOException("Unable to compress stream", t);
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.netcracker.profiler.stream;
 
 import com.netcracker.profiler.agent.DumperCollectorClient;
+import com.netcracker.profiler.dump.DumpCodec;
 import com.netcracker.profiler.dump.IDataOutputStreamEx;
 import com.netcracker.profiler.io.listener.FileRotatedListener;
 
@@ -25,6 +26,20 @@ public interface ICompressedLocalAndRemoteOutputStream extends Closeable {
 
     void setClient(DumperCollectorClient client);
 
+    /**
+     * Moves compression of local files to the given stage. Takes effect on the next rotation.
+     *
+     * @param compressor compressor stage or null to compress on the calling thread
+     */
+    void setCompressor(CompressorStage compressor);
+
+    /**
+     * Sets the codec of local files. Takes effect on the next rotation.
+     *
+     * @param codec codec of local files
+     */
+    void setCodec(DumpCodec codec);
+
     ICompressedLocalAndRemoteOutputStream rotate() throws IOException;
 
     void fileRotated() throws IOException;
@@ -1,9 +1,18 @@
 package com.netcracker.profiler.transfer;
 
+import static com.netcracker.profiler.cloud.transport.ProtocolConst.FRAME_CODEC_LZ4;
+import static com.netcracker.profiler.cloud.transport.ProtocolConst.FRAME_CODEC_NONE;
+import static com.netcracker.profiler.cloud.transport.ProtocolConst.FRAME_CODEC_ZSTD;
+
 import com.netcracker.profiler.agent.NetworkExportParams;
+import com.netcracker.profiler.agent.Profiler;
 import com.netcracker.profiler.agent.ProfilerData;
 import com.netcracker.profiler.agent.TimerCache;
+import com.netcracker.profiler.util.DumperCallsExporter;
 
+import io.airlift.compress.Compressor;
+import io.airlift.compress.lz4.Lz4Compressor;
+import io.airlift.compress.zstd.ZstdCompressor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -17,10 +26,32 @@
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
-
+/**
+ * Sends exported calls to logstash. By default, each call is sent as a JSON document followed by a new line.
+ * <p>
+ * When {@link #BATCH_SIZE} is set, {@link DumperCallsExporter} writes the calls as newline-delimited JSON documents
+ * into frames of about that size, and each frame is sent as int payload length, int uncompressed length,
+ * byte codec ({@code 0} - none, {@code 1} - lz4, {@code 2} - zstd, the same as collector frames) and the payload.
+ * The frame is sent uncompressed if compression does not make it smaller.
+ */
 public class DataSender extends Thread {
     private static final Logger log = LoggerFactory.getLogger(DataSender.class);
 
+    /**
+     * Size of call export frames in bytes, the receiver must understand the frame format (see {@link DataSender}).
+     * Defaults to 0, that is each call is sent as a separate line.
+     */
+    public static final int BATCH_SIZE = Integer.getInteger(Profiler.class.getName() + ".DATA_SENDER.batch_size", 0);
+    /**
+     * Compression of call export frames: {@code none}, {@code lz4} or {@code zstd}. Defaults to lz4.
+     */
+    public static final String FRAME_CODEC = System.getProperty(Profiler.class.getName() + ".DATA_SENDER.frame_codec", "lz4");
+    /**
+     * A frame holds many calls, so fewer buffers take about the same memory as {@link ProfilerData#DATA_SENDER_QUEUE_SIZE}
+     * single-call buffers.
+     */
+    private static final int CALLS_PER_FRAME_BUFFER = 64;
+
     private ArrayBlockingQueue<ByteArrayOutputStream> jsonsToSend;
     private ArrayBlockingQueue<ByteArrayOutputStream> emptyJsonBuffers;
 
@@ -38,6 +69,15 @@ public class DataSender extends Thread {
     private volatile boolean shutdownRequested;
     private boolean forceShutdown;
 
+    private final int batchSize;
+    private volatile DumperCallsExporter callsExporter;
+    private final byte frameCodec;
+    private final Compressor frameCompressor;
+    private byte[] compressedFrame;
+    private final byte[] frameHeader = new byte[9];
+    private volatile long sentFrames;
+    private volatile long sentBytes;
+
     final Thread SHUTDOWN_HOOK = new Thread() {
         @Override
         public void run() {
@@ -83,11 +123,39 @@ public void initalizeConnection() {
     }
 
     public DataSender(NetworkExportParams params) {
+        this(params, BATCH_SIZE, FRAME_CODEC);
+    }
+
+    /**
+     * @param params    connection parameters
+     * @param batchSize size of call frames in bytes, 0 to send each call as a separate line
+     * @param codec     compression of the frames: {@code none}, {@code lz4} or {@code zstd}
+     */
+    public DataSender(NetworkExportParams params, int batchSize, String codec) {
         configure(params);
-        jsonsToSend = new ArrayBlockingQueue<ByteArrayOutputStream>(ProfilerData.DATA_SENDER_QUEUE_SIZE);
-        emptyJsonBuffers = new ArrayBlockingQueue<ByteArrayOutputStream>(ProfilerData.DATA_SENDER_QUEUE_SIZE);
-        for (int i = 0; i < ProfilerData.DATA_SENDER_QUEUE_SIZE; i++) {
-            emptyJsonBuffers.add(new ByteArrayOutputStream());
+        this.batchSize = Math.max(0, batchSize);
+        int buffers = ProfilerData.DATA_SENDER_QUEUE_SIZE;
+        if (this.batchSize > 0) {
+            buffers = Math.max(4, buffers / CALLS_PER_FRAME_BUFFER);
+        }
+        jsonsToSend = new ArrayBlockingQueue<ByteArrayOutputStream>(buffers);
+        emptyJsonBuffers = new ArrayBlockingQueue<ByteArrayOutputStream>(buffers);
+        for (int i = 0; i < buffers; i++) {
+            emptyJsonBuffers.add(this.batchSize > 0 ? new FrameBuffer(this.batchSize) : new ByteArrayOutputStream());
+        }
+
+        if (this.batchSize > 0 && "lz4".equalsIgnoreCase(codec)) {
+            frameCodec = FRAME_CODEC_LZ4;
+            frameCompressor = new Lz4Compressor();
+        } else if (this.batchSize > 0 && "zstd".equalsIgnoreCase(codec)) {
+            frameCodec = FRAME_CODEC_ZSTD;
+            frameCompressor = new ZstdCompressor();
+        } else {
+            if (this.batchSize > 0 && !"none".equalsIgnoreCase(codec)) {
+                log.warn("Unknown frame codec {}, frames will be sent uncompressed", codec);
+            }
+            frameCodec = FRAME_CODEC_NONE;
+            frameCompressor = null;
         }
         setDaemon(true);
     }
@@ -131,6 +199,43 @@ public ArrayBlockingQueue<ByteArrayOutputStream> getEmptyJsonBuffers() {
         return emptyJsonBuffers;
     }
 
+    /**
+     * Returns the size of call frames.
+     *
+     * @return frame size in bytes, 0 if each call is sent as a separate line
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets the exporter that fills the frames, the sender asks it for the incomplete frame when there is nothing
+     * else to send.
+     *
+     * @param callsExporter exporter that fills the frames
+     */
+    public void setCallsExporter(DumperCallsExporter callsExporter) {
+        this.callsExporter = callsExporter;
+    }
+
+    /**
+     * Returns the number of documents (or frames) sent.
+     *
+     * @return number of documents or frames
+     */
+    public long getSentFrames() {
+        return sentFrames;
+    }
+
+    /**
+     * Returns the number of bytes sent, frame headers included.
+     *
+     * @return number of bytes
+     */
+    public long getSentBytes() {
+        return sentBytes;
+    }
+
     @Override
     public void run() {
         Runtime.getRuntime().addShutdownHook(SHUTDOWN_HOOK);
@@ -162,6 +267,9 @@ public void run() {
     private void senderLoop() {
         ArrayList<ByteArrayOutputStream> streams = new ArrayList<ByteArrayOutputStream>(100);
         while (true) {
+            if (shutdownRequested && jsonsToSend.isEmpty()) {
+                flushBatch();
+            }
             if((shutdownRequested && jsonsToSend.isEmpty()) || forceShutdown) {
                 closeConnection();
                 return;
@@ -174,6 +282,9 @@ private void senderLoop() {
                     ByteArrayOutputStream firstBaos = jsonsToSend.poll(1, TimeUnit.SECONDS);
                     if (firstBaos != null) {
                         streams.add(firstBaos);
+                    } else {
+                        // nothing to send for a while, so send the calls collected so far
+                        flushBatch();
                     }
                 } catch (InterruptedException e) {
                     log.error("Reading from  ArrayBlockingQueue interrupted ", e);
@@ -187,27 +298,73 @@ private void senderLoop() {
                 baos.reset();
                 emptyJsonBuffers.add(baos);
             }
+            // frames are large enough, so they are not held in the socket buffer
+            flushIfRequired(batchSize > 0 && !streams.isEmpty());
             streams.clear();
 
-            flushIfRequired();
-
             sleepInterval = 1000;
         }
     }
 
+    private void flushBatch() {
+        DumperCallsExporter callsExporter = this.callsExporter;
+        if (batchSize > 0 && callsExporter != null) {
+            callsExporter.flushBatch();
+        }
+    }
+
     private void sendData(ByteArrayOutputStream forSend) {
         try {
+            if (forSend instanceof FrameBuffer) {
+                sendFrame((FrameBuffer) forSend);
+                return;
+            }
             forSend.writeTo(out);
             out.write('\n');
+            sentFrames++;
+            sentBytes += forSend.size() + 1;
         } catch (IOException e) {
             log.warn("Connection lost. Trying restart socket connection.", e);
             initalizeConnection();
         }
     }
 
-    private void flushIfRequired() {
+    private void sendFrame(FrameBuffer frame) throws IOException {
+        byte codec = FRAME_CODEC_NONE;
+        byte[] payload = frame.array();
+        int length = frame.size();
+        int payloadLength = length;
+        if (frameCompressor != null) {
+            int maxLength = frameCompressor.maxCompressedLength(length);
+            if (compressedFrame == null || compressedFrame.length < maxLength) {
+                compressedFrame = new byte[maxLength];
+            }
+            int compressedLength = frameCompressor.compress(payload, 0, length, compressedFrame, 0, compressedFrame.length);
+            if (compressedLength < length) {
+                codec = frameCodec;
+                payload = compressedFrame;
+                payloadLength = compressedLength;
+            }
+        }
+        putInt(frameHeader, 0, payloadLength);
+        putInt(frameHeader, 4, length);
+        frameHeader[8] = codec;
+        out.write(frameHeader);
+        out.write(payload, 0, payloadLength);
+        sentFrames++;
+        sentBytes += frameHeader.length + payloadLength;
+    }
+
+    private static void putInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+
+    private void flushIfRequired(boolean force) {
         long timestamp2 = TimerCache.now;
-        if ((timestamp2 - timestamp1) > 5000) {
+        if (force || (timestamp2 - timestamp1) > 5000) {
             try {
                 out.flush();
             } catch (IOException e) {
@@ -231,4 +388,17 @@ private void closeConnection() {
             }
         } catch (Exception e) {}
     }
+
+    /**
+     * Buffer of a call frame, it exposes the bytes to compress them without a copy.
+     */
+    static class FrameBuffer extends ByteArrayOutputStream {
+        FrameBuffer(int size) {
+            super(size);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
 }
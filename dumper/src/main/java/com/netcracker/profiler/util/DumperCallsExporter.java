@@ -6,9 +6,11 @@
 import com.netcracker.profiler.agent.*;
 import com.netcracker.profiler.dump.ThreadState;
 import com.netcracker.profiler.formatters.title.ProfilerTitle;
+import com.netcracker.profiler.transfer.DataSender;
 
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
 import gnu.trove.map.hash.TIntObjectHashMap;
 import gnu.trove.procedure.TIntObjectProcedure;
 import gnu.trove.set.hash.THashSet;
@@ -23,6 +25,7 @@
 public class DumperCallsExporter {
     private static final Logger log = LoggerFactory.getLogger(DumperCallsExporter.class);
     private static final String     PROFILER_BASE_URL = "/profiler/tree.html#params-trim-size=15000&";
+    private static final SerializedString NEW_LINE = new SerializedString("\n");
     private static Map<String, Object> params = new HashMap<String, Object>(4);
     private static Map<String, String> additionalInputParams = new HashMap<String, String>(2);
 
@@ -38,6 +41,7 @@ public class DumperCallsExporter {
     private FilterOperator callFilter;
     private JsonFactory jsonFactory = new JsonFactory();
     private long missed = 0;
+    private long exported = 0;
     private long prevMissed = 0;
     private long t1 = TimerCache.now;
     private long t2;
@@ -46,6 +50,16 @@ public class DumperCallsExporter {
     private HashSet<String> allowedParams = new HashSet<String>();
     List<String> dictionary = ProfilerData.getTags();
 
+    /**
+     * Frame size of the batched export, 0 when each call is sent as a separate JSON document
+     */
+    private int batchSize;
+    private ByteArrayOutputStream batch;
+    /**
+     * Single generator writes all the calls of the {@link #batch} as newline-delimited documents
+     */
+    private JsonGenerator batchGenerator;
+
     final TIntObjectProcedure<THashSet<String>> WRITE_PARAMS_JSON = new TIntObjectProcedure<THashSet<String>>() {
         public boolean execute(int id, THashSet<String> set) {
             try {
@@ -73,14 +87,33 @@ public boolean execute(int id, THashSet<String> set) {
         }
     };
 
+    /**
+     * Configures the export to the given sender, the calls are batched if the sender sends frames.
+     *
+     * @param dataSender   sender of the calls
+     * @param exportParams export configuration
+     */
+    public synchronized void configureExport(DataSender dataSender, NetworkExportParams exportParams) {
+        configureExport(dataSender.getJsonsToSend(), dataSender.getEmptyJsonBuffers(), exportParams);
+        batchSize = dataSender.getBatchSize();
+        dataSender.setCallsExporter(this);
+    }
+
     public synchronized void configureExport(ArrayBlockingQueue<ByteArrayOutputStream> jsonsToSend, ArrayBlockingQueue<ByteArrayOutputStream> emptyJsonBuffers, NetworkExportParams exportParams) {
         callParams.clear();
+        if (jsonsToSend != this.jsonsToSend) {
+            // the open frame belongs to the buffers of the previous sender
+            closeBatch();
+            batch = null;
+        }
+        batchSize = 0;
         this.jsonsToSend = jsonsToSend;
         this.emptyJsonBuffers = emptyJsonBuffers;
         if(exportParams == null) {
             this.includedParams = Collections.EMPTY_LIST;
             this.excludedParams = Collections.EMPTY_LIST;
             this.callFilter = null;
+            return;
         }
         this.includedParams = exportParams.getIncludedParams() == null ? Collections.EMPTY_LIST : exportParams.getIncludedParams();
         this.excludedParams = exportParams.getExcludedParams() == null ? Collections.EMPTY_LIST : exportParams.getExcludedParams();
@@ -121,6 +154,80 @@ public synchronized void configureExport(ArrayBlockingQueue<ByteArrayOutputStrea
     private ByteArrayOutputStream buildJson(long startTimestamp, long callDuration, long callSuspension, CallInfo callInfo, ProfilerTitle profilerTitle,
                                             ThreadState thread, String threadName, String dumpDir, ByteArrayOutputStream outputStream) throws IOException {
         jgen = jsonFactory.createGenerator(outputStream);
+        writeCall(startTimestamp, callDuration, callSuspension, callInfo, profilerTitle, thread, threadName, dumpDir);
+        if (jgen != null)
+            jgen.close();
+        return outputStream;
+    }
+
+    /**
+     * Appends the call to the current frame. The frame is handed over to the sender once it reaches the batch size,
+     * or when the sender is idle, see {@link #flushBatch()}.
+     *
+     * @return false if the call is dropped as all the frames are queued for sending
+     */
+    private boolean appendToBatch(long startTimestamp, long callDuration, long callSuspension, CallInfo callInfo, ProfilerTitle profilerTitle,
+                                  ThreadState thread, String threadName, String dumpDir) throws IOException {
+        if (batch == null) {
+            if ((batch = emptyJsonBuffers.poll()) == null) {
+                return false;
+            }
+            batchGenerator = jsonFactory.createGenerator(batch);
+            batchGenerator.setRootValueSeparator(NEW_LINE);
+        }
+        jgen = batchGenerator;
+        try {
+            writeCall(startTimestamp, callDuration, callSuspension, callInfo, profilerTitle, thread, threadName, dumpDir);
+        } catch (IOException | RuntimeException e) {
+            // the generator is left in the middle of a document, so the whole frame is discarded
+            closeBatch();
+            batch.reset();
+            emptyJsonBuffers.add(batch);
+            batch = null;
+            throw e;
+        }
+        if (batch.size() + batchGenerator.getOutputBuffered() >= batchSize) {
+            sendBatch();
+        }
+        return true;
+    }
+
+    /**
+     * Hands the current frame over to the sender, if it has any calls.
+     */
+    public synchronized void flushBatch() {
+        if (batch != null) {
+            sendBatch();
+        }
+    }
+
+    private void sendBatch() {
+        closeBatch();
+        ByteArrayOutputStream batch = this.batch;
+        this.batch = null;
+        if (batch.size() == 0) {
+            emptyJsonBuffers.add(batch);
+        } else {
+            // the frame comes from emptyJsonBuffers, so there is always a room for it
+            jsonsToSend.add(batch);
+        }
+    }
+
+    private void closeBatch() {
+        JsonGenerator batchGenerator = this.batchGenerator;
+        if (batchGenerator == null) {
+            return;
+        }
+        this.batchGenerator = null;
+        try {
+            batchGenerator.close();
+        } catch (IOException e) {
+            log.error("Error during writing into JSON", e);
+        }
+    }
+
+    private void writeCall(long startTimestamp, long callDuration, long callSuspension, CallInfo callInfo, ProfilerTitle profilerTitle,
+                           ThreadState thread, String threadName, String dumpDir) throws IOException {
         final TIntObjectHashMap<THashSet<String>> params = thread.params;
         callParams.put("start.timestamp", String.valueOf(startTimestamp));
         callParams.put("profiler.title", String.valueOf(profilerTitle.getText()));
@@ -151,9 +258,6 @@ private ByteArrayOutputStream buildJson(long startTimestamp, long callDuration,
 
         params.forEachEntry(WRITE_PARAMS_JSON);
         jgen.writeEndObject();
-        if (jgen != null)
-            jgen.close();
-        return outputStream;
     }
 
     private String buildProfilerUrl(String dumpDir, ThreadState threadState) {
@@ -170,9 +274,17 @@ public synchronized void exportCall(long startTimestamp, long callDuration, long
                     return;
                 }
 
-                if ((baos = emptyJsonBuffers.poll()) != null) {
+                if (batchSize > 0) {
+                    if (appendToBatch(startTimestamp, callDuration, callSuspension, callInfo, profilerTitle, threadState, threadName, dumpDir)) {
+                        exported++;
+                    } else {
+                        missed++;
+                        t2 = TimerCache.now;
+                    }
+                } else if ((baos = emptyJsonBuffers.poll()) != null) {
                     ByteArrayOutputStream baosForSend = buildJson(startTimestamp, callDuration, callSuspension, callInfo, profilerTitle, threadState, threadName, dumpDir, baos);
                     jsonsToSend.add(baosForSend);
+                    exported++;
                 } else {
                     missed++;
                     t2 = TimerCache.now;
@@ -192,6 +304,34 @@ public boolean isEnabled() {
         return jsonsToSend != null && emptyJsonBuffers != null;
     }
 
+    /**
+     * Returns the number of calls handed over to the sender.
+     *
+     * @return number of calls
+     */
+    public long getExportedCalls() {
+        return exported;
+    }
+
+    /**
+     * Returns the number of calls dropped as the sender could not keep up with the calls.
+     *
+     * @return number of calls
+     */
+    public long getMissedCalls() {
+        return missed;
+    }
+
+    /**
+     * Returns the number of documents (or frames) waiting for the sender.
+     *
+     * @return queue depth
+     */
+    public int getQueueDepth() {
+        ArrayBlockingQueue<ByteArrayOutputStream> jsonsToSend = this.jsonsToSend;
+        return jsonsToSend == null ? 0 : jsonsToSend.size();
+    }
+
     private boolean filterCall(long callDuration, CallInfo callInfo, String threadName, ThreadState threadState) {
         if(callFilter == null) {
             return true;
@@ -0,0 +1,229 @@
+package com.netcracker.profiler.util.cache;
+
+import gnu.trove.map.hash.TLongIntHashMap;
+
+import java.util.Arrays;
+
+/**
+ * Maps {@code long} keys to non-negative {@code long} values, the size of the cache is limited by the total weight of
+ * the entries rather than by the number of entries.
+ * <p>
+ * The cache is split into probation and protected segments. New entries enter probation, and a hit moves an entry
+ * to the protected segment. Probation is evicted in FIFO order, so a stream of one-off keys can't flush the entries
+ * that are reused. Protected segment is managed with CLOCK: an entry that is hit again gets a second chance, the rest
+ * are demoted back to probation once the segment exceeds its share of the weight.
+ * <p>
+ * The class is not thread-safe.
+ */
+public class SegmentedClockCache {
+    private static final byte PROBATION = 0;
+    private static final byte PROTECTED = 1;
+
+    private final long maxWeight;
+    private final long maxProtectedWeight;
+    private final TLongIntHashMap slotByKey;
+
+    private long[] keys;
+    private long[] values;
+    private int[] weights;
+    private byte[] segments;
+    private boolean[] referenced;
+    // Both segments are circular doubly-linked lists, the free slots are chained via next
+    private int[] next;
+    private int[] prev;
+    private final int[] heads = {-1, -1};
+    private final long[] segmentWeights = new long[2];
+    private int freeSlot = -1;
+    private int usedSlots;
+
+    private long hits;
+    private long misses;
+
+    /**
+     * @param maxWeight maximum total weight of the entries
+     */
+    public SegmentedClockCache(long maxWeight) {
+        this(maxWeight, 0.8f);
+    }
+
+    /**
+     * @param maxWeight      maximum total weight of the entries
+     * @param protectedRatio share of the weight that is available for the protected segment
+     */
+    public SegmentedClockCache(long maxWeight, float protectedRatio) {
+        this.maxWeight = maxWeight;
+        this.maxProtectedWeight = (long) (maxWeight * protectedRatio);
+        this.slotByKey = new TLongIntHashMap(64, 0.5f, Long.MIN_VALUE, -1);
+        keys = new long[64];
+        values = new long[64];
+        weights = new int[64];
+        segments = new byte[64];
+        referenced = new boolean[64];
+        next = new int[64];
+        prev = new int[64];
+    }
+
+    /**
+     * Returns the value for the key.
+     *
+     * @param key key
+     * @return value or -1 if the key is not cached
+     */
+    public long get(long key) {
+        int slot = slotByKey.get(key);
+        if (slot == -1) {
+            misses++;
+            return -1;
+        }
+        hits++;
+        if (segments[slot] == PROTECTED) {
+            referenced[slot] = true;
+        } else {
+            unlink(slot);
+            link(slot, PROTECTED);
+            balanceProtected();
+        }
+        return values[slot];
+    }
+
+    /**
+     * Adds the entry to the cache. The entries that are heavier than the cache are ignored.
+     *
+     * @param key    key
+     * @param value  non-negative value
+     * @param weight weight of the entry
+     */
+    public void put(long key, long value, int weight) {
+        if (weight > maxWeight) {
+            return;
+        }
+        int slot = slotByKey.get(key);
+        if (slot != -1) {
+            values[slot] = value;
+            segmentWeights[segments[slot]] += weight - weights[slot];
+            weights[slot] = weight;
+        } else {
+            slot = allocateSlot();
+            keys[slot] = key;
+            values[slot] = value;
+            weights[slot] = weight;
+            referenced[slot] = false;
+            link(slot, PROBATION);
+            slotByKey.put(key, slot);
+        }
+        while (getWeight() > maxWeight) {
+            int victim = heads[PROBATION];
+            if (victim == -1) {
+                victim = nextProtectedVictim();
+            }
+            remove(victim);
+        }
+    }
+
+    public void clear() {
+        slotByKey.clear();
+        heads[PROBATION] = heads[PROTECTED] = -1;
+        segmentWeights[PROBATION] = segmentWeights[PROTECTED] = 0;
+        freeSlot = -1;
+        usedSlots = 0;
+    }
+
+    public int size() {
+        return slotByKey.size();
+    }
+
+    public long getWeight() {
+        return segmentWeights[PROBATION] + segmentWeights[PROTECTED];
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    private void balanceProtected() {
+        while (segmentWeights[PROTECTED] > maxProtectedWeight) {
+            int victim = nextProtectedVictim();
+            unlink(victim);
+            link(victim, PROBATION);
+        }
+    }
+
+    /**
+     * Advances the CLOCK hand of the protected segment till it finds an entry that was not referenced.
+     */
+    private int nextProtectedVictim() {
+        int slot = heads[PROTECTED];
+        while (referenced[slot]) {
+            referenced[slot] = false;
+            slot = next[slot];
+        }
+        heads[PROTECTED] = slot;
+        return slot;
+    }
+
+    private void remove(int slot) {
+        unlink(slot);
+        slotByKey.remove(keys[slot]);
+        next[slot] = freeSlot;
+        freeSlot = slot;
+    }
+
+    /**
+     * Appends the slot to the tail of the segment, i.e. right before the head.
+     */
+    private void link(int slot, byte segment) {
+        segments[slot] = segment;
+        segmentWeights[segment] += weights[slot];
+        int head = heads[segment];
+        if (head == -1) {
+            next[slot] = prev[slot] = slot;
+            heads[segment] = slot;
+            return;
+        }
+        int tail = prev[head];
+        next[tail] = slot;
+        prev[slot] = tail;
+        next[slot] = head;
+        prev[head] = slot;
+    }
+
+    private void unlink(int slot) {
+        byte segment = segments[slot];
+        segmentWeights[segment] -= weights[slot];
+        if (next[slot] == slot) {
+            heads[segment] = -1;
+            return;
+        }
+        next[prev[slot]] = next[slot];
+        prev[next[slot]] = prev[slot];
+        if (heads[segment] == slot) {
+            heads[segment] = next[slot];
+        }
+    }
+
+    private int allocateSlot() {
+        int slot = freeSlot;
+        if (slot != -1) {
+            freeSlot = next[slot];
+            return slot;
+        }
+        if (usedSlots == keys.length) {
+            allocate(keys.length * 2);
+        }
+        return usedSlots++;
+    }
+
+    private void allocate(int capacity) {
+        keys = Arrays.copyOf(keys, capacity);
+        values = Arrays.copyOf(values, capacity);
+        weights = Arrays.copyOf(weights, capacity);
+        segments = Arrays.copyOf(segments, capacity);
+        referenced = Arrays.copyOf(referenced, capacity);
+        next = Arrays.copyOf(next, capacity);
+        prev = Arrays.copyOf(prev, capacity);
+    }
+}
@@ -0,0 +1,99 @@
+package com.netcracker.profiler;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.netcracker.profiler.agent.CallInfo;
+import com.netcracker.profiler.agent.LocalState;
+import com.netcracker.profiler.dump.ThreadState;
+
+import gnu.trove.set.hash.THashSet;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CallCompletionStageTest {
+    private static ThreadState thread(int method, String param) {
+        ThreadState thread = new ThreadState();
+        thread.method = method;
+        thread.prevCpuTime = method * 10L;
+        THashSet<String> values = new THashSet<String>();
+        values.add(param);
+        thread.params.put(42, values);
+        return thread;
+    }
+
+    @Test
+    public void reportsCallsOnWorkerThread() throws InterruptedException {
+        final int calls = 10000;
+        final List<String> reported = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(1);
+        final Thread testThread = Thread.currentThread();
+        final AtomicInteger reportedByWorker = new AtomicInteger();
+        CallCompletionStage stage = new CallCompletionStage(1, 16, new CallCompletionStage.Handler() {
+            public void onCallCompleted(CallCompletionStage.CompletedCall call) {
+                if (Thread.currentThread() != testThread) {
+                    reportedByWorker.incrementAndGet();
+                }
+                ThreadState ts = call.threadState;
+                reported.add(ts.method + ":" + ts.prevCpuTime + ":" + ts.params.get(42).iterator().next() + ":" + call.duration);
+                if (ts.method == calls) {
+                    done.countDown();
+                }
+            }
+        });
+        LocalState owner = new LocalState();
+        CallCompletionStage.Ring ring = stage.ring(0);
+        List<String> expected = new ArrayList<String>();
+        for (int i = 1; i <= calls; i++) {
+            ThreadState thread = thread(i, "p" + i);
+            CallCompletionStage.CompletedCall call = ring.claim();
+            boolean report = i % 3 != 0 || i == calls;
+            if (call == null) {
+                call = new CallCompletionStage.CompletedCall();
+                call.capture(owner, thread, new CallInfo(), i, 0, 0, report);
+                stage.processInline(call);
+            } else {
+                call.capture(owner, thread, new CallInfo(), i, 0, 0, report);
+                stage.publish(ring);
+            }
+            if (report) {
+                expected.add(i + ":" + i * 10L + ":p" + i + ":" + i);
+                assertTrue(thread.params.isEmpty(), "Params should be handed over to the stage");
+            }
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS), "Calls should be reported");
+        stage.shutdown();
+        assertTrue(reportedByWorker.get() > 0, "Queued calls should be reported by the worker thread");
+        // Calls processed inline overtake the queued ones
+        Collections.sort(expected);
+        List<String> actual = new ArrayList<String>(reported);
+        Collections.sort(actual);
+        assertEquals(expected, actual);
+        assertEquals(0, stage.getQueueDepth());
+    }
+
+    @Test
+    public void fullRingIsProcessedInline() {
+        final List<Integer> reported = new ArrayList<Integer>();
+        CallCompletionStage stage = new CallCompletionStage(1, 1, new CallCompletionStage.Handler() {
+            public void onCallCompleted(CallCompletionStage.CompletedCall call) {
+                reported.add(call.threadState.method);
+            }
+        });
+        CallCompletionStage.Ring ring = stage.ring(0);
+        // The slots are published bypassing the stage, so the worker is not started and the ring stays full
+        while (ring.claim() != null) {
+            ring.publish();
+        }
+        CallCompletionStage.CompletedCall call = new CallCompletionStage.CompletedCall();
+        call.capture(new LocalState(), thread(7, "x"), new CallInfo(), 100, 0, 0, true);
+        stage.processInline(call);
+        assertEquals(Collections.singletonList(7), reported);
+        assertEquals(1, stage.getInlineCalls());
+    }
+}
@@ -0,0 +1,273 @@
+package com.netcracker.profiler;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.netcracker.profiler.agent.*;
+import com.netcracker.profiler.configuration.ParameterInfoDto;
+import com.netcracker.profiler.dump.DumpFile;
+import com.netcracker.profiler.dump.DumpFileLog;
+import com.netcracker.profiler.dump.DumpShards;
+import com.netcracker.profiler.dump.DumperThread;
+import com.netcracker.profiler.dump.OldLogPruner;
+import com.netcracker.profiler.io.*;
+import com.netcracker.profiler.io.call.*;
+import com.netcracker.profiler.metrics.MetricsPluginImpl;
+import com.netcracker.profiler.sax.factory.SuspendLogFactory;
+import com.netcracker.profiler.sax.raw.RepositoryVisitor;
+import com.netcracker.profiler.sax.raw.TraceVisitor;
+import com.netcracker.profiler.sax.raw.TreeRowid;
+import com.netcracker.profiler.sax.raw.TreeTraceVisitor;
+import com.netcracker.profiler.sax.readers.ProfilerTraceReaderFile;
+import com.netcracker.profiler.sax.values.StringValue;
+import com.netcracker.profiler.sax.values.ValueHolder;
+import com.netcracker.profiler.tags.Dictionary;
+import com.netcracker.profiler.util.ProfilerConstants;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import jakarta.inject.Provider;
+
+/**
+ * Writes a dump with two shards and reads it back the same way the UI does.
+ */
+public class ShardedDumpTest {
+    private static final int SHARDS = 2;
+    private static final String VALUE_TAG = "shard.value";
+
+    @TempDir
+    Path tmpDir;
+
+    static class TraceTree {
+        final TreeRowid rowid;
+        final List<Integer> enters = new ArrayList<Integer>();
+        final List<String> labels = new ArrayList<String>();
+
+        TraceTree(TreeRowid rowid) {
+            this.rowid = rowid;
+        }
+    }
+
+    /**
+     * Logs a call from a thread that is assigned to the given shard.
+     */
+    private static LocalBuffer recordCall(final String method, final String value, int shard) throws InterruptedException {
+        final LocalBuffer buffer = new LocalBuffer();
+        Runnable call = new Runnable() {
+            public void run() {
+                LocalState state = new LocalState();
+                buffer.state = state;
+                state.buffer = buffer;
+                state.enter(ProfilerData.resolveTag(method) | DumperConstants.DATA_ENTER_RECORD);
+                state.enter(ProfilerData.resolveTag("void inner() () []") | DumperConstants.DATA_ENTER_RECORD);
+                state.event(value, ProfilerData.resolveTag(VALUE_TAG) | DumperConstants.DATA_TAG_RECORD);
+                state.exit();
+                state.exit();
+            }
+        };
+        Thread thread;
+        do {
+            // Dumper assigns threads to shards by thread id
+            thread = new Thread(call, "shard-" + shard);
+        } while (thread.getId() % SHARDS != shard);
+        thread.start();
+        thread.join();
+        return buffer;
+    }
+
+    /**
+     * Writes the buffers with a new dumper and shuts the dumper down.
+     */
+    static Dumper dump(File nodeFolder, int shards, int tailSamplingCallsPerSecond, LocalBuffer... buffers) throws InterruptedException {
+        BlockingQueue<LocalBuffer> dirtyBuffers = new ArrayBlockingQueue<LocalBuffer>(100);
+        BlockingQueue<LocalBuffer> emptyBuffers = new ArrayBlockingQueue<LocalBuffer>(100);
+        Dumper dumper = new Dumper(dirtyBuffers, emptyBuffers, new ConcurrentHashMap<Thread, LocalState>(),
+                nodeFolder.getAbsolutePath(), new MetricsPluginImpl(), shards, tailSamplingCallsPerSecond);
+        dumper.configure(new HashMap<String, ParameterInfo>(), TimeUnit.DAYS.toMillis(7), 1024 * 1024 * 1024,
+                Collections.<MetricsConfiguration>emptyList(), Collections.<MetricsDescription>emptyList());
+        DumperThread dumperThread = new DumperThread(dumper, "Dumper thread");
+        try {
+            for (LocalBuffer buffer : buffers) {
+                dirtyBuffers.put(buffer);
+            }
+            // Graceful shutdown writes the dictionary and closes the files, so the dump is complete
+            Object[] result = new Object[1];
+            LocalBuffer command = new LocalBuffer();
+            command.state = buffers[0].state;
+            command.command(DumperConstants.COMMAND_GRACEFUL_SHUTDOWN, result);
+            dirtyBuffers.put(command);
+            synchronized (result) {
+                for (int i = 0; i < 300 && result[0] == null; i++) {
+                    result.wait(100);
+                }
+            }
+            assertEquals("DONE", result[0], "Dumper should shut down");
+        } finally {
+            dumperThread.shutdown();
+            // Prevent the restart of the dumper
+            dumperThread.interrupt();
+            dumperThread.join(TimeUnit.SECONDS.toMillis(10));
+        }
+        return dumper;
+    }
+
+    static List<Call> readCalls(File dumpRoot, final Map<Integer, String> methods, final String[] rootReference) {
+        final List<Call> result = new ArrayList<Call>();
+        Map<Integer, Provider<CallDataReader>> readers = new HashMap<Integer, Provider<CallDataReader>>();
+        readers.put(4, CallDataReader_04::new);
+        readers.put(5, CallDataReader_05::new);
+        SuspendLogFactory suspendLogFactory = new SuspendLogFactory(null, null, null) {
+            @Override
+            public SuspendLog readMultiRangeSuspendLog(String folderReference, long begin, long end) {
+                return SuspendLog.EMPTY;
+            }
+        };
+        CallReaderFile reader = new CallReaderFile(new CallListener() {
+            public void processCalls(String reference, ArrayList<Call> calls, Dictionary tags, Map<String, ParameterInfoDto> paramInfo, BitSet requiredIds) {
+                rootReference[0] = reference;
+                for (Call call : calls) {
+                    methods.put(call.method, tags.get(call.method));
+                }
+                result.addAll(calls);
+            }
+        }, new CallFilterer() {
+            public boolean filter(Call call) {
+                return true;
+            }
+        }, null, true, null, dumpRoot, ParamReaderFile::new, suspendLogFactory,
+                new CallDataReaderFactory(readers, CallDataReader_00::new));
+        reader.find();
+        assertEquals(Collections.emptyList(), new ArrayList<Throwable>(reader.getExceptions()), "Calls should be read without errors");
+        return result;
+    }
+
+    static List<TraceTree> readTrace(File dumpRoot, String rootReference, List<Call> calls) {
+        final List<TraceTree> trees = new ArrayList<TraceTree>();
+        RepositoryVisitor rv = new RepositoryVisitor(ProfilerConstants.PROFILER_V1) {
+            @Override
+            public TraceVisitor visitTrace() {
+                return new TraceVisitor(api) {
+                    @Override
+                    public TreeTraceVisitor visitTree(TreeRowid rowid) {
+                        final TraceTree tree = new TraceTree(rowid);
+                        trees.add(tree);
+                        return new TreeTraceVisitor(api) {
+                            @Override
+                            public void visitEnter(int methodId) {
+                                super.visitEnter(methodId);
+                                tree.enters.add(methodId);
+                            }
+
+                            @Override
+                            public void visitLabel(int labelId, ValueHolder value) {
+                                if (value instanceof StringValue) {
+                                    tree.labels.add(((StringValue) value).value);
+                                }
+                            }
+                        };
+                    }
+                };
+            }
+        };
+        List<TreeRowid> rowids = new ArrayList<TreeRowid>();
+        for (int i = 0; i < calls.size(); i++) {
+            Call call = calls.get(i);
+            rowids.add(new TreeRowid(0, "0_" + i, call.traceFileIndex, call.bufferOffset, call.recordIndex));
+        }
+        new ProfilerTraceReaderFile(rv, rootReference, dumpRoot, ParamReaderFile::new).read(rowids);
+        return trees;
+    }
+
+    @Test
+    public void callsAndTracesOfAllShardsAreRead() throws Exception {
+        File nodeFolder = new File(tmpDir.toFile(), "node");
+        String[] methods = {"void shard0() () []", "void shard1() () []"};
+        String[] values = {"value of shard 0", "value of shard 1"};
+        File root = dump(nodeFolder, SHARDS, -1,
+                recordCall(methods[0], values[0], 0),
+                recordCall(methods[1], values[1], 1)).getCurrentRoot();
+        for (int shard = 0; shard < SHARDS; shard++) {
+            for (String stream : new String[]{"trace", "calls", "xml", "sql"}) {
+                File file = new File(root, DumpShards.getStreamName(stream, shard) + File.separatorChar + "000001.gz");
+                assertTrue(file.exists(), () -> "Shard file not found: " + file);
+            }
+        }
+
+        Map<Integer, String> methodNames = new HashMap<Integer, String>();
+        String[] rootReference = new String[1];
+        List<Call> calls = readCalls(tmpDir.toFile(), methodNames, rootReference);
+        assertEquals(2, calls.size(), "Calls of both shards should be read");
+        Map<String, Call> callsByMethod = new HashMap<String, Call>();
+        for (Call call : calls) {
+            callsByMethod.put(methodNames.get(call.method), call);
+        }
+        for (int shard = 0; shard < SHARDS; shard++) {
+            Call call = callsByMethod.get(methods[shard]);
+            assertNotNull(call, "Call of shard " + shard + " is not found in " + methodNames.values());
+            assertEquals(shard, DumpShards.getShard(call.traceFileIndex), "Trace file index should carry the shard");
+            assertEquals(1, DumpShards.getFileIndex(call.traceFileIndex), "Trace file index");
+        }
+
+        List<TraceTree> trees = readTrace(tmpDir.toFile(), rootReference[0], calls);
+        assertEquals(2, trees.size(), "Trace of each call should be read");
+        for (TraceTree tree : trees) {
+            int shard = DumpShards.getShard(tree.rowid.traceFileIndex);
+            Call call = callsByMethod.get(methods[shard]);
+            assertEquals(call.bufferOffset, tree.rowid.bufferOffset, "Trace of shard " + shard + " should start at the call offset");
+            assertFalse(tree.enters.isEmpty(), "Trace of shard " + shard + " should have method enters");
+            assertEquals(call.method, (int) tree.enters.get(0), "Trace of shard " + shard + " should start with the call method");
+            assertTrue(tree.labels.contains(values[shard]), () -> "Trace of shard " + shard + " should have its value, got " + tree.labels);
+        }
+    }
+
+    @Test
+    public void fileLogAndPrunerHandleShardFolders() throws Exception {
+        File nodeFolder = new File(tmpDir.toFile(), "node");
+        File root = dump(nodeFolder, SHARDS, -1,
+                recordCall("void shard0() () []", "value", 0),
+                recordCall("void shard1() () []", "value", 1)).getCurrentRoot();
+
+        DumpFileLog fileLog = new DumpFileLog(new File(nodeFolder, DumpFileLog.DEFAULT_NAME));
+        Queue<DumpFile> files;
+        try {
+            files = fileLog.parseIfPresent();
+        } finally {
+            fileLog.close();
+        }
+        assertNotNull(files, "Dump file log should be written");
+        List<String> streams = new ArrayList<String>();
+        for (DumpFile file : files) {
+            streams.add(file.getParentDirName());
+        }
+        assertTrue(streams.contains("trace@1"), () -> "Files of shard 1 should be logged, got " + streams);
+        int firstSql = streams.indexOf("sql");
+        int firstSql1 = streams.indexOf("sql@1");
+        assertTrue(firstSql != -1 && firstSql1 != -1, () -> "SQL files of both shards should be logged, got " + streams);
+        // SQL files are referenced from traces, so they are deleted after all the other files
+        for (int i = Math.min(firstSql, firstSql1); i < streams.size(); i++) {
+            assertEquals("sql", DumpShards.getBaseStreamName(streams.get(i)), "SQL files should be at the end of " + streams);
+        }
+
+        // Make the files of shard 1 expire, the pruner should delete them the same way as the files of shard 0
+        long expired = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(2);
+        for (String stream : new String[]{"trace", "xml", "sql"}) {
+            for (File file : new File(root, DumpShards.getStreamName(stream, 1)).listFiles()) {
+                assertTrue(file.setLastModified(expired), () -> "Unable to set last modified of " + file);
+            }
+        }
+        new OldLogPruner(TimeUnit.DAYS.toMillis(1), Long.MAX_VALUE, nodeFolder).run();
+        for (String stream : new String[]{"trace", "xml", "sql"}) {
+            File[] shard1 = new File(root, DumpShards.getStreamName(stream, 1)).listFiles();
+            assertEquals(0, shard1.length, "Expired files of " + stream + "@1 should be deleted");
+            assertTrue(new File(root, stream + File.separatorChar + "000001.gz").exists(), "Files of shard 0 should be kept");
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.netcracker.profiler;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+public class TailSamplerTest {
+    @Test
+    public void keepsFastCallsUpToRatePerMethod() {
+        TailSampler sampler = new TailSampler(2, 500, 1024);
+        assertTrue(sampler.keep(1, 10, false, false, 1000));
+        assertTrue(sampler.keep(1, 10, false, false, 1100));
+        assertFalse(sampler.keep(1, 10, false, false, 1200));
+        assertTrue(sampler.keep(2, 10, false, false, 1300));
+        assertEquals(1, sampler.getDroppedCalls());
+    }
+
+    @Test
+    public void rateIsResetEachSecond() {
+        TailSampler sampler = new TailSampler(1, 500, 1024);
+        assertTrue(sampler.keep(1, 10, false, false, 1000));
+        assertFalse(sampler.keep(1, 10, false, false, 1999));
+        assertTrue(sampler.keep(1, 10, false, false, 2000));
+    }
+
+    @Test
+    public void slowImportantAndPersistedCallsAreAlwaysKept() {
+        TailSampler sampler = new TailSampler(0, 500, 1024);
+        assertFalse(sampler.keep(1, 499, false, false, 1000));
+        assertTrue(sampler.keep(1, 500, false, false, 1000));
+        assertTrue(sampler.keep(1, 10, true, false, 1000));
+        assertTrue(sampler.keep(1, 10, false, true, 1000));
+        assertEquals(1, sampler.getDroppedCalls());
+    }
+
+    @Test
+    public void largePendingTraceIsKept() {
+        TailSampler sampler = new TailSampler(0, 500, 1024);
+        assertFalse(sampler.isPendingTraceTooLarge(1024));
+        assertTrue(sampler.isPendingTraceTooLarge(1025));
+    }
+}
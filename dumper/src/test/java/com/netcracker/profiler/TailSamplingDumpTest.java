@@ -0,0 +1,77 @@
+package com.netcracker.profiler;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.netcracker.profiler.agent.DumperConstants;
+import com.netcracker.profiler.agent.LocalBuffer;
+import com.netcracker.profiler.agent.LocalState;
+import com.netcracker.profiler.agent.ProfilerData;
+import com.netcracker.profiler.io.Call;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.*;
+
+public class TailSamplingDumpTest {
+    private static final String METHOD = "void sampled() () []";
+
+    @TempDir
+    Path tmpDir;
+
+    private static void logCall(LocalState state, String value, boolean failed) {
+        state.enter(ProfilerData.resolveTag(METHOD) | DumperConstants.DATA_ENTER_RECORD);
+        state.enter(ProfilerData.resolveTag("void inner() () []") | DumperConstants.DATA_ENTER_RECORD);
+        state.event(value, ProfilerData.resolveTag("sampling.value") | DumperConstants.DATA_TAG_RECORD);
+        if (failed) {
+            // Failed calls keep their trace regardless of the rate
+            state.event(new IllegalStateException(value), ProfilerData.resolveTag("sampling.error") | DumperConstants.DATA_TAG_RECORD);
+        }
+        state.exit();
+        state.exit();
+    }
+
+    @Test
+    public void droppedTraceDoesNotBreakOffsetsOfKeptCalls() throws Exception {
+        LocalState state = new LocalState();
+        LocalBuffer buffer = new LocalBuffer();
+        buffer.state = state;
+        state.buffer = buffer;
+        // The first call is held in memory and then committed, the second one is dropped
+        logCall(state, "kept value 1", true);
+        logCall(state, "dropped value", false);
+        logCall(state, "kept value 2", true);
+
+        // Zero rate drops all the fast calls that are not failed
+        Dumper dumper = ShardedDumpTest.dump(new File(tmpDir.toFile(), "node"), 1, 0, buffer);
+        assertEquals(1, dumper.getTailSamplingDroppedCalls(), "Tail sampling should drop a single call");
+
+        Map<Integer, String> methods = new HashMap<Integer, String>();
+        String[] rootReference = new String[1];
+        List<Call> calls = ShardedDumpTest.readCalls(tmpDir.toFile(), methods, rootReference);
+        assertEquals(2, calls.size(), "Dropped call should not be written to the calls stream");
+        calls.sort(new Comparator<Call>() {
+            public int compare(Call a, Call b) {
+                return Integer.compare(a.bufferOffset, b.bufferOffset);
+            }
+        });
+        assertTrue(calls.get(0).bufferOffset < calls.get(1).bufferOffset, "Kept calls should refer to different trace chunks");
+
+        List<ShardedDumpTest.TraceTree> trees = ShardedDumpTest.readTrace(tmpDir.toFile(), rootReference[0], calls);
+        assertEquals(2, trees.size(), "Trace of each kept call should be read");
+        for (int i = 0; i < trees.size(); i++) {
+            ShardedDumpTest.TraceTree tree = trees.get(i);
+            Call call = calls.get(i);
+            assertEquals(call.traceFileIndex, tree.rowid.traceFileIndex, "Trace file of call " + i);
+            assertEquals(call.bufferOffset, tree.rowid.bufferOffset, "Trace offset of call " + i);
+            assertEquals(METHOD, methods.get(call.method));
+            assertFalse(tree.enters.isEmpty(), "Trace of call " + i + " should have method enters");
+            assertEquals(call.method, (int) tree.enters.get(0), "Trace of call " + i + " should start with the call method");
+            String expected = "kept value " + (i + 1);
+            assertTrue(tree.labels.contains(expected), () -> "Trace should have " + expected + ", got " + tree.labels);
+            assertFalse(tree.labels.contains("dropped value"), () -> "Trace should not have the dropped call, got " + tree.labels);
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.netcracker.profiler.test.client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.netcracker.profiler.agent.DumperCollectorClient;
+import com.netcracker.profiler.agent.DumperRemoteControlledStream;
+import com.netcracker.profiler.client.AsyncCollectorClient;
+import com.netcracker.profiler.client.RollingChunkStream;
+import com.netcracker.profiler.cloud.transport.ProfilerProtocolException;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class AsyncCollectorClientTest {
+    private static final File SPILL_DIR;
+
+    static {
+        // Small queue, so the test exercises the spill, and quick reconnects
+        String prefix = AsyncCollectorClient.class.getName();
+        System.setProperty(prefix + ".QUEUE_SIZE", "4096");
+        System.setProperty(prefix + ".RECONNECT_INTERVAL", "50");
+        try {
+            SPILL_DIR = Files.createTempDirectory("spill").toFile();
+        } catch (IOException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+        System.setProperty(prefix + ".SPILL_DIR", SPILL_DIR.getPath());
+    }
+
+    private static void writeInts(OutputStream stream, int from, int to) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 64));
+        for (int i = from; i < to; i++) {
+            out.writeInt(i);
+        }
+        out.flush();
+    }
+
+    private static void assertInts(int from, int to, ByteArrayOutputStream chunk, String message) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(chunk.toByteArray()));
+        assertEquals((to - from) * 4, in.available(), message);
+        for (int i = from; i < to; i++) {
+            assertEquals(i, in.readInt(), message);
+        }
+    }
+
+    private interface Condition {
+        boolean test() throws IOException;
+    }
+
+    private static void await(Condition condition, String message) throws Exception {
+        for (int i = 0; i < 200 && !condition.test(); i++) {
+            Thread.sleep(50);
+        }
+        assertTrue(condition.test(), message);
+    }
+
+    @Test
+    public void partiallyReceivedChunkIsRotated() throws Exception {
+        final FlakyCollector collector = new FlakyCollector();
+        final AsyncCollectorClient client = new AsyncCollectorClient(collector);
+        DumperRemoteControlledStream trace = client.createRollingChunk("trace", 3, true);
+        assertEquals(3, trace.getRollingSequenceId());
+        assertEquals(1000, trace.getRotationPeriod());
+        DumperRemoteControlledStream calls = client.createRollingChunk("calls", 7, true);
+
+        writeInts(trace.getOutputStream(), 0, 1000);
+        writeInts(calls.getOutputStream(), 0, 100);
+        client.flush();
+        await(new Condition() {
+            public boolean test() throws IOException {
+                return collector.flushes > 0 && client.validateWriteDataAcks(false);
+            }
+        }, "Data should be acknowledged");
+
+        // The collector stores 2000 bytes of the next write and breaks the connection
+        collector.failAfter = 2000;
+        writeInts(trace.getOutputStream(), 1000, 2000);
+        client.flush();
+        final Set<String> lost = new HashSet<String>();
+        await(new Condition() {
+            public boolean test() {
+                lost.addAll(client.pollLostStreams());
+                return !lost.isEmpty();
+            }
+        }, "Client should report the stream with unacknowledged data");
+        assertEquals(1, collector.failures);
+        assertEquals(Collections.singleton("trace"), lost);
+
+        // Written before the Dumper rotates the stream, so it cannot be appended to the partial chunk
+        writeInts(trace.getOutputStream(), 2000, 3000);
+        trace = client.createRollingChunk("trace", 4, true);
+        long maxSpill = 0;
+        for (int i = 3000; i < 23000; i += 1000) {
+            writeInts(trace.getOutputStream(), i, i + 1000);
+            maxSpill = Math.max(maxSpill, client.getSpillSize());
+        }
+        writeInts(calls.getOutputStream(), 100, 200);
+        client.flush();
+        assertTrue(maxSpill > 0, "Data should be spilled while the collector is down");
+
+        collector.down = false;
+        await(new Condition() {
+            public boolean test() throws IOException {
+                return client.validateWriteDataAcks(false) && client.getReplayLag() == 0;
+            }
+        }, "Queued data should be sent");
+        client.close();
+
+        assertTrue(collector.connections > 1, "Client should reconnect");
+        assertInts(0, 1500, collector.chunks.get("trace/3"), "Partial chunk should keep the received data as is");
+        assertInts(3000, 23000, collector.chunks.get("trace/4"), "New chunk should get the data written after rotation");
+        assertInts(0, 200, collector.chunks.get("calls/7"), "Acknowledged chunk should be continued after reconnect");
+        assertTrue(client.getDroppedBytes() >= 2000 * 4, "Data of the abandoned chunk should be reported as dropped");
+        String[] spillFiles = SPILL_DIR.list();
+        assertEquals(0, spillFiles == null ? 0 : spillFiles.length, "Spill files should be removed on close");
+    }
+
+    /**
+     * Stores the data as it arrives, as the real collector does, so a broken connection leaves a part of the
+     * unacknowledged data in the chunk.
+     */
+    private static class FlakyCollector implements DumperCollectorClient {
+        volatile boolean down;
+        // Number of bytes the collector stores before the connection breaks, negative if it does not break
+        volatile int failAfter = -1;
+        volatile int failures;
+        volatile int flushes;
+        volatile int connections = 1;
+        boolean connected = true;
+        final Map<String, ByteArrayOutputStream> chunks = new ConcurrentHashMap<String, ByteArrayOutputStream>();
+        final Map<String, String> openChunks = new HashMap<String, String>();
+
+        private void check() {
+            if (down) {
+                connected = false;
+                throw new ProfilerProtocolException("Collector is down");
+            }
+        }
+
+        public DumperRemoteControlledStream createRollingChunk(String streamName, int requestedRollingSequenceId, boolean resetRequired) {
+            check();
+            if (!connected) {
+                connected = true;
+                connections++;
+            }
+            String chunk = streamName + "/" + requestedRollingSequenceId;
+            if (resetRequired || !chunks.containsKey(chunk)) {
+                chunks.put(chunk, new ByteArrayOutputStream());
+            }
+            openChunks.put(streamName, chunk);
+            return new RollingChunkStream(requestedRollingSequenceId, streamName, 1000, 2000, this);
+        }
+
+        public void write(byte[] bytes, int offset, int length, String streamName) {
+            check();
+            if (!connected) {
+                throw new ProfilerProtocolException("Client needs reconnect");
+            }
+            ByteArrayOutputStream chunk = chunks.get(openChunks.get(streamName));
+            int limit = failAfter;
+            if (limit >= 0 && length > limit) {
+                chunk.write(bytes, offset, limit);
+                failAfter = -1;
+                failures++;
+                down = true;
+                check();
+            }
+            if (limit >= 0) {
+                failAfter = limit - length;
+            }
+            chunk.write(bytes, offset, length);
+        }
+
+        public void flush() {
+            check();
+            flushes++;
+        }
+
+        public void close() {
+        }
+
+        public boolean isOnline() {
+            return connected;
+        }
+
+        public String getPodName() {
+            return "pod";
+        }
+
+        public void requestAckFlush(boolean doFlush) {
+        }
+
+        public boolean validateWriteDataAcks(boolean sync) {
+            return true;
+        }
+
+        public long getVersion() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.netcracker.profiler.test.client;
+
+import static com.netcracker.profiler.cloud.transport.ProtocolConst.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.netcracker.profiler.client.DefaultCollectorClient;
+import com.netcracker.profiler.cloud.transport.FieldIO;
+import com.netcracker.profiler.collector.mock.MockCollectorServer;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.InputStream;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.Random;
+
+/**
+ * Sends the data with {@link DefaultCollectorClient} to the mock collector and checks what the collector received.
+ */
+public class CollectorProtocolV4Test {
+    private static final Duration STARTUP_TIMEOUT = Duration.ofSeconds(10);
+
+    private static long counter(MeterRegistry registry, String name, String... tags) {
+        return (long) registry.counter(name, tags).count();
+    }
+
+    private static byte[] compressible(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) ('a' + i % 7);
+        }
+        return bytes;
+    }
+
+    private static byte[] random(int length) {
+        byte[] bytes = new byte[length];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void framesCarrySeveralStreamsAndAreAcked() throws Exception {
+        try (MockCollectorServer server = new MockCollectorServer(0, PLAIN_SOCKET_BACKLOG).started(STARTUP_TIMEOUT)) {
+            MeterRegistry registry = server.getMetricRegistry();
+            DefaultCollectorClient client = new DefaultCollectorClient("localhost", server.getPort(), false, "ns", "ms", "pod");
+            assertEquals(PROTOCOL_VERSION_V4, client.getVersion());
+            client.createRollingChunk("trace", 1, true);
+            client.createRollingChunk("calls", 1, true);
+
+            // Small interleaved writes of both streams fit a single frame, and the data compresses well
+            byte[] text = compressible(200);
+            for (int i = 0; i < 100; i++) {
+                client.write(text, 0, text.length, "trace");
+                client.write(text, 0, text.length, "calls");
+            }
+            client.flush();
+            assertEquals(1, counter(registry, "mock.server.frames", "codec", "lz4"), "Both streams should share a compressed frame");
+            assertEquals(20000, counter(registry, "mock.server.stream.bytes", "stream_name", "trace"));
+            assertEquals(20000, counter(registry, "mock.server.stream.bytes", "stream_name", "calls"));
+
+            // Random data does not compress, so the frames are sent as is, and the large write spans several frames
+            byte[] noise = random(100000);
+            client.write(noise, 0, noise.length, "trace");
+            client.flush();
+            assertEquals(2, counter(registry, "mock.server.frames", "codec", "none"), "Incompressible frames should be sent uncompressed");
+            assertEquals(120000, counter(registry, "mock.server.stream.bytes", "stream_name", "trace"));
+            assertEquals(20000, counter(registry, "mock.server.stream.bytes", "stream_name", "calls"));
+
+            // Cumulative acks confirm everything sent so far with at most one ack per frame or flush
+            assertTrue(client.validateWriteDataAcks(false), "All the frames should be acknowledged");
+            int frames = 3;
+            int flushes = 2;
+            long acks = counter(registry, "mock.server.acks");
+            assertTrue(acks >= flushes && acks <= frames + flushes, "Unexpected number of acks " + acks);
+
+            // A frame sent without flush is acked before the next stream is opened
+            client.write(noise, 0, noise.length, "calls");
+            client.createRollingChunk("xml", 1, true);
+            assertTrue(client.validateWriteDataAcks(false), "Frame should be acknowledged before the stream init");
+            client.close();
+        }
+    }
+
+    @Test
+    public void frameFollowedByOtherCommandIsAcked() throws Exception {
+        try (MockCollectorServer server = new MockCollectorServer(0, PLAIN_SOCKET_BACKLOG).started(STARTUP_TIMEOUT);
+             Socket socket = new Socket("localhost", server.getPort())) {
+            socket.setSoTimeout(PLAIN_SOCKET_READ_TIMEOUT);
+            BufferedOutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            FieldIO io = new FieldIO(socket, in, out);
+            io.writeCommand(COMMAND_GET_PROTOCOL_VERSION_V2);
+            io.writeLong(PROTOCOL_VERSION_V4);
+            io.writeString("pod");
+            io.writeString("ms");
+            io.writeString("ns");
+            out.flush();
+            assertEquals(PROTOCOL_VERSION_V4, io.readLong());
+            io.readInt(); // supported codecs
+
+            io.writeCommand(COMMAND_INIT_STREAM_V2);
+            io.writeString("trace");
+            io.writeInt(1);
+            io.writeInt(1);
+            out.flush();
+            short streamId = io.readShort();
+            io.readLong();
+            io.readLong();
+            io.readInt();
+
+            // The frame and the keep-alive arrive together, so the keep-alive is already buffered after the frame
+            byte[] data = compressible(100);
+            io.writeCommand(COMMAND_RCV_DATA_BATCH);
+            io.writeInt(BATCH_RECORD_HEADER_SIZE + data.length);
+            io.writeInt(BATCH_RECORD_HEADER_SIZE + data.length);
+            out.write(FRAME_CODEC_NONE);
+            io.writeShort(streamId);
+            io.writeInt(data.length);
+            out.write(data);
+            io.writeCommand(COMMAND_KEEP_ALIVE);
+            out.flush();
+
+            assertEquals(0, in.read(), "Frame should be acknowledged");
+            assertEquals(1, io.readInt(), "Ack should confirm the frame");
+            out.write(COMMAND_CLOSE);
+            out.flush();
+        }
+    }
+
+    @Test
+    public void clientFallsBackToV3() throws Exception {
+        try (MockCollectorServer server = new MockCollectorServer(0, PLAIN_SOCKET_BACKLOG, PROTOCOL_VERSION_V3).started(STARTUP_TIMEOUT)) {
+            MeterRegistry registry = server.getMetricRegistry();
+            DefaultCollectorClient client = new DefaultCollectorClient("localhost", server.getPort(), false, "ns", "ms", "pod");
+            assertEquals(PROTOCOL_VERSION_V3, client.getVersion());
+            client.createRollingChunk("trace", 1, true);
+            client.createRollingChunk("calls", 1, true);
+
+            byte[] noise = random(5000);
+            client.write(noise, 0, noise.length, "trace");
+            client.write(noise, 0, 100, "calls");
+            client.flush();
+            assertTrue(client.validateWriteDataAcks(false), "All the data should be acknowledged");
+            assertEquals(5000, counter(registry, "mock.server.stream.bytes", "stream_name", "trace"));
+            assertEquals(100, counter(registry, "mock.server.stream.bytes", "stream_name", "calls"));
+            assertEquals(0, registry.find("mock.server.frames").counters().size(), "V3 should not send frames");
+            client.close();
+        }
+    }
+}
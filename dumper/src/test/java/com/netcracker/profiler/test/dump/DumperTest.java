@@ -95,7 +95,7 @@ public void writeSomeData()  throws IOException, ClassNotFoundException, Illegal
         checkFile("XML", root, "xml" + File.separatorChar + "000001.gz");
     }
 
-    private Configuration_05 createConfiguration() {
+    static Configuration_05 createConfiguration() {
         return new Configuration_05() {
             Map<String, ParameterInfo> map = new HashMap<String, ParameterInfo>();
             {
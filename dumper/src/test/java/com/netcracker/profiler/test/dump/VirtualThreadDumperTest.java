@@ -0,0 +1,100 @@
+package com.netcracker.profiler.test.dump;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.netcracker.profiler.Dumper;
+import com.netcracker.profiler.agent.*;
+import com.netcracker.profiler.dump.DumperThread;
+import com.netcracker.profiler.dump.ThreadState;
+import com.netcracker.profiler.metrics.MetricsPluginImpl;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class VirtualThreadDumperTest {
+    static {
+        // Steal data from the buffers every second, so the test does not wait for the default 5 seconds
+        System.setProperty(Dumper.class.getName() + ".BUFFER_STEAL_INTERVAL", "1");
+    }
+
+    @TempDir
+    Path tmpDir;
+
+    private interface Condition {
+        boolean test();
+    }
+
+    private static void await(Condition condition, String message) throws InterruptedException {
+        for (int i = 0; i < 600 && !condition.test(); i++) {
+            Thread.sleep(50);
+        }
+        assertTrue(condition.test(), message);
+    }
+
+    @Test
+    public void callOfVirtualThreadIsStolenAndReportedInflight() throws Exception {
+        BlockingQueue<LocalBuffer> dirtyBuffers = new ArrayBlockingQueue<LocalBuffer>(100);
+        BlockingQueue<LocalBuffer> emptyBuffers = new ArrayBlockingQueue<LocalBuffer>(100);
+        Configuration_05 config = DumperTest.createConfiguration();
+        Dumper dumper = new Dumper(dirtyBuffers, emptyBuffers, new ConcurrentHashMap<Thread, LocalState>(),
+                tmpDir.toFile().getAbsolutePath(), new MetricsPluginImpl());
+        dumper.configure(config.getParametersInfo(), config.getLogMaxAge(), config.getLogMaxSize(), config.getMetricsConfig(), config.getSystemMetricsConfig());
+        DumperThread dumperThread = new DumperThread(dumper, "Dumper thread");
+
+        // The state is not bound to a virtual thread, however it leases buffers the same way
+        final LocalState state = new LocalState(true);
+        try {
+            state.enter(ProfilerData.resolveTag("void virtualCall() () []") | DumperConstants.DATA_ENTER_RECORD);
+            state.event("abcd", ProfilerData.resolveTag("void virtualCall() () []") | DumperConstants.DATA_TAG_RECORD);
+            final LocalBuffer buffer = state.buffer;
+            assertSame(state, ProfilerData.virtualThreads.get(state.thread), "Thread with a leased buffer should be tracked");
+
+            await(new Condition() {
+                public boolean test() {
+                    return buffer.first == buffer.count;
+                }
+            }, "Dumper should steal the records of the call in progress");
+
+            Object[] result = new Object[2];
+            LocalBuffer command = new LocalBuffer();
+            command.state = state;
+            command.command(DumperConstants.COMMAND_GET_INFLIGHT_CALLS, result);
+            dirtyBuffers.put(command);
+            synchronized (result) {
+                for (int i = 0; i < 300 && result[0] == null; i++) {
+                    result.wait(100);
+                }
+            }
+            @SuppressWarnings("unchecked")
+            List<InflightCall> calls = (List<InflightCall>) result[1];
+            assertNotNull(calls, "Dumper should report in-flight calls");
+            assertEquals(1, calls.size(), "In-flight call of the virtual thread should be reported");
+            assertEquals(state.thread.getName(), calls.get(0).threadName());
+
+            state.exit();
+            assertSame(buffer, state.buffer, "Virtual thread should keep the buffer between calls");
+            // The thread unmounts after it has held the buffer long enough
+            state.bufferLeaseTime -= ProfilerData.VIRTUAL_THREAD_BUFFER_HOLD_TIME;
+            Profiler.virtualThreadUnmounted();
+            assertFalse(ProfilerData.virtualThreads.containsKey(state.thread), "Thread should not be tracked once the buffer is released");
+            // The agent hands the buffer to the global queue, while the test Dumper reads its own one
+            assertTrue(ProfilerData.dirtyBuffers.remove(buffer), "Buffer should be released on unmount");
+            dirtyBuffers.put(buffer);
+            await(new Condition() {
+                public boolean test() {
+                    return ((ThreadState) state.additional).params == null;
+                }
+            }, "Idle virtual thread should not keep the parameters map");
+        } finally {
+            ProfilerData.virtualThreads.remove(state.thread);
+            ProfilerData.dirtyBuffers.removeIf(b -> b.state == state);
+            dumperThread.shutdown();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.netcracker.profiler.test.metrics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.netcracker.profiler.metrics.AggregationParameter;
+import com.netcracker.profiler.metrics.DurationMetric;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+
+public class HistogramMetricTest {
+    private static DurationMetric newMetric() {
+        return new DurationMetric("orders", new HashSet<AggregationParameter>(),
+                Collections.<String, String>emptyMap(), 2);
+    }
+
+    private static long value(String metrics, String prefix) {
+        for (String line : metrics.split("\n")) {
+            if (line.startsWith(prefix)) {
+                return Long.parseLong(line.substring(line.lastIndexOf(' ') + 1));
+            }
+        }
+        throw new AssertionError("No " + prefix + " in " + metrics);
+    }
+
+    @Test
+    public void printAccumulatesIntervals() {
+        DurationMetric metric = newMetric();
+        metric.recordValue(5, null);
+        metric.recordValue(7, null);
+        StringBuilder sb = new StringBuilder();
+        metric.print(sb);
+        metric.recordValue(10, null);
+        sb.setLength(0);
+        metric.print(sb);
+        String metrics = sb.toString();
+        assertEquals(3, value(metrics, "orders_duration_total_count{}"), metrics);
+        assertEquals(22, value(metrics, "orders_duration_ms_sum{}"), metrics);
+        assertEquals(3, value(metrics, "orders_duration_ms_bucket{le=\"+Inf\"}"), metrics);
+    }
+
+    @Test
+    public void resetDropsRecordedValues() {
+        DurationMetric metric = newMetric();
+        metric.recordValue(5, null);
+        metric.resetValue();
+        metric.recordValue(3, null);
+        StringBuilder sb = new StringBuilder();
+        metric.print(sb);
+        String metrics = sb.toString();
+        assertEquals(1, value(metrics, "orders_duration_total_count{}"), metrics);
+        assertEquals(3, value(metrics, "orders_duration_ms_sum{}"), metrics);
+    }
+
+    @Test
+    public void seriesOfSameShapeDoNotShareValues() {
+        DurationMetric first = newMetric();
+        DurationMetric second = newMetric();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 3; i++) {
+            // Both series swap in the intervals the other one has just released
+            first.recordValue(5, null);
+            second.recordValue(7, null);
+            second.recordValue(7, null);
+            sb.setLength(0);
+            first.print(sb);
+            sb.setLength(0);
+            second.print(sb);
+        }
+        second.resetValue();
+        first.recordValue(5, null);
+        sb.setLength(0);
+        first.print(sb);
+        String metrics = sb.toString();
+        assertEquals(4, value(metrics, "orders_duration_total_count{}"), metrics);
+        assertEquals(20, value(metrics, "orders_duration_ms_sum{}"), metrics);
+        sb.setLength(0);
+        second.print(sb);
+        metrics = sb.toString();
+        assertEquals(0, value(metrics, "orders_duration_total_count{}"), metrics);
+    }
+
+    @Test
+    public void concurrentScrapesAreConsistent() throws InterruptedException {
+        final DurationMetric metric = newMetric();
+        final int threads = 4;
+        final int values = 100000;
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] writers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            writers[i] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int j = 0; j < values; j++) {
+                    metric.recordValue(5, null);
+                }
+            });
+            writers[i].start();
+        }
+        start.countDown();
+        StringBuilder sb = new StringBuilder();
+        boolean running = true;
+        while (running) {
+            running = false;
+            for (Thread writer : writers) {
+                running |= writer.isAlive();
+            }
+            sb.setLength(0);
+            metric.print(sb);
+            String metrics = sb.toString();
+            long count = value(metrics, "orders_duration_total_count{}");
+            assertEquals(count * 5, value(metrics, "orders_duration_ms_sum{}"),
+                    "Sum and count should come from the same snapshot: " + metrics);
+            assertTrue(count <= (long) threads * values, metrics);
+            if (!running) {
+                assertEquals((long) threads * values, count, metrics);
+            }
+        }
+    }
+}
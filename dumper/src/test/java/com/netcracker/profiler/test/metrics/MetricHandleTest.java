@@ -0,0 +1,67 @@
+package com.netcracker.profiler.test.metrics;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.netcracker.profiler.agent.MetricHandle;
+import com.netcracker.profiler.agent.MetricType;
+import com.netcracker.profiler.metrics.MetricHandleImpl;
+import com.netcracker.profiler.metrics.MetricsPluginImpl;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+
+public class MetricHandleTest {
+    private static MetricHandle countHandle(MetricsPluginImpl plugin, String... keys) {
+        return new MetricHandleImpl(plugin, MetricType.COUNT, "orders", keys, false,
+                Collections.<String, String>emptyMap(), 2);
+    }
+
+    @Test
+    public void recordsToMetricOfKeyValues() {
+        MetricsPluginImpl plugin = new MetricsPluginImpl();
+        MetricHandle handle = countHandle(plugin, "status", "region");
+        handle.record(1, "ok", "eu");
+        handle.record(1, "ok", "eu");
+        handle.record(1, "ok", "us");
+        handle.record(1, new String[]{"failed", "eu"});
+        handle.record(1, "failed", null);
+
+        String metrics = plugin.getMetrics();
+        assertTrue(metrics.contains("orders_count_total{status=\"ok\", region=\"eu\"} 2")
+                || metrics.contains("orders_count_total{region=\"eu\", status=\"ok\"} 2"), metrics);
+        assertEquals(4, metrics.split("\n").length, metrics);
+    }
+
+    @Test
+    public void handleSharesMetricsWithPlugin() {
+        MetricsPluginImpl plugin = new MetricsPluginImpl();
+        MetricHandle first = countHandle(plugin, "status");
+        MetricHandle second = countHandle(plugin, "status");
+        for (int i = 0; i < 100; i++) {
+            first.record(i, "s" + (i % 10));
+            second.record(i, "s" + (i % 10));
+        }
+        String metrics = plugin.getMetrics();
+        assertEquals(10, metrics.split("\n").length, metrics);
+        assertTrue(metrics.contains("orders_count_total{status=\"s3\"} 20"), metrics);
+    }
+
+    @Test
+    public void resetDropsCachedMetrics() {
+        MetricsPluginImpl plugin = new MetricsPluginImpl();
+        MetricHandle handle = countHandle(plugin);
+        handle.record(1);
+        handle.record(1);
+        plugin.resetMetrics();
+        handle.record(1);
+        assertEquals("orders_count_total{} 1\n", plugin.getMetrics());
+    }
+
+    @Test
+    public void wrongNumberOfKeyValues() {
+        MetricHandle handle = countHandle(new MetricsPluginImpl(), "status");
+        assertThrows(IllegalArgumentException.class, () -> handle.record(1));
+        assertThrows(IllegalArgumentException.class, () -> handle.record(1, "a", "b"));
+    }
+}
@@ -0,0 +1,114 @@
+package com.netcracker.profiler.test.metrics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.netcracker.profiler.agent.MetricType;
+import com.netcracker.profiler.metrics.AggregationParameter;
+import com.netcracker.profiler.metrics.MetricsPluginImpl;
+import com.netcracker.profiler.metrics.MetricsWriter;
+import com.netcracker.profiler.metrics.SeriesPrefix;
+
+import gnu.trove.set.hash.THashSet;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashSet;
+
+public class MetricsWriterTest {
+    @Test
+    public void writesNumbers() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        MetricsWriter writer = new MetricsWriter(bytes, false, 32);
+        long[] values = {0, 7, -7, 1234567890123L, Long.MAX_VALUE, Long.MIN_VALUE, 1000000000000000000L};
+        StringBuilder expected = new StringBuilder();
+        for (long value : values) {
+            writer.write(value).write(' ');
+            expected.append(value).append(' ');
+        }
+        writer.finish();
+        assertEquals(expected.toString(), new String(bytes.toByteArray(), StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void openMetricsLabelsHaveNoSpaces() {
+        SeriesPrefix prefix = new SeriesPrefix("orders_count_total{status=\"ok, done\", region=\"eu\"} ");
+        assertEquals("orders_count_total{status=\"ok, done\", region=\"eu\"} ",
+                new String(prefix.getBytes(false), StandardCharsets.UTF_8));
+        assertEquals("orders_count_total{status=\"ok, done\",region=\"eu\"} ",
+                new String(prefix.getBytes(true), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void escapedQuoteDoesNotEndLabelValue() {
+        SeriesPrefix prefix = new SeriesPrefix("disks_count_total{model=\"5\\\" disk, ssd\", region=\"eu\"} ");
+        assertEquals("disks_count_total{model=\"5\\\" disk, ssd\",region=\"eu\"} ",
+                new String(prefix.getBytes(true), StandardCharsets.UTF_8));
+    }
+
+    private static HashSet<AggregationParameter> parameters(String name, String value) {
+        THashSet<String> values = new THashSet<String>();
+        values.add(value);
+        HashSet<AggregationParameter> parameters = new HashSet<AggregationParameter>();
+        parameters.add(new AggregationParameter(name, values));
+        return parameters;
+    }
+
+    @Test
+    public void openMetricsExpositionIsSortedAndTerminated() throws IOException {
+        MetricsPluginImpl plugin = new MetricsPluginImpl();
+        String[] statuses = {"c", "a", "b"};
+        for (String status : statuses) {
+            plugin.getOrCreateMetric(MetricType.COUNT, "orders", parameters("status", status), false,
+                    Collections.<String, String>emptyMap(), 2).recordValue(1, null);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        plugin.writeMetrics(bytes, true);
+        assertEquals("# TYPE orders_count counter\n"
+                        + "# HELP orders_count orders calls count\n"
+                        + "orders_count_total{status=\"a\"} 1\n"
+                        + "orders_count_total{status=\"b\"} 1\n"
+                        + "orders_count_total{status=\"c\"} 1\n"
+                        + "# EOF\n",
+                new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+
+        String text = plugin.getMetrics();
+        assertEquals(3, text.split("\n").length, text);
+        assertTrue(!text.contains("# EOF"), text);
+    }
+
+    @Test
+    public void openMetricsHistogramSamplesShareFamily() throws IOException {
+        MetricsPluginImpl plugin = new MetricsPluginImpl();
+        for (String status : new String[]{"b", "a"}) {
+            plugin.getOrCreateMetric(MetricType.DURATION, "orders", parameters("status", status), false,
+                    Collections.<String, String>emptyMap(), 2).recordValue(150, null);
+        }
+        plugin.getOrCreateMetric(MetricType.COUNT, "orders", parameters("status", "a"), false,
+                Collections.<String, String>emptyMap(), 2).recordValue(1, null);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        plugin.writeMetrics(bytes, true);
+        String exposition = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+
+        StringBuilder families = new StringBuilder();
+        for (String line : exposition.split("\n")) {
+            if (line.startsWith("# TYPE ")) {
+                families.append(line.substring("# TYPE ".length())).append('\n');
+            } else if (!line.startsWith("#")) {
+                String family = families.substring(families.lastIndexOf("\n", families.length() - 2) + 1).split(" ")[0];
+                assertTrue(line.startsWith(family + "_") || line.startsWith(family + "{"), exposition);
+            }
+        }
+        assertEquals("orders_count counter\norders_duration_ms histogram\n", families.toString(), exposition);
+        assertTrue(exposition.contains("orders_duration_ms_bucket{status=\"b\",le=\"+Inf\"} 1\n"
+                + "orders_duration_ms_sum{status=\"b\"} 150\n"
+                + "orders_duration_ms_count{status=\"b\"} 1\n# EOF\n"), exposition);
+        assertTrue(exposition.indexOf("{status=\"a\",le=") < exposition.indexOf("{status=\"b\",le="), exposition);
+
+        String text = plugin.getMetrics();
+        assertTrue(text.contains("orders_duration_total_count{status=\"a\"} 1\n"), text);
+    }
+}
@@ -0,0 +1,99 @@
+package com.netcracker.profiler.test.stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.netcracker.profiler.stream.CompressorStage;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+public class CompressorStageTest {
+    // Small chunks and queues, so the test exercises back pressure
+    private final CompressorStage stage = new CompressorStage(2, 4, 1024);
+
+    @AfterEach
+    public void shutdown() {
+        stage.shutdown();
+    }
+
+    @Test
+    public void streamsAreWrittenInOrder() throws IOException {
+        Random random = new Random(42);
+        List<ByteArrayOutputStream> files = new ArrayList<ByteArrayOutputStream>();
+        List<ByteArrayOutputStream> expected = new ArrayList<ByteArrayOutputStream>();
+        List<DataOutputStream> streams = new ArrayList<DataOutputStream>();
+        for (int i = 0; i < 5; i++) {
+            ByteArrayOutputStream file = new ByteArrayOutputStream();
+            files.add(file);
+            expected.add(new ByteArrayOutputStream());
+            streams.add(new DataOutputStream(stage.pipe(new GZIPOutputStream(file, 1024, true))));
+        }
+        for (int k = 0; k < 20000; k++) {
+            int i = random.nextInt(streams.size());
+            if (random.nextBoolean()) {
+                int b = random.nextInt();
+                streams.get(i).write(b);
+                expected.get(i).write(b);
+            } else {
+                byte[] bytes = new byte[random.nextInt(3000)];
+                random.nextBytes(bytes);
+                streams.get(i).write(bytes);
+                expected.get(i).write(bytes);
+            }
+            if (k % 5000 == 0) {
+                streams.get(i).flush();
+            }
+        }
+        for (DataOutputStream stream : streams) {
+            stream.close();
+        }
+        for (int i = 0; i < streams.size(); i++) {
+            assertArrayEquals(expected.get(i).toByteArray(), gunzip(files.get(i).toByteArray()), "stream " + i);
+        }
+        assertEquals(0, stage.getQueueDepth());
+    }
+
+    @Test
+    public void flushWaitsForCompressor() throws IOException {
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        OutputStream stream = stage.pipe(file);
+        stream.write(new byte[]{1, 2, 3});
+        stream.flush();
+        assertArrayEquals(new byte[]{1, 2, 3}, file.toByteArray());
+        stream.close();
+    }
+
+    @Test
+    public void failureIsReportedToWriter() throws IOException {
+        OutputStream stream = stage.pipe(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("No space left on device");
+            }
+        });
+        stream.write(1);
+        IOException e = assertThrows(IOException.class, stream::flush);
+        assertEquals("No space left on device", e.getMessage());
+        assertThrows(IOException.class, stream::close);
+    }
+
+    private static byte[] gunzip(byte[] data) throws IOException {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(data));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,106 @@
+package com.netcracker.profiler.test.transfer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.netcracker.profiler.agent.CallInfo;
+import com.netcracker.profiler.agent.NetworkExportParams;
+import com.netcracker.profiler.agent.ProfilerData;
+import com.netcracker.profiler.cloud.transport.ProtocolConst;
+import com.netcracker.profiler.configuration.NetworkExportParamsImpl;
+import com.netcracker.profiler.dump.ThreadState;
+import com.netcracker.profiler.formatters.title.ProfilerTitle;
+import com.netcracker.profiler.transfer.DataSender;
+import com.netcracker.profiler.util.DumperCallsExporter;
+
+import io.airlift.compress.lz4.Lz4Decompressor;
+import org.junit.jupiter.api.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class DataSenderTest {
+    private static final ProfilerTitle TITLE = new ProfilerTitle() {
+        public String getText() {
+            return "test call";
+        }
+
+        public String getHtml() {
+            return "test call";
+        }
+
+        public boolean isDefault() {
+            return false;
+        }
+    };
+
+    @Test
+    public void callsAreSentInCompressedFrames() throws Exception {
+        List<String> calls = exportCalls(2048, "lz4", 200);
+        assertEquals(200, calls.size());
+        for (int i = 0; i < calls.size(); i++) {
+            assertEquals("{\"duration\":\"" + i + "\"}", calls.get(i));
+        }
+    }
+
+    @Test
+    public void incompleteFrameIsSentWhenIdle() throws Exception {
+        List<String> calls = exportCalls(64 * 1024, "none", 3);
+        assertEquals(3, calls.size());
+        assertEquals("{\"duration\":\"2\"}", calls.get(2));
+    }
+
+    private static List<String> exportCalls(int batchSize, String codec, int count) throws Exception {
+        ProfilerData.resolveTag("void action() () []");
+        try (ServerSocket server = new ServerSocket(0)) {
+            List<String> included = new ArrayList<String>();
+            included.add("duration");
+            NetworkExportParams exportParams = new NetworkExportParamsImpl("localhost", server.getLocalPort(), 0,
+                    included, Collections.<String>emptyList(), Collections.<String>emptyList());
+            DataSender dataSender = new DataSender(exportParams, batchSize, codec);
+            DumperCallsExporter exporter = new DumperCallsExporter();
+            exporter.configureExport(dataSender, exportParams);
+            dataSender.start();
+            try (Socket socket = server.accept()) {
+                socket.setSoTimeout(10000);
+                for (int i = 0; i < count; i++) {
+                    exporter.exportCall(0, i, 0, new CallInfo(), TITLE, new ThreadState(), "main", "dump");
+                }
+                assertEquals(count, exporter.getExportedCalls());
+                assertEquals(0, exporter.getMissedCalls());
+
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                List<String> calls = new ArrayList<String>();
+                while (calls.size() < count) {
+                    for (String call : readFrame(in).split("\n")) {
+                        calls.add(call);
+                    }
+                }
+                return calls;
+            } finally {
+                dataSender.shutdown();
+            }
+        }
+    }
+
+    private static String readFrame(DataInputStream in) throws IOException {
+        int payloadLength = in.readInt();
+        int length = in.readInt();
+        byte codec = in.readByte();
+        byte[] payload = new byte[payloadLength];
+        in.readFully(payload);
+        if (codec == ProtocolConst.FRAME_CODEC_NONE) {
+            assertEquals(length, payloadLength);
+            return new String(payload, StandardCharsets.UTF_8);
+        }
+        assertEquals(ProtocolConst.FRAME_CODEC_LZ4, codec);
+        byte[] data = new byte[length];
+        assertEquals(length, new Lz4Decompressor().decompress(payload, 0, payloadLength, data, 0, length));
+        return new String(data, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,80 @@
+package com.netcracker.profiler.test.util.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.netcracker.profiler.util.cache.SegmentedClockCache;
+
+import org.junit.jupiter.api.Test;
+
+public class SegmentedClockCacheTest {
+    @Test
+    public void weightLimitsSize() {
+        SegmentedClockCache cache = new SegmentedClockCache(1000);
+        for (int i = 0; i < 1000; i++) {
+            cache.put(i, i * 10L, 100);
+            assertTrue(cache.getWeight() <= 1000, "Cache weight should not exceed the limit");
+        }
+        assertEquals(10, cache.size());
+        assertEquals(9990, cache.get(999));
+        assertEquals(-1, cache.get(0));
+    }
+
+    @Test
+    public void heavyEntriesAreNotCached() {
+        SegmentedClockCache cache = new SegmentedClockCache(1000);
+        cache.put(1, 1, 1001);
+        assertEquals(-1, cache.get(1));
+        assertEquals(0, cache.getWeight());
+    }
+
+    @Test
+    public void reusedEntriesSurviveScan() {
+        SegmentedClockCache cache = new SegmentedClockCache(100 * 100);
+        for (int i = 0; i < 50; i++) {
+            cache.put(i, i, 100);
+            cache.get(i);
+        }
+        // A stream of one-off keys, ten times larger than the cache
+        for (int i = 1000; i < 2000; i++) {
+            cache.put(i, i, 100);
+            for (int j = 0; j < 50; j += 7) {
+                cache.get(j);
+            }
+        }
+        for (int i = 0; i < 50; i += 7) {
+            assertEquals(i, cache.get(i), "Frequently used key " + i + " should stay in the cache");
+        }
+    }
+
+    @Test
+    public void hitRatio() {
+        SegmentedClockCache cache = new SegmentedClockCache(1000);
+        cache.get(1);
+        cache.put(1, 5, 10);
+        cache.get(1);
+        cache.get(1);
+        cache.get(2);
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void clearKeepsStatistics() {
+        SegmentedClockCache cache = new SegmentedClockCache(1000);
+        for (int i = 0; i < 20; i++) {
+            cache.put(i, i, 10);
+            cache.get(i);
+        }
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getWeight());
+        assertEquals(-1, cache.get(3));
+        assertEquals(20, cache.getHits());
+        for (int i = 0; i < 200; i++) {
+            cache.put(i, i, 10);
+        }
+        assertEquals(100, cache.size());
+        assertEquals(199, cache.get(199));
+    }
+}
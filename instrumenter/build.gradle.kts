@@ -13,6 +13,7 @@
     implementation("javax:javaee-api")
     implementation("net.sf.trove4j:trove4j")
     implementation("org.ow2.asm:asm-commons")
+    implementation("org.ow2.asm:asm-tree")
     implementation("org.ow2.asm:asm-util")
     implementation("org.slf4j:slf4j-api")
 }
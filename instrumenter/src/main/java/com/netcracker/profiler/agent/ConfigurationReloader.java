@@ -10,11 +10,19 @@
 import java.lang.instrument.Instrumentation;
 import java.net.URL;
 import java.util.*;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.*;
 import java.util.logging.Level;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
+/**
+ * Redefines the loaded classes whose rules differ in the new configuration.
+ * <p>
+ * The classes to reload are found and their class files are read by a pool of {@link #THREADS} threads: the loaded
+ * classes are split into chunks of {@link #CHUNK_SIZE}, and the class files are read by location (jar or directory).
+ * The classes are redefined by the reloading thread in batches of {@link #BATCH_SIZE}, so the JVM stops the world
+ * once per batch rather than once per class. The status is updated by the reloading thread only.
+ */
 public class ConfigurationReloader implements Runnable {
 //    public static final Logger log = LoggerFactory.getLogger(ConfigurationReloader.class);
     private static final ESCLogger logger = ESCLogger.getLogger(ConfigurationReloader.class.getName());
@@ -23,6 +31,21 @@ public class ConfigurationReloader implements Runnable {
                     || System.getProperty("java.vendor").startsWith("Sun")
             );
 
+    /**
+     * Number of threads that find the classes to reload and read their class files, 1 does everything in the
+     * reloading thread. Defaults to the number of processors, but no more than 4.
+     */
+    public static final int THREADS = Integer.getInteger(ConfigurationReloader.class.getName() + ".THREADS", Math.min(4, Runtime.getRuntime().availableProcessors()));
+    /**
+     * Maximum number of classes redefined with a single {@link Instrumentation#redefineClasses} call,
+     * 1 redefines the classes one by one. Defaults to 100.
+     */
+    public static final int BATCH_SIZE = Integer.getInteger(ConfigurationReloader.class.getName() + ".BATCH_SIZE", 100);
+    /**
+     * Number of loaded classes a thread checks for the changed rules at once.
+     */
+    private static final int CHUNK_SIZE = 1024;
+
     private final ConfigurationSPI conf;
     private final ConfigurationSPI newConf;
     private final Set<String> classNames;
@@ -40,58 +63,143 @@ public ConfigurationReloader(ConfigurationSPI conf, ConfigurationSPI newConf, Se
         this.reloadingSemaphore = reloadingSemaphore;
     }
 
+    /**
+     * Class file that was read for redefinition.
+     */
+    private static class ClassFile {
+        final Class clazz;
+        final byte[] bytes;
+        final String source;
+
+        ClassFile(Class clazz, byte[] bytes, String source) {
+            this.clazz = clazz;
+            this.bytes = bytes;
+            this.source = source;
+        }
+    }
+
+    /**
+     * Class files of a single location.
+     */
+    private static class Location {
+        final String name;
+        final List<ClassFile> classFiles = new ArrayList<ClassFile>();
+        // The classes that are not found in the location, they are looked up with Class.getResource
+        final List<Class> classesWithUnknownSource = new ArrayList<Class>();
+        int errorCount;
+
+        Location(String name) {
+            this.name = name;
+        }
+    }
+
     public void run() {
         final ReloadStatusMutable reloadStatus = this.reloadStatus;
         final Instrumentation inst = this.inst;
+        ExecutorService executor = null;
         try {
             reloadStatus.setMessage("Calculating classes to be reloaded");
-            ArrayList<Rule> rules = new ArrayList<Rule>();
-            ArrayList<Rule> newRules = new ArrayList<Rule>();
             final Class[] allClasses = inst.getAllLoadedClasses();
-            Map<String, Collection<Class>> jarToClasses = new HashMap<String, Collection<Class>>();
-
-            final ArrayList<Class> classesWithUnknownSource = new ArrayList<Class>();
-            jarToClasses.put(null, classesWithUnknownSource);
             reloadStatus.setTotalCount(allClasses.length);
+            if (THREADS > 1) {
+                executor = createExecutor();
+            }
+            CompletionService<Map<String, List<Class>>> completionService = newCompletionService(executor);
+            final RuleFingerprints fingerprints = new RuleFingerprints();
+            int chunks = 0;
+            for (int i = 0; i < allClasses.length; i += CHUNK_SIZE) {
+                final int from = i;
+                final int to = Math.min(allClasses.length, i + CHUNK_SIZE);
+                completionService.submit(new Callable<Map<String, List<Class>>>() {
+                    public Map<String, List<Class>> call() {
+                        return findClassesToReload(allClasses, from, to, fingerprints.local());
+                    }
+                });
+                chunks++;
+            }
+
+            Map<String, List<Class>> jarToClasses = new LinkedHashMap<String, List<Class>>();
             int classesToReload = 0;
-            final Set<String> classNames = this.classNames;
-            final ConfigurationSPI newConf = this.newConf;
-            final ConfigurationSPI conf = this.conf;
-            for (int i1 = 0, allClassesLength = allClasses.length; i1 < allClassesLength; i1++) {
-                reloadStatus.setSuccessCount(i1);
-                Class clazz = allClasses[i1];
-                String className = clazz.getName();
-                if (className == null) continue;
-                if (classNames != null && !classNames.contains(className)) continue;
-                if (newConf != null) {
-                    if (conf == null && clazz.getClassLoader() != null) continue;
-                    String nativeClassName = className.replace('.', '/');
-                    newConf.getRulesForClass(nativeClassName, newRules);
-                    if (conf != null) {
-                        conf.getRulesForClass(nativeClassName, rules);
-                        if (rules.equals(newRules)) continue;
-                    } else if (newRules.isEmpty()) continue;
+            for (int i = 0; i < chunks; i++) {
+                for (Map.Entry<String, List<Class>> entry : completionService.take().get().entrySet()) {
+                    List<Class> classes = jarToClasses.get(entry.getKey());
+                    if (classes == null)
+                        jarToClasses.put(entry.getKey(), classes = new ArrayList<Class>());
+                    classes.addAll(entry.getValue());
+                    classesToReload += entry.getValue().size();
                 }
-                classesToReload++;
-                final String fullJarName = TypeUtils.getFullJarName(clazz.getProtectionDomain());
-                Collection<Class> classes = jarToClasses.get(fullJarName);
-                if (classes == null)
-                    jarToClasses.put(fullJarName, classes = new ArrayList<Class>());
-                classes.add(clazz);
+                reloadStatus.setSuccessCount(Math.min(allClasses.length, (i + 1) * CHUNK_SIZE));
             }
 
-            performReload(jarToClasses, classesWithUnknownSource, classesToReload);
+            performReload(jarToClasses, classesToReload, executor);
         } catch (Throwable t) {
+            if (t instanceof ExecutionException)
+                t = t.getCause();
             reloadStatus.setMessage("Error while reloading classes: " + t.getMessage() + ". Please, refer to the profiler.log for the details.");
             logger.log(Level.WARNING, "Error while reloading classes", t);
         } finally {
+            if (executor != null)
+                executor.shutdownNow();
             reloadStatus.setDone(true);
             reloadingSemaphore.release();
         }
     }
 
-    private void performReload(Map<String, Collection<Class>> jarToClasses, ArrayList<Class> classesWithUnknownSource, int classesToReload) {
-        logger.info("About to reload "+classesToReload+" classes in "+jarToClasses.size()+" different locations");
+    private static ExecutorService createExecutor() {
+        return Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+            private int count;
+
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Profiler configuration reloader-" + (count++));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private static <T> CompletionService<T> newCompletionService(ExecutorService executor) {
+        if (executor != null)
+            return new ExecutorCompletionService<T>(executor);
+        // Single-threaded mode executes the tasks right in the reloading thread
+        return new ExecutorCompletionService<T>(new Executor() {
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+    }
+
+    private Map<String, List<Class>> findClassesToReload(Class[] allClasses, int from, int to, RuleFingerprints.Local fingerprints) {
+        ArrayList<Rule> rules = new ArrayList<Rule>();
+        ArrayList<Rule> newRules = new ArrayList<Rule>();
+        Map<String, List<Class>> jarToClasses = new HashMap<String, List<Class>>();
+        final Set<String> classNames = this.classNames;
+        final ConfigurationSPI newConf = this.newConf;
+        final ConfigurationSPI conf = this.conf;
+        for (int i = from; i < to; i++) {
+            Class clazz = allClasses[i];
+            String className = clazz.getName();
+            if (className == null) continue;
+            if (classNames != null && !classNames.contains(className)) continue;
+            if (newConf != null) {
+                if (conf == null && clazz.getClassLoader() != null) continue;
+                String nativeClassName = className.replace('.', '/');
+                newConf.getRulesForClass(nativeClassName, newRules);
+                if (conf != null) {
+                    conf.getRulesForClass(nativeClassName, rules);
+                    if (fingerprints.sameRules(rules, newRules)) continue;
+                } else if (newRules.isEmpty()) continue;
+            }
+            final String fullJarName = TypeUtils.getFullJarName(clazz.getProtectionDomain());
+            List<Class> classes = jarToClasses.get(fullJarName);
+            if (classes == null)
+                jarToClasses.put(fullJarName, classes = new ArrayList<Class>());
+            classes.add(clazz);
+        }
+        return jarToClasses;
+    }
+
+    private void performReload(Map<String, List<Class>> jarToClasses, int classesToReload, ExecutorService executor) throws InterruptedException, ExecutionException {
+        logger.info("About to reload "+classesToReload+" classes in "+jarToClasses.size()+" different locations using "+Math.max(1, THREADS)+" threads");
         if (NEED_REFLECTION_WA) {
             logger.info("Will call clazz.getMethods() for each class before reload to workaround issue https://github.com/eclipse/openj9/issues/1950");
         }
@@ -101,41 +209,107 @@ private void performReload(Map<String, Collection<Class>> jarToClasses, ArrayLis
         reloadStatus.setSuccessCount(0);
         reloadStatus.setErrorCount(0);
         reloadStatus.setTotalCount(classesToReload);
-        for (Map.Entry<String, Collection<Class>> entry : jarToClasses.entrySet()) {
+
+        CompletionService<Location> completionService = newCompletionService(executor);
+        int pending = 0;
+        for (Map.Entry<String, List<Class>> entry : jarToClasses.entrySet()) {
+            if (entry.getKey() == null) {
+                pending += submitClassesWithUnknownSource(completionService, entry.getValue());
+                continue;
+            }
             final String jarLocation = entry.getKey();
-            if (jarLocation != null) {
-                reloadStatus.setMessage("Processing " + jarLocation);
-                /* try open jar file manually */
-                final File location = new File(jarLocation);
-
-                if (!location.exists()) {
-                    classesWithUnknownSource.addAll(entry.getValue());
-                    continue;
+            final List<Class> classes = entry.getValue();
+            completionService.submit(new Callable<Location>() {
+                public Location call() {
+                    return readLocation(jarLocation, classes);
                 }
+            });
+            pending++;
+        }
 
-                logger.info("About to process "+entry.getValue().size()+" classes from "+location.getAbsolutePath());
-                if (location.isFile()) {
-                    reloadClassesFromJar(classesWithUnknownSource, entry, location);
-                    continue;
+        List<ClassFile> batch = new ArrayList<ClassFile>();
+        int processed = 0;
+        int lastLogged = 0;
+        for (; pending > 0; pending--) {
+            Location location = completionService.take().get();
+            if (location.name != null) {
+                reloadStatus.setMessage("Processing " + location.name);
+            } else {
+                reloadStatus.setMessage("Processing classes with unknown class file location");
+            }
+            if (!location.classesWithUnknownSource.isEmpty()) {
+                logger.fine("Processing " + location.classesWithUnknownSource.size() + " classes of " + location.name + " with unknown location");
+                pending += submitClassesWithUnknownSource(completionService, location.classesWithUnknownSource);
+            }
+            reloadStatus.setErrorCount(reloadStatus.getErrorCount() + location.errorCount);
+            for (ClassFile classFile : location.classFiles) {
+                batch.add(classFile);
+                if (batch.size() >= BATCH_SIZE) {
+                    redefineClasses(batch);
+                    batch.clear();
                 }
+            }
+            processed += location.classFiles.size() + location.errorCount;
+            if (processed - lastLogged >= 50) {
+                lastLogged = processed;
+                logger.info("Processed " + processed + " of " + classesToReload + " classes");
+            }
+        }
+        if (!batch.isEmpty())
+            redefineClasses(batch);
+
+        StringBuilder msg = new StringBuilder();
+        msg.append("Reload complete. Reloaded ");
+        msg.append(reloadStatus.getSuccessCount()).append(" class");
+        if (reloadStatus.getSuccessCount() != 1) msg.append("es");
+        if (reloadStatus.getErrorCount() > 0)
+            msg.append(" (").append(reloadStatus.getErrorCount()).append(" more failed to reload). ");
+        if (!firstReloadedClasses.isEmpty()) {
+            msg.append(firstReloadedClasses.get(0));
+            for (int i = 1, firstReloadedClassesSize = firstReloadedClasses.size(); i < firstReloadedClassesSize; i++) {
+                msg.append(", ").append(firstReloadedClasses.get(i));
+            }
+        }
+        reloadStatus.setMessage(msg.toString());
+    }
 
-                if (location.isDirectory()) {
-                    reloadClassesFromDirectory(classesWithUnknownSource, entry, location);
-                    continue;
+    private int submitClassesWithUnknownSource(CompletionService<Location> completionService, List<Class> classes) {
+        int tasks = 0;
+        for (int i = 0; i < classes.size(); i += BATCH_SIZE) {
+            final List<Class> chunk = classes.subList(i, Math.min(classes.size(), i + BATCH_SIZE));
+            completionService.submit(new Callable<Location>() {
+                public Location call() {
+                    return readClassesWithUnknownSource(chunk);
                 }
+            });
+            tasks++;
+        }
+        return tasks;
+    }
 
-                classesWithUnknownSource.addAll(entry.getValue());
-            }
-            final int successCount = reloadStatus.getSuccessCount();
-            if (successCount % 50 == 0 && successCount > 0)
-                logger.info("Processed "+successCount + reloadStatus.getErrorCount()+" of "+classesToReload+" classes");
+    private Location readLocation(String jarLocation, List<Class> classes) {
+        Location result = new Location(jarLocation);
+        /* try open jar file manually */
+        final File location = new File(jarLocation);
+        if (!location.exists()) {
+            result.classesWithUnknownSource.addAll(classes);
+            return result;
         }
 
-        logger.fine("Processing " + classesWithUnknownSource.size() + " classes with unknown location"  );
+        logger.info("About to process "+classes.size()+" classes from "+location.getAbsolutePath());
+        if (location.isFile()) {
+            readClassesFromJar(result, classes, location);
+        } else if (location.isDirectory()) {
+            readClassesFromDirectory(result, classes, location);
+        } else {
+            result.classesWithUnknownSource.addAll(classes);
+        }
+        return result;
+    }
 
-        reloadStatus.setMessage("Processing classes with unknown class file location");
-        for (int i = 0, classesWithUnknownSourceSize = classesWithUnknownSource.size(); i < classesWithUnknownSourceSize; i++) {
-            Class clazz = classesWithUnknownSource.get(i);
+    private Location readClassesWithUnknownSource(List<Class> classes) {
+        Location result = new Location(null);
+        for (Class clazz : classes) {
             final String originalClassName = clazz.getName();
             String nativeClassName = originalClassName.replace('.', '/');
             URL resource = clazz.getResource("/" + nativeClassName + ".class");
@@ -151,56 +325,42 @@ private void performReload(Map<String, Collection<Class>> jarToClasses, ArrayLis
                 continue;
             }
 
-            if (is != null)
-                reloadClassFromStream(clazz, is, resource.toString());
-            else {
+            if (is == null) {
                 logger.warning("Unable to find class file for class "+ clazz.getName() +" using getResourceAsStream");
-                reloadStatus.setErrorCount(reloadStatus.getErrorCount() + 1);
-            }
-            if (i % 50 == 0 && i > 0) {
-                logger.info("Processed "+i+" of "+classesWithUnknownSourceSize+" classes");
-                reloadStatus.setMessage("Processed " + originalClassName);
+                result.errorCount++;
+            } else if (!readClassFromStream(result, clazz, is, resource.toString())) {
+                result.errorCount++;
             }
         }
-        StringBuilder msg = new StringBuilder();
-        msg.append("Reload complete. Reloaded ");
-        msg.append(reloadStatus.getSuccessCount()).append(" class");
-        if (reloadStatus.getSuccessCount() != 1) msg.append("es");
-        if (reloadStatus.getErrorCount() > 0)
-            msg.append(" (").append(reloadStatus.getErrorCount()).append(" more failed to reload). ");
-        if (!firstReloadedClasses.isEmpty()) {
-            msg.append(firstReloadedClasses.get(0));
-            for (int i = 1, firstReloadedClassesSize = firstReloadedClasses.size(); i < firstReloadedClassesSize; i++) {
-                msg.append(", ").append(firstReloadedClasses.get(i));
-            }
-        }
-        reloadStatus.setMessage(msg.toString());
+        return result;
     }
 
-    private void reloadClassesFromDirectory(ArrayList<Class> classesWithUnknownSource, Map.Entry<String, Collection<Class>> entry, File location) {
+    private void readClassesFromDirectory(Location result, List<Class> classes, File location) {
         final String locationAbsolutePath = location.getAbsolutePath();
-        for (Class clazz : entry.getValue()) {
+        for (Class clazz : classes) {
             String nativeClassName = clazz.getName().replace('.', '/');
             FileInputStream is = null;
             try {
                 is = new FileInputStream(new File(location, nativeClassName + ".class"));
             } catch (FileNotFoundException e) {
-                logger.log(Level.WARNING, "Unable to find class "+ clazz.getName() +" in folder " + entry.getKey(), e);
+                logger.log(Level.WARNING, "Unable to find class "+ clazz.getName() +" in folder " + result.name, e);
             }
-            if (is == null || !reloadClassFromStream(clazz, is, locationAbsolutePath))
-                classesWithUnknownSource.add(clazz);
+            if (is == null || !readClassFromStream(result, clazz, is, locationAbsolutePath))
+                result.classesWithUnknownSource.add(clazz);
         }
     }
 
-    private void reloadClassesFromJar(ArrayList<Class> classesWithUnknownSource, Map.Entry<String, Collection<Class>> entry, File location) {
+    private void readClassesFromJar(Location result, List<Class> classes, File location) {
         final String locationAbsolutePath = location.getAbsolutePath();
         if (locationAbsolutePath.endsWith(".class")) {
             InputStream is;
-            for (Class clazz : entry.getValue()) {
+            for (Class clazz : classes) {
                 try {
                     is = new FileInputStream(location);
-                    if (!reloadClassFromStream(clazz, is, locationAbsolutePath))
+                    if (!readClassFromStream(result, clazz, is, locationAbsolutePath)) {
                         logger.warning("Unable to reload class " + clazz.getName() + " from file {} " +  locationAbsolutePath);
+                        result.errorCount++;
+                    }
                 } catch (FileNotFoundException e) {
                     logger.log(Level.WARNING, "Unable to open input stream", e);
                 }
@@ -213,12 +373,12 @@ private void reloadClassesFromJar(ArrayList<Class> classesWithUnknownSource, Map
             zip = new ZipFile(location);
         } catch (IOException e) {
             logger.log(Level.WARNING, "Unable to reload classes from  " + locationAbsolutePath, e);
-            classesWithUnknownSource.addAll(entry.getValue());
+            result.classesWithUnknownSource.addAll(classes);
             return;
         }
 
         try {
-            for (Class clazz : entry.getValue()) {
+            for (Class clazz : classes) {
                 String nativeClassName = clazz.getName().replace('.', '/');
                 final ZipEntry ze = zip.getEntry(nativeClassName + ".class");
                 InputStream is = null;
@@ -226,10 +386,10 @@ private void reloadClassesFromJar(ArrayList<Class> classesWithUnknownSource, Map
                     try {
                         is = zip.getInputStream(ze);
                     } catch (IOException e) {
-                        logger.log(Level.WARNING, "Unable to open entry " + ze.getName() + " in file " + entry.getKey(), e);
+                        logger.log(Level.WARNING, "Unable to open entry " + ze.getName() + " in file " + result.name, e);
                     }
-                if (is == null || !reloadClassFromStream(clazz, is, locationAbsolutePath))
-                    classesWithUnknownSource.add(clazz);
+                if (is == null || !readClassFromStream(result, clazz, is, locationAbsolutePath))
+                    result.classesWithUnknownSource.add(clazz);
             }
         } finally {
             try {
@@ -240,31 +400,66 @@ private void reloadClassesFromJar(ArrayList<Class> classesWithUnknownSource, Map
         }
     }
 
-    private boolean reloadClassFromStream(Class clazz, InputStream is, String source) {
-        final ReloadStatusMutable reloadStatus = this.reloadStatus;
+    private boolean readClassFromStream(Location result, Class clazz, InputStream is, String source) {
         try (InputStream stream = is) {
-            logger.info("Reloading class "+clazz.getName()+" from "+source);
+            result.classFiles.add(new ClassFile(clazz, IOHelper.readFully(stream), source));
+            return true;
+        } catch (Throwable t) {
+            logger.log(Level.WARNING, "Unable to read class file of " + clazz.getName() + " from " + source, t);
+        }
+        return false;
+    }
+
+    private void redefineClasses(List<ClassFile> batch) {
+        ClassDefinition[] definitions = new ClassDefinition[batch.size()];
+        for (int i = 0; i < definitions.length; i++) {
+            ClassFile classFile = batch.get(i);
+            logger.info("Reloading class "+classFile.clazz.getName()+" from "+classFile.source);
             if (NEED_REFLECTION_WA) {
                 try {
-                  // Workaround for J9, PSUPAI-4834
-                  clazz.getMethods();
+                    // Workaround for J9, PSUPAI-4834
+                    classFile.clazz.getMethods();
                 } catch (Throwable t) {
-                    logger.log(Level.WARNING, "Problem during preloading methods via reflection for class " +  clazz.getName(), t);
+                    logger.log(Level.WARNING, "Problem during preloading methods via reflection for class " +  classFile.clazz.getName(), t);
                 }
             }
-            final byte[] bytes = IOHelper.readFully(stream);
-            inst.redefineClasses(new ClassDefinition(clazz, bytes));
-            logger.fine("Successfully reloaded " + clazz.getName());
-            if (firstReloadedClasses.size() < 20)
-                firstReloadedClasses.add(clazz.getName());
-            reloadStatus.setSuccessCount(reloadStatus.getSuccessCount() + 1);
-            return true;
+            definitions[i] = new ClassDefinition(classFile.clazz, classFile.bytes);
+        }
+        try {
+            inst.redefineClasses(definitions);
         } catch (Throwable t) {
-            logger.log(Level.WARNING, "Unable to reload class  " +  clazz.getName(), t);
-            reloadStatus.setErrorCount(reloadStatus.getErrorCount() + 1);
-            if (firstReloadedClasses.size() < 20)
-                firstReloadedClasses.add(clazz.getName() + " - fail");
+            if (definitions.length == 1) {
+                reloadFailed(batch.get(0), t);
+                return;
+            }
+            // The JVM redefines either all the classes of the batch or none, so find the one that fails
+            logger.log(Level.FINE, "Unable to reload " + definitions.length + " classes at once, reloading them one by one", t);
+            for (int i = 0; i < definitions.length; i++) {
+                try {
+                    inst.redefineClasses(definitions[i]);
+                    reloaded(batch.get(i));
+                } catch (Throwable e) {
+                    reloadFailed(batch.get(i), e);
+                }
+            }
+            return;
         }
-        return false;
+        for (ClassFile classFile : batch) {
+            reloaded(classFile);
+        }
+    }
+
+    private void reloaded(ClassFile classFile) {
+        logger.fine("Successfully reloaded " + classFile.clazz.getName());
+        if (firstReloadedClasses.size() < 20)
+            firstReloadedClasses.add(classFile.clazz.getName());
+        reloadStatus.setSuccessCount(reloadStatus.getSuccessCount() + 1);
+    }
+
+    private void reloadFailed(ClassFile classFile, Throwable t) {
+        logger.log(Level.WARNING, "Unable to reload class  " +  classFile.clazz.getName(), t);
+        reloadStatus.setErrorCount(reloadStatus.getErrorCount() + 1);
+        if (firstReloadedClasses.size() < 20)
+            firstReloadedClasses.add(classFile.clazz.getName() + " - fail");
     }
 }
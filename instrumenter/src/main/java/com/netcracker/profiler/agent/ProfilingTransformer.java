@@ -5,7 +5,6 @@
 import com.netcracker.profiler.agent.plugins.ConfigurationSPI;
 import com.netcracker.profiler.configuration.Rule;
 import com.netcracker.profiler.instrument.EnhancingClassVisitor;
-import com.netcracker.profiler.instrument.GatherRulesForMethodVisitor;
 import com.netcracker.profiler.instrument.ProfileClassAdapter;
 import com.netcracker.profiler.instrument.TypeUtils;
 import com.netcracker.profiler.instrument.custom.util.DefaultMethodAdder;
@@ -13,7 +12,6 @@
 import com.netcracker.profiler.instrument.enhancement.ClassInfoImpl;
 import com.netcracker.profiler.instrument.enhancement.EnhancerPlugin;
 import com.netcracker.profiler.instrument.enhancement.FilteredEnhancer;
-import com.netcracker.profiler.util.MethodInstrumentationInfo;
 
 import org.objectweb.asm.*;
 import org.objectweb.asm.commons.SerialVersionUIDAdder;
@@ -29,16 +27,18 @@
 import java.lang.instrument.IllegalClassFormatException;
 import java.security.ProtectionDomain;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 
 public class ProfilingTransformer implements ClassFileTransformer {
     private final static Logger log = LoggerFactory.getLogger(ProfilingTransformer.class);
     private volatile ConfigurationSPI conf;
+    private volatile TransformedClassCache cache;
 
     public ProfilingTransformer(ConfigurationSPI conf) {
         this.conf = conf;
+        this.cache = TransformedClassCache.open(conf);
     }
 
     public ConfigurationSPI getConfiguration() {
@@ -46,7 +46,12 @@ public ConfigurationSPI getConfiguration() {
     }
 
     public void setConfiguration(ConfigurationSPI conf) {
+        TransformedClassCache prevCache = this.cache;
         this.conf = conf;
+        this.cache = TransformedClassCache.open(conf);
+        if (prevCache != null) {
+            prevCache.close();
+        }
     }
 
     public boolean transformRequired(String className) {
@@ -57,6 +62,7 @@ public boolean transformRequired(String className) {
     }
 
     public byte[] transform(ClassLoader loader, String name, Class<?> classBeingRedefined, ProtectionDomain protectionDomain, byte[] classfileBuffer) throws IllegalClassFormatException {
+        final ConfigurationSPI conf = this.conf;
         try {
             log.trace("Transformer called for class {}", name);
             Collection<Rule> rules = conf.getRulesForClass(name, null);
@@ -66,6 +72,20 @@ public byte[] transform(ClassLoader loader, String name, Class<?> classBeingRede
 
             if (rules.isEmpty() && enhancers.isEmpty() && defaultMethods.isEmpty())
                 return null;
+
+            // The cache is bound to the configuration, so a concurrent reload does not mix up the results
+            TransformedClassCache cache = this.cache;
+            byte[] cacheKey = null;
+            if (cache != null && cache.getConfiguration() == conf) {
+                cacheKey = TransformedClassCache.key(name, protectionDomain, classfileBuffer);
+                byte[] cached = cache.get(cacheKey);
+                if (cached != null) {
+                    log.trace("Class {} is found in transformed classes cache", name);
+                    storeTransformationResult(name, cached, classfileBuffer, conf);
+                    return cached;
+                }
+            }
+
             ClassInfo classInfo = new ClassInfoImpl();
             classInfo.setClassName(name);
             classInfo.setProtectionDomain(protectionDomain);
@@ -85,15 +105,6 @@ public byte[] transform(ClassLoader loader, String name, Class<?> classBeingRede
             }
 
             ClassReader cr = new ClassReader(classfileBuffer);
-            final HashMap<String, MethodInstrumentationInfo> selectedRules = new HashMap<String, MethodInstrumentationInfo>();
-
-            if (!rules.isEmpty()) {
-                ClassVisitor gatherVisitor = new GatherRulesForMethodVisitor(selectedRules, rules);
-                gatherVisitor = addDefaultMethods(gatherVisitor, defaultMethods, enhancementRegistry, classInfo);
-
-                cr.accept(gatherVisitor, ClassReader.SKIP_FRAMES);
-            }
-
             ClassWriter cw = new ClassWriter(cr, ClassWriter.COMPUTE_MAXS);
             ClassVisitor cv = cw;
 
@@ -107,11 +118,12 @@ public byte[] transform(ClassLoader loader, String name, Class<?> classBeingRede
                 cv = new EnhancingClassVisitor(cv, enhancers, classInfo);
             }
 
-            // This will actually insert enter/exit calls and execute-before/after/etc
-            if (selectedRules.isEmpty()) {
+            // This will select the rules for methods and actually insert enter/exit calls and execute-before/after/etc
+            ProfileClassAdapter profileClassAdapter = null;
+            if (rules.isEmpty()) {
                 log.debug("No profiling rules match class {}", name);
             } else {
-                cv = new ProfileClassAdapter(cv, name, selectedRules, TypeUtils.getJarName(protectionDomain));
+                cv = profileClassAdapter = new ProfileClassAdapter(cv, cr, rules, TypeUtils.getJarName(protectionDomain));
             }
 
             cv = addDefaultMethods(cv, defaultMethods, enhancementRegistry, classInfo);
@@ -126,11 +138,7 @@ public byte[] transform(ClassLoader loader, String name, Class<?> classBeingRede
             cr.accept(cv, ClassReader.EXPAND_FRAMES);
 
             final byte[] bytes = cw.toByteArray();
-            final String path = conf.getStoreTransformedClassesPath();
-            if (path != null) {
-                storeTransformationResult(name, bytes, path);
-                storeTransformationResult(name + "$$ESC$$ORIGINAL", classfileBuffer, path);
-            }
+            storeTransformationResult(name, bytes, classfileBuffer, conf);
 
             if (conf.isVerifyClassEnabled()) {
                 ClassVisitor checker = new CheckClassAdapter(new ClassVisitor(OPCODES_VERSION) {
@@ -144,6 +152,14 @@ public MethodVisitor visitMethod(int access, String name, String desc, String si
                 reader.accept(checker, 0);
             }
 
+            if (cacheKey != null) {
+                if (profileClassAdapter == null) {
+                    cache.put(cacheKey, classfileBuffer, bytes, Collections.<String>emptyList(), Collections.<String>emptyList());
+                } else {
+                    cache.put(cacheKey, classfileBuffer, bytes, profileClassAdapter.getProfiledMethods(),
+                            profileClassAdapter.getInlinedEvents());
+                }
+            }
             return bytes;
         } catch (RuntimeException e) {
             // logback might want to print jar name and version, so we convert throwable to string manually
@@ -172,6 +188,14 @@ private static ClassVisitor addDefaultMethods(ClassVisitor cv, List<DefaultMetho
         return cv;
     }
 
+    private void storeTransformationResult(String name, byte[] bytes, byte[] classfileBuffer, ConfigurationSPI conf) {
+        final String path = conf.getStoreTransformedClassesPath();
+        if (path != null) {
+            storeTransformationResult(name, bytes, path);
+            storeTransformationResult(name + "$$ESC$$ORIGINAL", classfileBuffer, path);
+        }
+    }
+
     private void storeTransformationResult(String name, byte[] bytes, String path) {
         File out = new File(path, name + ".class");
         if (!out.toPath().normalize().startsWith(new File(path).toPath())) {
@@ -0,0 +1,69 @@
+package com.netcracker.profiler.agent;
+
+import com.netcracker.profiler.configuration.Rule;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Numbers the rules by their content, so the rules of two configurations are compared by the numbers rather than
+ * with {@link Rule#equals(Object)} for every loaded class.
+ * <p>
+ * The numbers are shared by the threads, while each thread remembers the numbers of the rule instances it has seen
+ * in its own {@link Local} view, so the content of a rule is hashed a few times per reload.
+ */
+class RuleFingerprints {
+    private final Map<Rule, Integer> fingerprints = new HashMap<Rule, Integer>();
+
+    private synchronized int fingerprint(Rule rule) {
+        Integer fingerprint = fingerprints.get(rule);
+        if (fingerprint == null) {
+            fingerprint = fingerprints.size();
+            fingerprints.put(rule, fingerprint);
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Creates a view for a single thread.
+     *
+     * @return view that compares the rules
+     */
+    Local local() {
+        return new Local();
+    }
+
+    class Local {
+        private final IdentityHashMap<Rule, Integer> known = new IdentityHashMap<Rule, Integer>();
+
+        private int fingerprint(Rule rule) {
+            Integer fingerprint = known.get(rule);
+            if (fingerprint == null) {
+                fingerprint = RuleFingerprints.this.fingerprint(rule);
+                known.put(rule, fingerprint);
+            }
+            return fingerprint;
+        }
+
+        /**
+         * Checks if the lists have equal rules in the same order.
+         *
+         * @param a rules of a class in one configuration
+         * @param b rules of the class in another configuration
+         * @return true if the class is transformed the same way by both lists
+         */
+        boolean sameRules(List<Rule> a, List<Rule> b) {
+            if (a.size() != b.size())
+                return false;
+            for (int i = 0; i < a.size(); i++) {
+                Rule ruleA = a.get(i);
+                Rule ruleB = b.get(i);
+                if (ruleA != ruleB && fingerprint(ruleA) != fingerprint(ruleB))
+                    return false;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,593 @@
+package com.netcracker.profiler.agent;
+
+import static com.netcracker.profiler.instrument.enhancement.EnhancerConstants.OPCODES_VERSION;
+
+import com.netcracker.profiler.agent.plugins.ConfigurationSPI;
+import com.netcracker.profiler.instrument.ProfileMethodAdapter;
+import com.netcracker.profiler.util.StringUtils;
+
+import org.objectweb.asm.ClassReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.ProtectionDomain;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent cache of transformed classes, so the classes are not parsed and instrumented on each JVM start.
+ * <p>
+ * The cache lives in a subdirectory named after the configuration fingerprint and the
+ * {@link #getInstrumentationEnvironment() instrumentation environment}: the agent and ASM versions, the settings
+ * that change the emitted bytecode and the plugin jars. So any change of the configuration or the agent starts
+ * a new cache, and the subdirectories that were not used for
+ * {@link #MAX_AGE_DAYS} are removed. Within the subdirectory a class is looked up by the digest of its name,
+ * location and original bytes.
+ * <p>
+ * The index ({@code classes.idx}) is a memory-mapped open-addressing table of {@link #SLOT_SIZE}-byte slots:
+ * two longs of the key, data offset, data length and CRC32 of the data. The transformed bytes are appended to
+ * {@code classes.dat}. The slot key is written last and the data is verified with the CRC, so a torn entry is
+ * a cache miss. A single JVM writes to the cache (it holds {@code lock}), other JVMs use it read-only.
+ * <p>
+ * The transformed code pushes method ids and event tags as constants, and the ids are assigned in the order the names
+ * are resolved, so they differ between JVM starts. Each entry starts with the ids and names of the methods and events
+ * the class refers to. When the class is read, the names are resolved in the current dictionary and the integer
+ * constants of the class are rewritten if the ids differ. The classes that declare the same integer constants on
+ * their own are not cached, since their constants could not be told from the ids.
+ */
+public class TransformedClassCache {
+    private static final Logger log = LoggerFactory.getLogger(TransformedClassCache.class);
+
+    /**
+     * Number of index slots, the cache accepts classes until the index is 3/4 full. Defaults to 65536 (2 MiB index).
+     */
+    public static final int CAPACITY = Integer.getInteger(TransformedClassCache.class.getName() + ".CAPACITY", 65536);
+    /**
+     * Maximum size of transformed classes in the cache. Defaults to 256 MiB.
+     */
+    public static final int MAX_DATA_SIZE = Integer.getInteger(TransformedClassCache.class.getName() + ".MAX_DATA_SIZE", 256 * 1024 * 1024);
+    /**
+     * Caches of other configurations are removed once they are not used for the given number of days. Defaults to 7.
+     */
+    public static final int MAX_AGE_DAYS = Integer.getInteger(TransformedClassCache.class.getName() + ".MAX_AGE_DAYS", 7);
+
+    private static final int MAGIC = 0x45534343; // ESCC
+    private static final int FORMAT_VERSION = 2;
+    private static final int HEADER_SIZE = 16;
+    static final int SLOT_SIZE = 32;
+    private static final int CONSTANT_INTEGER = 3;
+
+    private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            return newDigest();
+        }
+    };
+
+    private final File dir;
+    private ConfigurationSPI configuration;
+    private final RandomAccessFile indexFile;
+    private final FileChannel data;
+    private final FileLock lock;
+    private final MappedByteBuffer index;
+    private final int mask;
+    private int size;
+    private long dataSize;
+    private boolean full;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    TransformedClassCache(File dir, int capacity) throws IOException {
+        this.dir = dir;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create directory " + dir);
+        }
+        capacity = Integer.highestOneBit(Math.max(16, capacity) - 1) << 1;
+        FileLock lock = null;
+        RandomAccessFile lockFile = new RandomAccessFile(new File(dir, "lock"), "rw");
+        try {
+            lock = lockFile.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            // The cache is already opened by this JVM, e.g. the configuration was reloaded back and forth
+        } finally {
+            if (lock == null) {
+                lockFile.close();
+            }
+        }
+        this.lock = lock;
+        boolean writable = lock != null;
+
+        File idx = new File(dir, "classes.idx");
+        File dat = new File(dir, "classes.dat");
+        if (writable && !isValidIndex(idx, capacity)) {
+            // Either a new cache, or it was created with a different layout, so the data is not reachable anyway
+            if (idx.exists() && !idx.delete() || dat.exists() && !dat.delete()) {
+                lock.release();
+                lock.channel().close();
+                throw new IOException("Unable to reset cache " + dir);
+            }
+        }
+        indexFile = new RandomAccessFile(idx, writable ? "rw" : "r");
+        if (writable) {
+            if (indexFile.length() == 0) {
+                indexFile.setLength(HEADER_SIZE + (long) capacity * SLOT_SIZE);
+                indexFile.writeInt(MAGIC);
+                indexFile.writeInt(FORMAT_VERSION);
+                indexFile.writeInt(capacity);
+            }
+        } else {
+            capacity = indexFile.length() < HEADER_SIZE ? 0 : readCapacity(indexFile);
+            if (capacity == 0 || indexFile.length() != HEADER_SIZE + (long) capacity * SLOT_SIZE) {
+                indexFile.close();
+                throw new IOException("Cache " + dir + " is not initialized yet");
+            }
+        }
+        index = indexFile.getChannel().map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+                HEADER_SIZE, (long) capacity * SLOT_SIZE);
+        data = new RandomAccessFile(dat, writable ? "rw" : "r").getChannel();
+        mask = capacity - 1;
+        dataSize = data.size();
+        for (int i = 0; i < capacity; i++) {
+            if (index.getLong(i * SLOT_SIZE) != 0) {
+                size++;
+            }
+        }
+        full = !writable;
+    }
+
+    private static boolean isValidIndex(File idx, int capacity) throws IOException {
+        if (!idx.exists()) {
+            return false;
+        }
+        RandomAccessFile file = new RandomAccessFile(idx, "r");
+        try {
+            return file.length() == HEADER_SIZE + (long) capacity * SLOT_SIZE && readCapacity(file) == capacity;
+        } finally {
+            file.close();
+        }
+    }
+
+    private static int readCapacity(RandomAccessFile file) throws IOException {
+        file.seek(0);
+        if (file.readInt() != MAGIC || file.readInt() != FORMAT_VERSION) {
+            return 0;
+        }
+        return file.readInt();
+    }
+
+    /**
+     * Opens the cache for the configuration.
+     *
+     * @param conf configuration
+     * @return cache or null if the cache is disabled or cannot be opened
+     */
+    public static TransformedClassCache open(ConfigurationSPI conf) {
+        if (conf == null || conf.getTransformedClassesCachePath() == null) {
+            return null;
+        }
+        File root = new File(conf.getTransformedClassesCachePath());
+        File dir = cacheDirectory(root, conf.getFingerprint(), getInstrumentationEnvironment());
+        try {
+            TransformedClassCache cache = new TransformedClassCache(dir, CAPACITY);
+            cache.configuration = conf;
+            //noinspection ResultOfMethodCallIgnored
+            dir.setLastModified(System.currentTimeMillis());
+            removeStaleCaches(root, dir);
+            log.info("Using transformed classes cache {} with {} classes", dir, cache.size);
+            return cache;
+        } catch (IOException e) {
+            log.warn("Unable to open transformed classes cache {}", dir, e);
+            return null;
+        }
+    }
+
+    static File cacheDirectory(File root, String fingerprint, String environment) {
+        MessageDigest digest = newDigest();
+        digest.update(fingerprint.getBytes(StandardCharsets.UTF_8));
+        digest.update(environment.getBytes(StandardCharsets.UTF_8));
+        return new File(root, StringUtils.toHex(digest.digest()).substring(0, 16));
+    }
+
+    /**
+     * Describes everything besides the configuration that affects the transformed bytes.
+     *
+     * @return description of the agent, ASM version, bytecode settings and the loaded plugin jars
+     */
+    static String getInstrumentationEnvironment() {
+        return getInstrumentationEnvironment(ProfilerData.ADD_TRY_CATCH_BLOCKS, ProfilerData.ADD_PLAIN_TRY_CATCH_BLOCKS,
+                ProfilerData.ADD_INDY_TRY_CATCH_BLOCKS, Bootstrap.getPluginJars());
+    }
+
+    static String getInstrumentationEnvironment(boolean addTryCatchBlocks, boolean addPlainTryCatchBlocks,
+                                                boolean addIndyTryCatchBlocks, Collection<String> pluginJars) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(getAgentVersion());
+        sb.append("\nasm=").append(OPCODES_VERSION);
+        sb.append("\nADD_TRY_CATCH_BLOCKS=").append(addTryCatchBlocks);
+        sb.append("\nADD_PLAIN_TRY_CATCH_BLOCKS=").append(addPlainTryCatchBlocks);
+        sb.append("\nADD_INDY_TRY_CATCH_BLOCKS=").append(addIndyTryCatchBlocks);
+        // Enhancers come from the plugin jars, so a different build of a plugin emits different code
+        for (String jar : pluginJars) {
+            sb.append('\n').append(getJarVersion(new File(jar)));
+        }
+        return sb.toString();
+    }
+
+    private static void removeStaleCaches(File root, File current) {
+        File[] dirs = root.listFiles();
+        if (dirs == null) {
+            return;
+        }
+        long threshold = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(MAX_AGE_DAYS);
+        for (File dir : dirs) {
+            if (!dir.isDirectory() || dir.equals(current) || dir.lastModified() > threshold) {
+                continue;
+            }
+            log.debug("Removing stale transformed classes cache {}", dir);
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    //noinspection ResultOfMethodCallIgnored
+                    file.delete();
+                }
+            }
+            //noinspection ResultOfMethodCallIgnored
+            dir.delete();
+        }
+    }
+
+    /**
+     * Returns the version of the agent, so the cache is not reused by a different build of the agent.
+     * Development builds have no version in the manifest, so the jar timestamp is used instead.
+     */
+    private static String getAgentVersion() {
+        String version = Bootstrap.getImplementationVersion(TransformedClassCache.class);
+        if (!version.startsWith("unknown")) {
+            return version;
+        }
+        ProtectionDomain pd = TransformedClassCache.class.getProtectionDomain();
+        CodeSource cs = pd == null ? null : pd.getCodeSource();
+        URL location = cs == null ? null : cs.getLocation();
+        if (location == null) {
+            return version;
+        }
+        return getJarVersion(new File(location.getPath()));
+    }
+
+    private static String getJarVersion(File file) {
+        return file.getAbsolutePath() + "@" + file.lastModified() + ":" + file.length();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not supported", e);
+        }
+    }
+
+    /**
+     * Computes the cache key of the class.
+     *
+     * @param className        name of the class
+     * @param protectionDomain protection domain of the class, the rules and enhancers depend on the class location
+     * @param classfileBuffer  original bytes of the class
+     * @return cache key
+     */
+    public static byte[] key(String className, ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+        MessageDigest digest = DIGEST.get();
+        digest.update(className.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        CodeSource cs = protectionDomain == null ? null : protectionDomain.getCodeSource();
+        URL location = cs == null ? null : cs.getLocation();
+        if (location != null) {
+            digest.update(location.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        digest.update((byte) 0);
+        digest.update(classfileBuffer);
+        return digest.digest();
+    }
+
+    /**
+     * Returns the transformed class with the method ids of the current JVM.
+     *
+     * @param key cache key computed with {@link #key(String, ProtectionDomain, byte[])}
+     * @return transformed bytes or null if the class is not cached
+     */
+    public byte[] get(byte[] key) {
+        byte[] entry = read(key);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        byte[] bytes = restore(entry);
+        if (bytes == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return bytes;
+    }
+
+    private byte[] read(byte[] key) {
+        long k0 = slotKey(key, 0);
+        long k1 = slotKey(key, 8);
+        long offset;
+        int length, crc;
+        synchronized (this) {
+            int slot = find(k0, k1);
+            if (slot < 0 || index.getLong(slot) == 0) {
+                return null;
+            }
+            offset = index.getLong(slot + 16);
+            length = index.getInt(slot + 24);
+            crc = index.getInt(slot + 28);
+        }
+        if (length <= 0 || offset < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                if (data.read(buffer, offset + buffer.position()) < 0) {
+                    return null;
+                }
+            }
+        } catch (IOException e) {
+            log.debug("Unable to read transformed class from cache {}", dir, e);
+            return null;
+        }
+        if (crc(bytes) != crc) {
+            log.debug("Cached class is corrupted in {}", dir);
+            return null;
+        }
+        return bytes;
+    }
+
+    /**
+     * Resolves the methods and events of the entry in the current dictionary and updates the ids of the class.
+     *
+     * @param entry cached entry
+     * @return transformed bytes or null if the entry cannot be read
+     */
+    private byte[] restore(byte[] entry) {
+        try {
+            ByteArrayInputStream bytes = new ByteArrayInputStream(entry);
+            DataInputStream in = new DataInputStream(bytes);
+            Map<Integer, Integer> remap = null;
+            for (int count = in.readInt(); count > 0; count--) {
+                int cachedTag = in.readInt();
+                // This also registers the name, as the transformation would do. The record type is kept as is
+                int tag = ProfilerData.resolveTag(in.readUTF()) | (cachedTag & DumperConstants.DATA_TYPE_MASK);
+                if (tag != cachedTag) {
+                    if (remap == null) {
+                        remap = new HashMap<Integer, Integer>();
+                    }
+                    remap.put(cachedTag, tag);
+                }
+            }
+            byte[] classBytes = Arrays.copyOfRange(entry, entry.length - bytes.available(), entry.length);
+            if (remap != null) {
+                replaceIntConstants(classBytes, remap);
+            }
+            return classBytes;
+        } catch (IOException | RuntimeException e) {
+            log.debug("Unable to restore cached class from {}", dir, e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the transformed class. Does nothing if the cache is read-only or full.
+     *
+     * @param key      cache key computed with {@link #key(String, ProtectionDomain, byte[])}
+     * @param original original bytes of the class
+     * @param bytes    transformed bytes
+     * @param methods  names of the methods whose ids are inlined in the transformed class
+     * @param events   names of the events whose tag ids are inlined in the transformed class
+     */
+    public void put(byte[] key, byte[] original, byte[] bytes, Collection<String> methods, Collection<String> events) {
+        Map<Integer, String> tags = new LinkedHashMap<Integer, String>();
+        for (String method : methods) {
+            tags.put(ProfileMethodAdapter.resolveMethodTag(method), method);
+        }
+        for (String event : events) {
+            tags.put(Profiler.resolveEventTag(event), event);
+        }
+        put(key, original, bytes, tags);
+    }
+
+    /**
+     * Stores the transformed class along with the names of the inlined ids.
+     *
+     * @param tags inlined id -> method or event name
+     */
+    void put(byte[] key, byte[] original, byte[] bytes, Map<Integer, String> tags) {
+        if (full) {
+            return;
+        }
+        if (!tags.isEmpty() && hasIntConstant(original, tags.keySet())) {
+            log.debug("Class is not cached in {} since it declares a constant that matches a method id or event tag", dir);
+            return;
+        }
+        ByteArrayOutputStream entry = new ByteArrayOutputStream(bytes.length + 16 + tags.size() * 64);
+        try {
+            DataOutputStream out = new DataOutputStream(entry);
+            out.writeInt(tags.size());
+            for (Map.Entry<Integer, String> tag : tags.entrySet()) {
+                out.writeInt(tag.getKey());
+                out.writeUTF(tag.getValue());
+            }
+            out.write(bytes);
+            out.flush();
+        } catch (IOException e) {
+            // Method or event name is longer than 64K
+            log.debug("Unable to cache class in {}", dir, e);
+            return;
+        }
+        write(key, entry.toByteArray());
+    }
+
+    private synchronized void write(byte[] key, byte[] bytes) {
+        if (full) {
+            return;
+        }
+        if ((size + 1) * 4 > (mask + 1) * 3 || dataSize + bytes.length > MAX_DATA_SIZE) {
+            log.info("Transformed classes cache {} is full, {} classes, {} KiB", new Object[]{dir, size, dataSize / 1024});
+            full = true;
+            return;
+        }
+        long k0 = slotKey(key, 0);
+        long k1 = slotKey(key, 8);
+        int slot = find(k0, k1);
+        if (slot < 0 || index.getLong(slot) != 0) {
+            return;
+        }
+        long offset = dataSize;
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                data.write(buffer, offset + buffer.position());
+            }
+        } catch (IOException e) {
+            log.warn("Unable to write to transformed classes cache {}, the cache is disabled", dir, e);
+            full = true;
+            return;
+        }
+        dataSize += bytes.length;
+        index.putLong(slot + 16, offset);
+        index.putInt(slot + 24, bytes.length);
+        index.putInt(slot + 28, crc(bytes));
+        index.putLong(slot + 8, k1);
+        index.putLong(slot, k0);
+        size++;
+    }
+
+    /**
+     * Returns the position of the slot with the key or of the empty slot where the key should be placed.
+     *
+     * @return slot position or -1 if the index is full
+     */
+    private int find(long k0, long k1) {
+        for (int i = (int) (k0 ^ k0 >>> 32) & mask, probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+            int slot = i * SLOT_SIZE;
+            long key = index.getLong(slot);
+            if (key == 0 || key == k0 && index.getLong(slot + 8) == k1) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean hasIntConstant(byte[] classBytes, Collection<Integer> values) {
+        ClassReader cr = new ClassReader(classBytes);
+        for (int i = 1; i < cr.getItemCount(); i++) {
+            int offset = cr.getItem(i);
+            // The second slot of long and double constants has no offset
+            if (offset > 0 && classBytes[offset - 1] == CONSTANT_INTEGER && values.contains(cr.readInt(offset))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Rewrites {@code CONSTANT_Integer} entries of the constant pool in place, so the code is left as is.
+     */
+    private static void replaceIntConstants(byte[] classBytes, Map<Integer, Integer> replacements) {
+        ClassReader cr = new ClassReader(classBytes);
+        for (int i = 1; i < cr.getItemCount(); i++) {
+            int offset = cr.getItem(i);
+            if (offset <= 0 || classBytes[offset - 1] != CONSTANT_INTEGER) {
+                continue;
+            }
+            Integer value = replacements.get(cr.readInt(offset));
+            if (value != null) {
+                classBytes[offset] = (byte) (value >>> 24);
+                classBytes[offset + 1] = (byte) (value >>> 16);
+                classBytes[offset + 2] = (byte) (value >>> 8);
+                classBytes[offset + 3] = (byte) (int) value;
+            }
+        }
+    }
+
+    private static long slotKey(byte[] key, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = value << 8 | key[offset + i] & 0xff;
+        }
+        // Zero marks an empty slot
+        return offset == 0 && value == 0 ? 1 : value;
+    }
+
+    private static int crc(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Returns the configuration the cache was opened for.
+     *
+     * @return configuration or null if the cache is not bound to a configuration
+     */
+    public ConfigurationSPI getConfiguration() {
+        return configuration;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Closes the files of the cache. The index stays mapped until it is garbage-collected.
+     */
+    public synchronized void close() {
+        full = true;
+        try {
+            index.force();
+        } catch (RuntimeException e) {
+            // read-only mapping or the file is gone
+        }
+        closeQuietly(data);
+        closeQuietly(indexFile.getChannel());
+        if (lock != null) {
+            closeQuietly(lock.channel());
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            /**/
+        }
+    }
+}
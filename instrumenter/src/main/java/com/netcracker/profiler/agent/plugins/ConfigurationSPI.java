@@ -18,4 +18,19 @@ public interface ConfigurationSPI extends Configuration_06 {
     public String getConfigFile();
 
     public List<DefaultMethodImplInfo> getDefaultMethods(String className);
+
+    /**
+     * Returns the directory of the persistent cache of transformed classes
+     *
+     * @return path to the cache directory or null if the cache is disabled
+     */
+    public String getTransformedClassesCachePath();
+
+    /**
+     * Returns the digest of the configuration files and the conditions that were applied when parsing them.
+     * Two configurations with the same fingerprint transform classes the same way.
+     *
+     * @return hex-encoded digest
+     */
+    public String getFingerprint();
 }
@@ -0,0 +1,273 @@
+package com.netcracker.profiler.configuration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds the rules whose class name patterns match a class in a single pass over the class name.
+ * <p>
+ * The patterns are compiled into globs (literal, {@code *} and {@code **} segments) and indexed in a trie by their
+ * leading literal, so {@code com.acme.**} is reached by walking {@code com/acme/} and the classes of other packages
+ * do not visit the pattern at all. Patterns without a package ({@code *Servlet}) apply to the simple name of the
+ * class, so they have a trie of their own. The remainder of the glob is matched without regular expressions.
+ * Patterns that are regular expressions or use uncommon syntax are checked with {@link Rule#classNameMatches(String)}.
+ * <p>
+ * The matcher is immutable and thread-safe, the rules are returned in the order they were configured.
+ */
+public class ClassNameMatcher {
+    private static final byte LITERAL = 0;
+    private static final byte STAR = 1;
+    private static final byte DOUBLE_STAR = 2;
+
+    private static final int[] NO_RULES = new int[0];
+
+    private final Rule[] rules;
+    // Rules without class patterns apply to all the classes
+    private final int[] anyClassRules;
+    private final int[] regexRules;
+    private final Node classNames = new Node();
+    private final Node simpleNames = new Node();
+
+    public ClassNameMatcher(List<Rule> rules) {
+        this.rules = rules.toArray(new Rule[0]);
+        List<Integer> anyClass = new ArrayList<Integer>();
+        List<Integer> regex = new ArrayList<Integer>();
+        List<Glob> globs = new ArrayList<Glob>();
+        for (int i = 0; i < this.rules.length; i++) {
+            List<String> patterns = this.rules[i].getClassNamePatterns();
+            if (patterns == null) {
+                anyClass.add(i);
+                continue;
+            }
+            globs.clear();
+            for (String pattern : patterns) {
+                Glob glob = Glob.compile(i, pattern);
+                if (glob == null) {
+                    break;
+                }
+                globs.add(glob);
+            }
+            if (globs.size() < patterns.size()) {
+                regex.add(i);
+                continue;
+            }
+            for (Glob glob : globs) {
+                (glob.simpleName ? simpleNames : classNames).add(glob);
+            }
+        }
+        anyClassRules = toArray(anyClass);
+        regexRules = toArray(regex);
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        if (list.isEmpty()) {
+            return NO_RULES;
+        }
+        int[] result = new int[list.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = list.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the rules whose class name patterns match the class.
+     *
+     * @param className internal name of the class, e.g. {@code java/lang/String}
+     * @return matching rules in the configuration order or null if no rule matches
+     */
+    public List<Rule> getRulesForClass(String className) {
+        boolean[] matched = null;
+        for (int rule : anyClassRules) {
+            matched = mark(matched, rule);
+        }
+        for (int rule : regexRules) {
+            if (rules[rule].classNameMatches(className)) {
+                matched = mark(matched, rule);
+            }
+        }
+        matched = classNames.match(className, 0, matched, this);
+        matched = simpleNames.match(className, className.lastIndexOf('/') + 1, matched, this);
+        if (matched == null) {
+            return null;
+        }
+        List<Rule> result = new ArrayList<Rule>();
+        for (int i = 0; i < matched.length; i++) {
+            if (matched[i]) {
+                result.add(rules[i]);
+            }
+        }
+        return result;
+    }
+
+    private boolean[] mark(boolean[] matched, int rule) {
+        if (matched == null) {
+            matched = new boolean[rules.length];
+        }
+        matched[rule] = true;
+        return matched;
+    }
+
+    private static class Node {
+        char[] keys = new char[0];
+        Node[] children = new Node[0];
+        Glob[] globs = new Glob[0];
+
+        void add(Glob glob) {
+            Node node = this;
+            String prefix = glob.prefix;
+            for (int i = 0; i < prefix.length(); i++) {
+                node = node.child(prefix.charAt(i));
+            }
+            node.globs = Arrays.copyOf(node.globs, node.globs.length + 1);
+            node.globs[node.globs.length - 1] = glob;
+        }
+
+        private Node child(char c) {
+            Node child = find(c);
+            if (child == null) {
+                keys = Arrays.copyOf(keys, keys.length + 1);
+                children = Arrays.copyOf(children, children.length + 1);
+                keys[keys.length - 1] = c;
+                children[children.length - 1] = child = new Node();
+            }
+            return child;
+        }
+
+        private Node find(char c) {
+            char[] keys = this.keys;
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == c) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Walks the trie along the name and checks the globs whose prefix matched.
+         */
+        boolean[] match(String name, int start, boolean[] matched, ClassNameMatcher matcher) {
+            Node node = this;
+            int pos = start;
+            while (true) {
+                for (Glob glob : node.globs) {
+                    if ((matched == null || !matched[glob.rule]) && glob.matches(name, pos, 0)) {
+                        matched = matcher.mark(matched, glob.rule);
+                    }
+                }
+                if (pos == name.length()) {
+                    return matched;
+                }
+                node = node.find(name.charAt(pos++));
+                if (node == null) {
+                    return matched;
+                }
+            }
+        }
+    }
+
+    /**
+     * Pattern in the syntax of {@link Rule#argumentPatternToRegexp(StringBuffer, String, boolean)}:
+     * {@code .} separates packages, {@code *} matches within a package, {@code **} matches across packages.
+     */
+    private static class Glob {
+        final int rule;
+        final String prefix;
+        // true if the pattern has no package, so it applies to the simple name of the class
+        final boolean simpleName;
+        final byte[] kinds;
+        final String[] literals;
+
+        private Glob(int rule, String prefix, boolean simpleName, byte[] kinds, String[] literals) {
+            this.rule = rule;
+            this.prefix = prefix;
+            this.simpleName = simpleName;
+            this.kinds = kinds;
+            this.literals = literals;
+        }
+
+        /**
+         * @return compiled pattern or null if the pattern should be matched as a regular expression
+         */
+        static Glob compile(int rule, String pattern) {
+            if (pattern.isEmpty() || "*".equals(pattern) || Rule.DESCRIPTORS.containsKey(pattern)) {
+                return null;
+            }
+            for (int i = 0; i < pattern.length(); i++) {
+                if ("^[]()\\|?+{}".indexOf(pattern.charAt(i)) >= 0) {
+                    return null;
+                }
+            }
+            boolean simpleName = pattern.indexOf('.') == -1;
+            if (simpleName && pattern.contains("**")) {
+                // ** might span packages, so the pattern does not apply to the simple name only
+                return null;
+            }
+            List<Byte> kinds = new ArrayList<Byte>();
+            List<String> literals = new ArrayList<String>();
+            StringBuilder literal = new StringBuilder();
+            for (int i = 0; i < pattern.length(); i++) {
+                char c = pattern.charAt(i);
+                if (c != '*') {
+                    literal.append(c == '.' ? '/' : c);
+                    continue;
+                }
+                if (literal.length() > 0) {
+                    kinds.add(LITERAL);
+                    literals.add(literal.toString());
+                    literal.setLength(0);
+                }
+                if (i + 1 < pattern.length() && pattern.charAt(i + 1) == '*') {
+                    kinds.add(DOUBLE_STAR);
+                    i++;
+                } else {
+                    kinds.add(STAR);
+                }
+                literals.add(null);
+            }
+            if (literal.length() > 0) {
+                kinds.add(LITERAL);
+                literals.add(literal.toString());
+            }
+            String prefix = "";
+            if (kinds.get(0) == LITERAL) {
+                prefix = literals.remove(0);
+                kinds.remove(0);
+            }
+            byte[] kindArray = new byte[kinds.size()];
+            for (int i = 0; i < kindArray.length; i++) {
+                kindArray[i] = kinds.get(i);
+            }
+            return new Glob(rule, prefix, simpleName, kindArray, literals.toArray(new String[0]));
+        }
+
+        boolean matches(String name, int pos, int segment) {
+            for (; segment < kinds.length; segment++) {
+                if (kinds[segment] == LITERAL) {
+                    String literal = literals[segment];
+                    if (!name.startsWith(literal, pos)) {
+                        return false;
+                    }
+                    pos += literal.length();
+                    continue;
+                }
+                boolean acrossPackages = kinds[segment] == DOUBLE_STAR;
+                for (int end = pos; ; end++) {
+                    if (matches(name, end, segment + 1)) {
+                        return true;
+                    }
+                    if (end == name.length()) {
+                        return false;
+                    }
+                    char c = name.charAt(end);
+                    if (c == ';' || c == '/' && !acrossPackages) {
+                        return false;
+                    }
+                }
+            }
+            return pos == name.length();
+        }
+    }
+}
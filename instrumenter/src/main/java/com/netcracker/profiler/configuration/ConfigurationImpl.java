@@ -27,10 +27,15 @@
 import org.w3c.dom.*;
 import org.xml.sax.SAXException;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
 import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -53,6 +58,13 @@ public class ConfigurationImpl implements ConfigurationSPI {
     final Stack<File> includeStack = new Stack<File>();
     private ConfigStackElement currentStack;
     String storeTransformedClassesPath;
+    String transformedClassesCachePath;
+    // Digests the parsed files and the outcome of their conditions, it is dropped once the parsing completes
+    private MessageDigest configDigest;
+    private String fingerprint;
+    // Parsed files of the previous start, it is dropped once the parsing completes
+    private ConfigurationSnapshot snapshot;
+    private DocumentBuilder documentBuilder;
     private boolean verifyClasses;
     private Map<String, ParameterInfo> paramInfo = new HashMap<String, ParameterInfo>();
     private Set<String> enhancers = new HashSet<String>();
@@ -76,7 +88,32 @@ public ConfigurationImpl(String configFile) throws ParserConfigurationException,
         //noinspection unchecked
         this.enhancerPlugins = (Map) Bootstrap.getPlugin(EnhancerRegistryPlugin.class).getEnhancersMap();
         this.configFile = configFile;
+        try {
+            configDigest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not supported", e);
+        }
+        String snapshotPathProp = PropertyFacadeBoot.getProperty(Profiler.class.getName() + ".config-snapshot", configFile + ".snapshot");
+        if (snapshotPathProp.length() > 0) {
+            snapshot = ConfigurationSnapshot.open(new File(snapshotPathProp));
+        }
         parseFile(configFile);
+        if (snapshot != null) {
+            log.debug("Restored {} configuration files from snapshot {}", snapshot.getHits(), snapshotPathProp);
+            snapshot.save();
+            snapshot = null;
+        }
+        documentBuilder = null;
+        for (String enhancer : new TreeSet<String>(enhancerPlugins.keySet())) {
+            configDigest.update(enhancer.getBytes(StandardCharsets.UTF_8));
+        }
+        fingerprint = StringUtils.toHex(configDigest.digest());
+        configDigest = null;
+        String cachePathProp = PropertyFacadeBoot.getProperty(Profiler.class.getName() + ".transformed-classes-cache", null);
+        if (cachePathProp != null) {
+            transformedClassesCachePath = cachePathProp.length() == 0 ? null : cachePathProp;
+            log.debug("Overriding transformed classes cache path with {}", transformedClassesCachePath);
+        }
         String verifyClassesProp = PropertyFacadeBoot.getProperty(Profiler.class.getName() + ".verify-classes", null);
         if (verifyClassesProp != null) {
             this.verifyClasses = Boolean.parseBoolean(verifyClassesProp);
@@ -141,16 +178,31 @@ else if (!includeStack.isEmpty()) {
                 parseDirectory(file);
                 return;
             }
-            final DocumentBuilderFactory bf = DocumentBuilderFactory.newInstance();
-            final DocumentBuilder db = bf.newDocumentBuilder();
-            final Document doc = db.parse(file);
-
-            parseFile(doc.getDocumentElement());
+            final byte[] content = Files.readAllBytes(file.toPath());
+            configDigest.update(file.getAbsolutePath().getBytes(StandardCharsets.UTF_8));
+            configDigest.update(content);
+            parseFile(parseDocument(file, content));
         } finally {
             includeStack.pop();
         }
     }
 
+    private Element parseDocument(File file, byte[] content) throws ParserConfigurationException, IOException, SAXException {
+        String key = null;
+        if (snapshot != null) {
+            key = ConfigurationSnapshot.key(file.getAbsolutePath(), content);
+            Element root = snapshot.get(key);
+            if (root != null)
+                return root;
+        }
+        if (documentBuilder == null)
+            documentBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        final Document doc = documentBuilder.parse(new ByteArrayInputStream(content), file.toURI().toString());
+        if (snapshot != null)
+            snapshot.put(key, doc);
+        return doc.getDocumentElement();
+    }
+
     private void parseDirectory(File file) throws IOException, SAXException, ParserConfigurationException {
         File[] files = file.listFiles(new FileFilter() {
             public boolean accept(File pathname) {
@@ -212,6 +264,11 @@ else if ("store-transformed-classes".equals(tagName)) {
                     if (storePath.length() == 0)
                         storePath = DumpRootResolver.dumpRoot + "/classes";
                     storeTransformedClassesPath = storePath;
+                } else if ("transformed-classes-cache".equals(tagName)) {
+                    String cachePath = XMLHelper.getTextContent(node);
+                    if (cachePath.length() == 0)
+                        cachePath = DumpRootResolver.dumpRoot + "/cache/classes";
+                    transformedClassesCachePath = cachePath;
                 } else if ("add-default-implementation".equals(tagName)) {
                     parseAddDefaultImplementation(e);
                 } else if ("metrics-collection".equals(tagName)) {
@@ -540,6 +597,13 @@ private void parseAddDefaultImplementation(Element element) {
     }
 
     private boolean tagIsRequired(Element tag) {
+        boolean required = evaluateCondition(tag);
+        // Conditions depend on system properties, so they contribute to the fingerprint along with the files
+        configDigest.update((byte) (required ? 1 : 0));
+        return required;
+    }
+
+    private boolean evaluateCondition(Element tag) {
         if (!tag.hasAttributes()) return true;
 
         String property;
@@ -736,14 +800,10 @@ private void parseRule(Element ruleXml, String rulesetIfEnhancer) throws IOExcep
                 // If adding hashable rule, try to (..., RuleHashGroup, RuleListGroup) list of groups, try to add the rule
                 // to hash group. This works if none of the "RuleListGroup" matches the class name in question
                 boolean canMoveUp = true;
-                checkClassNames:
                 for (String className : rule.getClassNames()) {
-                    List<Rule> rulesForClass = group.getRulesForClass(className);
-                    for (Rule ruleForClass : rulesForClass) {
-                        if (ruleForClass.classNameMatches(className)){
-                            canMoveUp = false;
-                            break checkClassNames;
-                        }
+                    if (group.getRulesForClass(className) != null) {
+                        canMoveUp = false;
+                        break;
                     }
                 }
                 if (canMoveUp) {
@@ -937,11 +997,8 @@ public Collection<Rule> getRulesForClass(String className, Collection<Rule> rule
             RuleGroup group = groups.get(i);
             List<Rule> ruleList = group.getRulesForClass(className);
             if (ruleList == null) continue;
-            boolean needRecheck = group instanceof RuleListGroup;
             for (int j = 0; j < ruleList.size(); j++) {
                 Rule rule = ruleList.get(j);
-                if (needRecheck && !rule.classNameMatches(className))
-                    continue;
                 boolean allMethodsMatch = rule.allMethodsMatch() && !rule.hasSuperclassCriteria();
                 if (!allMethodsMatch || !rule.doesNotChangeClass()) {
                     if (rules == null)
@@ -1374,6 +1431,14 @@ public String getStoreTransformedClassesPath() {
         return storeTransformedClassesPath;
     }
 
+    public String getTransformedClassesCachePath() {
+        return transformedClassesCachePath;
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
     @Override
     @SuppressWarnings("deprecation")
     public Map<String, Integer> getParamTypes() {
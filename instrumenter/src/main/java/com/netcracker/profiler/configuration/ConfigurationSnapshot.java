@@ -0,0 +1,285 @@
+package com.netcracker.profiler.configuration;
+
+import com.netcracker.profiler.util.StringUtils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.*;
+import org.w3c.dom.bootstrap.DOMImplementationRegistry;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Parsed configuration files kept between JVM starts, so the agent does not run the XML parser over the same
+ * files on each start.
+ * <p>
+ * A document is looked up by the digest of the file path and content, so a changed file is a miss and is parsed
+ * as usual. The documents are stored as a tree of elements, text and CDATA nodes with a string table per document,
+ * and they are restored with {@link DOMImplementation}, so the XML parser is not even loaded when no file changed.
+ * Comments and processing instructions are dropped as the configuration does not read them, and the documents with
+ * a DOCTYPE are not stored since their entities may come from other files.
+ * <p>
+ * The snapshot is rewritten when a document is added or some stored document is no longer used, so it holds
+ * the documents of the latest parsed configuration only.
+ */
+class ConfigurationSnapshot {
+    private static final Logger log = LoggerFactory.getLogger(ConfigurationSnapshot.class);
+
+    private static final int MAGIC = 0x45534353; // ESCS
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int END = 0;
+    private static final int ELEMENT = 1;
+    private static final int TEXT = 2;
+    private static final int CDATA = 3;
+
+    private final File file;
+    private final Map<String, byte[]> stored;
+    private final Map<String, byte[]> used = new LinkedHashMap<String, byte[]>();
+    private boolean changed;
+    private int hits;
+    // Owns the restored elements
+    private Document document;
+
+    private ConfigurationSnapshot(File file, Map<String, byte[]> stored) {
+        this.file = file;
+        this.stored = stored;
+    }
+
+    /**
+     * Reads the snapshot, a missing or unreadable file gives an empty snapshot.
+     *
+     * @param file snapshot file
+     * @return snapshot
+     */
+    static ConfigurationSnapshot open(File file) {
+        Map<String, byte[]> stored = new HashMap<String, byte[]>();
+        if (file.isFile()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                    log.debug("Ignoring configuration snapshot {} of unknown format", file);
+                } else {
+                    for (int count = in.readInt(); count > 0; count--) {
+                        String key = in.readUTF();
+                        byte[] document = new byte[in.readInt()];
+                        in.readFully(document);
+                        stored.put(key, document);
+                    }
+                }
+            } catch (IOException e) {
+                log.debug("Unable to read configuration snapshot {}", file, e);
+                stored.clear();
+            }
+        }
+        return new ConfigurationSnapshot(file, stored);
+    }
+
+    static String key(String path, byte[] content) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not supported", e);
+        }
+        digest.update(path.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(content);
+        return StringUtils.toHex(digest.digest());
+    }
+
+    /**
+     * Restores the root element of the document.
+     *
+     * @param key key of the file as returned by {@link #key(String, byte[])}
+     * @return the root element or null if the file is not in the snapshot
+     */
+    Element get(String key) {
+        byte[] bytes = stored.get(key);
+        if (bytes == null)
+            return null;
+        Element root;
+        try {
+            if (document == null) {
+                DOMImplementation dom = DOMImplementationRegistry.newInstance().getDOMImplementation("XML 1.0");
+                if (dom == null)
+                    throw new IOException("DOM implementation is not found");
+                document = dom.createDocument(null, null, null);
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            if (in.readUnsignedByte() != ELEMENT)
+                throw new IOException("Document does not start with an element");
+            root = readElement(in, document, new ArrayList<String>());
+        } catch (Exception e) {
+            log.debug("Unable to restore document {} from configuration snapshot {}", key, file, e);
+            return null;
+        }
+        used.put(key, bytes);
+        hits++;
+        return root;
+    }
+
+    /**
+     * Stores the document, so the next start finds it. The document should not be modified yet.
+     *
+     * @param key key of the file as returned by {@link #key(String, byte[])}
+     * @param doc parsed file
+     */
+    void put(String key, Document doc) {
+        if (doc.getDoctype() != null)
+            return;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            DataOutputStream out = new DataOutputStream(bytes);
+            writeNode(out, doc.getDocumentElement(), new HashMap<String, Integer>());
+            out.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to serialize document " + key, e);
+        }
+        used.put(key, bytes.toByteArray());
+        changed = true;
+    }
+
+    int getHits() {
+        return hits;
+    }
+
+    /**
+     * Writes the snapshot if the configuration differs from the stored one.
+     */
+    void save() {
+        if (!changed && used.size() == stored.size())
+            return;
+        File tmp = null;
+        try {
+            // Other JVMs might save the same snapshot at the same time
+            tmp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(used.size());
+                for (Map.Entry<String, byte[]> entry : used.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeInt(entry.getValue().length);
+                    out.write(entry.getValue());
+                }
+            }
+            try {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            log.debug("Saved {} documents to configuration snapshot {}", used.size(), file);
+        } catch (IOException e) {
+            // The configuration directory might be read-only
+            log.debug("Unable to save configuration snapshot {}", file, e);
+            if (tmp != null)
+                tmp.delete();
+        }
+    }
+
+    private static void writeNode(DataOutputStream out, Node node, Map<String, Integer> strings) throws IOException {
+        switch (node.getNodeType()) {
+            case Node.ELEMENT_NODE:
+                out.writeByte(ELEMENT);
+                writeString(out, node.getNodeName(), strings);
+                NamedNodeMap attributes = node.getAttributes();
+                writeVarInt(out, attributes.getLength());
+                for (int i = 0; i < attributes.getLength(); i++) {
+                    Node attribute = attributes.item(i);
+                    writeString(out, attribute.getNodeName(), strings);
+                    writeString(out, attribute.getNodeValue(), strings);
+                }
+                for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+                    writeNode(out, child, strings);
+                }
+                out.writeByte(END);
+                break;
+            case Node.TEXT_NODE:
+                out.writeByte(TEXT);
+                writeString(out, node.getNodeValue(), strings);
+                break;
+            case Node.CDATA_SECTION_NODE:
+                out.writeByte(CDATA);
+                writeString(out, node.getNodeValue(), strings);
+                break;
+            default:
+                // Comments and processing instructions
+        }
+    }
+
+    private static Element readElement(DataInputStream in, Document doc, List<String> strings) throws IOException {
+        Element element = doc.createElement(readString(in, strings));
+        for (int attributes = readVarInt(in); attributes > 0; attributes--) {
+            element.setAttribute(readString(in, strings), readString(in, strings));
+        }
+        for (int type = in.readUnsignedByte(); type != END; type = in.readUnsignedByte()) {
+            switch (type) {
+                case ELEMENT:
+                    element.appendChild(readElement(in, doc, strings));
+                    break;
+                case TEXT:
+                    element.appendChild(doc.createTextNode(readString(in, strings)));
+                    break;
+                case CDATA:
+                    element.appendChild(doc.createCDATASection(readString(in, strings)));
+                    break;
+                default:
+                    throw new IOException("Unknown node type " + type);
+            }
+        }
+        return element;
+    }
+
+    private static void writeString(DataOutputStream out, String value, Map<String, Integer> strings) throws IOException {
+        Integer index = strings.get(value);
+        if (index != null) {
+            writeVarInt(out, index);
+            return;
+        }
+        // The next index introduces a new string
+        writeVarInt(out, strings.size());
+        strings.put(value, strings.size());
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in, List<String> strings) throws IOException {
+        int index = readVarInt(in);
+        if (index < strings.size())
+            return strings.get(index);
+        if (index != strings.size())
+            throw new IOException("Unknown string #" + index);
+        byte[] bytes = new byte[readVarInt(in)];
+        in.readFully(bytes);
+        String value = new String(bytes, StandardCharsets.UTF_8);
+        strings.add(value);
+        return value;
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte(value & 0x7f | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+}
@@ -21,6 +21,7 @@ public class Rule implements MethodAcceptor {
     private ArrayList<Matcher> classNameMatchers;
     private Boolean classNameHashable;
     private ArrayList<String> classNamesRaw;
+    private ArrayList<String> classNamePatterns;
     private ArrayList<Pattern> methodNames;
     private ArrayList<Pattern> excludedMethods;
     private ArrayList<Pattern> superClasses;
@@ -154,6 +155,8 @@ public void addClass(String className) {
             classNamesRaw = null;
         }
         classNames = append(classNames, className);
+        if (classNamePatterns == null) classNamePatterns = new ArrayList<String>();
+        classNamePatterns.add(className);
         if (classNameMatchers == null) classNameMatchers = new ArrayList<Matcher>();
         classNameMatchers.add(classNames.get(classNames.size() - 1).matcher(""));
     }
@@ -334,6 +337,15 @@ public boolean classNameMatches(String className) {
         return false;
     }
 
+    /**
+     * Returns the class name patterns as they are configured, {@link ClassNameMatcher} compiles them.
+     *
+     * @return class name patterns or null if the rule applies to all the classes
+     */
+    public List<String> getClassNamePatterns() {
+        return classNamePatterns;
+    }
+
     public Collection<String> getClassNames() {
         if (!classNameHashable)
             return Collections.emptyList();
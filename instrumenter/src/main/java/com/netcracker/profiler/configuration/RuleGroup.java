@@ -16,5 +16,11 @@ public static RuleGroup of(Rule rule) {
 
     public abstract boolean add(Rule rule);
 
+    /**
+     * Returns the rules of the group that apply to the class.
+     *
+     * @param className internal name of the class
+     * @return the rules or null if no rule applies
+     */
     public abstract List<Rule> getRulesForClass(String className);
 }
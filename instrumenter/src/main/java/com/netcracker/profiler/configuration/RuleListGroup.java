@@ -3,20 +3,30 @@
 import java.util.ArrayList;
 import java.util.List;
 
+/**
+ * Rules with wildcard class names. The class name patterns are compiled into {@link ClassNameMatcher}
+ * once the group is queried, so the group returns the matching rules only.
+ */
 public class RuleListGroup extends RuleGroup {
     private final List<Rule> rules = new ArrayList<Rule>();
+    private volatile ClassNameMatcher matcher;
 
     @Override
     public boolean add(Rule rule) {
         if (!rule.getClassNames().isEmpty())
             return false;
         rules.add(rule);
+        matcher = null;
         return true;
     }
 
     @Override
     public List<Rule> getRulesForClass(String className) {
-        return rules;
+        ClassNameMatcher matcher = this.matcher;
+        if (matcher == null) {
+            this.matcher = matcher = new ClassNameMatcher(rules);
+        }
+        return matcher.getRulesForClass(className);
     }
 
     @Override
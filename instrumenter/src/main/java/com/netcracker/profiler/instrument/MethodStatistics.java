@@ -0,0 +1,279 @@
+package com.netcracker.profiler.instrument;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Size, number of lines and backward jumps of a method read right from the Code attribute of the class file.
+ * <p>
+ * The values are the same as {@link org.objectweb.asm.commons.CodeSizeEvaluator} and a visitor of line numbers and
+ * jumps would compute when {@link ClassReader} visits the method, so the rule for the method can be selected before
+ * the code is visited, and the methods that are not instrumented can be copied as is.
+ */
+class MethodStatistics {
+    final int codeSize;
+    final int numberOfLines;
+    final int firstLineNumber;
+    final int numberOfBackJumps;
+
+    private MethodStatistics(int codeSize, int numberOfLines, int firstLineNumber, int numberOfBackJumps) {
+        this.codeSize = codeSize;
+        this.numberOfLines = numberOfLines;
+        this.firstLineNumber = firstLineNumber;
+        this.numberOfBackJumps = numberOfBackJumps;
+    }
+
+    /**
+     * Finds the Code attributes of the methods.
+     *
+     * @param cr class reader
+     * @return offsets of the Code attributes by method name + descriptor
+     */
+    static Map<String, Integer> findCode(ClassReader cr) {
+        char[] charBuffer = new char[cr.getMaxStringLength()];
+        int offset = cr.header + 6;
+        offset += 2 + 2 * cr.readUnsignedShort(offset); // interfaces
+        int count = cr.readUnsignedShort(offset);
+        offset += 2;
+        while (count-- > 0) {
+            offset = skipAttributes(cr, offset + 6);
+        }
+        count = cr.readUnsignedShort(offset);
+        offset += 2;
+        Map<String, Integer> result = new HashMap<String, Integer>(count * 2);
+        while (count-- > 0) {
+            String methodName = cr.readUTF8(offset + 2, charBuffer) + cr.readUTF8(offset + 4, charBuffer);
+            int attributes = cr.readUnsignedShort(offset + 6);
+            offset += 8;
+            while (attributes-- > 0) {
+                if ("Code".equals(cr.readUTF8(offset, charBuffer))) {
+                    result.put(methodName, offset + 6);
+                }
+                offset += 6 + cr.readInt(offset + 2);
+            }
+        }
+        return result;
+    }
+
+    private static int skipAttributes(ClassReader cr, int offset) {
+        int attributes = cr.readUnsignedShort(offset);
+        offset += 2;
+        while (attributes-- > 0) {
+            offset += 6 + cr.readInt(offset + 2);
+        }
+        return offset;
+    }
+
+    /**
+     * Reads the statistics of the method.
+     *
+     * @param cr         class reader
+     * @param codeOffset offset of the Code attribute as returned by {@link #findCode(ClassReader)}
+     * @return statistics of the method or null if the code has unknown instructions
+     */
+    static MethodStatistics read(ClassReader cr, int codeOffset) {
+        final int codeStart = codeOffset + 8;
+        final int codeLength = cr.readInt(codeOffset + 4);
+        int minSize = 0;
+        int maxSize = 0;
+        int numberOfBackJumps = 0;
+        BitSet backJumpTargets = null;
+        int pc = 0;
+        while (pc < codeLength) {
+            final int offset = codeStart + pc;
+            final int opcode = cr.readByte(offset);
+            int jumpTarget = -1;
+            switch (opcode) {
+                case Opcodes.BIPUSH:
+                case Opcodes.NEWARRAY:
+                    minSize += 2;
+                    maxSize += 2;
+                    pc += 2;
+                    break;
+                case Opcodes.SIPUSH:
+                    minSize += 3;
+                    maxSize += 3;
+                    pc += 3;
+                    break;
+                case Opcodes.LDC:
+                    minSize += 2;
+                    maxSize += 3;
+                    pc += 2;
+                    break;
+                case 19: // LDC_W
+                    minSize += 2;
+                    maxSize += 3;
+                    pc += 3;
+                    break;
+                case 20: // LDC2_W
+                    minSize += 3;
+                    maxSize += 3;
+                    pc += 3;
+                    break;
+                case Opcodes.ILOAD:
+                case Opcodes.LLOAD:
+                case Opcodes.FLOAD:
+                case Opcodes.DLOAD:
+                case Opcodes.ALOAD:
+                case Opcodes.ISTORE:
+                case Opcodes.LSTORE:
+                case Opcodes.FSTORE:
+                case Opcodes.DSTORE:
+                case Opcodes.ASTORE:
+                case Opcodes.RET: {
+                    int size = varInsnSize(opcode, cr.readByte(offset + 1));
+                    minSize += size;
+                    maxSize += size;
+                    pc += 2;
+                    break;
+                }
+                case Opcodes.IINC:
+                    minSize += 3;
+                    maxSize += 3;
+                    pc += 3;
+                    break;
+                case Opcodes.GOTO:
+                case Opcodes.JSR:
+                    minSize += 3;
+                    maxSize += 5;
+                    jumpTarget = pc + cr.readShort(offset + 1);
+                    pc += 3;
+                    break;
+                case 200: // GOTO_W
+                case 201: // JSR_W
+                    minSize += 3;
+                    maxSize += 5;
+                    jumpTarget = pc + cr.readInt(offset + 1);
+                    pc += 5;
+                    break;
+                case Opcodes.TABLESWITCH: {
+                    int switchOffset = codeStart + (pc + 4 & ~3);
+                    int labels = cr.readInt(switchOffset + 8) - cr.readInt(switchOffset + 4) + 1;
+                    minSize += 13 + labels * 4;
+                    maxSize += 16 + labels * 4;
+                    pc = switchOffset - codeStart + 12 + labels * 4;
+                    break;
+                }
+                case Opcodes.LOOKUPSWITCH: {
+                    int switchOffset = codeStart + (pc + 4 & ~3);
+                    int keys = cr.readInt(switchOffset + 4);
+                    minSize += 9 + keys * 8;
+                    maxSize += 12 + keys * 8;
+                    pc = switchOffset - codeStart + 8 + keys * 8;
+                    break;
+                }
+                case Opcodes.GETSTATIC:
+                case Opcodes.PUTSTATIC:
+                case Opcodes.GETFIELD:
+                case Opcodes.PUTFIELD:
+                case Opcodes.INVOKEVIRTUAL:
+                case Opcodes.INVOKESPECIAL:
+                case Opcodes.INVOKESTATIC:
+                case Opcodes.NEW:
+                case Opcodes.ANEWARRAY:
+                case Opcodes.CHECKCAST:
+                case Opcodes.INSTANCEOF:
+                    minSize += 3;
+                    maxSize += 3;
+                    pc += 3;
+                    break;
+                case Opcodes.INVOKEINTERFACE:
+                case Opcodes.INVOKEDYNAMIC:
+                    minSize += 5;
+                    maxSize += 5;
+                    pc += 5;
+                    break;
+                case Opcodes.MULTIANEWARRAY:
+                    minSize += 4;
+                    maxSize += 4;
+                    pc += 4;
+                    break;
+                case 196: { // WIDE
+                    int wideOpcode = cr.readByte(offset + 1);
+                    int var = cr.readUnsignedShort(offset + 2);
+                    int size;
+                    if (wideOpcode == Opcodes.IINC) {
+                        int increment = cr.readShort(offset + 4);
+                        size = var > 255 || increment > 127 || increment < -128 ? 6 : 3;
+                        pc += 6;
+                    } else {
+                        size = varInsnSize(wideOpcode, var);
+                        pc += 4;
+                    }
+                    minSize += size;
+                    maxSize += size;
+                    break;
+                }
+                default:
+                    if (opcode >= Opcodes.IFEQ && opcode <= Opcodes.IF_ACMPNE
+                            || opcode == Opcodes.IFNULL || opcode == Opcodes.IFNONNULL) {
+                        minSize += 3;
+                        maxSize += 8;
+                        jumpTarget = pc + cr.readShort(offset + 1);
+                        pc += 3;
+                    } else if (opcode <= Opcodes.MONITOREXIT) {
+                        // ILOAD_0 and the like are visited as ILOAD 0, so all the one byte instructions have size 1
+                        minSize++;
+                        maxSize++;
+                        pc++;
+                    } else {
+                        return null;
+                    }
+            }
+            // The label of the jump target is visited before the instruction, so the jump to itself is backward as well
+            if (jumpTarget >= 0 && jumpTarget <= offset - codeStart) {
+                if (backJumpTargets == null) {
+                    backJumpTargets = new BitSet(codeLength);
+                }
+                if (!backJumpTargets.get(jumpTarget)) {
+                    backJumpTargets.set(jumpTarget);
+                    numberOfBackJumps++;
+                }
+            }
+        }
+        final int codeSize = (minSize + maxSize) >> 1;
+
+        int offset = codeStart + codeLength;
+        offset += 2 + 8 * cr.readUnsignedShort(offset); // exception table
+        char[] charBuffer = null;
+        int numberOfLines = 0;
+        int firstLineNumber = 0;
+        int firstLinePc = Integer.MAX_VALUE;
+        int attributes = cr.readUnsignedShort(offset);
+        offset += 2;
+        while (attributes-- > 0) {
+            if (charBuffer == null) {
+                charBuffer = new char[cr.getMaxStringLength()];
+            }
+            if ("LineNumberTable".equals(cr.readUTF8(offset, charBuffer))) {
+                int entries = cr.readUnsignedShort(offset + 6);
+                for (int entry = offset + 8; entries-- > 0; entry += 4) {
+                    int startPc = cr.readUnsignedShort(entry);
+                    int line = cr.readUnsignedShort(entry + 2);
+                    if (line == 0) {
+                        continue;
+                    }
+                    numberOfLines++;
+                    if (startPc < firstLinePc) {
+                        firstLinePc = startPc;
+                        firstLineNumber = line;
+                    }
+                }
+            }
+            offset += 6 + cr.readInt(offset + 2);
+        }
+        if (numberOfLines == 0)
+            numberOfLines = (codeSize + 4) / 8;
+        return new MethodStatistics(codeSize, numberOfLines, firstLineNumber, numberOfBackJumps);
+    }
+
+    private static int varInsnSize(int opcode, int var) {
+        if (var < 4 && opcode != Opcodes.RET)
+            return 1;
+        return var >= 256 ? 4 : 2;
+    }
+}
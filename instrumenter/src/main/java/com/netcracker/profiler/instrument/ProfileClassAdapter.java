@@ -2,43 +2,84 @@
 
 import static com.netcracker.profiler.instrument.enhancement.EnhancerConstants.OPCODES_VERSION;
 
+import com.netcracker.profiler.configuration.Rule;
 import com.netcracker.profiler.util.MethodInstrumentationInfo;
 
+import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.commons.CodeSizeEvaluator;
+import org.objectweb.asm.tree.MethodNode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+/**
+ * Selects the rule for each method and instruments the method in a single pass over the class.
+ * <p>
+ * Rules might depend on the size of the method, the number of lines and backward jumps, and the profiled name of the
+ * method includes its first line. These are read from the Code attribute of the method in the class file
+ * (see {@link MethodStatistics}) when the method is visited, so the rule is selected before the code is visited, and
+ * the methods that are not instrumented are copied by the class writer as is.
+ * <p>
+ * The methods that are not in the class file (e.g. added by the visitors that precede this adapter) are buffered in
+ * a {@link MethodNode} until the end of the method. Then the rule is selected and the buffered method is replayed
+ * either through {@link ProfileMethodAdapter} or as is.
+ */
 public class ProfileClassAdapter extends ClassVisitor {
     private final static Logger log = LoggerFactory.getLogger(ProfileClassAdapter.class);
     private final String className;
     private String sourceFileName;
-    private final HashMap<String, MethodInstrumentationInfo> selectedRules;
+    private final ClassReader classReader;
+    private final Collection<Rule> rules;
+    private final List<Rule> classRules = new ArrayList<Rule>();
+    private final HashMap<String, MethodInstrumentationInfo> selectedRules = new HashMap<String, MethodInstrumentationInfo>();
     private final String jarName;
     private int classVersion;
+    private Map<String, Integer> methodCode;
+    private final List<String> profiledMethods = new ArrayList<String>();
+    private final Set<String> inlinedEvents = new LinkedHashSet<String>();
 
     /**
      * Constructs a new {@link org.objectweb.asm.ClassVisitor} object.
      *
-     * @param cv            the class visitor to which this adapter must delegate calls.
-     * @param className     JVM class name like java/lang/String
-     * @param selectedRules
-     * @param jarName
+     * @param cv          the class visitor to which this adapter must delegate calls.
+     * @param classReader reader that visits the class, it is used to read the statistics of the methods
+     * @param rules       rules that match the class name
+     * @param jarName     name of the jar the class is loaded from
      */
-    public ProfileClassAdapter(ClassVisitor cv, String className, HashMap<String, MethodInstrumentationInfo> selectedRules, String jarName) {
+    public ProfileClassAdapter(ClassVisitor cv, ClassReader classReader, Collection<Rule> rules, String jarName) {
         super(OPCODES_VERSION, cv);
-        this.className = className;
-        this.selectedRules = selectedRules;
+        this.className = classReader.getClassName();
+        this.classReader = classReader;
+        this.rules = rules;
         this.jarName = jarName;
-        log.debug("Transforming class {}, {} rules match this class name", className, selectedRules.size());
+        log.debug("Transforming class {}, {} rules match this class name", className, rules.size());
     }
 
     @Override
     public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
         super.visit(version, access, name, signature, superName, interfaces);
         this.classVersion = version & 0xffff; //Store only major version
+        classRules.clear();
+        if ((access & Opcodes.ACC_INTERFACE) > 0 || superName == null) return;
+
+        if ((access & (Opcodes.ACC_PRIVATE | Opcodes.ACC_PUBLIC | Opcodes.ACC_PROTECTED)) == 0)
+            access |= Opcodes.ACC_TRANSIENT; // default package-protected visibility
+
+        for (Rule rule : rules)
+            if (rule.matches(access, name, superName, interfaces))
+                classRules.add(rule);
     }
 
     @Override
@@ -49,17 +90,66 @@ public void visitSource(String source, String debug) {
 
     @Override
     public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
-        final MethodInstrumentationInfo info = selectedRules.get(name + desc);
-        MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
-        if (info != null) {
-            final String fullName = TypeUtils.getMethodFullname(name, desc, className, sourceFileName, info.firstLineNumber, jarName);
-            mv = new ProfileMethodAdapter(mv, access, className, name, desc, fullName, info.rule, classVersion);
+        if ((access & Opcodes.ACC_ABSTRACT) > 0 || classRules.isEmpty())
+            return super.visitMethod(access, name, desc, signature, exceptions);
+        int ruleAccess = access;
+        if ((ruleAccess & (Opcodes.ACC_PRIVATE | Opcodes.ACC_PUBLIC | Opcodes.ACC_PROTECTED)) == 0)
+            ruleAccess |= Opcodes.ACC_TRANSIENT; // default package-protected visibility
+        final String methodName = name + desc;
+        List<Rule> candidates = null;
+        for (Rule rule : classRules) {
+            // Size, line and back jump criteria are lower bounds, so the largest values tell if the rule might match
+            if (rule.matches(ruleAccess, methodName, Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE)) {
+                if (candidates == null)
+                    candidates = new ArrayList<Rule>(2);
+                candidates.add(rule);
+            }
         }
-        return mv;
+        if (candidates == null)
+            return super.visitMethod(access, name, desc, signature, exceptions);
+
+        if (methodCode == null)
+            methodCode = MethodStatistics.findCode(classReader);
+        Integer codeOffset = methodCode.get(methodName);
+        MethodStatistics statistics = codeOffset == null ? null : MethodStatistics.read(classReader, codeOffset);
+        if (statistics != null) {
+            MethodInstrumentationInfo info = selectRule(candidates, ruleAccess, methodName,
+                    statistics.codeSize, statistics.numberOfLines, statistics.numberOfBackJumps, statistics.firstLineNumber);
+            MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
+            if (info == null || mv == null)
+                return mv;
+            return profile(mv, access, name, desc, info);
+        }
+
+        MethodSelector selector = new MethodSelector(new MethodNode(OPCODES_VERSION, access, name, desc, signature, exceptions),
+                ruleAccess, methodName, candidates);
+        return selector.codeSize = new CodeSizeEvaluator(selector);
+    }
+
+    private MethodInstrumentationInfo selectRule(List<Rule> candidates, int access, String methodName, int codeSize, int numberOfLines, int numberOfBackJumps, int firstLineNumber) {
+        for (Rule rule : candidates) {
+            if (rule.matches(access, methodName, codeSize, numberOfLines, numberOfBackJumps)) {
+                MethodInstrumentationInfo info = new MethodInstrumentationInfo(rule, firstLineNumber);
+                selectedRules.put(methodName, info);
+                return info;
+            }
+        }
+        return null;
+    }
+
+    private MethodVisitor profile(MethodVisitor mv, int access, String name, String desc, MethodInstrumentationInfo info) {
+        final String fullName = TypeUtils.getMethodFullname(name, desc, className, sourceFileName, info.firstLineNumber, jarName);
+        profiledMethods.add(fullName);
+        return new ProfileMethodAdapter(mv, access, className, name, desc, fullName, info.rule, classVersion, inlinedEvents);
     }
 
     @Override
     public void visitEnd() {
+        if (selectedRules.isEmpty()) {
+            log.debug("No profiling rules match methods of class {}", className);
+        }
+        // The methods the rules add at the end of the class are not profiled
+        classRules.clear();
         for (MethodInstrumentationInfo info : selectedRules.values()) {
             info.rule.onClassEnd(this, className);
         }
@@ -69,4 +159,84 @@ public void visitEnd() {
     public int getClassVersion() {
         return classVersion;
     }
+
+    /**
+     * Returns the full names of the profiled methods, the ids of the names are inlined in the transformed class.
+     *
+     * @return names of the methods
+     */
+    public List<String> getProfiledMethods() {
+        return profiledMethods;
+    }
+
+    /**
+     * Returns the names of the events whose tag ids are inlined in the transformed class.
+     *
+     * @return names of the logged events
+     */
+    public Set<String> getInlinedEvents() {
+        return inlinedEvents;
+    }
+
+    /**
+     * Buffers the method and collects its size, lines and backward jumps, then selects the rule and writes the method.
+     */
+    private class MethodSelector extends MethodVisitor {
+        private final MethodNode method;
+        private final int ruleAccess;
+        private final String methodName;
+        private final List<Rule> candidates;
+        private final HashSet<Label> seenLabels = new HashSet<Label>();
+        CodeSizeEvaluator codeSize;
+        private int firstLineNumber;
+        private int numberOfLines;
+        private int numberOfBackJumps;
+
+        MethodSelector(MethodNode method, int ruleAccess, String methodName, List<Rule> candidates) {
+            super(OPCODES_VERSION, method);
+            this.method = method;
+            this.ruleAccess = ruleAccess;
+            this.methodName = methodName;
+            this.candidates = candidates;
+        }
+
+        @Override
+        public void visitLineNumber(int line, Label start) {
+            if (firstLineNumber == 0)
+                firstLineNumber = line;
+            numberOfLines++;
+            super.visitLineNumber(line, start);
+        }
+
+        @Override
+        public void visitLabel(Label label) {
+            seenLabels.add(label);
+            super.visitLabel(label);
+        }
+
+        @Override
+        public void visitJumpInsn(int opcode, Label label) {
+            if (seenLabels.remove(label))
+                numberOfBackJumps++;
+            super.visitJumpInsn(opcode, label);
+        }
+
+        @Override
+        public void visitEnd() {
+            super.visitEnd();
+            final int codeSize = (this.codeSize.getMinSize() + this.codeSize.getMaxSize()) >> 1;
+            if (numberOfLines == 0)
+                numberOfLines = (codeSize + 4) / 8;
+            MethodInstrumentationInfo info = selectRule(candidates, ruleAccess, methodName, codeSize, numberOfLines, numberOfBackJumps, firstLineNumber);
+
+            String[] exceptions = method.exceptions.toArray(new String[0]);
+            MethodVisitor mv = ProfileClassAdapter.super.visitMethod(method.access, method.name, method.desc, method.signature, exceptions);
+            if (mv == null) {
+                return;
+            }
+            if (info != null)
+                mv = profile(mv, method.access, method.name, method.desc, info);
+            method.accept(mv);
+        }
+    }
 }
@@ -16,7 +16,9 @@
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 
 public class ProfileMethodAdapter extends AdviceAdapter {
     private static final Logger log = LoggerFactory.getLogger(ProfileMethodAdapter.class);
@@ -57,6 +59,7 @@ public class ProfileMethodAdapter extends AdviceAdapter {
     private int resultVariableNumber = -1; // local variable that holds method result value
     private int thisArgIndex; // local variable that holds "this" copy
     private int[] savedLocals; // log-parameter-when saves the argument at the method start, so this array relates old local -> new one
+    private final Collection<String> inlinedEvents; // names of the events whose tag ids are pushed as constants
 
     /**
      * Creates a new {@link org.objectweb.asm.commons.AdviceAdapter}.
@@ -70,6 +73,15 @@ public class ProfileMethodAdapter extends AdviceAdapter {
      * @param rule
      */
     public ProfileMethodAdapter(MethodVisitor mv, int access, String className, String name, String desc, String fullName, Rule rule, int classVersion) {
+        this(mv, access, className, name, desc, fullName, rule, classVersion, new ArrayList<String>());
+    }
+
+    /**
+     * Creates a new {@link org.objectweb.asm.commons.AdviceAdapter} that collects the names of the logged events.
+     *
+     * @param inlinedEvents receives the names of the events whose tag ids are pushed as constants
+     */
+    public ProfileMethodAdapter(MethodVisitor mv, int access, String className, String name, String desc, String fullName, Rule rule, int classVersion, Collection<String> inlinedEvents) {
         super(OPCODES_VERSION, mv, access, name, desc);
         if (rule.shouldNotProfile()) {
             if (log.isTraceEnabled())
@@ -87,6 +99,7 @@ public ProfileMethodAdapter(MethodVisitor mv, int access, String className, Stri
         this.rule = rule;
         this.constructor = "<init>".equals(name);
         this.classVersion = classVersion;
+        this.inlinedEvents = inlinedEvents;
     }
 
     private void doDeclareLocals() {
@@ -222,8 +235,18 @@ public String getClassName() {
         return className;
     }
 
+    /**
+     * Returns the method id that {@link #logEnter(String)} pushes as a constant.
+     *
+     * @param methodName full name of the method
+     * @return method id including {@link DumperConstants#DATA_ENTER_RECORD} type
+     */
+    public static int resolveMethodTag(String methodName) {
+        return ProfilerData.resolveTag(methodName) | DumperConstants.DATA_ENTER_RECORD;
+    }
+
     public void logEnter(String methodName) {
-        push(ProfilerData.resolveTag(methodName) | DumperConstants.DATA_ENTER_RECORD);
+        push(resolveMethodTag(methodName));
         invokeStatic(C_PROFILER, M_ENTER_RETURNING);
         storeLocal(localState);
     }
@@ -231,8 +254,11 @@ public void logEnter(String methodName) {
     public void logEvent(String eventName, Type type, boolean convert) {
         if (type.getSort() != Type.OBJECT || !"java/lang/String".equals(type.getInternalName()))
             invokeStatic(C_STRINGUTILS, M_CONVERT);
-        push(eventName);
-        invokeStatic(C_PROFILER, M_EVENT);
+        // The dictionary is shared with the instrumented code, so the tag id can be inlined as a constant.
+        // The transformed classes cache remaps the id when the class is loaded by another JVM
+        push(Profiler.resolveEventTag(eventName));
+        inlinedEvents.add(eventName);
+        invokeStatic(C_PROFILER, M_EVENT_ID);
     }
 
     public void logExit() {
@@ -21,7 +21,7 @@ public static int hashCode(ArrayList<Pattern> a){
             return 0;
         int result = 0;
         for (int i = 0, aSize = a.size(); i < aSize; i++)
-            result = result*31 + a.get(i).hashCode();
+            result = result*31 + a.get(i).pattern().hashCode();
         return result;
     }
 }
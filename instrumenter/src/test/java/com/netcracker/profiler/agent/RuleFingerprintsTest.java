@@ -0,0 +1,52 @@
+package com.netcracker.profiler.agent;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.netcracker.profiler.configuration.Rule;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+public class RuleFingerprintsTest {
+    private static Rule rule(String className, String method, int minimumMethodSize) {
+        Rule rule = new Rule();
+        rule.addClass(className);
+        rule.addIncludedMethod(method);
+        rule.setMinimumMethodSize(minimumMethodSize);
+        return rule;
+    }
+
+    @Test
+    public void rulesOfDifferentConfigurationsAreComparedByContent() {
+        // Every configuration parses the rules anew, so equal rules are different instances
+        Rule oldRule = rule("com.acme.*", "run*", 50);
+        Rule newRule = rule("com.acme.*", "run*", 50);
+        assertNotSame(oldRule, newRule);
+        assertEquals(oldRule.hashCode(), newRule.hashCode());
+
+        RuleFingerprints.Local fingerprints = new RuleFingerprints().local();
+        assertTrue(fingerprints.sameRules(Collections.singletonList(oldRule), Collections.singletonList(newRule)));
+        assertTrue(fingerprints.sameRules(Collections.<Rule>emptyList(), Collections.<Rule>emptyList()));
+    }
+
+    @Test
+    public void changedRulesDiffer() {
+        Rule a = rule("com.acme.*", "run*", 50);
+        Rule b = rule("com.acme.*", "call*", 50);
+        RuleFingerprints.Local fingerprints = new RuleFingerprints().local();
+        assertFalse(fingerprints.sameRules(Collections.singletonList(a), Collections.singletonList(b)));
+        assertFalse(fingerprints.sameRules(Arrays.asList(a, b), Arrays.asList(b, a)));
+        assertFalse(fingerprints.sameRules(Arrays.asList(a, b), Collections.singletonList(a)));
+    }
+
+    @Test
+    public void threadsShareFingerprints() {
+        RuleFingerprints fingerprints = new RuleFingerprints();
+        Rule a = rule("com.acme.*", "run*", 50);
+        Rule b = rule("com.acme.*", "run*", 50);
+        assertTrue(fingerprints.local().sameRules(Collections.singletonList(a), Collections.singletonList(a)));
+        assertTrue(fingerprints.local().sameRules(Collections.singletonList(a), Collections.singletonList(b)));
+    }
+}
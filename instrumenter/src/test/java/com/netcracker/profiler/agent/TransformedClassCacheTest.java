@@ -0,0 +1,280 @@
+package com.netcracker.profiler.agent;
+
+import static com.netcracker.profiler.instrument.enhancement.EnhancerConstants.OPCODES_VERSION;
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.netcracker.profiler.instrument.ProfileMethodAdapter;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class TransformedClassCacheTest {
+    private static byte[] key(String className) {
+        return TransformedClassCache.key(className, null, className.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] transformed(String className) {
+        return ("transformed " + className).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void put(TransformedClassCache cache, String className) {
+        cache.put(key(className), className.getBytes(StandardCharsets.UTF_8), transformed(className),
+                Collections.<String>emptyList(), Collections.<String>emptyList());
+    }
+
+    /**
+     * Generates a class with {@code static int run()} that returns the given constant.
+     */
+    private static byte[] classReturning(String className, int value) {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, className, null, "java/lang/Object", null);
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "run", "()I", null, null);
+        mv.visitCode();
+        mv.visitLdcInsn(value);
+        mv.visitInsn(Opcodes.IRETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private static int returnedConstant(byte[] bytes) {
+        final int[] result = new int[1];
+        new ClassReader(bytes).accept(new ClassVisitor(OPCODES_VERSION) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+                return new MethodVisitor(OPCODES_VERSION) {
+                    @Override
+                    public void visitLdcInsn(Object value) {
+                        result[0] = (Integer) value;
+                    }
+                };
+            }
+        }, 0);
+        return result[0];
+    }
+
+    @Test
+    public void classesSurviveReopen(@TempDir File dir) throws IOException {
+        TransformedClassCache cache = new TransformedClassCache(dir, 64);
+        for (int i = 0; i < 40; i++) {
+            put(cache, "com/acme/Class" + i);
+        }
+        assertNull(cache.get(key("com/acme/Missing")));
+        cache.close();
+
+        cache = new TransformedClassCache(dir, 64);
+        try {
+            assertEquals(40, cache.size());
+            for (int i = 0; i < 40; i++) {
+                assertArrayEquals(transformed("com/acme/Class" + i), cache.get(key("com/acme/Class" + i)));
+            }
+            assertEquals(40, cache.getHits());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void keyDependsOnClassBytes() {
+        byte[] original = key("com/acme/Service");
+        assertArrayEquals(original, key("com/acme/Service"));
+        byte[] changed = TransformedClassCache.key("com/acme/Service", null, new byte[]{1, 2, 3});
+        assertFalse(Arrays.equals(original, changed));
+    }
+
+    @Test
+    public void bytecodeSettingsAndPluginsSelectCache(@TempDir File root) throws IOException {
+        File plugin = new File(root, "plugin.jar");
+        assertTrue(plugin.createNewFile());
+        List<String> plugins = Collections.singletonList(plugin.getPath());
+        String environment = TransformedClassCache.getInstrumentationEnvironment(true, true, true, plugins);
+        TransformedClassCache cache = new TransformedClassCache(TransformedClassCache.cacheDirectory(root, "conf", environment), 64);
+        put(cache, "com/acme/Service");
+        cache.close();
+
+        String noPlainTryCatch = TransformedClassCache.getInstrumentationEnvironment(true, false, true, plugins);
+        cache = new TransformedClassCache(TransformedClassCache.cacheDirectory(root, "conf", noPlainTryCatch), 64);
+        try {
+            assertNull(cache.get(key("com/acme/Service")), "Class instrumented with other try-catch settings should not be used");
+        } finally {
+            cache.close();
+        }
+
+        assertTrue(plugin.setLastModified(plugin.lastModified() - 60000));
+        String updatedPlugin = TransformedClassCache.getInstrumentationEnvironment(true, true, true, plugins);
+        cache = new TransformedClassCache(TransformedClassCache.cacheDirectory(root, "conf", updatedPlugin), 64);
+        try {
+            assertNull(cache.get(key("com/acme/Service")), "Class instrumented by another plugin build should not be used");
+        } finally {
+            cache.close();
+        }
+
+        assertTrue(plugin.setLastModified(plugin.lastModified() + 60000));
+        assertEquals(environment, TransformedClassCache.getInstrumentationEnvironment(true, true, true, plugins));
+        cache = new TransformedClassCache(TransformedClassCache.cacheDirectory(root, "conf", environment), 64);
+        try {
+            assertArrayEquals(transformed("com/acme/Service"), cache.get(key("com/acme/Service")),
+                    "Same settings and plugins should reuse the cache");
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void secondCacheIsReadOnly(@TempDir File dir) throws IOException {
+        TransformedClassCache writer = new TransformedClassCache(dir, 64);
+        TransformedClassCache reader = null;
+        try {
+            put(writer, "com/acme/A");
+            reader = new TransformedClassCache(dir, 64);
+            assertArrayEquals(transformed("com/acme/A"), reader.get(key("com/acme/A")));
+            put(reader, "com/acme/B");
+            assertNull(writer.get(key("com/acme/B")));
+        } finally {
+            if (reader != null) {
+                reader.close();
+            }
+            writer.close();
+        }
+    }
+
+    @Test
+    public void stopsAcceptingClassesWhenFull(@TempDir File dir) throws IOException {
+        TransformedClassCache cache = new TransformedClassCache(dir, 16);
+        try {
+            for (int i = 0; i < 20; i++) {
+                put(cache, "com/acme/Class" + i);
+            }
+            assertEquals(12, cache.size());
+            assertNull(cache.get(key("com/acme/Class19")));
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void corruptedClassIsMiss(@TempDir File dir) throws IOException {
+        TransformedClassCache cache = new TransformedClassCache(dir, 64);
+        try {
+            put(cache, "com/acme/A");
+            RandomAccessFile data = new RandomAccessFile(new File(dir, "classes.dat"), "rw");
+            try {
+                data.seek(3);
+                data.write('X');
+            } finally {
+                data.close();
+            }
+            assertNull(cache.get(key("com/acme/A")));
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void cacheIsResetWhenLayoutChanges(@TempDir File dir) throws IOException {
+        TransformedClassCache cache = new TransformedClassCache(dir, 64);
+        put(cache, "com/acme/A");
+        cache.close();
+
+        cache = new TransformedClassCache(dir, 128);
+        try {
+            assertEquals(0, cache.size());
+            assertNull(cache.get(key("com/acme/A")));
+            assertEquals(0, new File(dir, "classes.dat").length());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void methodIdsAreRemappedAfterRestart(@TempDir File dir) throws IOException {
+        String method = "int com.acme.Service.run() (Service.java:42) [app.jar]";
+        // The id the method had in the JVM that filled the cache
+        int cachedTag = DumperConstants.DATA_ENTER_RECORD | 0xabcde;
+        byte[] original = classReturning("com/acme/Service", 42);
+        byte[] transformed = classReturning("com/acme/Service", cachedTag);
+        byte[] key = TransformedClassCache.key("com/acme/Service", null, original);
+        TransformedClassCache cache = new TransformedClassCache(dir, 64);
+        cache.put(key, original, transformed, Collections.singletonMap(cachedTag, method));
+        cache.close();
+
+        cache = new TransformedClassCache(dir, 64);
+        try {
+            int tag = returnedConstant(cache.get(key));
+            assertNotEquals(cachedTag, tag);
+            assertEquals(DumperConstants.DATA_ENTER_RECORD, tag & DumperConstants.DATA_TYPE_MASK);
+            assertEquals(method, ProfilerData.resolveMethodId(tag & DumperConstants.DATA_ID_MASK));
+            assertEquals(1, cache.getHits());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void eventTagsAreRemappedAfterRestart(@TempDir File dir) throws IOException {
+        String event = "com.acme.order.id";
+        // The tag the event had in the JVM that filled the cache
+        int cachedTag = DumperConstants.DATA_TAG_RECORD | 0xabcde;
+        byte[] original = classReturning("com/acme/Order", 42);
+        byte[] transformed = classReturning("com/acme/Order", cachedTag);
+        byte[] key = TransformedClassCache.key("com/acme/Order", null, original);
+        TransformedClassCache cache = new TransformedClassCache(dir, 64);
+        cache.put(key, original, transformed, Collections.singletonMap(cachedTag, event));
+        cache.close();
+
+        cache = new TransformedClassCache(dir, 64);
+        try {
+            int tag = returnedConstant(cache.get(key));
+            assertEquals(Profiler.resolveEventTag(event), tag);
+            assertEquals(DumperConstants.DATA_TAG_RECORD, tag & DumperConstants.DATA_TYPE_MASK, "Event should stay a tag record");
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void methodIdsOfCurrentDictionaryAreKept(@TempDir File dir) throws IOException {
+        String method = "void com.acme.Service.call() (Service.java:7) [app.jar]";
+        int tag = ProfileMethodAdapter.resolveMethodTag(method);
+        byte[] original = classReturning("com/acme/Service", 7);
+        byte[] transformed = classReturning("com/acme/Service", tag);
+        byte[] key = TransformedClassCache.key("com/acme/Service", null, original);
+        TransformedClassCache cache = new TransformedClassCache(dir, 64);
+        try {
+            cache.put(key, original, transformed, Collections.singletonList(method), Collections.<String>emptyList());
+            assertArrayEquals(transformed, cache.get(key));
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void classWithConstantThatMatchesMethodIdIsNotCached(@TempDir File dir) throws IOException {
+        int cachedTag = DumperConstants.DATA_ENTER_RECORD | 0xabcdf;
+        // The constant of the class itself could not be told from the method id
+        byte[] original = classReturning("com/acme/Constants", cachedTag);
+        byte[] key = TransformedClassCache.key("com/acme/Constants", null, original);
+        TransformedClassCache cache = new TransformedClassCache(dir, 64);
+        try {
+            cache.put(key, original, original, Collections.singletonMap(cachedTag, "int com.acme.Constants.run()"));
+            assertEquals(0, cache.size());
+            assertNull(cache.get(key));
+        } finally {
+            cache.close();
+        }
+    }
+}
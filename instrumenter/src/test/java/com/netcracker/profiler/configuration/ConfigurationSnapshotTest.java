@@ -0,0 +1,157 @@
+package com.netcracker.profiler.configuration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.netcracker.profiler.util.XMLHelper;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+public class ConfigurationSnapshotTest {
+    private static final String CONFIG = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+            "<profiler-configuration>\n" +
+            "    <!-- comment -->\n" +
+            "    <enhancer>http</enhancer>\n" +
+            "    <ruleset if-enhancer=\"http\">\n" +
+            "        <rule if=\"profiler.http\">\n" +
+            "            <class>org.apache.catalina.core.StandardHostValve</class>\n" +
+            "            <method>invoke</method>\n" +
+            "            <execute-before static=\"true\" class=\"Helper\">before$profiler(p1, \u043f\u0440\u0438)</execute-before>\n" +
+            "            <log-parameter name=\"sql\"><![CDATA[<0>]]></log-parameter>\n" +
+            "            <minimum-method-size>a<!-- split -->b</minimum-method-size>\n" +
+            "            <start-endpoint/>\n" +
+            "        </rule>\n" +
+            "    </ruleset>\n" +
+            "</profiler-configuration>\n";
+
+    private static DocumentBuilder documentBuilder() throws Exception {
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder();
+    }
+
+    private static Document parse(String xml) throws Exception {
+        return documentBuilder().parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Dumps the document the way the configuration reads it: elements, attributes and text content.
+     */
+    private static void dump(Node node, StringBuilder sb) {
+        if (node.getNodeType() != Node.ELEMENT_NODE)
+            return;
+        Element e = (Element) node;
+        sb.append('<').append(e.getTagName());
+        NamedNodeMap attributes = e.getAttributes();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            sb.append(' ').append(attributes.item(i).getNodeName()).append("='").append(attributes.item(i).getNodeValue()).append('\'');
+        }
+        sb.append(" text='").append(XMLHelper.getTextContent(e)).append("'>");
+        for (Node child = e.getFirstChild(); child != null; child = child.getNextSibling()) {
+            dump(child, sb);
+        }
+        sb.append("</").append(e.getTagName()).append('>');
+    }
+
+    private static String dump(Element root) {
+        StringBuilder sb = new StringBuilder();
+        dump(root, sb);
+        return sb.toString();
+    }
+
+    @Test
+    public void documentSurvivesRestart(@TempDir File dir) throws Exception {
+        File file = new File(dir, "_config.xml.snapshot");
+        byte[] content = CONFIG.getBytes(StandardCharsets.UTF_8);
+        String key = ConfigurationSnapshot.key("/config/_config.xml", content);
+        Document expected = parse(CONFIG);
+
+        ConfigurationSnapshot snapshot = ConfigurationSnapshot.open(file);
+        assertNull(snapshot.get(key));
+        snapshot.put(key, expected);
+        snapshot.save();
+        assertTrue(file.isFile());
+
+        snapshot = ConfigurationSnapshot.open(file);
+        Element actual = snapshot.get(key);
+        assertNotNull(actual);
+        assertEquals(1, snapshot.getHits());
+        assertEquals(dump(expected.getDocumentElement()), dump(actual));
+        assertEquals(1, actual.getElementsByTagName("rule").getLength());
+    }
+
+    @Test
+    public void changedFileIsMissAndStaleDocumentIsDropped(@TempDir File dir) throws Exception {
+        File file = new File(dir, "_config.xml.snapshot");
+        String oldKey = ConfigurationSnapshot.key("/config/a.xml", "<a/>".getBytes(StandardCharsets.UTF_8));
+        String keptKey = ConfigurationSnapshot.key("/config/b.xml", "<b/>".getBytes(StandardCharsets.UTF_8));
+        ConfigurationSnapshot snapshot = ConfigurationSnapshot.open(file);
+        snapshot.put(oldKey, parse("<a/>"));
+        snapshot.put(keptKey, parse("<b/>"));
+        snapshot.save();
+
+        String newKey = ConfigurationSnapshot.key("/config/a.xml", "<a x='1'/>".getBytes(StandardCharsets.UTF_8));
+        assertNotEquals(oldKey, newKey);
+        assertNotEquals(oldKey, ConfigurationSnapshot.key("/config/c.xml", "<a/>".getBytes(StandardCharsets.UTF_8)));
+        snapshot = ConfigurationSnapshot.open(file);
+        assertNull(snapshot.get(newKey));
+        snapshot.put(newKey, parse("<a x='1'/>"));
+        assertNotNull(snapshot.get(keptKey));
+        snapshot.save();
+
+        snapshot = ConfigurationSnapshot.open(file);
+        assertNull(snapshot.get(oldKey));
+        assertEquals("1", snapshot.get(newKey).getAttribute("x"));
+        assertNotNull(snapshot.get(keptKey));
+    }
+
+    @Test
+    public void unchangedSnapshotIsNotRewritten(@TempDir File dir) throws Exception {
+        File file = new File(dir, "_config.xml.snapshot");
+        String key = ConfigurationSnapshot.key("/config/a.xml", "<a/>".getBytes(StandardCharsets.UTF_8));
+        ConfigurationSnapshot snapshot = ConfigurationSnapshot.open(file);
+        snapshot.put(key, parse("<a/>"));
+        snapshot.save();
+        assertTrue(file.setLastModified(1000));
+
+        snapshot = ConfigurationSnapshot.open(file);
+        assertNotNull(snapshot.get(key));
+        snapshot.save();
+        assertEquals(1000, file.lastModified());
+    }
+
+    @Test
+    public void documentWithDoctypeIsNotStored(@TempDir File dir) throws Exception {
+        File file = new File(dir, "_config.xml.snapshot");
+        String xml = "<!DOCTYPE a [<!ENTITY e \"value\">]><a>&e;</a>";
+        String key = ConfigurationSnapshot.key("/config/a.xml", xml.getBytes(StandardCharsets.UTF_8));
+        ConfigurationSnapshot snapshot = ConfigurationSnapshot.open(file);
+        snapshot.put(key, parse(xml));
+        snapshot.save();
+
+        assertNull(ConfigurationSnapshot.open(file).get(key));
+    }
+
+    @Test
+    public void corruptedSnapshotIsIgnored(@TempDir File dir) throws Exception {
+        File file = new File(dir, "_config.xml.snapshot");
+        Files.write(file.toPath(), new byte[]{0x45, 0x53, 0x43, 0x53, 0, 0, 0, 1, 0, 0, 0, 5, 1});
+        String key = ConfigurationSnapshot.key("/config/a.xml", "<a/>".getBytes(StandardCharsets.UTF_8));
+
+        ConfigurationSnapshot snapshot = ConfigurationSnapshot.open(file);
+        assertNull(snapshot.get(key));
+        snapshot.put(key, parse("<a/>"));
+        snapshot.save();
+        assertNotNull(ConfigurationSnapshot.open(file).get(key));
+    }
+}
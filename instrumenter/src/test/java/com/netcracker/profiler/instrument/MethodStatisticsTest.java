@@ -0,0 +1,154 @@
+package com.netcracker.profiler.instrument;
+
+import static com.netcracker.profiler.instrument.enhancement.EnhancerConstants.OPCODES_VERSION;
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.*;
+import org.objectweb.asm.commons.CodeSizeEvaluator;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class MethodStatisticsTest implements Opcodes {
+    /**
+     * Computes the statistics the way visitor of {@link ClassReader} events does.
+     */
+    private static class StatisticsVisitor extends ClassVisitor {
+        final Map<String, String> statistics = new HashMap<String, String>();
+
+        StatisticsVisitor() {
+            super(OPCODES_VERSION);
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, final String desc, String signature, String[] exceptions) {
+            final String methodName = name + desc;
+            final HashSet<Label> seenLabels = new HashSet<Label>();
+            final CodeSizeEvaluator[] codeSize = new CodeSizeEvaluator[1];
+            MethodVisitor counter = new MethodVisitor(OPCODES_VERSION) {
+                int firstLineNumber;
+                int numberOfLines;
+                int numberOfBackJumps;
+                boolean hasCode;
+
+                @Override
+                public void visitCode() {
+                    hasCode = true;
+                }
+
+                @Override
+                public void visitLineNumber(int line, Label start) {
+                    if (firstLineNumber == 0)
+                        firstLineNumber = line;
+                    numberOfLines++;
+                }
+
+                @Override
+                public void visitLabel(Label label) {
+                    seenLabels.add(label);
+                }
+
+                @Override
+                public void visitJumpInsn(int opcode, Label label) {
+                    if (seenLabels.remove(label))
+                        numberOfBackJumps++;
+                }
+
+                @Override
+                public void visitEnd() {
+                    if (!hasCode)
+                        return;
+                    int size = (codeSize[0].getMinSize() + codeSize[0].getMaxSize()) >> 1;
+                    if (numberOfLines == 0)
+                        numberOfLines = (size + 4) / 8;
+                    statistics.put(methodName, format(size, numberOfLines, firstLineNumber, numberOfBackJumps));
+                }
+            };
+            return codeSize[0] = new CodeSizeEvaluator(counter);
+        }
+    }
+
+    private static String format(int codeSize, int numberOfLines, int firstLineNumber, int numberOfBackJumps) {
+        return "size=" + codeSize + ", lines=" + numberOfLines + ", firstLine=" + firstLineNumber + ", backJumps=" + numberOfBackJumps;
+    }
+
+    private static void assertSameStatistics(byte[] bytes) {
+        ClassReader cr = new ClassReader(bytes);
+        StatisticsVisitor expected = new StatisticsVisitor();
+        cr.accept(expected, ClassReader.SKIP_FRAMES);
+
+        Map<String, String> actual = new HashMap<String, String>();
+        for (Map.Entry<String, Integer> entry : MethodStatistics.findCode(cr).entrySet()) {
+            MethodStatistics statistics = MethodStatistics.read(cr, entry.getValue());
+            assertNotNull(statistics, cr.getClassName() + "." + entry.getKey());
+            actual.put(entry.getKey(), format(statistics.codeSize, statistics.numberOfLines, statistics.firstLineNumber, statistics.numberOfBackJumps));
+        }
+        assertEquals(expected.statistics, actual, cr.getClassName());
+    }
+
+    @Test
+    public void sameAsVisitorForJdkClasses() throws IOException {
+        List<Path> classes;
+        try (Stream<Path> paths = Files.walk(FileSystems.getFileSystem(URI.create("jrt:/")).getPath("/modules/java.base"))) {
+            classes = paths.filter(p -> p.toString().endsWith(".class") && !p.toString().endsWith("module-info.class"))
+                    .limit(3000)
+                    .collect(Collectors.toList());
+        }
+        assertFalse(classes.isEmpty());
+        for (Path path : classes) {
+            assertSameStatistics(Files.readAllBytes(path));
+        }
+    }
+
+    @Test
+    public void sameAsVisitorForWideInstructions() {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(V1_8, ACC_PUBLIC, "test/Wide", null, "java/lang/Object", null);
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, "wide", "(I)I", null, null);
+        mv.visitCode();
+        Label loop = new Label();
+        Label end = new Label();
+        Label first = new Label();
+        Label second = new Label();
+        mv.visitLabel(loop);
+        mv.visitLineNumber(10, loop);
+        mv.visitVarInsn(ILOAD, 0);
+        mv.visitVarInsn(ISTORE, 300);
+        mv.visitIincInsn(300, 1000);
+        mv.visitIincInsn(5, 1);
+        mv.visitIntInsn(SIPUSH, 1000);
+        mv.visitLdcInsn(42L);
+        mv.visitInsn(POP2);
+        mv.visitLdcInsn("constant");
+        mv.visitInsn(POP);
+        mv.visitVarInsn(ILOAD, 300);
+        mv.visitTableSwitchInsn(1, 3, end, first, second, end);
+        mv.visitLabel(first);
+        mv.visitLineNumber(11, first);
+        mv.visitVarInsn(ILOAD, 0);
+        mv.visitLookupSwitchInsn(end, new int[]{10, 1000}, new Label[]{loop, second});
+        mv.visitLabel(second);
+        mv.visitLineNumber(12, second);
+        mv.visitVarInsn(ILOAD, 0);
+        mv.visitJumpInsn(IFNE, loop);
+        mv.visitVarInsn(ILOAD, 0);
+        mv.visitJumpInsn(IFLT, first);
+        mv.visitJumpInsn(GOTO, loop);
+        mv.visitLabel(end);
+        mv.visitLineNumber(9, end);
+        mv.visitVarInsn(ILOAD, 300);
+        mv.visitInsn(IRETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        cw.visitEnd();
+
+        assertSameStatistics(cw.toByteArray());
+    }
+}
@@ -0,0 +1,107 @@
+package com.netcracker.profiler.test.rules;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.netcracker.profiler.configuration.ClassNameMatcher;
+import com.netcracker.profiler.configuration.Rule;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ClassNameMatcherTest {
+    private static final String[] PATTERNS = {
+            "com.acme.**",
+            "com.acme.*",
+            "com.acme.*Service",
+            "com.acme.**.impl.*Dao",
+            "org.quartz.core.**",
+            "*Servlet",
+            "Http*Handler",
+            "Main",
+            "**Test",
+            "*",
+            "^com/acme/web/[A-Z].*",
+            "com.acme.Outer$Inner",
+            "com.acme.Exact",
+    };
+
+    private static final String[] CLASS_NAMES = {
+            "com/acme/Service",
+            "com/acme/OrderService",
+            "com/acme/orders/OrderService",
+            "com/acme/orders/impl/OrderDao",
+            "com/acme/orders/impl/deep/OrderDao",
+            "com/acme/impl/OrderDao",
+            "com/acme/Outer$Inner",
+            "com/acme/Exact",
+            "com/acme/ExactNot",
+            "com/acme/web/Controller",
+            "com/acme/web/controller",
+            "com/acmeX/Service",
+            "org/quartz/core/QuartzScheduler",
+            "org/quartz/impl/StdScheduler",
+            "javax/servlet/http/HttpServlet",
+            "HttpServlet",
+            "io/undertow/HttpContinueHandler",
+            "io/undertow/server/HttpHandlerX",
+            "Main",
+            "com/acme/Main",
+            "com/acme/MainTest",
+            "MainTest",
+            "java/lang/String",
+            "",
+    };
+
+    private static Rule rule(String... classNames) {
+        Rule rule = new Rule();
+        for (String className : classNames) {
+            rule.addClass(className);
+        }
+        return rule;
+    }
+
+    @Test
+    public void matchesLikeRegularExpressions() {
+        List<Rule> rules = new ArrayList<Rule>();
+        for (String pattern : PATTERNS) {
+            rules.add(rule(pattern));
+        }
+        rules.add(rule("com.acme.**.web.*", "*Handler"));
+        ClassNameMatcher matcher = new ClassNameMatcher(rules);
+        for (String className : CLASS_NAMES) {
+            List<Rule> expected = new ArrayList<Rule>();
+            for (Rule rule : rules) {
+                if (rule.classNameMatches(className)) {
+                    expected.add(rule);
+                }
+            }
+            List<Rule> actual = matcher.getRulesForClass(className);
+            if (expected.isEmpty()) {
+                assertNull(actual, className);
+            } else {
+                assertEquals(expected, actual, className);
+            }
+        }
+    }
+
+    @Test
+    public void rulesAreReturnedInConfigurationOrder() {
+        Rule first = rule("*Service");
+        Rule second = rule("com.acme.**");
+        Rule third = new Rule();
+        ClassNameMatcher matcher = new ClassNameMatcher(Arrays.asList(first, second, third));
+        assertEquals(Arrays.asList(first, second, third), matcher.getRulesForClass("com/acme/OrderService"));
+        assertEquals(Arrays.asList(second, third), matcher.getRulesForClass("com/acme/Order"));
+        assertEquals(Arrays.asList(third), matcher.getRulesForClass("org/acme/Order"));
+    }
+
+    @Test
+    public void noMatchReturnsNull() {
+        ClassNameMatcher matcher = new ClassNameMatcher(Arrays.asList(rule("com.acme.**"), rule("*Servlet")));
+        assertNull(matcher.getRulesForClass("java/lang/String"));
+        assertNull(matcher.getRulesForClass("com/acm"));
+    }
+}
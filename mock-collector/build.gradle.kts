@@ -7,6 +7,7 @@
     implementation(kotlin("stdlib"))
     implementation(projects.protoDefinition)
     implementation(projects.common)
+    implementation("io.airlift:aircompressor")
     implementation("org.slf4j:slf4j-api")
     implementation("ch.qos.logback:logback-classic")
 }
@@ -4,10 +4,13 @@
 import com.netcracker.profiler.cloud.transport.FieldIO
 import com.netcracker.profiler.cloud.transport.ProfilerProtocolException
 import com.netcracker.profiler.cloud.transport.ProtocolConst
+import io.airlift.compress.lz4.Lz4Decompressor
+import io.airlift.compress.zstd.ZstdDecompressor
 import org.slf4j.LoggerFactory
 import java.io.BufferedInputStream
 import java.io.BufferedOutputStream
 import java.io.Closeable
+import java.io.EOFException
 import java.net.Socket
 import java.net.SocketTimeoutException
 import java.util.*
@@ -33,6 +36,12 @@ class ClientConnectionHandler(
     private var cloudNamespace: String = "unknown"
     private var protocolVersion: Long = -1
 
+    // Protocol V4 state: short stream ids and the sequence number of the last processed request
+    private val streamIds = HashMap<Short, UUID>()
+    private var lastSequence = 0
+    private var frame = ByteArray(ProtocolConst.BATCH_FRAME_SIZE)
+    private var payload = ByteArray(ProtocolConst.BATCH_FRAME_SIZE)
+
     /**
      * Main handler loop for processing client commands.
      */
@@ -92,15 +101,21 @@ private fun performHandshake() {
             podName, microserviceName, cloudNamespace, clientVersion
         )
 
-        // Determine protocol version to use
+        // Determine protocol version to use, the server might be limited to an older version
+        val version = minOf(clientVersion, server.maxProtocolVersion)
         protocolVersion = when {
-            clientVersion >= ProtocolConst.PROTOCOL_VERSION_V3 -> ProtocolConst.PROTOCOL_VERSION_V3
-            clientVersion >= ProtocolConst.PROTOCOL_VERSION_V2 -> ProtocolConst.PROTOCOL_VERSION_V2
+            version >= ProtocolConst.PROTOCOL_VERSION_V4 -> ProtocolConst.PROTOCOL_VERSION_V4
+            version >= ProtocolConst.PROTOCOL_VERSION_V3 -> ProtocolConst.PROTOCOL_VERSION_V3
+            version >= ProtocolConst.PROTOCOL_VERSION_V2 -> ProtocolConst.PROTOCOL_VERSION_V2
             else -> throw ProfilerProtocolException("Unsupported client protocol version: $clientVersion")
         }
 
         // Send protocol version response
         fieldIO.writeLong(protocolVersion)
+        if (isBatched()) {
+            // Supported frame codecs
+            fieldIO.writeInt((1 shl ProtocolConst.FRAME_CODEC_LZ4.toInt()) or (1 shl ProtocolConst.FRAME_CODEC_ZSTD.toInt()))
+        }
         outputStream.flush()
 
         log.info("Handshake completed with protocol version {}", protocolVersion)
@@ -122,6 +137,7 @@ private fun processCommands() {
                 when (command) {
                     ProtocolConst.COMMAND_INIT_STREAM_V2 -> handleInitStream()
                     ProtocolConst.COMMAND_RCV_DATA -> handleReceiveData()
+                    ProtocolConst.COMMAND_RCV_DATA_BATCH -> handleReceiveBatch()
                     ProtocolConst.COMMAND_REQUEST_ACK_FLUSH -> handleAckFlush()
                     ProtocolConst.COMMAND_CLOSE -> {
                         log.info("Client {}:{} requested close", microserviceName, podName)
@@ -163,7 +179,13 @@ private fun handleInitStream() {
         streamManager.registerStream(streamHandle, streamName, requestedRollingSequenceId)
 
         // Send response
-        fieldIO.writeUUID(streamHandle)
+        if (isBatched()) {
+            val streamId = streamIds.size.toShort()
+            streamIds[streamId] = streamHandle
+            fieldIO.writeShort(streamId)
+        } else {
+            fieldIO.writeUUID(streamHandle)
+        }
         fieldIO.writeLong(0L) // rotation period (not used in mock)
         fieldIO.writeLong(0L) // required rotation size (not used in mock)
         fieldIO.writeInt(requestedRollingSequenceId) // server rolling sequence id
@@ -192,31 +214,139 @@ private fun handleReceiveData() {
             return
         }
 
+        // Get data from field IO buffer
+        recordData(streamHandle, streamInfo, fieldIO.array.copyOf(dataLength))
+
+        // Send success ack (0 commands to dispatch)
+        sendAck(0)
+    }
+
+    /**
+     * Handle COMMAND_RCV_DATA_BATCH - receive a frame with records of several streams.
+     */
+    private fun handleReceiveBatch() {
+        val payloadLength = fieldIO.readInt()
+        val uncompressedLength = fieldIO.readInt()
+        val codec = inputStream.read()
+        if (payloadLength < 0 || payloadLength > ProtocolConst.MAX_BATCH_FRAME_SIZE ||
+            uncompressedLength < 0 || uncompressedLength > ProtocolConst.MAX_BATCH_FRAME_SIZE
+        ) {
+            throw ProfilerProtocolException("Invalid frame size $payloadLength/$uncompressedLength")
+        }
+        if (frame.size < payloadLength) {
+            frame = ByteArray(payloadLength)
+        }
+        readFully(frame, payloadLength)
+        lastSequence++
+
+        val data = when (codec.toByte()) {
+            ProtocolConst.FRAME_CODEC_NONE -> {
+                if (payloadLength != uncompressedLength) {
+                    throw ProfilerProtocolException("Uncompressed frame of $payloadLength bytes declares $uncompressedLength bytes")
+                }
+                frame
+            }
+            ProtocolConst.FRAME_CODEC_LZ4, ProtocolConst.FRAME_CODEC_ZSTD -> {
+                if (payload.size < uncompressedLength) {
+                    payload = ByteArray(uncompressedLength)
+                }
+                val decompressor = if (codec.toByte() == ProtocolConst.FRAME_CODEC_LZ4) Lz4Decompressor() else ZstdDecompressor()
+                val actual = decompressor.decompress(frame, 0, payloadLength, payload, 0, uncompressedLength)
+                if (actual != uncompressedLength) {
+                    throw ProfilerProtocolException("Frame decompressed to $actual bytes, expected $uncompressedLength")
+                }
+                payload
+            }
+
+            else -> throw ProfilerProtocolException("Unknown frame codec $codec")
+        }
+        server.metricRegistry.counter("mock.server.frames", "codec", codecName(codec)).increment()
+        server.metricRegistry.counter("mock.server.frame.bytes").increment(payloadLength.toDouble())
+
+        var pos = 0
+        while (pos < uncompressedLength) {
+            if (pos + ProtocolConst.BATCH_RECORD_HEADER_SIZE > uncompressedLength) {
+                throw ProfilerProtocolException("Truncated record header at $pos of $uncompressedLength bytes")
+            }
+            val streamId = ((data[pos].toInt() and 0xff) shl 8 or (data[pos + 1].toInt() and 0xff)).toShort()
+            val length = (data[pos + 2].toInt() and 0xff) shl 24 or ((data[pos + 3].toInt() and 0xff) shl 16) or
+                ((data[pos + 4].toInt() and 0xff) shl 8) or (data[pos + 5].toInt() and 0xff)
+            pos += ProtocolConst.BATCH_RECORD_HEADER_SIZE
+            val streamHandle = streamIds[streamId]
+            val streamInfo = streamHandle?.let { streamManager.getStream(it) }
+            if (streamInfo == null || length < 0 || pos + length > uncompressedLength) {
+                log.warn("Received invalid record for stream id {}, length {}", streamId, length)
+                outputStream.write(ProtocolConst.ACK_ERROR_MAGIC.toInt())
+                outputStream.flush()
+                return
+            }
+            recordData(streamHandle, streamInfo, data.copyOfRange(pos, pos + length))
+            pos += length
+        }
+
+        // Acks are cumulative, so the ack is skipped only when the next command is known to be acked as well
+        if (!nextCommandAcks()) {
+            sendAck(0)
+        }
+    }
+
+    /**
+     * Checks if the next buffered command is a frame or an ack request, so its ack confirms the current frame too.
+     * Any other command (stream init, keep-alive, close) or no command at all requires the ack right away, otherwise
+     * the client waits for it forever.
+     */
+    private fun nextCommandAcks(): Boolean {
+        if (inputStream.available() == 0) {
+            return false
+        }
+        inputStream.mark(1)
+        val next = inputStream.read()
+        inputStream.reset()
+        return next == ProtocolConst.COMMAND_RCV_DATA_BATCH || next == ProtocolConst.COMMAND_REQUEST_ACK_FLUSH
+    }
+
+    private fun codecName(codec: Int) = when (codec.toByte()) {
+        ProtocolConst.FRAME_CODEC_LZ4 -> "lz4"
+        ProtocolConst.FRAME_CODEC_ZSTD -> "zstd"
+        else -> "none"
+    }
+
+    private fun recordData(streamHandle: UUID, streamInfo: StreamManager.StreamInfo, data: ByteArray) {
         server.metricRegistry.counter("mock.server.stream.chunks", "stream_name", streamInfo.name).increment()
         server.metricRegistry.counter("mock.server.stream.bytes", "stream_name", streamInfo.name)
-            .increment(dataLength.toDouble())
-
-        // Get data from field IO buffer
-        val data = fieldIO.array.copyOf(dataLength)
+            .increment(data.size.toDouble())
 
         // Log received data
         dataLogger.logData(
-            streamInfo.name, data, dataLength,
+            streamInfo.name, data, data.size,
             podName, microserviceName, cloudNamespace
         )
 
         // Update stream statistics
-        streamManager.recordData(streamHandle, dataLength)
+        streamManager.recordData(streamHandle, data.size)
+    }
 
-        // Send success ack (0 commands to dispatch)
-        sendAck(0)
+    private fun readFully(buffer: ByteArray, length: Int) {
+        var pos = 0
+        while (pos < length) {
+            val n = inputStream.read(buffer, pos, length - pos)
+            if (n < 0) {
+                throw EOFException("Unexpected end of frame: $pos of $length bytes read")
+            }
+            pos += n
+        }
     }
 
+    private fun isBatched() = protocolVersion == ProtocolConst.PROTOCOL_VERSION_V4
+
     /**
      * Handle COMMAND_REQUEST_ACK_FLUSH - explicit ack request.
      */
     private fun handleAckFlush() {
         log.trace("Ack flush requested by {}:{}", microserviceName, podName)
+        if (isBatched()) {
+            lastSequence++
+        }
         sendAck(0)
     }
 
@@ -233,7 +363,12 @@ private fun handleKeepAlive() {
      * @param numCommands Number of commands to dispatch (0 for normal ack)
      */
     private fun sendAck(numCommands: Int) {
+        server.metricRegistry.counter("mock.server.acks").increment()
         outputStream.write(numCommands)
+        if (isBatched()) {
+            // Cumulative ack: confirms all the requests up to the last processed one
+            fieldIO.writeInt(lastSequence)
+        }
         outputStream.flush()
     }
 
@@ -13,10 +13,14 @@
 /**
  * Mock collector server that accepts connections from Dumper clients
  * and logs received profiling data.
+ *
+ * @param maxProtocolVersion the newest protocol version the server negotiates, an older version
+ * lets tests check how the clients fall back
  */
-class MockCollectorServer(
+class MockCollectorServer @JvmOverloads constructor(
     private val bindPort: Int = ProtocolConst.PLAIN_SOCKET_PORT,
     private val backlog: Int = ProtocolConst.PLAIN_SOCKET_BACKLOG,
+    val maxProtocolVersion: Long = ProtocolConst.PROTOCOL_VERSION_V4,
 ) : AutoCloseable {
     enum class ServerState {
         IDLE, RUNNING, CLOSING
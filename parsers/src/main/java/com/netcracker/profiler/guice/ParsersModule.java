@@ -119,6 +119,7 @@ protected void configure() {
         callDataReaderBinder.addBinding(2).to(CallDataReader_02.class);
         callDataReaderBinder.addBinding(3).to(CallDataReader_03.class);
         callDataReaderBinder.addBinding(4).to(CallDataReader_04.class);
+        callDataReaderBinder.addBinding(5).to(CallDataReader_05.class);
 
         // Bind CallDataReaderFactory
         bind(CallDataReaderFactory.class);
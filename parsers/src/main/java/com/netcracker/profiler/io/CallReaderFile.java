@@ -3,6 +3,7 @@
 import com.netcracker.profiler.chart.UnaryFunction;
 import com.netcracker.profiler.configuration.ParameterInfoDto;
 import com.netcracker.profiler.dump.DataInputStreamEx;
+import com.netcracker.profiler.dump.DumpShards;
 import com.netcracker.profiler.dump.DumperDetector;
 import com.netcracker.profiler.guice.DumpRootLocation;
 import com.netcracker.profiler.io.call.CallDataReaderFactory;
@@ -213,10 +214,8 @@ private void findInFolder(File root, String currentPath, int level) {
             }
 
 
-            TreeMap<Long, File> callRangeFoldersMap = findCallRangeFolders(root);
+            TreeMap<Long, List<File>> callRangeFoldersMap = findCallRangeFolders(root);
             if(!READ_CALL_RANGES || callRangeFoldersMap.isEmpty() || durationFrom < callRangeFoldersMap.firstKey()) {
-                File callsFolder = new File(root, "calls");
-                if (!callsFolder.exists()) return;
                 long endScan = Long.MAX_VALUE;
                 if(USE_FAST_CALL_READER) {
                     endScan = end + (CALLS_SCANNER_UPPER_BOUND_MINUTES * 60 * 1000);
@@ -224,11 +223,14 @@ private void findInFolder(File root, String currentPath, int level) {
                         endScan = Long.MAX_VALUE;
                     }
                 }
-                findInCallsFolder(callsFolder, suspendLog, requiredIds, paramInfo, tags, root, endScan, paramReader);
+                // Sharded dumper writes calls to "calls", "calls@1", "calls@2", ...
+                for (File callsFolder : DumpShards.findStreamFolders(root, "calls")) {
+                    findInCallsFolder(callsFolder, suspendLog, requiredIds, paramInfo, tags, root, endScan, paramReader);
+                }
             } else {
                 long endScan = Long.MAX_VALUE;
                 long maxDuration = Long.MAX_VALUE;
-                for(Map.Entry<Long, File> callsFolderEntry : callRangeFoldersMap.descendingMap().entrySet()) {
+                for(Map.Entry<Long, List<File>> callsFolderEntry : callRangeFoldersMap.descendingMap().entrySet()) {
                     long minDuration = callsFolderEntry.getKey();
                     if(minDuration > durationTo) {
                         continue;
@@ -237,8 +239,9 @@ private void findInFolder(File root, String currentPath, int level) {
                         break;
                     }
 
-                    File callsFolder = callsFolderEntry.getValue();
-                    findInCallsFolder(callsFolder, suspendLog, requiredIds, paramInfo, tags, root, endScan, paramReader);
+                    for (File callsFolder : callsFolderEntry.getValue()) {
+                        findInCallsFolder(callsFolder, suspendLog, requiredIds, paramInfo, tags, root, endScan, paramReader);
+                    }
                     endScan = end + maxDuration;
                     if(endScan < 0) { //Overflow
                         endScan = Long.MAX_VALUE;
@@ -280,10 +283,12 @@ private void findInFolder(File root, String currentPath, int level) {
         }
     }
 
-    private TreeMap<Long, File> findCallRangeFolders(File root) {
-        TreeMap<Long, File> callRangeFolders = new TreeMap<>();
-        for(File file : root.listFiles()) {
-            String fileName = file.getName();
+    private TreeMap<Long, List<File>> findCallRangeFolders(File root) {
+        TreeMap<Long, List<File>> callRangeFolders = new TreeMap<>();
+        File[] files = root.listFiles();
+        Arrays.sort(files);
+        for(File file : files) {
+            String fileName = DumpShards.getBaseStreamName(file.getName());
             if(!fileName.startsWith("calls[")) {
                 continue;
             }
@@ -298,7 +303,12 @@ private TreeMap<Long, File> findCallRangeFolders(File root) {
                 callRangeFolders.clear();
                 return callRangeFolders;
             }
-            callRangeFolders.put(minDuration, file);
+            List<File> folders = callRangeFolders.get(minDuration);
+            if(folders == null) {
+                folders = new ArrayList<>();
+                callRangeFolders.put(minDuration, folders);
+            }
+            folders.add(file);
         }
         return callRangeFolders;
     }
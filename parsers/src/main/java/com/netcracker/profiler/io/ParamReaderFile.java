@@ -2,6 +2,7 @@
 
 import com.netcracker.profiler.configuration.ParameterInfoDto;
 import com.netcracker.profiler.dump.DataInputStreamEx;
+import com.netcracker.profiler.dump.DumpCodec;
 import com.netcracker.profiler.tags.Dictionary;
 import com.netcracker.profiler.tags.DictionaryList;
 import com.netcracker.profiler.util.StringUtils;
@@ -179,10 +180,7 @@ protected  DataInputStreamEx openDataInputStreamFromAnyDate(String streamName) t
                     toCheck.add(child);
                     continue;
                 }
-                String name = child.getName();
-                if(name.endsWith(".gz")){
-                    name = name.substring(0, name.length()-3);
-                }
+                String name = DumpCodec.stripExtension(child.getName());
                 //found some non-empty params stream
                 if(StringUtils.isNumeric(name) && "params".equals(child.getParentFile().getName())){
                     return DataInputStreamEx.openDataInputStreamAllSequences(child.getParentFile().getParentFile(), "params");
@@ -21,11 +21,11 @@ public void readParams(Call dst, DataInputStreamEx calls, BitSet requiredIds) th
             if (size == 0)
                 dst.params.put(paramId, Collections.<String>emptyList());
             else if (size == 1) {
-                dst.params.put(paramId, Collections.singletonList(calls.readString()));
+                dst.params.put(paramId, Collections.singletonList(readString(calls)));
             } else {
                 String[] result = new String[size];
                 for (size--; size >= 0; size--)
-                    result[size] = calls.readString();
+                    result[size] = readString(calls);
                 dst.params.put(paramId, Arrays.asList(result));
             }
         }
@@ -38,10 +38,25 @@ public void skipParams(Call dst, DataInputStreamEx calls) throws IOException {
             final int paramId = calls.readVarInt();
             int size = calls.readVarInt();
             for (; size > 0; size--)
-                calls.skipString();
+                skipString(calls);
         }
     }
 
+    /**
+     * Reads a string value of the call record, formats that use a different string encoding override it.
+     *
+     * @param calls calls stream
+     * @return string value
+     * @throws IOException if the read fails
+     */
+    protected String readString(DataInputStreamEx calls) throws IOException {
+        return calls.readString();
+    }
+
+    protected void skipString(DataInputStreamEx calls) throws IOException {
+        calls.skipString();
+    }
+
     public void postCompute(ArrayList<Call> result, Dictionary tags, BitSet requredIds) {
     }
 }
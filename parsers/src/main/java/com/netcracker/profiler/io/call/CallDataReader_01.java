@@ -20,7 +20,7 @@ public void read(Call dst, DataInputStreamEx calls, BitSet requiredIds) throws I
         int threadIndex = calls.readVarInt();
         if (threadNames != null) {
             if (threadIndex == threadNames.size())
-                threadNames.add(calls.readString());
+                threadNames.add(readString(calls));
             try {
                 //in case of zip errors thread index may be larger than number of threads
                 if(threadNames.size() > threadIndex) {
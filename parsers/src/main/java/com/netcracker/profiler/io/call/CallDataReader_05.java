@@ -0,0 +1,21 @@
+package com.netcracker.profiler.io.call;
+
+import com.netcracker.profiler.dump.DataInputStreamEx;
+
+import java.io.IOException;
+
+/**
+ * Same layout as {@link CallDataReader_04}, thread names and parameter values are stored in compact form:
+ * a single byte per char for Latin-1 strings and UTF-8 otherwise.
+ */
+public class CallDataReader_05 extends CallDataReader_04 {
+    @Override
+    protected String readString(DataInputStreamEx calls) throws IOException {
+        return calls.readCompactString();
+    }
+
+    @Override
+    protected void skipString(DataInputStreamEx calls) throws IOException {
+        calls.skipCompactString();
+    }
+}
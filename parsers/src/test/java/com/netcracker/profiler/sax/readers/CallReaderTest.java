@@ -15,6 +15,7 @@
 import com.netcracker.profiler.io.call.CallDataReader_00;
 import com.netcracker.profiler.io.call.CallDataReader_03;
 import com.netcracker.profiler.io.call.CallDataReader_04;
+import com.netcracker.profiler.io.call.CallDataReader_05;
 
 import org.junit.jupiter.api.Test;
 
@@ -39,6 +40,7 @@ protected CallDataReaderFactory getCallDataReaderFactory() {
         Map<Integer, Provider<CallDataReader>> readers = new HashMap<>();
         readers.put(3, CallDataReader_03::new);
         readers.put(4, CallDataReader_04::new);
+        readers.put(5, CallDataReader_05::new);
         return new CallDataReaderFactory(readers, CallDataReader_00::new);
     }
 
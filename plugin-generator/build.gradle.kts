@@ -10,4 +10,5 @@
     implementation("org.ow2.asm:asm-util")
     implementation("org.slf4j:slf4j-api")
     implementation(projects.pluginRuntime)
+    testImplementation(projects.boot)
 }
@@ -0,0 +1,129 @@
+package com.netcracker.profiler.tools;
+
+import static com.netcracker.profiler.instrument.enhancement.EnhancerConstants.OPCODES_VERSION;
+
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Replaces {@code Profiler.event(value, "constant")} calls in the injected methods with
+ * {@code Profiler.event(value, tag$constant$profiler, "constant")}, where the tag id is resolved once in the static
+ * initializer of the enhanced class. This avoids {@code MethodDictionary} lookup on every event.
+ * <p>
+ * {@code StaticInitMerger} appends the resolving initializer to the original one of the class, so the events logged
+ * while the class initializes see zero tags. {@code Profiler} resolves the name in that case.
+ */
+class EventTagResolver {
+    private static final Logger log = LoggerFactory.getLogger(EventTagResolver.class);
+
+    static final String PROFILER = "com/netcracker/profiler/agent/Profiler";
+    static final String EVENT_BY_NAME_DESC = "(Ljava/lang/Object;Ljava/lang/String;)V";
+    static final String EVENT_BY_ID_DESC = "(Ljava/lang/Object;ILjava/lang/String;)V";
+    static final String RESOLVE_EVENT_TAG = "resolveEventTag";
+    static final String RESOLVE_EVENT_TAG_DESC = "(Ljava/lang/String;)I";
+
+    private final String className;
+    // Several plugins might enhance the same class, so the field names include the plugin name
+    private final String scope;
+    // tag name -> field name
+    private final Map<String, String> tagFields = new LinkedHashMap<>();
+
+    EventTagResolver(String className, String scope) {
+        this.className = className;
+        this.scope = scope;
+    }
+
+    /**
+     * Wraps method visitor, so constant event names are replaced with static field reads.
+     */
+    MethodVisitor wrap(int access, String name, String desc, String signature, String[] exceptions, final MethodVisitor next) {
+        return new MethodNode(OPCODES_VERSION, access, name, desc, signature, exceptions) {
+            @Override
+            public void visitEnd() {
+                resolveEventTags(this);
+                accept(next);
+            }
+        };
+    }
+
+    private void resolveEventTags(MethodNode method) {
+        for (AbstractInsnNode insn = method.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+            if (!(insn instanceof LdcInsnNode) || !(((LdcInsnNode) insn).cst instanceof String)) {
+                continue;
+            }
+            AbstractInsnNode next = insn.getNext();
+            if (!(next instanceof MethodInsnNode)) {
+                continue;
+            }
+            MethodInsnNode call = (MethodInsnNode) next;
+            if (call.getOpcode() != Opcodes.INVOKESTATIC || !PROFILER.equals(call.owner)
+                    || !"event".equals(call.name) || !EVENT_BY_NAME_DESC.equals(call.desc)) {
+                continue;
+            }
+            String tag = (String) ((LdcInsnNode) insn).cst;
+            String field = getTagField(tag);
+            log.debug("resolving event tag {} in {}.{} via field {}", tag, className, method.name, field);
+            method.instructions.insertBefore(insn, new FieldInsnNode(Opcodes.GETSTATIC, className, field, "I"));
+            call.desc = EVENT_BY_ID_DESC;
+            // The tag id is pushed along with the name
+            method.maxStack++;
+            insn = call;
+        }
+    }
+
+    private String getTagField(String tag) {
+        String field = tagFields.get(tag);
+        if (field != null) {
+            return field;
+        }
+        StringBuilder sb = new StringBuilder(tag.length() + 16).append("tag$");
+        for (int i = 0; i < tag.length(); i++) {
+            char c = tag.charAt(i);
+            sb.append(Character.isJavaIdentifierPart(c) && c != '$' ? c : '_');
+        }
+        String base = sb.append('$').append(scope).toString();
+        field = base + "$profiler";
+        for (int i = 1; tagFields.containsValue(field); i++) {
+            field = base + i + "$profiler";
+        }
+        tagFields.put(tag, field);
+        return field;
+    }
+
+    /**
+     * Emits the fields that hold resolved tag ids along with an extra static initializer.
+     * The initializers are merged with the existing ones by {@code StaticInitMerger}.
+     */
+    void visitEnd(ClassVisitor cv) {
+        if (tagFields.isEmpty()) {
+            return;
+        }
+        for (String field : tagFields.values()) {
+            FieldVisitor fv = cv.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_FINAL | Opcodes.ACC_SYNTHETIC,
+                    field, "I", null, null);
+            fv.visitEnd();
+        }
+        MethodVisitor mv = cv.visitMethod(Opcodes.ACC_STATIC, "<clinit>", "()V", null, null);
+        mv.visitCode();
+        for (Map.Entry<String, String> entry : tagFields.entrySet()) {
+            mv.visitLdcInsn(entry.getKey());
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, PROFILER, RESOLVE_EVENT_TAG, RESOLVE_EVENT_TAG_DESC, false);
+            mv.visitFieldInsn(Opcodes.PUTSTATIC, className, entry.getValue(), "I");
+        }
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(1, 0);
+        mv.visitEnd();
+    }
+}
@@ -26,15 +26,20 @@ public class GenerateInjector {
 
     static class FilterProfiledEntities extends ClassVisitor {
 
+        private final String enhancerName;
         private String className;
+        private EventTagResolver eventTagResolver;
 
-        public FilterProfiledEntities(ClassVisitor cv) {
+        public FilterProfiledEntities(ClassVisitor cv, String enhancerName) {
             super(OPCODES_VERSION, cv);
+            this.enhancerName = enhancerName;
         }
 
         @Override
         public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
             className = name;
+            // Interfaces can't declare private static fields, so the tags are resolved at runtime there
+            eventTagResolver = (access & Opcodes.ACC_INTERFACE) == 0 ? new EventTagResolver(name, enhancerName) : null;
         }
 
         @Override
@@ -62,7 +67,11 @@ public MethodVisitor visitMethod(int access, String name, String desc, String si
                 name = "<clinit>";
             }
             log.debug("adding method {}", name);
-            return super.visitMethod(access, name, desc, signature, exceptions);
+            MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
+            if (eventTagResolver == null || mv == null) {
+                return mv;
+            }
+            return eventTagResolver.wrap(access, name, desc, signature, exceptions, mv);
         }
 
         @Override
@@ -88,6 +97,9 @@ public void visitInnerClass(String name, String outerName, String innerName, int
 
         @Override
         public void visitEnd() {
+            if (eventTagResolver != null) {
+                eventTagResolver.visitEnd(cv);
+            }
         }
     }
 
@@ -157,7 +169,7 @@ private void processClassFile(Path root) throws IOException {
 
         ASMifier asmifier = new ASMifier();
         TraceClassVisitor printer = new TraceClassVisitor(null, asmifier, null);
-        FilterProfiledEntities cv = new FilterProfiledEntities(printer);
+        FilterProfiledEntities cv = new FilterProfiledEntities(printer, className);
 
         cr.accept(cv, ClassReader.EXPAND_FRAMES);
 
@@ -0,0 +1,145 @@
+package com.netcracker.profiler.tools;
+
+import static com.netcracker.profiler.instrument.enhancement.EnhancerConstants.OPCODES_VERSION;
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.netcracker.profiler.agent.LocalBuffer;
+import com.netcracker.profiler.agent.Profiler;
+
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.commons.StaticInitMerger;
+
+import java.lang.reflect.Field;
+
+public class EventTagResolverTest {
+    private static final String TARGET = "com/acme/Tagged";
+    private static final String VALUE_TAG = "acme.value";
+    private static final String STATIC_TAG = "acme.static";
+
+    /**
+     * Generates the class a plugin would compile: {@code log$profiler} and {@code clinit$profiler} log events
+     * with constant names.
+     */
+    private static byte[] enhancer() {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, TARGET, null, "java/lang/Object", null);
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "log$profiler", "(Ljava/lang/String;)V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitLdcInsn(VALUE_TAG);
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, EventTagResolver.PROFILER, "event", EventTagResolver.EVENT_BY_NAME_DESC, false);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        mv = cw.visitMethod(Opcodes.ACC_STATIC, "clinit$profiler", "()V", null, null);
+        mv.visitCode();
+        mv.visitLdcInsn("static value");
+        mv.visitLdcInsn(STATIC_TAG);
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, EventTagResolver.PROFILER, "event", EventTagResolver.EVENT_BY_NAME_DESC, false);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    /**
+     * Merges the injected members into the class, as the agent does. The original static initializer calls
+     * the injected method, so it runs before the tags are resolved.
+     */
+    private static byte[] enhancedClass() {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        ClassVisitor cv = new StaticInitMerger("clinit$merged$", cw);
+        cv.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, TARGET, null, "java/lang/Object", null);
+        MethodVisitor mv = cv.visitMethod(Opcodes.ACC_STATIC, "<clinit>", "()V", null, null);
+        mv.visitCode();
+        mv.visitLdcInsn("init value");
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, TARGET, "log$profiler", "(Ljava/lang/String;)V", false);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        mv = cv.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "run", "(Ljava/lang/String;)V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, TARGET, "log$profiler", "(Ljava/lang/String;)V", false);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        new ClassReader(enhancer()).accept(new GenerateInjector.FilterProfiledEntities(cv, "test"), ClassReader.EXPAND_FRAMES);
+        cv.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private static Class<?> load(final byte[] bytes) throws ClassNotFoundException {
+        ClassLoader loader = new ClassLoader(EventTagResolverTest.class.getClassLoader()) {
+            @Override
+            protected Class<?> findClass(String name) throws ClassNotFoundException {
+                if (!TARGET.replace('/', '.').equals(name)) {
+                    throw new ClassNotFoundException(name);
+                }
+                return defineClass(name, bytes, 0, bytes.length);
+            }
+        };
+        return Class.forName(TARGET.replace('/', '.'), true, loader);
+    }
+
+    /**
+     * Returns the tag of the event with the given value logged since {@code from}.
+     */
+    private static int loggedTag(LocalBuffer buffer, int from, Object value) {
+        for (int i = from; i < buffer.count; i++) {
+            if (buffer.value[i] == value) {
+                return (int) buffer.data[i];
+            }
+        }
+        return fail("Event " + value + " is not logged");
+    }
+
+    @Test
+    void constantEventNamesAreReplacedWithTagFields() throws Exception {
+        final int[] events = new int[2];
+        new ClassReader(enhancedClass()).accept(new ClassVisitor(OPCODES_VERSION) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+                return new MethodVisitor(OPCODES_VERSION) {
+                    @Override
+                    public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean isInterface) {
+                        if (EventTagResolver.PROFILER.equals(owner) && "event".equals(name)) {
+                            events[EventTagResolver.EVENT_BY_ID_DESC.equals(desc) ? 0 : 1]++;
+                        }
+                    }
+                };
+            }
+        }, 0);
+        assertEquals(2, events[0], "Both events should use the resolved tags");
+        assertEquals(0, events[1], "Events should not be resolved by name");
+
+        Class<?> tagged = load(enhancedClass());
+        Field field = tagged.getDeclaredField("tag$acme_value$test$profiler");
+        field.setAccessible(true);
+        assertEquals(Profiler.resolveEventTag(VALUE_TAG), field.getInt(null));
+    }
+
+    @Test
+    void eventsLoggedWhileClassInitializesUseResolvedTags() throws Exception {
+        LocalBuffer buffer = Profiler.getState().buffer;
+        int from = buffer.count;
+        String value = "run value";
+        Class<?> tagged = load(enhancedClass());
+        tagged.getMethod("run", String.class).invoke(null, value);
+
+        assertSame(buffer, Profiler.getState().buffer, "Buffer should not be exchanged during the test");
+        // The original static initializer runs before the tag fields are initialized
+        assertEquals(Profiler.resolveEventTag(VALUE_TAG), loggedTag(buffer, from, "init value"), "Event logged from <clinit>");
+        assertEquals(Profiler.resolveEventTag(STATIC_TAG), loggedTag(buffer, from, "static value"), "Event logged from clinit$profiler");
+        assertEquals(Profiler.resolveEventTag(VALUE_TAG), loggedTag(buffer, from, value), "Event logged after the class is initialized");
+    }
+}
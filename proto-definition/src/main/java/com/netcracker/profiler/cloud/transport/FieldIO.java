@@ -135,6 +135,15 @@ public int readInt() throws IOException {
         return result;
     }
 
+    public short readShort() throws IOException {
+        readNumBytes(2);
+        short result = buffer.getShort(0);
+        if(traceMode){
+            System.out.println("Read short " + result);
+        }
+        return result;
+    }
+
     public void writeLong(long toWrite) throws IOException {
         startCall(true);
         clearBuffer();
@@ -157,6 +166,17 @@ public void writeInt(int toWrite) throws IOException {
         endCall();
     }
 
+    public void writeShort(short toWrite) throws IOException {
+        startCall(true);
+        clearBuffer();
+        buffer.putShort(toWrite);
+        out.write(array, 0, 2);
+        if(traceMode){
+            System.out.println("Written short " + toWrite);
+        }
+        endCall();
+    }
+
     public UUID readUUID() throws IOException {
         long msb = readLong();
         long lsb = readLong();
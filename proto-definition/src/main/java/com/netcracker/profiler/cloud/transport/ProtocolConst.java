@@ -31,10 +31,36 @@ public interface ProtocolConst {
     int COMMAND_REPORT_COMMAND_RESULT = 0x13;
 
     int COMMAND_GET_PROTOCOL_VERSION_V2 = 0x14;
+    /**
+     * Batched data frame of {@link #PROTOCOL_VERSION_V4}: int payload length, int uncompressed length,
+     * byte codec ({@link #FRAME_CODEC_NONE}, {@link #FRAME_CODEC_LZ4} or {@link #FRAME_CODEC_ZSTD}) and the payload.
+     * Uncompressed payload is a sequence of records: short stream handle, int length and the data.
+     */
+    int COMMAND_RCV_DATA_BATCH = 0x16;
 
     long PROTOCOL_VERSION = 100505L;
     long PROTOCOL_VERSION_V2 = 100605L;
     long PROTOCOL_VERSION_V3 = 100705L;
+    /**
+     * Same as {@link #PROTOCOL_VERSION_V3}, and the data is sent in {@link #COMMAND_RCV_DATA_BATCH} frames.
+     * <ul>
+     *     <li>The collector that accepts the version replies with the version followed by int bit mask of supported
+     *     frame codecs ({@code 1 << FRAME_CODEC_LZ4 | 1 << FRAME_CODEC_ZSTD})</li>
+     *     <li>{@link #COMMAND_INIT_STREAM_V2} returns short stream handle instead of UUID, -1 means failure</li>
+     *     <li>Every data frame and {@link #COMMAND_REQUEST_ACK_FLUSH} gets the next sequence number (starting with 1).
+     *     The ack is the number of commands to dispatch followed by int sequence number of the last processed
+     *     request, so a single ack confirms all the earlier frames</li>
+     * </ul>
+     */
+    long PROTOCOL_VERSION_V4 = 100805L;
+
+    int BATCH_FRAME_SIZE = 64 * 1024;
+    int MAX_BATCH_FRAME_SIZE = 1024 * 1024;
+    int BATCH_RECORD_HEADER_SIZE = 6;
+
+    byte FRAME_CODEC_NONE = 0;
+    byte FRAME_CODEC_LZ4 = 1;
+    byte FRAME_CODEC_ZSTD = 2;
 
     byte ACK_RESPONSE_MAGIC = 'K';
     byte ACK_ERROR_MAGIC = -1;
@@ -20,6 +20,7 @@
     relocate("com.graphbuilder", "com.netcracker.profiler.shaded.com.graphbuilder")
     relocate("com.microsoft.schemas", "com.netcracker.profiler.shaded.com.microsoft.schemas")
     relocate("gnu.trove", "com.netcracker.profiler.shaded.gnu.trove")
+    relocate("io.airlift.compress", "com.netcracker.profiler.shaded.io.airlift.compress")
     relocate("net.sourceforge.argparse4j", "com.netcracker.profiler.shaded.net.sourceforge.argparse4j")
     relocate("org.HdrHistogram", "com.netcracker.profiler.shaded.org.HdrHistogram")
     relocate("org.aopalliance", "com.netcracker.profiler.shaded.org.aopalliance")
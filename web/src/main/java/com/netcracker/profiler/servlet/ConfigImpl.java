@@ -307,6 +307,16 @@ private void computeDumperStatus(StringWriter sw) {
         sw.append(Long.toString(dumper.fileRead));
         sw.append(',');
         sw.append(Long.toString(dumper.archiveSize));
+        sw.append(',');
+        sw.append(Long.toString(dumper.compressTime));
+        sw.append(',');
+        sw.append(Integer.toString(dumper.compressQueueDepth));
+        sw.append(',');
+        sw.append(Long.toString(dumper.remoteSpillSize));
+        sw.append(',');
+        sw.append(Long.toString(dumper.remoteReplayLag));
+        sw.append(',');
+        sw.append(Double.toString(dumper.sqlCacheHitRatio));
         sw.append(']');
     }
 
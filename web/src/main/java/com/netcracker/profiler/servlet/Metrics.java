@@ -3,11 +3,13 @@
 import com.netcracker.profiler.agent.Bootstrap;
 import com.netcracker.profiler.agent.DumperPlugin;
 import com.netcracker.profiler.agent.DumperPlugin_09;
+import com.netcracker.profiler.agent.DumperPlugin_14;
 
 import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.util.Locale;
 
 import jakarta.inject.Singleton;
 import jakarta.servlet.http.HttpServletRequest;
@@ -16,20 +18,82 @@
 
 @Singleton
 public class Metrics extends jakarta.servlet.http.HttpServlet {
+    private static final String OPEN_METRICS_TYPE = "application/openmetrics-text";
+    private static final String OPEN_METRICS_VERSION = "1.0.0";
+
     protected void doPost(HttpServletRequest request, HttpServletResponse response) throws jakarta.servlet.ServletException, IOException {
         doGet(request, response);
     }
 
     protected void doGet(HttpServletRequest request, HttpServletResponse response) throws jakarta.servlet.ServletException, IOException {
-        final PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(response.getOutputStream(), "utf-8"), 65536), false);
-
-        DumperPlugin_09 dumper = (DumperPlugin_09) Bootstrap.getPlugin(DumperPlugin.class);
-        out.print(dumper.getMetrics());
-        out.flush();
+        DumperPlugin dumper = Bootstrap.getPlugin(DumperPlugin.class);
+        if (dumper instanceof DumperPlugin_14) {
+            boolean openMetrics = acceptsOpenMetrics(request);
+            response.setContentType(openMetrics
+                    ? OPEN_METRICS_TYPE + "; version=" + OPEN_METRICS_VERSION + "; charset=utf-8"
+                    : "text/plain; version=0.0.4; charset=utf-8");
+            ((DumperPlugin_14) dumper).writeMetrics(response.getOutputStream(), openMetrics);
+        } else {
+            final PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(response.getOutputStream(), "utf-8"), 65536), false);
+            out.print(((DumperPlugin_09) dumper).getMetrics());
+            out.flush();
+        }
 
         HttpSession session = request.getSession(false);
         if (session != null) {
             session.invalidate();
         }
     }
+
+    /**
+     * Prometheus lists the formats it accepts with q-values, so OpenMetrics is served only when the client prefers it
+     * to the text format. The format can also be forced with {@code ?format=openmetrics}
+     */
+    private static boolean acceptsOpenMetrics(HttpServletRequest request) {
+        if ("openmetrics".equals(request.getParameter("format"))) {
+            return true;
+        }
+        return prefersOpenMetrics(request.getHeader("Accept"));
+    }
+
+    private static boolean prefersOpenMetrics(String accept) {
+        if (accept == null) {
+            return false;
+        }
+        double openMetrics = 0;
+        double text = 0;
+        for (String range : accept.split(",")) {
+            String[] params = range.split(";");
+            String type = params[0].trim().toLowerCase(Locale.ROOT);
+            double q = 1;
+            String version = null;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                int eq = param.indexOf('=');
+                if (eq < 0) {
+                    continue;
+                }
+                String name = param.substring(0, eq).trim().toLowerCase(Locale.ROOT);
+                String value = param.substring(eq + 1).trim();
+                if ("q".equals(name)) {
+                    try {
+                        q = Double.parseDouble(value);
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                } else if ("version".equals(name)) {
+                    version = value;
+                }
+            }
+            if (OPEN_METRICS_TYPE.equals(type)) {
+                // The servlet writes OpenMetrics 1.0.0 only
+                if (version == null || OPEN_METRICS_VERSION.equals(version)) {
+                    openMetrics = Math.max(openMetrics, q);
+                }
+            } else if ("text/plain".equals(type) || "text/*".equals(type) || "*/*".equals(type)) {
+                text = Math.max(text, q);
+            }
+        }
+        return openMetrics > 0 && openMetrics >= text;
+    }
 }
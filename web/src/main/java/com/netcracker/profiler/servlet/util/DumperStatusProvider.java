@@ -15,6 +15,11 @@ public class DumperStatusProvider {
     public long fileRead;
     public long uncompressedSize;
     public long archiveSize;
+    public long compressTime;
+    public int compressQueueDepth;
+    public long remoteSpillSize;
+    public long remoteReplayLag;
+    public double sqlCacheHitRatio;
 
     public void update() {
     }
@@ -22,6 +27,27 @@ public void update() {
     public static final DumperStatusProvider INSTANCE = create();
 
     private static DumperStatusProvider create() {
+        try {
+            Class.forName("com.netcracker.profiler.agent.DumperPlugin_13");
+            return (DumperStatusProvider) Class.forName("com.netcracker.profiler.servlet.util.DumperStatusProvider13").newInstance();
+        } catch (Throwable t) {
+            /* Ignore */
+        }
+
+        try {
+            Class.forName("com.netcracker.profiler.agent.DumperPlugin_12");
+            return (DumperStatusProvider) Class.forName("com.netcracker.profiler.servlet.util.DumperStatusProvider12").newInstance();
+        } catch (Throwable t) {
+            /* Ignore */
+        }
+
+        try {
+            Class.forName("com.netcracker.profiler.agent.DumperPlugin_11");
+            return (DumperStatusProvider) Class.forName("com.netcracker.profiler.servlet.util.DumperStatusProvider11").newInstance();
+        } catch (Throwable t) {
+            /* Ignore */
+        }
+
         try {
             Class.forName("com.netcracker.profiler.agent.DumperPlugin_08");
             return (DumperStatusProvider) Class.forName("com.netcracker.profiler.servlet.util.DumperStatusProvider08").newInstance();
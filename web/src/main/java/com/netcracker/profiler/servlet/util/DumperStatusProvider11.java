@@ -0,0 +1,20 @@
+package com.netcracker.profiler.servlet.util;
+
+import com.netcracker.profiler.agent.Bootstrap;
+import com.netcracker.profiler.agent.DumperPlugin;
+import com.netcracker.profiler.agent.DumperPlugin_11;
+
+public class DumperStatusProvider11 extends DumperStatusProvider08 {
+    DumperPlugin_11 dumper = (DumperPlugin_11) Bootstrap.getPlugin(DumperPlugin.class);
+
+    @Override
+    public void update() {
+        //if dumper plugin is absent, do not attempt to collect info
+        if (dumper == null) {
+            return;
+        }
+        super.update();
+        compressTime = dumper.getCompressTime();
+        compressQueueDepth = dumper.getCompressQueueDepth();
+    }
+}
@@ -0,0 +1,20 @@
+package com.netcracker.profiler.servlet.util;
+
+import com.netcracker.profiler.agent.Bootstrap;
+import com.netcracker.profiler.agent.DumperPlugin;
+import com.netcracker.profiler.agent.DumperPlugin_12;
+
+public class DumperStatusProvider12 extends DumperStatusProvider11 {
+    DumperPlugin_12 dumper = (DumperPlugin_12) Bootstrap.getPlugin(DumperPlugin.class);
+
+    @Override
+    public void update() {
+        //if dumper plugin is absent, do not attempt to collect info
+        if (dumper == null) {
+            return;
+        }
+        super.update();
+        remoteSpillSize = dumper.getRemoteSpillSize();
+        remoteReplayLag = dumper.getRemoteReplayLag();
+    }
+}
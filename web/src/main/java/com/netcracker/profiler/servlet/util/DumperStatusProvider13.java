@@ -0,0 +1,19 @@
+package com.netcracker.profiler.servlet.util;
+
+import com.netcracker.profiler.agent.Bootstrap;
+import com.netcracker.profiler.agent.DumperPlugin;
+import com.netcracker.profiler.agent.DumperPlugin_13;
+
+public class DumperStatusProvider13 extends DumperStatusProvider12 {
+    DumperPlugin_13 dumper = (DumperPlugin_13) Bootstrap.getPlugin(DumperPlugin.class);
+
+    @Override
+    public void update() {
+        //if dumper plugin is absent, do not attempt to collect info
+        if (dumper == null) {
+            return;
+        }
+        super.update();
+        sqlCacheHitRatio = dumper.getSqlCacheHitRatio();
+    }
+}